@@ -301,6 +301,7 @@ CREATE TABLE attendances (
     user_id INT REFERENCES users(id),
     tipo_marcaje tipo_marcaje DEFAULT 'INGRESO',
     mensaje TEXT,
+    raw_count INT NOT NULL DEFAULT 1,      -- Marcaciones de la ráfaga colapsadas en esta (auditoría)
     procesado BOOLEAN DEFAULT FALSE,
     estado SMALLINT DEFAULT 1,
     usercrea INT,
@@ -329,6 +330,35 @@ CREATE TRIGGER trg_attendance_fecha_hora
 
 CREATE INDEX idx_attendances_user_fecha ON attendances(user_id, fecha);
 CREATE INDEX idx_attendances_dni_fecha ON attendances(dni, fecha);
+-- Clave natural de la marca por reloj: la ingesta en Java inserta con ON CONFLICT DO NOTHING
+CREATE UNIQUE INDEX uq_attendances_dni_fechahora_reloj ON attendances(dni, fechahora, reloj);
+
+-- =========================================================
+--  TABLA: PUNCH_EVENTS (MARCAS CRUDAS DESCARGADAS DE LOS RELOJES)
+-- =========================================================
+CREATE TABLE IF NOT EXISTS punch_events (
+    id SERIAL PRIMARY KEY,
+    dni VARCHAR(20) NOT NULL,
+    nombre VARCHAR(200),
+    fechahora TIMESTAMP NOT NULL,
+    fecha DATE NOT NULL,
+    hora TIME NOT NULL,
+    clock_id INT NOT NULL,
+    raw_count INT NOT NULL DEFAULT 1,
+    estado SMALLINT DEFAULT 1,
+    created_at TIMESTAMPTZ DEFAULT CURRENT_TIMESTAMP
+);
+
+-- Marcaciones de la ráfaga colapsadas en esta al ingerir (PUNCH_DEBOUNCE_SECONDS)
+ALTER TABLE punch_events ADD COLUMN IF NOT EXISTS raw_count INT NOT NULL DEFAULT 1;
+
+-- Clave natural para la ingesta por lotes (INSERT ... ON CONFLICT DO NOTHING);
+-- antes se eliminan los duplicados que hubiera dejado la inserción registro a registro
+DELETE FROM punch_events a USING punch_events b
+WHERE a.id > b.id AND a.dni = b.dni AND a.fechahora = b.fechahora AND a.clock_id = b.clock_id;
+
+CREATE UNIQUE INDEX IF NOT EXISTS uq_punch_events_dni_fechahora_clock ON punch_events(dni, fechahora, clock_id);
+CREATE INDEX IF NOT EXISTS idx_punch_events_clock_fechahora ON punch_events(clock_id, fechahora);
 
 -- =========================================================
 --  TABLA: DAILYATTENDANCES (ASISTENCIA DIARIA PROCESADA)
@@ -354,6 +384,7 @@ CREATE TABLE dailyattendances (
     horaslab DECIMAL(5,2), -- Horas laboradas
     minlab INT, -- Minutos laborados
     horas_extras DECIMAL(5,2) DEFAULT 0,
+    fingerprint BIGINT, -- Huella del resultado calculado (DailyAttendanceEngine); NULL = reescribir
     estado SMALLINT DEFAULT 1,
     jobassignment_id INT NOT NULL REFERENCES jobassignments(id),
     usercrea INT,
@@ -368,9 +399,199 @@ CREATE TRIGGER trg_dailyattendances_updated_at
     BEFORE UPDATE ON dailyattendances 
     FOR EACH ROW EXECUTE FUNCTION actualizar_updated_at();
 
+-- Una actualización que no trae huella nueva (script, edición manual) invalida la anterior,
+-- así el próximo cálculo vuelve a escribir la fila aunque su resultado no haya cambiado
+CREATE OR REPLACE FUNCTION invalidar_fingerprint_dailyattendances()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF NEW.fingerprint IS NOT DISTINCT FROM OLD.fingerprint THEN
+        NEW.fingerprint := NULL;
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_dailyattendances_fingerprint
+    BEFORE UPDATE ON dailyattendances
+    FOR EACH ROW EXECUTE FUNCTION invalidar_fingerprint_dailyattendances();
+
 CREATE INDEX idx_dailyattendances_job_fecha ON dailyattendances(jobassignment_id, fecha);
 CREATE INDEX idx_dailyattendances_anio_mes ON dailyattendances(anio, mes);
 
+-- =========================================================
+--  TABLA: ATTENDANCE_DIRTY_CELLS (CELDAS DE DAILYATTENDANCES POR RECALCULAR)
+-- =========================================================
+DROP TABLE IF EXISTS attendance_dirty_cells CASCADE;
+CREATE TABLE attendance_dirty_cells (
+    jobassignment_id INT NOT NULL,
+    fecha DATE NOT NULL,
+    marked_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP, -- Primera anotación pendiente
+    reload_permissions BOOLEAN NOT NULL DEFAULT FALSE, -- Anotada por un borrado físico de permiso o lactancia
+    PRIMARY KEY (jobassignment_id, fecha)
+);
+
+CREATE INDEX idx_attendance_dirty_cells_marked ON attendance_dirty_cells(marked_at);
+
+-- Cada escritura que cambia el resultado de un día anota los (cargo, fecha) afectados;
+-- AttendanceRecomputeWorker los recalcula. Por sentencia con tablas de transición: primero
+-- se juntan los rangos (usuario o cargo, desde, hasta) y luego se expanden a los cargos
+-- activos que los cubren, sin pasar de hoy. Los borrados físicos de permisos y lactancia no
+-- dejan updated_at: marcan reload_permissions para que el trabajador relea al empleado en
+-- PermissionIndex antes de recalcular
+CREATE OR REPLACE FUNCTION marcar_celdas_asistencia()
+RETURNS TRIGGER AS $$
+BEGIN
+    CREATE TEMP TABLE IF NOT EXISTS tmp_dirty_ranges (user_id INT, jobassignment_id INT, desde DATE, hasta DATE,
+                                                      reload_permissions BOOLEAN DEFAULT FALSE) ON COMMIT DROP;
+
+    IF TG_TABLE_NAME = 'attendances' THEN
+        IF TG_OP IN ('INSERT', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT DISTINCT user_id, NULL::INT, fecha, fecha FROM new_rows WHERE user_id IS NOT NULL;
+        END IF;
+        IF TG_OP IN ('DELETE', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT DISTINCT user_id, NULL::INT, fecha, fecha FROM old_rows WHERE user_id IS NOT NULL;
+        END IF;
+    ELSIF TG_TABLE_NAME = 'permissions' THEN
+        IF TG_OP IN ('INSERT', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT user_id, NULL::INT, fechaini, fechafin FROM new_rows;
+        END IF;
+        IF TG_OP = 'UPDATE' THEN
+            INSERT INTO tmp_dirty_ranges SELECT user_id, NULL::INT, fechaini, fechafin FROM old_rows;
+        ELSIF TG_OP = 'DELETE' THEN
+            INSERT INTO tmp_dirty_ranges SELECT user_id, NULL::INT, fechaini, fechafin, TRUE FROM old_rows;
+        END IF;
+    ELSIF TG_TABLE_NAME = 'lactation_schedules' THEN
+        IF TG_OP IN ('INSERT', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT p.user_id, NULL::INT, r.fecha_desde, r.fecha_hasta
+            FROM new_rows r JOIN permissions p ON p.id = r.permission_id;
+        END IF;
+        IF TG_OP IN ('DELETE', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT p.user_id, NULL::INT, r.fecha_desde, r.fecha_hasta, TG_OP = 'DELETE'
+            FROM old_rows r JOIN permissions p ON p.id = r.permission_id;
+        END IF;
+    ELSIF TG_TABLE_NAME = 'jobassignments' THEN
+        -- Solo cuentan los cambios de vigencia, horario o estado (no updated_at ni auditoría)
+        IF TG_OP = 'INSERT' THEN
+            INSERT INTO tmp_dirty_ranges SELECT user_id, id, fechaini, fechafin FROM new_rows;
+        ELSIF TG_OP = 'UPDATE' THEN
+            INSERT INTO tmp_dirty_ranges SELECT n.user_id, n.id, LEAST(n.fechaini, o.fechaini),
+                   CASE WHEN n.fechafin IS NULL OR o.fechafin IS NULL THEN NULL ELSE GREATEST(n.fechafin, o.fechafin) END
+            FROM new_rows n JOIN old_rows o ON o.id = n.id
+            WHERE (n.fechaini, n.fechafin, n.estado, n.workschedule_id, n.user_id)
+                  IS DISTINCT FROM (o.fechaini, o.fechafin, o.estado, o.workschedule_id, o.user_id);
+        END IF;
+    ELSIF TG_TABLE_NAME = 'calendardays' THEN
+        IF TG_OP IN ('INSERT', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT DISTINCT NULL::INT, NULL::INT, fecha, fecha FROM new_rows;
+        END IF;
+        IF TG_OP IN ('DELETE', 'UPDATE') THEN
+            INSERT INTO tmp_dirty_ranges SELECT DISTINCT NULL::INT, NULL::INT, fecha, fecha FROM old_rows;
+        END IF;
+    END IF;
+
+    INSERT INTO attendance_dirty_cells (jobassignment_id, fecha, reload_permissions)
+    SELECT ja.id, d::DATE, bool_or(r.reload_permissions)
+    FROM tmp_dirty_ranges r
+    JOIN jobassignments ja
+      ON ja.estado = 1
+     AND (r.jobassignment_id IS NULL OR ja.id = r.jobassignment_id)
+     AND (r.user_id IS NULL OR ja.user_id = r.user_id)
+    CROSS JOIN LATERAL generate_series(
+        GREATEST(r.desde, ja.fechaini),
+        LEAST(COALESCE(r.hasta, CURRENT_DATE), COALESCE(ja.fechafin, CURRENT_DATE), CURRENT_DATE),
+        INTERVAL '1 day') d
+    GROUP BY ja.id, d
+    ON CONFLICT (jobassignment_id, fecha) DO UPDATE SET reload_permissions = TRUE
+    WHERE EXCLUDED.reload_permissions AND NOT attendance_dirty_cells.reload_permissions;
+
+    TRUNCATE tmp_dirty_ranges;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- punch_events no se recrea (IF NOT EXISTS): quitar los triggers de celdas que tuviera de
+-- una versión anterior; el motor solo lee attendances
+DROP TRIGGER IF EXISTS trg_punch_events_dirty_ins ON punch_events;
+DROP TRIGGER IF EXISTS trg_punch_events_dirty_upd ON punch_events;
+DROP TRIGGER IF EXISTS trg_punch_events_dirty_del ON punch_events;
+
+-- Un trigger por operación: las tablas de transición no admiten varios eventos
+DO $$
+DECLARE
+    t TEXT;
+BEGIN
+    FOREACH t IN ARRAY ARRAY['attendances', 'permissions', 'lactation_schedules', 'jobassignments', 'calendardays'] LOOP
+        EXECUTE format('CREATE TRIGGER trg_%s_dirty_ins AFTER INSERT ON %I REFERENCING NEW TABLE AS new_rows '
+                       'FOR EACH STATEMENT EXECUTE FUNCTION marcar_celdas_asistencia()', t, t);
+        EXECUTE format('CREATE TRIGGER trg_%s_dirty_upd AFTER UPDATE ON %I REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows '
+                       'FOR EACH STATEMENT EXECUTE FUNCTION marcar_celdas_asistencia()', t, t);
+        IF t <> 'jobassignments' THEN -- Un cargo borrado no tiene celdas que recalcular
+            EXECUTE format('CREATE TRIGGER trg_%s_dirty_del AFTER DELETE ON %I REFERENCING OLD TABLE AS old_rows '
+                           'FOR EACH STATEMENT EXECUTE FUNCTION marcar_celdas_asistencia()', t, t);
+        END IF;
+    END LOOP;
+END $$;
+
+-- =========================================================
+--  TABLA: PROCESSING_JOBS (COLA DE PROCESAMIENTO DE ASISTENCIA)
+-- =========================================================
+DROP TABLE IF EXISTS processing_jobs CASCADE;
+CREATE TABLE processing_jobs (
+    id SERIAL PRIMARY KEY,
+    fecha_inicio DATE NOT NULL,
+    fecha_fin DATE NOT NULL,
+    dni VARCHAR(20), -- NULL = todos los empleados
+    parallelism INT NOT NULL DEFAULT 1,
+    estado VARCHAR(20) NOT NULL DEFAULT 'PENDIENTE', -- PENDIENTE, EN_PROCESO, COMPLETADO, ERROR, CANCELADO, FUSIONADO
+    fusionado_en INT REFERENCES processing_jobs(id), -- Trabajo que absorbió a este (estado FUSIONADO)
+    intentos INT NOT NULL DEFAULT 0,
+    max_intentos INT NOT NULL DEFAULT 3,
+    disponible_desde TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP, -- Espera antes de reintentar
+    cancelar BOOLEAN NOT NULL DEFAULT FALSE, -- Pedido de cancelación para el nodo que lo procesa
+    nodo VARCHAR(100), -- Nodo que lo tomó
+    heartbeat_at TIMESTAMPTZ, -- Último latido del nodo; sin latido el trabajo vuelve a la cola
+    progreso_hecho INT NOT NULL DEFAULT 0,
+    progreso_total INT NOT NULL DEFAULT 0,
+    resultado TEXT, -- RunResult en JSON
+    error TEXT,
+    usercrea INT,
+    started_at TIMESTAMPTZ,
+    finished_at TIMESTAMPTZ,
+    created_at TIMESTAMPTZ DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMPTZ DEFAULT CURRENT_TIMESTAMP,
+
+    CHECK (fecha_inicio <= fecha_fin)
+);
+
+CREATE TRIGGER trg_processing_jobs_updated_at
+    BEFORE UPDATE ON processing_jobs
+    FOR EACH ROW EXECUTE FUNCTION actualizar_updated_at();
+
+-- La cola (ProcessingJobQueue) toma los pendientes con FOR UPDATE SKIP LOCKED y busca
+-- latidos vencidos entre los que están en proceso
+CREATE INDEX idx_processing_jobs_pendientes ON processing_jobs(disponible_desde, id) WHERE estado = 'PENDIENTE';
+CREATE INDEX idx_processing_jobs_en_proceso ON processing_jobs(heartbeat_at) WHERE estado = 'EN_PROCESO';
+CREATE INDEX idx_processing_jobs_created ON processing_jobs(created_at DESC);
+
+-- =========================================================
+--  TABLA: BIOMETRIC_SYNC_CURSORS (CURSOR DE SINCRONIZACIÓN POR RELOJ Y DESTINO)
+-- =========================================================
+DROP TABLE IF EXISTS biometric_sync_cursors CASCADE;
+CREATE TABLE biometric_sync_cursors (
+    clock_id INT NOT NULL,
+    sink VARCHAR(20) NOT NULL DEFAULT 'punch_events', -- Tabla que alimenta: punch_events o attendances
+    record_count INT NOT NULL DEFAULT 0, -- Registros en el reloj en la última sincronización
+    last_timestamp TIMESTAMP, -- Último registro visto en el reloj
+    created_at TIMESTAMPTZ DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMPTZ DEFAULT CURRENT_TIMESTAMP,
+
+    PRIMARY KEY (clock_id, sink) -- Cada motor avanza su cursor sin saltear los relojes del otro
+);
+
+CREATE TRIGGER trg_biometric_sync_cursors_updated_at 
+    BEFORE UPDATE ON biometric_sync_cursors 
+    FOR EACH ROW EXECUTE FUNCTION actualizar_updated_at();
+
     FOR EACH ROW EXECUTE FUNCTION validar_cargos_simultaneos();
 
 -- =========================================================
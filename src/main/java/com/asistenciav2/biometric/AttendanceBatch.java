@@ -0,0 +1,199 @@
+package com.asistenciav2.biometric;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lote de registros de asistencia decodificados en columnas primitivas.
+ *
+ * Cada registro de 40 bytes se escribe en arreglos paralelos (userId, verifyType,
+ * inOutMode, segundos epoch) sin crear objetos por registro. La zona horaria se
+ * resuelve una sola vez por lote. El lote se puede reutilizar con {@link #clear()}.
+ * Para el código existente, {@link #asRecordList()} ofrece una vista perezosa como
+ * List&lt;AttendanceRecord&gt; que crea cada objeto solo al consultarlo.
+ */
+public class AttendanceBatch {
+    private static final int INITIAL_CAPACITY = 2048;
+
+    private int[] userIds;
+    private byte[] verifyTypes;
+    private byte[] inOutModes;
+    private long[] epochSeconds;
+    private int size = 0;
+    private ZoneOffset zoneOffset;
+
+    public AttendanceBatch() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public AttendanceBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        userIds = new int[capacity];
+        verifyTypes = new byte[capacity];
+        inOutModes = new byte[capacity];
+        epochSeconds = new long[capacity];
+        resolveZone();
+    }
+
+    /**
+     * Decodifica todos los registros completos de un bloque de datos en un lote nuevo
+     */
+    public static AttendanceBatch decodeAll(byte[] data) {
+        if (data == null) {
+            return new AttendanceBatch(1);
+        }
+        AttendanceBatch batch = new AttendanceBatch(data.length / ZKTecoProtocol.RECORD_SIZE);
+        batch.decodeRange(data, 0, data.length);
+        return batch;
+    }
+
+    /**
+     * Decodifica los registros completos de data[offset..offset+length) y los agrega al lote.
+     *
+     * @return bytes consumidos (múltiplo de 40)
+     */
+    public int decodeRange(byte[] data, int offset, int length) {
+        int count = length / ZKTecoProtocol.RECORD_SIZE;
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            decode(data, offset + i * ZKTecoProtocol.RECORD_SIZE);
+        }
+        return count * ZKTecoProtocol.RECORD_SIZE;
+    }
+
+    /**
+     * Decodifica un registro de 40 bytes y lo agrega al lote.
+     *
+     * @return false si el registro es inválido (userId 0 o timestamp no positivo) y se omitió
+     */
+    public boolean decode(byte[] data, int offset) {
+        int userId = (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+        int timestamp = (data[offset + 4] & 0xFF)
+            | (data[offset + 5] & 0xFF) << 8
+            | (data[offset + 6] & 0xFF) << 16
+            | (data[offset + 7] & 0xFF) << 24;
+
+        // Validar datos
+        if (userId == 0 || timestamp <= 0) {
+            return false;
+        }
+
+        ensureCapacity(size + 1);
+        userIds[size] = userId;
+        verifyTypes[size] = data[offset + 2];
+        inOutModes[size] = data[offset + 3];
+        epochSeconds[size] = timestamp;
+        size++;
+        return true;
+    }
+
+    /**
+     * Copia del lote ajustada a su tamaño, para retenerlo después de que el
+     * productor lo reutilice (por ejemplo al pasarlo a otro hilo)
+     */
+    public AttendanceBatch copy() {
+        AttendanceBatch copy = new AttendanceBatch(size);
+        System.arraycopy(userIds, 0, copy.userIds, 0, size);
+        System.arraycopy(verifyTypes, 0, copy.verifyTypes, 0, size);
+        System.arraycopy(inOutModes, 0, copy.inOutModes, 0, size);
+        System.arraycopy(epochSeconds, 0, copy.epochSeconds, 0, size);
+        copy.size = size;
+        copy.zoneOffset = zoneOffset;
+        return copy;
+    }
+
+    /**
+     * Vacía el lote conservando la memoria y vuelve a resolver la zona horaria
+     */
+    public void clear() {
+        size = 0;
+        resolveZone();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int userId(int index) {
+        checkIndex(index);
+        return userIds[index];
+    }
+
+    public int verifyType(int index) {
+        checkIndex(index);
+        return verifyTypes[index] & 0xFF;
+    }
+
+    public int inOutMode(int index) {
+        checkIndex(index);
+        return inOutModes[index] & 0xFF;
+    }
+
+    /**
+     * Timestamp tal como lo entrega el dispositivo (segundos, hora local del reloj)
+     */
+    public long epochSecond(int index) {
+        checkIndex(index);
+        return epochSeconds[index];
+    }
+
+    public ZoneOffset getZoneOffset() {
+        return zoneOffset;
+    }
+
+    public LocalDateTime timestamp(int index) {
+        return LocalDateTime.ofEpochSecond(epochSecond(index), 0, zoneOffset);
+    }
+
+    public ZKTecoProtocol.AttendanceRecord toRecord(int index) {
+        ZKTecoProtocol.AttendanceRecord record = new ZKTecoProtocol.AttendanceRecord();
+        record.setUserId(userId(index));
+        record.setVerifyType(verifyType(index));
+        record.setInOutMode(inOutMode(index));
+        record.setTimestamp(timestamp(index));
+        return record;
+    }
+
+    /**
+     * Vista de solo lectura; cada get() crea el AttendanceRecord en ese momento
+     */
+    public List<ZKTecoProtocol.AttendanceRecord> asRecordList() {
+        return new AbstractList<ZKTecoProtocol.AttendanceRecord>() {
+            @Override
+            public ZKTecoProtocol.AttendanceRecord get(int index) {
+                return toRecord(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private void resolveZone() {
+        zoneOffset = ZoneId.systemDefault().getRules().getOffset(Instant.now());
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= userIds.length) {
+            return;
+        }
+        int capacity = Math.max(required, userIds.length * 2);
+        userIds = Arrays.copyOf(userIds, capacity);
+        verifyTypes = Arrays.copyOf(verifyTypes, capacity);
+        inOutModes = Arrays.copyOf(inOutModes, capacity);
+        epochSeconds = Arrays.copyOf(epochSeconds, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Índice " + index + " fuera de rango (tamaño " + size + ")");
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.asistenciav2.biometric;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sesión de larga duración con un reloj ZKTeco en modo de eventos en tiempo real.
+ *
+ * Un hilo propio conecta, registra EF_ATTLOG y entrega cada marcación al listener
+ * apenas llega. Si el reloj deja de responder al latido o se cae la conexión, la
+ * sesión se vuelve a conectar y registrar con espera exponencial.
+ */
+public class ZKTecoLiveSession {
+    private static final Logger logger = Logger.getLogger(ZKTecoLiveSession.class.getName());
+
+    private static final int POLL_MILLIS = 1000;            // Espera máxima por lectura de eventos
+    private static final long DEFAULT_HEARTBEAT_MILLIS = 30000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /**
+     * Recibe las marcaciones y los cambios de estado de la sesión
+     */
+    public interface Listener {
+        void onPunch(Integer deviceId, ZKTecoProtocol.AttendanceRecord record);
+
+        default void onStatus(Integer deviceId, String status, String message) {
+        }
+    }
+
+    private final Integer deviceId;
+    private final String ip;
+    private final int port;
+    private final int password;
+    private final Listener listener;
+    private long heartbeatMillis = DEFAULT_HEARTBEAT_MILLIS;
+
+    private volatile boolean running = false;
+    private volatile ZKTecoProtocol protocol;
+    private Thread thread;
+
+    public ZKTecoLiveSession(Integer deviceId, String ip, int port, int password, Listener listener) {
+        this.deviceId = deviceId;
+        this.ip = ip;
+        this.port = port;
+        this.password = password;
+        this.listener = listener;
+    }
+
+    /**
+     * Intervalo sin tráfico tras el cual se envía un latido; tres intervalos sin
+     * respuesta se consideran sesión muerta
+     */
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::runLoop, "zk-live-" + deviceId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Detiene la sesión; cerrar el socket desbloquea la lectura en curso
+     */
+    public synchronized void stop() {
+        running = false;
+        ZKTecoProtocol current = protocol;
+        if (current != null) {
+            current.disconnect();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void runLoop() {
+        long backoff = 1000;
+
+        while (running) {
+            ZKTecoProtocol current = new ZKTecoProtocol(ip, port, password);
+            protocol = current;
+            try {
+                listener.onStatus(deviceId, "Conectando", "Conectando a " + ip + ":" + port);
+                if (!current.connect()) {
+                    throw new IOException("No se pudo conectar");
+                }
+                if (!current.registerEvents(ZKTecoProtocol.EF_ATTLOG)) {
+                    throw new IOException("El dispositivo rechazó el registro de eventos");
+                }
+                listener.onStatus(deviceId, "Conectado", "Escuchando marcaciones en tiempo real");
+                backoff = 1000;
+
+                long lastHeartbeat = System.currentTimeMillis();
+                while (running) {
+                    current.readLiveEvents(POLL_MILLIS, record -> listener.onPunch(deviceId, record));
+
+                    long now = System.currentTimeMillis();
+                    long silence = now - current.getLastPacketMillis();
+                    if (silence > 3 * heartbeatMillis) {
+                        throw new IOException("Sin respuesta del dispositivo en " + silence + " ms");
+                    }
+                    if (silence > heartbeatMillis && now - lastHeartbeat > heartbeatMillis) {
+                        current.sendHeartbeat();
+                        lastHeartbeat = now;
+                    }
+                }
+
+            } catch (Exception e) {
+                if (running) {
+                    logger.log(Level.WARNING, "Sesión en vivo del dispositivo " + deviceId + " interrumpida: " + e.getMessage());
+                    listener.onStatus(deviceId, "Reconectando", e.getMessage());
+                }
+            } finally {
+                current.disconnect();
+                protocol = null;
+            }
+
+            if (running) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+
+        listener.onStatus(deviceId, "Detenido", "Sesión en vivo finalizada");
+    }
+}
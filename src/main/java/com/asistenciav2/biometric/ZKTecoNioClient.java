@@ -0,0 +1,526 @@
+package com.asistenciav2.biometric;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cliente ZKTeco no bloqueante (Selector/SocketChannel).
+ *
+ * Ejecuta la secuencia CONNECT → OPTIONS_WRQ(SDKBuild) → DISABLEDEVICE → PREPARE_BUFFER →
+ * READ_BUFFER × n → FREE_DATA → ENABLEDEVICE para muchos dispositivos a la vez desde un único
+ * hilo (el que invoca {@link #fetchAll}), cada uno con su propio plazo máximo. Como
+ * {@link ZKTecoProtocol}, lee el log por bloques de MAX_CHUNK bytes y, si el firmware no
+ * soporta la lectura por buffer, lo pide con ATTLOGDATA en un solo paquete.
+ */
+public class ZKTecoNioClient {
+    private static final Logger logger = Logger.getLogger(ZKTecoNioClient.class.getName());
+
+    private static final long DEFAULT_DEADLINE_MS = 60000; // 60 segundos por dispositivo
+    private static final int READ_RETRIES = 3;             // Intentos por bloque de READ_BUFFER
+
+    private final long defaultDeadlineMillis;
+
+    public ZKTecoNioClient() {
+        this(DEFAULT_DEADLINE_MS);
+    }
+
+    public ZKTecoNioClient(long defaultDeadlineMillis) {
+        if (defaultDeadlineMillis <= 0) {
+            throw new IllegalArgumentException("El plazo por dispositivo debe ser mayor que cero");
+        }
+        this.defaultDeadlineMillis = defaultDeadlineMillis;
+    }
+
+    /**
+     * Obtiene los registros de asistencia de todos los dispositivos en paralelo.
+     * Bloquea el hilo llamador (que actúa como event loop) hasta que todos los
+     * dispositivos terminan, fallan o vencen su plazo. Devuelve un resultado por
+     * solicitud, en el mismo orden.
+     */
+    public List<DeviceResult> fetchAll(List<DeviceRequest> requests) {
+        List<Session> sessions = new ArrayList<>();
+        if (requests == null || requests.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        try (Selector selector = Selector.open()) {
+            long now = System.currentTimeMillis();
+            for (DeviceRequest request : requests) {
+                long budget = request.deadlineMillis > 0 ? request.deadlineMillis : defaultDeadlineMillis;
+                Session session = new Session(request, now, now + budget);
+                sessions.add(session);
+                session.open(selector);
+            }
+
+            while (true) {
+                long nextDeadline = Long.MAX_VALUE;
+                for (Session session : sessions) {
+                    if (!session.isDone()) {
+                        nextDeadline = Math.min(nextDeadline, session.deadline);
+                    }
+                }
+                if (nextDeadline == Long.MAX_VALUE) {
+                    break;
+                }
+
+                long wait = Math.max(1, nextDeadline - System.currentTimeMillis());
+                selector.select(wait);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Session session = (Session) key.attachment();
+                    if (key.isValid() && !session.isDone()) {
+                        session.handle(key);
+                    }
+                }
+
+                now = System.currentTimeMillis();
+                for (Session session : sessions) {
+                    if (!session.isDone() && now >= session.deadline) {
+                        session.expire();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error en el selector NIO: " + e.getMessage(), e);
+            for (Session session : sessions) {
+                if (!session.isDone()) {
+                    session.fail("Error del selector: " + e.getMessage());
+                }
+            }
+        }
+
+        List<DeviceResult> results = new ArrayList<>(sessions.size());
+        for (Session session : sessions) {
+            results.add(session.result);
+        }
+        return results;
+    }
+
+    /**
+     * Dispositivo a consultar
+     */
+    public static class DeviceRequest {
+        public final Integer deviceId;
+        public final String ip;
+        public final int port;
+        public final int password;
+        public final long deadlineMillis; // 0 = usar el plazo por defecto del cliente
+
+        public DeviceRequest(Integer deviceId, String ip, int port, int password, long deadlineMillis) {
+            if (ip == null || ip.trim().isEmpty()) {
+                throw new IllegalArgumentException("La IP del dispositivo no puede estar vacía");
+            }
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("El puerto debe estar entre 1 y 65535");
+            }
+            this.deviceId = deviceId;
+            this.ip = ip.trim();
+            this.port = port;
+            this.password = password;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    /**
+     * Resultado de la consulta a un dispositivo
+     */
+    public static class DeviceResult {
+        public Integer deviceId;
+        public String ip;
+        public int port;
+        public boolean success;
+        public List<ZKTecoProtocol.AttendanceRecord> records = Collections.emptyList();
+        public String error;
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return String.format("DeviceResult{deviceId=%s, ip=%s, success=%s, records=%d, error=%s, elapsedMillis=%d}",
+                deviceId, ip, success, records.size(), error, elapsedMillis);
+        }
+    }
+
+    private enum State {
+        CONNECTING,
+        AWAIT_CONNECT_ACK,
+        AWAIT_OPTIONS_ACK,
+        AWAIT_DISABLE_ACK,
+        AWAIT_PREPARE_BUFFER,
+        AWAIT_READ_BUFFER,
+        AWAIT_CHUNK_DATA,
+        AWAIT_FREE_ACK,
+        AWAIT_ATTLOG_DATA,
+        AWAIT_ENABLE_ACK,
+        DONE
+    }
+
+    /**
+     * Máquina de estados de la conversación con un dispositivo
+     */
+    private static final class Session {
+        private final DeviceRequest request;
+        private final long startedAt;
+        private final long deadline;
+        private final ByteBuffer header = ByteBuffer.allocate(ZKTecoProtocol.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer body;
+        private ByteBuffer outgoing;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private State state = State.CONNECTING;
+        private int sessionId = 0;
+        private int replyNumber = 0;
+        private boolean deviceDisabled = false;
+        private List<ZKTecoProtocol.AttendanceRecord> records = Collections.emptyList();
+        private DeviceResult result;
+
+        // Lectura por buffer en curso
+        private ZKTecoProtocol.RecordAssembler assembler;
+        private int totalSize;
+        private int chunkStart;
+        private int chunkSize;
+        private int chunkReceived;
+        private int chunkAttempts;
+
+        Session(DeviceRequest request, long startedAt, long deadline) {
+            this.request = request;
+            this.startedAt = startedAt;
+            this.deadline = deadline;
+        }
+
+        boolean isDone() {
+            return state == State.DONE;
+        }
+
+        void open(Selector selector) {
+            try {
+                logger.info(String.format("[NIO] Conectando a %s:%d (dispositivo %s)", request.ip, request.port, request.deviceId));
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                boolean connected = channel.connect(new InetSocketAddress(request.ip, request.port));
+                key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+                if (connected) {
+                    onConnected();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail("No se pudo abrir la conexión: " + e.getMessage());
+            }
+        }
+
+        void handle(SelectionKey selectedKey) {
+            try {
+                if (selectedKey.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        onConnected();
+                    }
+                    return;
+                }
+                if (selectedKey.isWritable()) {
+                    flush();
+                }
+                if (selectedKey.isValid() && selectedKey.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                fail("Error de E/S en estado " + state + ": " + e.getMessage());
+            }
+        }
+
+        private void onConnected() throws IOException {
+            logger.info("[NIO] Socket TCP conectado a " + request.ip);
+            state = State.AWAIT_CONNECT_ACK;
+            send(ZKTecoProtocol.CMD_CONNECT, new byte[0]);
+        }
+
+        private void send(int command, byte[] data) throws IOException {
+            int reserved = command == ZKTecoProtocol.CMD_CONNECT ? request.password : 0;
+            outgoing = ByteBuffer.wrap(ZKTecoProtocol.encodePacket(command, sessionId, replyNumber, reserved, data));
+            replyNumber++;
+            flush();
+        }
+
+        private void flush() throws IOException {
+            if (outgoing != null) {
+                channel.write(outgoing);
+                if (outgoing.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                outgoing = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            while (!isDone()) {
+                ByteBuffer target = body != null ? body : header;
+                int n = channel.read(target);
+                if (n < 0) {
+                    fail("El dispositivo cerró la conexión en estado " + state);
+                    return;
+                }
+                if (target.hasRemaining()) {
+                    return;
+                }
+
+                if (body == null) {
+                    int dataLength = header.getInt(8);
+                    if (dataLength < 0 || dataLength > ZKTecoProtocol.MAX_DATA_LENGTH) {
+                        fail("Longitud de datos inválida: " + dataLength);
+                        return;
+                    }
+                    body = ByteBuffer.allocate(dataLength);
+                    if (dataLength > 0) {
+                        continue;
+                    }
+                }
+
+                int command = header.getShort(0) & 0xFFFF;
+                int packetSession = header.getShort(4) & 0xFFFF;
+                byte[] data = body.array();
+                header.clear();
+                body = null;
+                onPacket(command, packetSession, data);
+            }
+        }
+
+        private void onPacket(int command, int packetSession, byte[] data) throws IOException {
+            switch (state) {
+                case AWAIT_CONNECT_ACK:
+                    if (command == ZKTecoProtocol.CMD_ACK_OK) {
+                        sessionId = packetSession;
+                        state = State.AWAIT_OPTIONS_ACK;
+                        send(ZKTecoProtocol.CMD_OPTIONS_WRQ, ZKTecoProtocol.SDK_BUILD_OPTION.getBytes(StandardCharsets.UTF_8));
+                    } else if (command == ZKTecoProtocol.CMD_ACK_ERROR) {
+                        fail("El dispositivo rechazó la conexión (CMD_ACK_ERROR)");
+                    } else if (command == ZKTecoProtocol.CMD_ACK_UNAUTH) {
+                        fail("Acceso no autorizado al dispositivo (CMD_ACK_UNAUTH)");
+                    } else {
+                        fail("Respuesta inesperada del dispositivo: " + command);
+                    }
+                    break;
+                case AWAIT_OPTIONS_ACK:
+                    if (command == ZKTecoProtocol.CMD_ACK_OK) {
+                        state = State.AWAIT_DISABLE_ACK;
+                        send(ZKTecoProtocol.CMD_DISABLEDEVICE, new byte[0]);
+                    } else {
+                        fail("Configuración SDKBuild fallida: " + command);
+                    }
+                    break;
+                case AWAIT_DISABLE_ACK:
+                    if (command == ZKTecoProtocol.CMD_ACK_OK) {
+                        deviceDisabled = true;
+                        prepareBuffer();
+                    } else {
+                        fail("No se pudo deshabilitar el dispositivo");
+                    }
+                    break;
+                case AWAIT_PREPARE_BUFFER:
+                    onPrepareBuffer(command, data);
+                    break;
+                case AWAIT_READ_BUFFER:
+                    if (command == ZKTecoProtocol.CMD_DATA) {
+                        assembler.accept(data, 0, data.length);
+                        nextChunk();
+                    } else if (command == ZKTecoProtocol.CMD_PREPARE_DATA) {
+                        // El bloque llega en varios paquetes CMD_DATA terminados por CMD_ACK_OK
+                        chunkReceived = 0;
+                        state = State.AWAIT_CHUNK_DATA;
+                    } else if (chunkAttempts < READ_RETRIES) {
+                        logger.warning(String.format("[NIO] Intento %d leyendo bloque %d de %s falló (respuesta %d)",
+                            chunkAttempts, chunkStart, request.ip, command));
+                        sendReadBuffer();
+                    } else {
+                        fail("No se pudo leer el bloque " + chunkStart + ":[" + chunkSize + "]");
+                    }
+                    break;
+                case AWAIT_CHUNK_DATA:
+                    if (command == ZKTecoProtocol.CMD_DATA) {
+                        assembler.accept(data, 0, data.length);
+                        chunkReceived += data.length;
+                    } else if (command == ZKTecoProtocol.CMD_ACK_OK) {
+                        if (chunkReceived != chunkSize) {
+                            logger.warning(String.format("[NIO] Bloque %d de %s incompleto: %d de %d bytes",
+                                chunkStart, request.ip, chunkReceived, chunkSize));
+                        }
+                        nextChunk();
+                    } else {
+                        fail("Respuesta inesperada leyendo bloque " + chunkStart + ": " + command);
+                    }
+                    break;
+                case AWAIT_FREE_ACK:
+                    if (command != ZKTecoProtocol.CMD_ACK_OK) {
+                        logger.warning("[NIO] El dispositivo " + request.ip + " no confirmó FREE_DATA");
+                    }
+                    finishBufferedRead();
+                    break;
+                case AWAIT_ATTLOG_DATA:
+                    if (command == ZKTecoProtocol.CMD_ACK_DATA) {
+                        records = ZKTecoProtocol.parseAttendanceData(data);
+                        logger.info("[NIO] Se obtuvieron " + records.size() + " registros de " + request.ip);
+                    } else {
+                        logger.warning("[NIO] No se recibieron datos de asistencia válidos de " + request.ip);
+                    }
+                    state = State.AWAIT_ENABLE_ACK;
+                    send(ZKTecoProtocol.CMD_ENABLEDEVICE, new byte[0]);
+                    break;
+                case AWAIT_ENABLE_ACK:
+                    deviceDisabled = false;
+                    if (command != ZKTecoProtocol.CMD_ACK_OK) {
+                        logger.warning("[NIO] No se pudo rehabilitar el dispositivo " + request.ip);
+                    }
+                    sendQuietly(ZKTecoProtocol.CMD_EXIT);
+                    complete(true, null);
+                    break;
+                default:
+                    logger.fine("[NIO] Paquete ignorado en estado " + state + ": " + command);
+            }
+        }
+
+        /**
+         * Pide el log por buffer (PREPARE_BUFFER de ATTLOGDATA), como ZKTecoProtocol.readWithBuffer
+         */
+        private void prepareBuffer() throws IOException {
+            ByteBuffer params = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+            params.put((byte) 1);
+            params.putShort((short) ZKTecoProtocol.CMD_ATTLOGDATA);
+            params.putInt(0); // fct
+            params.putInt(0); // ext
+            records = new ArrayList<>();
+            assembler = new ZKTecoProtocol.RecordAssembler(batch -> {
+                for (int i = 0; i < batch.size(); i++) {
+                    records.add(batch.toRecord(i));
+                }
+            });
+            state = State.AWAIT_PREPARE_BUFFER;
+            send(ZKTecoProtocol.CMD_PREPARE_BUFFER, params.array());
+        }
+
+        private void onPrepareBuffer(int command, byte[] data) throws IOException {
+            if (command == ZKTecoProtocol.CMD_DATA) {
+                // Datos pequeños: el dispositivo responde todo directamente (incluye el tamaño total)
+                assembler.skipPrefix(4);
+                assembler.accept(data, 0, data.length);
+                assembler.finish();
+                logger.info("[NIO] Se obtuvieron " + records.size() + " registros de " + request.ip);
+                state = State.AWAIT_ENABLE_ACK;
+                send(ZKTecoProtocol.CMD_ENABLEDEVICE, new byte[0]);
+                return;
+            }
+            if (command != ZKTecoProtocol.CMD_ACK_OK || data.length < 5) {
+                logger.info("[NIO] " + request.ip + " no soporta lectura por buffer (respuesta " + command + "), se usa ATTLOGDATA");
+                assembler = null;
+                records = Collections.emptyList();
+                state = State.AWAIT_ATTLOG_DATA;
+                send(ZKTecoProtocol.CMD_ATTLOGDATA, new byte[0]);
+                return;
+            }
+            // El flujo empieza con 4 bytes de tamaño total
+            totalSize = ByteBuffer.wrap(data, 1, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            assembler.skipPrefix(4);
+            chunkStart = 0;
+            chunkSize = 0;
+            logger.info(String.format("[NIO] Lectura por buffer de %s: %d bytes en bloques de %d",
+                request.ip, totalSize, ZKTecoProtocol.MAX_CHUNK));
+            nextChunk();
+        }
+
+        /**
+         * Pide el bloque siguiente, o libera el buffer si ya se leyó todo
+         */
+        private void nextChunk() throws IOException {
+            chunkStart += chunkSize;
+            if (chunkStart >= totalSize) {
+                state = State.AWAIT_FREE_ACK;
+                send(ZKTecoProtocol.CMD_FREE_DATA, new byte[0]);
+                return;
+            }
+            chunkSize = Math.min(ZKTecoProtocol.MAX_CHUNK, totalSize - chunkStart);
+            chunkAttempts = 0;
+            sendReadBuffer();
+        }
+
+        private void sendReadBuffer() throws IOException {
+            ByteBuffer params = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            params.putInt(chunkStart);
+            params.putInt(chunkSize);
+            chunkAttempts++;
+            state = State.AWAIT_READ_BUFFER;
+            send(ZKTecoProtocol.CMD_READ_BUFFER, params.array());
+        }
+
+        private void finishBufferedRead() throws IOException {
+            assembler.finish();
+            assembler = null;
+            logger.info("[NIO] Se obtuvieron " + records.size() + " registros de " + request.ip + " (lectura por bloques)");
+            state = State.AWAIT_ENABLE_ACK;
+            send(ZKTecoProtocol.CMD_ENABLEDEVICE, new byte[0]);
+        }
+
+        void expire() {
+            fail("Tiempo límite excedido en estado " + state);
+        }
+
+        void fail(String message) {
+            if (isDone()) {
+                return;
+            }
+            logger.warning(String.format("[NIO] Dispositivo %s (%s): %s", request.deviceId, request.ip, message));
+            if (deviceDisabled) {
+                // Intentar no dejar el reloj bloqueado
+                sendQuietly(ZKTecoProtocol.CMD_ENABLEDEVICE);
+            }
+            complete(false, message);
+        }
+
+        /**
+         * Envío de un solo intento, sin esperar respuesta (EXIT o rehabilitación de emergencia)
+         */
+        private void sendQuietly(int command) {
+            try {
+                if (channel != null && channel.isConnected()) {
+                    channel.write(ByteBuffer.wrap(ZKTecoProtocol.encodePacket(command, sessionId, replyNumber++, 0, new byte[0])));
+                }
+            } catch (IOException e) {
+                logger.fine("[NIO] No se pudo enviar comando " + command + ": " + e.getMessage());
+            }
+        }
+
+        private void complete(boolean success, String error) {
+            state = State.DONE;
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.fine("[NIO] Error cerrando canal: " + e.getMessage());
+                }
+            }
+
+            result = new DeviceResult();
+            result.deviceId = request.deviceId;
+            result.ip = request.ip;
+            result.port = request.port;
+            result.success = success;
+            result.records = success ? records : Collections.emptyList();
+            result.error = error;
+            result.elapsedMillis = System.currentTimeMillis() - startedAt;
+        }
+    }
+}
@@ -14,17 +14,44 @@ public class ZKTecoProtocol {
     private static final Logger logger = Logger.getLogger(ZKTecoProtocol.class.getName());
     
     // Comandos del protocolo ZKTeco
-    private static final int CMD_CONNECT = 1000;
-    private static final int CMD_EXIT = 1001;
-    private static final int CMD_ENABLEDEVICE = 1002;
-    private static final int CMD_DISABLEDEVICE = 1003;
-    private static final int CMD_ACK_OK = 2000;
-    private static final int CMD_ACK_ERROR = 2001;
-    private static final int CMD_ACK_DATA = 2002;
-    private static final int CMD_ACK_UNAUTH = 2005;
-    private static final int CMD_GET_FREE_SIZES = 50;
-    private static final int CMD_ATTLOGDATA = 13;
-    private static final int CMD_OPTIONS_WRQ = 2;
+    // (visibilidad de paquete: compartidos con ZKTecoNioClient)
+    static final int CMD_CONNECT = 1000;
+    static final int CMD_EXIT = 1001;
+    static final int CMD_ENABLEDEVICE = 1002;
+    static final int CMD_DISABLEDEVICE = 1003;
+    static final int CMD_ACK_OK = 2000;
+    static final int CMD_ACK_ERROR = 2001;
+    static final int CMD_ACK_DATA = 2002;
+    static final int CMD_ACK_UNAUTH = 2005;
+    static final int CMD_GET_FREE_SIZES = 50;
+    static final int CMD_ATTLOGDATA = 13;
+    static final int CMD_OPTIONS_WRQ = 2;
+    static final int CMD_PREPARE_DATA = 1500;   // Anuncia una transferencia en varios paquetes
+    static final int CMD_DATA = 1501;           // Paquete de datos
+    static final int CMD_FREE_DATA = 1502;      // Libera el buffer preparado en el dispositivo
+    static final int CMD_PREPARE_BUFFER = 1503; // Prepara lectura por bloques de un comando
+    static final int CMD_READ_BUFFER = 1504;    // Lee un bloque (inicio, tamaño) del buffer preparado
+    static final int CMD_REG_EVENT = 500;       // Registro de eventos en tiempo real / evento entregado
+    static final int CMD_GET_TIME = 201;        // Hora del dispositivo (usado como latido)
+    static final int CMD_DB_RRQ = 7;            // Lee una tabla del dispositivo (fct = FCT_FINGERTMP: huellas)
+    static final int CMD_USER_WRQ = 8;          // Crea o reemplaza un usuario
+    static final int CMD_USERTEMP_RRQ = 9;      // Lee una tabla del dispositivo (fct = FCT_USER: usuarios)
+    static final int CMD_DELETE_USER = 18;      // Borra un usuario (y sus huellas) por uid
+    static final int CMD_DELETE_USERTEMP = 19;  // Borra una huella (uid, dedo)
+    static final int CMD_SAVE_USERTEMPS = 110;  // Guarda usuarios y huellas enviados con PREPARE_DATA
+    static final int CMD_REFRESHDATA = 1013;    // Aplica los cambios de usuarios/huellas en el dispositivo
+    static final int FCT_FINGERTMP = 2;
+    static final int FCT_USER = 5;
+    static final int EF_ATTLOG = 1;             // Evento: marcación de asistencia
+    static final int USHRT_MAX = 65535;
+    
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40; // Tamaño de un registro de asistencia
+    static final int MAX_DATA_LENGTH = 1024 * 1024; // Máximo 1MB por paquete
+    static final int MAX_CHUNK = 0xFFC0; // Tamaño máximo de bloque en lectura por buffer (TCP)
+    static final int WRITE_CHUNK = 1024;  // Tamaño de cada CMD_DATA al enviar un buffer al dispositivo
+    static final int PIPELINE_WINDOW = 32; // Comandos enviados sin esperar su confirmación
+    static final String SDK_BUILD_OPTION = "SDKBuild=1\0";
     
     private static final int DEFAULT_PORT = 4370;
     private static final int PACKET_SIZE = 1024;
@@ -45,6 +72,13 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
     private boolean isConnected = false;
     private int devicePassword = 0; // Contraseña por defecto
     
+    // Buffers reutilizables para la descarga por bloques
+    private volatile long lastPacketMillis = 0; // Último paquete recibido en modo en vivo
+    private final byte[] headerBuffer = new byte[HEADER_SIZE];
+    private byte[] dataBuffer = new byte[PACKET_SIZE];
+    private int dataLength = 0;
+    private int userPacketSize = 28; // Registro de usuario: 28 o 72 bytes según firmware (se ajusta al leer)
+    
     public ZKTecoProtocol(String deviceIp, int devicePort, int devicePassword) {
         if (deviceIp == null || deviceIp.trim().isEmpty()) {
             throw new IllegalArgumentException("La IP del dispositivo no puede estar vacía");
@@ -72,6 +106,13 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
         return connectWithRetries(MAX_RETRIES);
     }
     
+    /**
+     * Conecta con una cantidad de intentos dada (1 = sin reintentos, p. ej. para sondear un reloj caído)
+     */
+    public boolean connect(int maxRetries) throws IOException {
+        return connectWithRetries(Math.max(1, maxRetries));
+    }
+    
     private boolean connectWithRetries(int maxRetries) throws IOException {
         IOException lastException = null;
         
@@ -159,8 +200,7 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
     
     private boolean configureSDKBuild() throws IOException {
         try {
-            String sdkBuild = "SDKBuild=1\0";
-            byte[] optionsPacket = createPacket(CMD_OPTIONS_WRQ, sdkBuild.getBytes("UTF-8"));
+            byte[] optionsPacket = createPacket(CMD_OPTIONS_WRQ, SDK_BUILD_OPTION.getBytes("UTF-8"));
             sendPacketWithRetry(optionsPacket, "OPTIONS_WRQ");
             
             byte[] optionsResponse = readPacketWithTimeout();
@@ -262,30 +302,80 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
      * Obtiene los registros de asistencia del dispositivo
      */
     public List<AttendanceRecord> getAttendanceRecords() throws IOException {
+        List<AttendanceRecord> records = new ArrayList<>();
+        streamAttendanceRecords(records::add);
+        return records;
+    }
+    
+    /**
+     * Descarga los registros de asistencia por bloques y los entrega al consumidor
+     * a medida que llegan. La memoria usada no depende del tamaño del log: los
+     * bloques se leen sobre un buffer reutilizable y solo se retiene el registro
+     * partido entre dos bloques. Si el firmware no soporta la lectura por buffer
+     * se usa la petición ATTLOGDATA de un solo paquete.
+     *
+     * @return cantidad de registros válidos entregados
+     */
+    public long streamAttendanceRecords(java.util.function.Consumer<AttendanceRecord> consumer) throws IOException {
+        return streamAttendanceBatches(batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                consumer.accept(batch.toRecord(i));
+            }
+        });
+    }
+    
+    /**
+     * Igual que {@link #streamAttendanceRecords} pero entrega lotes columnares sin
+     * crear objetos por registro. El lote se reutiliza: el consumidor no debe
+     * guardarlo después de retornar.
+     *
+     * @return cantidad de registros válidos entregados
+     */
+    public long streamAttendanceBatches(java.util.function.Consumer<AttendanceBatch> consumer) throws IOException {
+        return streamAttendanceBatches(0, consumer);
+    }
+    
+    /**
+     * Descarga solo la cola del log a partir del registro skipRecords (lectura por
+     * buffer desde un desplazamiento). Si el firmware no soporta la lectura por
+     * buffer se descarga el log completo y el llamador debe filtrar por fecha.
+     *
+     * @return cantidad de registros válidos entregados
+     */
+    public long streamAttendanceBatches(long skipRecords, java.util.function.Consumer<AttendanceBatch> consumer) throws IOException {
         if (!isConnected()) {
             throw new IOException("No hay conexión activa con el dispositivo");
         }
         
-        List<AttendanceRecord> records = new ArrayList<>();
-        
         // Deshabilitar dispositivo
         if (!disableDevice()) {
             throw new IOException("No se pudo deshabilitar el dispositivo");
         }
         
         try {
-            // Solicitar datos de asistencia
+            RecordAssembler assembler = new RecordAssembler(consumer);
+            if (readWithBuffer(CMD_ATTLOGDATA, 0, skipRecords, assembler)) {
+                assembler.finish();
+                logger.info("Se obtuvieron " + assembler.count + " registros de asistencia (lectura por bloques)");
+                return assembler.count;
+            }
+            
+            // Solicitar datos de asistencia en un único paquete
             byte[] attLogPacket = createPacket(CMD_ATTLOGDATA, new byte[0]);
             sendPacketWithRetry(attLogPacket, "ATTLOGDATA");
             
             // Leer respuesta con datos
             byte[] response = readPacketWithTimeout();
+            long count = 0;
             if (response != null && getCommandFromPacket(response) == CMD_ACK_DATA) {
-                records = parseAttendanceData(getDataFromPacket(response));
-                logger.info("Se obtuvieron " + records.size() + " registros de asistencia");
+                AttendanceBatch batch = parseAttendanceBatch(getDataFromPacket(response));
+                count = batch.size();
+                consumer.accept(batch);
+                logger.info("Se obtuvieron " + count + " registros de asistencia");
             } else {
                 logger.warning("No se recibieron datos de asistencia válidos");
             }
+            return count;
             
         } finally {
             // Rehabilitar dispositivo
@@ -293,8 +383,662 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
                 logger.warning("No se pudo rehabilitar el dispositivo");
             }
         }
+    }
+    
+    /**
+     * Lectura por buffer (PREPARE_BUFFER → READ_BUFFER × n → FREE_DATA),
+     * opcionalmente saltando los primeros skipRecords registros.
+     *
+     * @return false si el dispositivo no soporta este modo (no se entregó nada)
+     */
+    private boolean readWithBuffer(int command, int fct, long skipRecords, ChunkSink sink) throws IOException {
+        ByteBuffer params = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+        params.put((byte) 1);
+        params.putShort((short) command);
+        params.putInt(fct);
+        params.putInt(0); // ext
+        sendPacketWithRetry(createPacket(CMD_PREPARE_BUFFER, params.array()), "PREPARE_BUFFER");
         
-        return records;
+        int response = readPacketReusingBuffer();
+        if (response == CMD_DATA) {
+            // Datos pequeños: el dispositivo responde todo directamente (incluye el tamaño total)
+            sink.skipPrefix(4);
+            sink.accept(dataBuffer, 0, dataLength);
+            return true;
+        }
+        if (response != CMD_ACK_OK || dataLength < 5) {
+            logger.info("El dispositivo no soporta lectura por buffer (respuesta " + response + ")");
+            return false;
+        }
+        
+        int totalSize = ByteBuffer.wrap(dataBuffer, 1, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        
+        // El flujo empieza con 4 bytes de tamaño total; la cola empieza en un límite de registro
+        long tailStart = skipRecords > 0 ? 4 + skipRecords * RECORD_SIZE : 0;
+        if (tailStart > totalSize) {
+            logger.warning(String.format("El log del dispositivo es menor que el cursor (%d > %d bytes); se lee completo",
+                tailStart, totalSize));
+            tailStart = 0;
+        }
+        int start = (int) tailStart;
+        sink.skipPrefix(start == 0 ? 4 : 0);
+        logger.info(String.format("Lectura por buffer: %d de %d bytes en bloques de %d", totalSize - start, totalSize, MAX_CHUNK));
+        
+        while (start < totalSize) {
+            int size = Math.min(MAX_CHUNK, totalSize - start);
+            readChunk(start, size, sink);
+            start += size;
+        }
+        
+        freeData();
+        return true;
+    }
+    
+    /**
+     * Lee un bloque del buffer preparado. Se reintenta solo si aún no se entregaron datos.
+     */
+    private void readChunk(int start, int size, ChunkSink sink) throws IOException {
+        ByteBuffer params = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        params.putInt(start);
+        params.putInt(size);
+        byte[] paramBytes = params.array();
+        
+        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
+            sendPacketWithRetry(createPacket(CMD_READ_BUFFER, paramBytes), "READ_BUFFER");
+            int response = readPacketReusingBuffer();
+            
+            if (response == CMD_DATA) {
+                sink.accept(dataBuffer, 0, dataLength);
+                return;
+            }
+            
+            if (response == CMD_PREPARE_DATA) {
+                // El bloque llega en varios paquetes CMD_DATA terminados por CMD_ACK_OK
+                int received = 0;
+                while (true) {
+                    response = readPacketReusingBuffer();
+                    if (response == CMD_DATA) {
+                        sink.accept(dataBuffer, 0, dataLength);
+                        received += dataLength;
+                    } else if (response == CMD_ACK_OK) {
+                        break;
+                    } else {
+                        throw new IOException("Respuesta inesperada leyendo bloque " + start + ": " + response);
+                    }
+                }
+                if (received != size) {
+                    logger.warning(String.format("Bloque %d incompleto: %d de %d bytes", start, received, size));
+                }
+                return;
+            }
+            
+            logger.warning(String.format("Intento %d leyendo bloque %d falló (respuesta %d)", attempt, start, response));
+        }
+        throw new IOException("No se pudo leer el bloque " + start + ":[" + size + "]");
+    }
+    
+    private void freeData() throws IOException {
+        sendPacketWithRetry(createPacket(CMD_FREE_DATA, new byte[0]), "FREE_DATA");
+        if (readPacketReusingBuffer() != CMD_ACK_OK) {
+            logger.warning("El dispositivo no confirmó FREE_DATA");
+        }
+    }
+    
+    /**
+     * Lee un paquete sobre los buffers reutilizables (cabecera y datos).
+     * Los datos quedan en dataBuffer[0..dataLength).
+     *
+     * @return comando del paquete
+     */
+    private int readPacketReusingBuffer() throws IOException {
+        if (inputStream == null) {
+            throw new IOException("InputStream no disponible");
+        }
+        
+        inputStream.readFully(headerBuffer);
+        ByteBuffer header = ByteBuffer.wrap(headerBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        int command = header.getShort(0) & 0xFFFF;
+        int length = header.getInt(8);
+        
+        if (length < 0 || length > MAX_DATA_LENGTH) {
+            throw new IOException("Longitud de datos inválida: " + length);
+        }
+        if (dataBuffer.length < length) {
+            dataBuffer = new byte[length];
+        }
+        inputStream.readFully(dataBuffer, 0, length);
+        dataLength = length;
+        return command;
+    }
+    
+    /**
+     * Lee los contadores del dispositivo (usuarios, huellas, registros y capacidades)
+     *
+     * @return null si el dispositivo no respondió con los contadores
+     */
+    public DeviceSizes readSizes() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        
+        sendPacketWithRetry(createPacket(CMD_GET_FREE_SIZES, new byte[0]), "GET_FREE_SIZES");
+        byte[] response = readPacketWithTimeout();
+        if (response == null) {
+            return null;
+        }
+        int command = getCommandFromPacket(response);
+        byte[] data = getDataFromPacket(response);
+        if ((command != CMD_ACK_OK && command != CMD_ACK_DATA) || data.length < 80) {
+            logger.warning("Respuesta inválida a GET_FREE_SIZES: comando " + command + ", " + data.length + " bytes");
+            return null;
+        }
+        
+        ByteBuffer fields = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        DeviceSizes sizes = new DeviceSizes();
+        sizes.users = fields.getInt(4 * 4);
+        sizes.fingers = fields.getInt(6 * 4);
+        sizes.records = fields.getInt(8 * 4);
+        sizes.cards = fields.getInt(12 * 4);
+        sizes.fingersCapacity = fields.getInt(14 * 4);
+        sizes.usersCapacity = fields.getInt(15 * 4);
+        sizes.recordsCapacity = fields.getInt(16 * 4);
+        logger.info("Contadores del dispositivo: " + sizes);
+        return sizes;
+    }
+    
+    /**
+     * Ejecuta la tarea con el dispositivo deshabilitado (no acepta marcaciones ni
+     * cambios desde el teclado) y lo rehabilita al terminar, aunque falle. Sirve para
+     * agrupar varias lecturas y escrituras de usuarios en una sola ventana.
+     */
+    public <T> T whileDisabled(DeviceTask<T> task) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        if (!disableDevice()) {
+            throw new IOException("No se pudo deshabilitar el dispositivo");
+        }
+        try {
+            return task.run();
+        } finally {
+            if (!enableDevice()) {
+                logger.warning("No se pudo rehabilitar el dispositivo");
+            }
+        }
+    }
+    
+    /**
+     * Lee la tabla de usuarios. El tamaño de registro (28 o 72 bytes según el
+     * firmware) se deduce del contador de usuarios y queda para las escrituras.
+     */
+    public List<DeviceUser> readUsers() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        DeviceSizes sizes = readSizes();
+        TableCollector collector = new TableCollector();
+        if (!readWithBuffer(CMD_USERTEMP_RRQ, FCT_USER, 0, collector)) {
+            throw new IOException("El dispositivo no entregó la tabla de usuarios");
+        }
+        byte[] table = collector.toByteArray();
+        userPacketSize = userRecordSize(table.length, sizes != null ? sizes.users : 0, userPacketSize);
+        List<DeviceUser> users = parseUsers(table, userPacketSize);
+        logger.info(String.format("Se leyeron %d usuarios (registros de %d bytes)", users.size(), userPacketSize));
+        return users;
+    }
+    
+    /**
+     * Lee todas las huellas del dispositivo
+     */
+    public List<FingerTemplate> readTemplates() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        TableCollector collector = new TableCollector();
+        if (!readWithBuffer(CMD_DB_RRQ, FCT_FINGERTMP, 0, collector)) {
+            throw new IOException("El dispositivo no entregó la tabla de huellas");
+        }
+        List<FingerTemplate> templates = parseTemplates(collector.toByteArray());
+        logger.info("Se leyeron " + templates.size() + " huellas");
+        return templates;
+    }
+    
+    /**
+     * Crea o reemplaza los usuarios (por uid) con USER_WRQ encadenados: se envían hasta
+     * PIPELINE_WINDOW comandos antes de leer las confirmaciones, en lugar de esperar
+     * una ida y vuelta por usuario. Llamar a {@link #refreshData()} al terminar.
+     *
+     * @return cantidad de usuarios confirmados por el dispositivo
+     */
+    public int writeUsers(List<DeviceUser> users, TransferProgress progress) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(users.size());
+        for (DeviceUser user : users) {
+            payloads.add(packUser(user, userPacketSize));
+        }
+        return sendPipelined(CMD_USER_WRQ, payloads, progress);
+    }
+    
+    /**
+     * Borra los usuarios (y sus huellas) por uid, encadenando los comandos
+     *
+     * @return cantidad de borrados confirmados
+     */
+    public int deleteUsers(List<Integer> uids, TransferProgress progress) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(uids.size());
+        for (int uid : uids) {
+            payloads.add(ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort((short) uid).array());
+        }
+        return sendPipelined(CMD_DELETE_USER, payloads, progress);
+    }
+    
+    /**
+     * Borra una huella de un usuario
+     */
+    public boolean deleteTemplate(int uid, int fingerIndex) throws IOException {
+        byte[] data = ByteBuffer.allocate(3).order(ByteOrder.LITTLE_ENDIAN)
+            .putShort((short) uid).put((byte) fingerIndex).array();
+        return sendSimpleCommand(CMD_DELETE_USERTEMP, data, "DELETE_USERTEMP");
+    }
+    
+    /**
+     * Guarda usuarios con sus huellas en una sola transferencia (SAVE_USERTEMPS):
+     * el paquete se envía con PREPARE_DATA y bloques CMD_DATA encadenados. Cada huella
+     * se asocia al usuario con su mismo uid. Llamar a {@link #refreshData()} al terminar.
+     */
+    public void saveUserTemplates(List<DeviceUser> users, List<FingerTemplate> templates,
+                                  TransferProgress progress) throws IOException {
+        byte[] packet = packUserTemplates(users, templates, userPacketSize);
+        sendWithBuffer(packet, progress);
+        byte[] params = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(12).putShort((short) 0).putShort((short) 8).array();
+        if (!sendSimpleCommand(CMD_SAVE_USERTEMPS, params, "SAVE_USERTEMPS")) {
+            throw new IOException("El dispositivo rechazó SAVE_USERTEMPS");
+        }
+    }
+    
+    /**
+     * Pide al dispositivo que aplique los cambios de usuarios y huellas
+     */
+    public boolean refreshData() throws IOException {
+        return sendSimpleCommand(CMD_REFRESHDATA, new byte[0], "REFRESHDATA");
+    }
+    
+    /**
+     * Tamaño de registro de usuario en uso (28 o 72 bytes)
+     */
+    public int getUserPacketSize() {
+        return userPacketSize;
+    }
+    
+    /**
+     * Fija el tamaño de registro cuando no se puede deducir (tabla de usuarios vacía)
+     */
+    public void setUserPacketSize(int userPacketSize) {
+        if (userPacketSize != 28 && userPacketSize != 72) {
+            throw new IllegalArgumentException("Tamaño de registro de usuario inválido: " + userPacketSize);
+        }
+        this.userPacketSize = userPacketSize;
+    }
+    
+    /**
+     * Envía un buffer grande al dispositivo: PREPARE_DATA con el tamaño y luego
+     * bloques CMD_DATA de WRITE_CHUNK bytes encadenados
+     */
+    private void sendWithBuffer(byte[] buffer, TransferProgress progress) throws IOException {
+        freeData();
+        byte[] size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(buffer.length).array();
+        sendPacketWithRetry(createPacket(CMD_PREPARE_DATA, size), "PREPARE_DATA");
+        if (readPacketReusingBuffer() != CMD_ACK_OK) {
+            throw new IOException("El dispositivo rechazó PREPARE_DATA de " + buffer.length + " bytes");
+        }
+        List<byte[]> chunks = new ArrayList<>(buffer.length / WRITE_CHUNK + 1);
+        for (int start = 0; start < buffer.length; start += WRITE_CHUNK) {
+            chunks.add(Arrays.copyOfRange(buffer, start, Math.min(buffer.length, start + WRITE_CHUNK)));
+        }
+        int acked = sendPipelined(CMD_DATA, chunks, progress);
+        if (acked != chunks.size()) {
+            throw new IOException(String.format("El dispositivo confirmó %d de %d bloques", acked, chunks.size()));
+        }
+    }
+    
+    /**
+     * Envía los comandos sin esperar cada respuesta, con hasta PIPELINE_WINDOW en vuelo.
+     * El dispositivo responde en orden, así que la i-ésima respuesta es la del i-ésimo comando.
+     *
+     * @return cantidad de comandos confirmados con CMD_ACK_OK
+     */
+    private int sendPipelined(int command, List<byte[]> payloads, TransferProgress progress) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        int sent = 0;
+        int answered = 0;
+        int acked = 0;
+        while (answered < payloads.size()) {
+            while (sent < payloads.size() && sent - answered < PIPELINE_WINDOW) {
+                outputStream.write(createPacket(command, payloads.get(sent++)));
+            }
+            outputStream.flush();
+            int response = readPacketReusingBuffer();
+            answered++;
+            if (response == CMD_ACK_OK) {
+                acked++;
+            } else {
+                logger.warning(String.format("Comando %d #%d rechazado (respuesta %d)", command, answered, response));
+            }
+            if (progress != null) {
+                progress.update(answered, payloads.size());
+            }
+        }
+        return acked;
+    }
+    
+    private boolean sendSimpleCommand(int command, byte[] data, String commandName) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        sendPacketWithRetry(createPacket(command, data), commandName);
+        byte[] response = readPacketWithTimeout();
+        return response != null && getCommandFromPacket(response) == CMD_ACK_OK;
+    }
+    
+    /**
+     * Tamaño de registro de la tabla de usuarios: por el contador si está, si no por
+     * divisibilidad (72 primero, el formato de los firmware actuales)
+     */
+    static int userRecordSize(int tableBytes, int userCount, int current) {
+        if (tableBytes == 0) {
+            return current;
+        }
+        if (userCount > 0 && tableBytes % userCount == 0) {
+            int size = tableBytes / userCount;
+            if (size == 28 || size == 72) {
+                return size;
+            }
+        }
+        if (tableBytes % 72 == 0) {
+            return 72;
+        }
+        return tableBytes % 28 == 0 ? 28 : current;
+    }
+    
+    /**
+     * Decodifica la tabla de usuarios (sin el prefijo de tamaño)
+     */
+    static List<DeviceUser> parseUsers(byte[] table, int recordSize) {
+        List<DeviceUser> users = new ArrayList<>(table.length / recordSize);
+        ByteBuffer buffer = ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN);
+        for (int offset = 0; offset + recordSize <= table.length; offset += recordSize) {
+            DeviceUser user = new DeviceUser();
+            user.uid = buffer.getShort(offset) & 0xFFFF;
+            user.privilege = table[offset + 2] & 0xFF;
+            if (recordSize == 28) {
+                user.password = readText(table, offset + 3, 5);
+                user.name = readText(table, offset + 8, 8);
+                user.card = buffer.getInt(offset + 16) & 0xFFFFFFFFL;
+                user.groupId = String.valueOf(table[offset + 21] & 0xFF);
+                user.userId = String.valueOf(buffer.getInt(offset + 24) & 0xFFFFFFFFL);
+            } else {
+                user.password = readText(table, offset + 3, 8);
+                user.name = readText(table, offset + 11, 24);
+                user.card = buffer.getInt(offset + 35) & 0xFFFFFFFFL;
+                user.groupId = readText(table, offset + 40, 7);
+                user.userId = readText(table, offset + 48, 24);
+            }
+            if (user.name.isEmpty()) {
+                user.name = "NN-" + user.userId;
+            }
+            users.add(user);
+        }
+        return users;
+    }
+    
+    /**
+     * Codifica un usuario para USER_WRQ (28 o 72 bytes)
+     */
+    static byte[] packUser(DeviceUser user, int recordSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] record = buffer.array();
+        buffer.putShort(0, (short) user.uid);
+        record[2] = (byte) user.privilege;
+        if (recordSize == 28) {
+            writeText(record, 3, 5, user.password);
+            writeText(record, 8, 8, user.name);
+            buffer.putInt(16, (int) user.card);
+            record[21] = (byte) parseIntOrZero(user.groupId);
+            buffer.putInt(24, parseIntOrZero(user.userId));
+        } else {
+            writeText(record, 3, 8, user.password);
+            writeText(record, 11, 24, user.name);
+            buffer.putInt(35, (int) user.card);
+            writeText(record, 40, 7, user.groupId);
+            writeText(record, 48, 24, user.userId);
+        }
+        return record;
+    }
+    
+    /**
+     * Decodifica la tabla de huellas: cada una es tamaño (2, incluye la cabecera de 6),
+     * uid (2), dedo (1), válida (1) y la plantilla
+     */
+    static List<FingerTemplate> parseTemplates(byte[] table) {
+        List<FingerTemplate> templates = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 0;
+        while (offset + 6 <= table.length) {
+            int size = buffer.getShort(offset) & 0xFFFF;
+            if (size < 6 || offset + size > table.length) {
+                logger.warning("Huella truncada en el byte " + offset + " (tamaño " + size + ")");
+                break;
+            }
+            FingerTemplate template = new FingerTemplate();
+            template.uid = buffer.getShort(offset + 2) & 0xFFFF;
+            template.fingerIndex = table[offset + 4];
+            template.valid = table[offset + 5];
+            template.data = Arrays.copyOfRange(table, offset + 6, offset + size);
+            templates.add(template);
+            offset += size;
+        }
+        return templates;
+    }
+    
+    /**
+     * Arma el paquete de SAVE_USERTEMPS: cabecera con los tres tamaños, usuarios
+     * (registro precedido por 0x02), tabla de índices (uid, dedo, inicio) y plantillas
+     * (tamaño de 2 bytes + datos)
+     */
+    static byte[] packUserTemplates(List<DeviceUser> users, List<FingerTemplate> templates, int recordSize) {
+        Map<Integer, List<FingerTemplate>> byUid = new HashMap<>();
+        for (FingerTemplate template : templates) {
+            byUid.computeIfAbsent(template.uid, k -> new ArrayList<>()).add(template);
+        }
+        ByteArrayOutputStream userPack = new ByteArrayOutputStream();
+        ByteArrayOutputStream indexTable = new ByteArrayOutputStream();
+        ByteArrayOutputStream fingerPack = new ByteArrayOutputStream();
+        ByteBuffer entry = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        for (DeviceUser user : users) {
+            byte[] record = packUser(user, recordSize);
+            userPack.write(2);
+            if (recordSize == 72) {
+                record[39] = 1; // En este formato el byte de relleno previo al grupo va en 1
+            }
+            userPack.write(record, 0, record.length);
+            for (FingerTemplate template : byUid.getOrDefault(user.uid, Collections.emptyList())) {
+                entry.clear();
+                entry.put((byte) 2).putShort((short) user.uid).put((byte) (0x10 + template.fingerIndex)).putInt(fingerPack.size());
+                indexTable.write(entry.array(), 0, 8);
+                fingerPack.write(template.data.length & 0xFF);
+                fingerPack.write((template.data.length >> 8) & 0xFF);
+                fingerPack.write(template.data, 0, template.data.length);
+            }
+        }
+        ByteBuffer packet = ByteBuffer.allocate(12 + userPack.size() + indexTable.size() + fingerPack.size())
+            .order(ByteOrder.LITTLE_ENDIAN);
+        packet.putInt(userPack.size()).putInt(indexTable.size()).putInt(fingerPack.size());
+        packet.put(userPack.toByteArray()).put(indexTable.toByteArray()).put(fingerPack.toByteArray());
+        return packet.array();
+    }
+    
+    private static String readText(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, java.nio.charset.StandardCharsets.UTF_8).trim();
+    }
+    
+    private static void writeText(byte[] record, int offset, int length, String value) {
+        if (value == null) {
+            return;
+        }
+        byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        // Se deja al menos un 0 final si el campo lo admite
+        System.arraycopy(bytes, 0, record, offset, Math.min(bytes.length, length > 1 ? length - 1 : length));
+    }
+    
+    private static int parseIntOrZero(String value) {
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Registra la sesión para recibir eventos en tiempo real (p. ej. EF_ATTLOG).
+     * Desde ese momento el dispositivo envía un paquete CMD_REG_EVENT por cada marcación.
+     */
+    public boolean registerEvents(int flags) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        
+        byte[] data = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(flags).array();
+        sendPacketWithRetry(createPacket(CMD_REG_EVENT, data), "REG_EVENT");
+        
+        byte[] response = readPacketWithTimeout();
+        boolean success = response != null && getCommandFromPacket(response) == CMD_ACK_OK;
+        logger.info("Registro de eventos en tiempo real: " + (success ? "EXITOSO" : "FALLIDO"));
+        if (success) {
+            lastPacketMillis = System.currentTimeMillis();
+        }
+        return success;
+    }
+    
+    /**
+     * Espera eventos en tiempo real hasta timeoutMillis. Cada marcación recibida se
+     * confirma al dispositivo y se entrega al consumidor. Otros paquetes (p. ej. la
+     * respuesta al latido) solo actualizan la hora del último paquete.
+     *
+     * @return cantidad de marcaciones entregadas (0 si venció el tiempo)
+     */
+    public int readLiveEvents(int timeoutMillis, java.util.function.Consumer<AttendanceRecord> consumer) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        
+        int command;
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            command = readPacketReusingBuffer();
+        } catch (SocketTimeoutException e) {
+            return 0;
+        } finally {
+            if (socket != null) {
+                socket.setSoTimeout(DEFAULT_TIMEOUT);
+            }
+        }
+        lastPacketMillis = System.currentTimeMillis();
+        
+        if (command != CMD_REG_EVENT) {
+            return 0;
+        }
+        
+        // El dispositivo espera confirmación de cada evento
+        outputStream.write(encodePacket(CMD_ACK_OK, sessionId, USHRT_MAX - 1, 0, new byte[0]));
+        outputStream.flush();
+        
+        return decodeLiveEvents(dataBuffer, dataLength, consumer);
+    }
+    
+    /**
+     * Envía un latido (CMD_GET_TIME) sin esperar la respuesta; readLiveEvents la consume
+     */
+    public void sendHeartbeat() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("No hay conexión activa con el dispositivo");
+        }
+        outputStream.write(createPacket(CMD_GET_TIME, new byte[0]));
+        outputStream.flush();
+    }
+    
+    /**
+     * Hora (System.currentTimeMillis) del último paquete recibido en modo en vivo
+     */
+    public long getLastPacketMillis() {
+        return lastPacketMillis;
+    }
+    
+    /**
+     * Decodifica uno o más eventos de marcación. El formato depende del firmware
+     * y se reconoce por la longitud: userId numérico de 2 o 4 bytes, o texto de
+     * 24 bytes, seguido de estado, modo y fecha en 6 bytes (año-2000, mes, día, h, m, s).
+     */
+    static int decodeLiveEvents(byte[] data, int length, java.util.function.Consumer<AttendanceRecord> consumer) {
+        int offset = 0;
+        int delivered = 0;
+        while (length - offset >= 10) {
+            int remaining = length - offset;
+            int userId;
+            int fieldsOffset;
+            int eventSize;
+            
+            if (remaining == 10 || remaining == 14) {
+                userId = (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+                fieldsOffset = offset + 2;
+                eventSize = remaining;
+            } else if (remaining == 12) {
+                userId = ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                fieldsOffset = offset + 4;
+                eventSize = 12;
+            } else if (remaining == 32 || remaining == 36 || remaining == 37 || remaining >= 52) {
+                String text = new String(data, offset, 24, java.nio.charset.StandardCharsets.US_ASCII);
+                int end = text.indexOf('\0');
+                text = (end >= 0 ? text.substring(0, end) : text).trim();
+                try {
+                    userId = Integer.parseInt(text);
+                } catch (NumberFormatException e) {
+                    logger.warning("Evento con ID de usuario no numérico: " + text);
+                    userId = 0;
+                }
+                fieldsOffset = offset + 24;
+                eventSize = remaining >= 52 ? 52 : remaining;
+            } else {
+                logger.warning("Evento en tiempo real con longitud desconocida: " + remaining + " bytes");
+                break;
+            }
+            
+            int status = data[fieldsOffset] & 0xFF;
+            int punch = data[fieldsOffset + 1] & 0xFF;
+            int t = fieldsOffset + 2;
+            try {
+                LocalDateTime timestamp = LocalDateTime.of(2000 + (data[t] & 0xFF), data[t + 1] & 0xFF,
+                    data[t + 2] & 0xFF, data[t + 3] & 0xFF, data[t + 4] & 0xFF, data[t + 5] & 0xFF);
+                if (userId != 0) {
+                    AttendanceRecord record = new AttendanceRecord();
+                    record.setUserId(userId);
+                    record.setVerifyType(status);
+                    record.setInOutMode(punch);
+                    record.setTimestamp(timestamp);
+                    consumer.accept(record);
+                    delivered++;
+                }
+            } catch (java.time.DateTimeException e) {
+                logger.warning("Evento en tiempo real con fecha inválida: " + e.getMessage());
+            }
+            offset += eventSize;
+        }
+        return delivered;
     }
     
     private boolean disableDevice() throws IOException {
@@ -321,11 +1065,23 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
      * Crea un paquete según el protocolo ZKTeco
      */
     private byte[] createPacket(int command, byte[] data) {
+        // Usar la contraseña en el campo reservado para comandos de conexión
+        int reserved = command == CMD_CONNECT ? devicePassword : 0;
+        byte[] packet = encodePacket(command, sessionId, replyNumber, reserved, data);
+        replyNumber++;
+        return packet;
+    }
+    
+    /**
+     * Codifica un paquete ZKTeco: cabecera de 16 bytes (comando, checksum, sesión,
+     * número de respuesta, longitud, reservado) seguida de los datos.
+     */
+    static byte[] encodePacket(int command, int sessionId, int replyNumber, int reserved, byte[] data) {
         if (data == null) {
             data = new byte[0];
         }
         
-        ByteBuffer buffer = ByteBuffer.allocate(16 + data.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
         buffer.order(ByteOrder.LITTLE_ENDIAN);
         
         buffer.putShort((short) command);     // Command ID
@@ -333,14 +1089,7 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
         buffer.putShort((short) sessionId);   // Session ID
         buffer.putShort((short) replyNumber); // Reply Number
         buffer.putInt(data.length);           // Data length
-        
-        // Usar la contraseña en el campo reservado para comandos de conexión
-        if (command == CMD_CONNECT) {
-            buffer.putInt(devicePassword);     // Password en el campo reservado
-        } else {
-            buffer.putInt(0);                // Reserved
-        }
-        
+        buffer.putInt(reserved);              // Password (CONNECT) o reservado
         buffer.put(data);                     // Data
         
         byte[] packet = buffer.array();
@@ -349,7 +1098,6 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
         int checksum = calculateChecksum(packet);
         buffer.putShort(2, (short) checksum);
         
-        replyNumber++;
         return packet;
     }
     
@@ -368,7 +1116,7 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
         int dataLength = headerBuffer.getInt(8);
         
         // Validar longitud de datos
-        if (dataLength < 0 || dataLength > 1024 * 1024) { // Máximo 1MB
+        if (dataLength < 0 || dataLength > MAX_DATA_LENGTH) {
             throw new IOException("Longitud de datos inválida: " + dataLength);
         }
         
@@ -422,7 +1170,7 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
         return data;
     }
     
-    private int calculateChecksum(byte[] packet) {
+    static int calculateChecksum(byte[] packet) {
         if (packet == null) {
             return 0;
         }
@@ -439,62 +1187,215 @@ private static final int READ_TIMEOUT = 15000;    // 15 segundos
     /**
      * Parsea los datos de asistencia del dispositivo
      */
-    private List<AttendanceRecord> parseAttendanceData(byte[] data) {
-        List<AttendanceRecord> records = new ArrayList<>();
-        
+    static List<AttendanceRecord> parseAttendanceData(byte[] data) {
+        return parseAttendanceBatch(data).asRecordList();
+    }
+    
+    /**
+     * Parsea los datos de asistencia en columnas primitivas (sin objetos por registro)
+     */
+    static AttendanceBatch parseAttendanceBatch(byte[] data) {
         if (data == null || data.length == 0) {
             logger.info("No hay datos de asistencia para parsear");
-            return records;
+            return new AttendanceBatch(1);
         }
         
         // Cada registro tiene 40 bytes según el protocolo ZKTeco
-        int recordSize = 40;
-        int recordCount = data.length / recordSize;
+        int recordCount = data.length / RECORD_SIZE;
+        logger.info(String.format("Parseando %d registros de %d bytes cada uno", recordCount, RECORD_SIZE));
+        if (data.length % RECORD_SIZE != 0) {
+            logger.warning("Registro incompleto al final de los datos (" + (data.length % RECORD_SIZE) + " bytes)");
+        }
         
-        logger.info(String.format("Parseando %d registros de %d bytes cada uno", recordCount, recordSize));
+        AttendanceBatch batch = AttendanceBatch.decodeAll(data);
+        logger.info("Se parsearon exitosamente " + batch.size() + " registros");
+        return batch;
+    }
+    
+    /**
+     * Destino de los bloques de una lectura por buffer (también la de ZKTecoNioClient)
+     */
+    interface ChunkSink {
+        void skipPrefix(int prefixBytes);
         
-        for (int i = 0; i < recordCount; i++) {
-            int offset = i * recordSize;
+        void accept(byte[] data, int offset, int length);
+    }
+    
+    /**
+     * Junta una tabla completa (usuarios o huellas) sin los 4 bytes de tamaño del inicio
+     */
+    private static final class TableCollector implements ChunkSink {
+        private final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        private int prefixRemaining = 0;
+        
+        @Override
+        public void skipPrefix(int prefixBytes) {
+            this.prefixRemaining = prefixBytes;
+        }
+        
+        @Override
+        public void accept(byte[] data, int offset, int length) {
+            int skip = Math.min(prefixRemaining, length);
+            prefixRemaining -= skip;
+            table.write(data, offset + skip, length - skip);
+        }
+        
+        byte[] toByteArray() {
+            return table.toByteArray();
+        }
+    }
+    
+    /**
+     * Arma registros de 40 bytes a partir de bloques de tamaño arbitrario y los
+     * decodifica sobre un lote columnar reutilizable, que se entrega al consumidor
+     * después de cada bloque. Solo guarda el fragmento partido entre dos bloques.
+     */
+    static final class RecordAssembler implements ChunkSink {
+        private final java.util.function.Consumer<AttendanceBatch> consumer;
+        private final AttendanceBatch batch = new AttendanceBatch(MAX_CHUNK / RECORD_SIZE + 1);
+        private final byte[] carry = new byte[RECORD_SIZE];
+        private int carryLength = 0;
+        private int prefixRemaining = 0;
+        long count = 0;
+        
+        RecordAssembler(java.util.function.Consumer<AttendanceBatch> consumer) {
+            this.consumer = consumer;
+        }
+        
+        @Override
+        public void skipPrefix(int prefixBytes) {
+            this.prefixRemaining = prefixBytes;
+        }
+        
+        @Override
+        public void accept(byte[] data, int offset, int length) {
+            int end = offset + length;
             
-            if (offset + recordSize > data.length) {
-                logger.warning("Registro incompleto en posición " + i);
-                break;
-            }
+            int skip = Math.min(prefixRemaining, end - offset);
+            offset += skip;
+            prefixRemaining -= skip;
             
-            try {
-                ByteBuffer buffer = ByteBuffer.wrap(data, offset, recordSize);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                
-                int userId = buffer.getShort(0) & 0xFFFF;
-                int verifyType = buffer.get(2) & 0xFF;
-                int inOutMode = buffer.get(3) & 0xFF;
-                int timestamp = buffer.getInt(4);
-                
-                // Validar datos
-                if (userId == 0 || timestamp <= 0) {
-                    continue; // Saltar registros inválidos
+            if (carryLength > 0) {
+                int n = Math.min(RECORD_SIZE - carryLength, end - offset);
+                System.arraycopy(data, offset, carry, carryLength, n);
+                carryLength += n;
+                offset += n;
+                if (carryLength < RECORD_SIZE) {
+                    return;
                 }
-                
-                // Convertir timestamp Unix a LocalDateTime
-                LocalDateTime dateTime = LocalDateTime.ofEpochSecond(timestamp, 0, 
-                    java.time.ZoneOffset.systemDefault().getRules().getOffset(java.time.Instant.now()));
-                
-                AttendanceRecord record = new AttendanceRecord();
-                record.setUserId(userId);
-                record.setVerifyType(verifyType);
-                record.setInOutMode(inOutMode);
-                record.setTimestamp(dateTime);
-                
-                records.add(record);
-                
-            } catch (Exception e) {
-                logger.warning("Error parseando registro " + i + ": " + e.getMessage());
-                continue;
+                batch.decode(carry, 0);
+                carryLength = 0;
+            }
+            
+            offset += batch.decodeRange(data, offset, end - offset);
+            
+            if (offset < end) {
+                carryLength = end - offset;
+                System.arraycopy(data, offset, carry, 0, carryLength);
             }
+            flush();
         }
         
-        logger.info("Se parsearon exitosamente " + records.size() + " registros");
-        return records;
+        void finish() {
+            if (carryLength > 0) {
+                logger.warning("Registro incompleto al final de la descarga (" + carryLength + " bytes)");
+                carryLength = 0;
+            }
+            flush();
+        }
+        
+        private void flush() {
+            if (batch.size() > 0) {
+                count += batch.size();
+                consumer.accept(batch);
+                batch.clear();
+            }
+        }
+    }
+    
+    /**
+     * Contadores de memoria del dispositivo (respuesta a CMD_GET_FREE_SIZES)
+     */
+    public static class DeviceSizes {
+        public int users;
+        public int fingers;
+        public int records;
+        public int cards;
+        public int fingersCapacity;
+        public int usersCapacity;
+        public int recordsCapacity;
+        
+        @Override
+        public String toString() {
+            return String.format("DeviceSizes{users=%d, fingers=%d, records=%d/%d}",
+                users, fingers, records, recordsCapacity);
+        }
+    }
+    
+    /**
+     * Tarea que se ejecuta con el dispositivo deshabilitado ({@link #whileDisabled})
+     */
+    @FunctionalInterface
+    public interface DeviceTask<T> {
+        T run() throws IOException;
+    }
+    
+    /**
+     * Avance de una transferencia encadenada: comandos confirmados de total
+     */
+    @FunctionalInterface
+    public interface TransferProgress {
+        void update(int done, int total);
+    }
+    
+    /**
+     * Usuario de la tabla del dispositivo. uid es el índice interno del reloj (distinto
+     * en cada reloj); userId es el código que se marca, el DNI en este sistema.
+     */
+    public static class DeviceUser {
+        public int uid;
+        public int privilege;        // 0 = usuario, 14 = administrador
+        public String password = "";
+        public String name = "";
+        public long card;
+        public String groupId = "";
+        public String userId = "";
+        
+        public DeviceUser copy() {
+            DeviceUser c = new DeviceUser();
+            c.uid = uid;
+            c.privilege = privilege;
+            c.password = password;
+            c.name = name;
+            c.card = card;
+            c.groupId = groupId;
+            c.userId = userId;
+            return c;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("DeviceUser{uid=%d, userId=%s, name=%s}", uid, userId, name);
+        }
+    }
+    
+    /**
+     * Plantilla de huella de un dedo (0-9) de un usuario, por uid
+     */
+    public static class FingerTemplate {
+        public int uid;
+        public int fingerIndex;
+        public int valid = 1;
+        public byte[] data;
+        
+        public FingerTemplate copy() {
+            FingerTemplate c = new FingerTemplate();
+            c.uid = uid;
+            c.fingerIndex = fingerIndex;
+            c.valid = valid;
+            c.data = data;
+            return c;
+        }
     }
     
     /**
@@ -1,5 +1,12 @@
 package com.asistenciav2.listener;
 
+import com.asistenciav2.service.AttendanceRecomputeWorker;
+import com.asistenciav2.service.BiometricSyncScheduler;
+import com.asistenciav2.service.BiometricSyncService;
+import com.asistenciav2.service.DailyAttendanceEngine;
+import com.asistenciav2.service.PermissionIndex;
+import com.asistenciav2.service.PunchJournal;
+import com.asistenciav2.servlet.SseBroadcaster;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
 import java.sql.Driver;
@@ -14,11 +21,51 @@ public class AppLifecycleListener implements ServletContextListener {
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
-        // Nada específico al inicio
+        // Sincronización programada de relojes dentro de la aplicación (context-param biometricSyncScheduler=true)
+        if ("true".equalsIgnoreCase(sce.getServletContext().getInitParameter("biometricSyncScheduler"))) {
+            BiometricSyncService syncService = new BiometricSyncService();
+            String engine = sce.getServletContext().getInitParameter("biometricSyncEngine");
+            syncService.setUseNioEngine("nio".equalsIgnoreCase(engine));
+            syncService.setUsePipeline("pipeline".equalsIgnoreCase(engine));
+            BiometricSyncScheduler scheduler = new BiometricSyncScheduler(syncService);
+            sce.getServletContext().setAttribute(BiometricSyncScheduler.CONTEXT_ATTRIBUTE, scheduler);
+            scheduler.start();
+        }
+        // Recálculo incremental de dailyattendances desde attendance_dirty_cells (context-param attendanceRecompute=true)
+        if ("true".equalsIgnoreCase(sce.getServletContext().getInitParameter("attendanceRecompute"))) {
+            DailyAttendanceEngine engine = new DailyAttendanceEngine();
+            engine.setPermissionIndex(PermissionIndex.shared());
+            AttendanceRecomputeWorker worker = new AttendanceRecomputeWorker(engine);
+            String interval = sce.getServletContext().getInitParameter("attendanceRecomputeIntervalSeconds");
+            if (interval != null && !interval.trim().isEmpty()) {
+                try {
+                    worker.setIntervalMillis(Long.parseLong(interval.trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    logger.warning("attendanceRecomputeIntervalSeconds inválido: " + interval);
+                }
+            }
+            sce.getServletContext().setAttribute(AttendanceRecomputeWorker.CONTEXT_ATTRIBUTE, worker);
+            worker.start();
+        }
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        Object scheduler = sce.getServletContext().getAttribute(BiometricSyncScheduler.CONTEXT_ATTRIBUTE);
+        if (scheduler instanceof BiometricSyncScheduler) {
+            ((BiometricSyncScheduler) scheduler).stop();
+        }
+        Object worker = sce.getServletContext().getAttribute(AttendanceRecomputeWorker.CONTEXT_ATTRIBUTE);
+        if (worker instanceof AttendanceRecomputeWorker) {
+            ((AttendanceRecomputeWorker) worker).stop();
+        }
+        Object broadcaster = sce.getServletContext().getAttribute(SseBroadcaster.CONTEXT_ATTRIBUTE);
+        if (broadcaster instanceof SseBroadcaster) {
+            ((SseBroadcaster) broadcaster).stop();
+        }
+        // Forzar a disco y detener el drenado del diario de marcaciones
+        PunchJournal.closeAll();
+        
         // Desregistrar drivers JDBC para evitar fugas de memoria en recargas
         Enumeration<Driver> drivers = DriverManager.getDrivers();
         while (drivers.hasMoreElements()) {
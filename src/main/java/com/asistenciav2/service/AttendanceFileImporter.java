@@ -0,0 +1,372 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.biometric.AttendanceBatch;
+import com.asistenciav2.util.DatabaseConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Importa los attlog.dat que se descargan por USB de un reloj sin red.
+ *
+ * El archivo se mapea en memoria por ventanas (FileChannel.map) y se recorre byte a
+ * byte, sin crear un String por línea. Acepta los dos formatos de exportación: texto
+ * separado por tabuladores ("    1234\t2024-01-05 08:00:00\t1\t0\t1\t0") y binario de
+ * registros de 40 bytes (el mismo de la descarga por red). Cada marcación se enriquece
+ * con {@link PunchEnricher} y van por lotes a {@link PunchBatchWriter#writeAttendances},
+ * igual que la ingesta por etapas, así que ON CONFLICT (dni, fechahora, reloj) hace que
+ * reimportar un archivo sea inocuo.
+ *
+ * Las ráfagas se colapsan con {@link PunchDebouncer}. Una canónica cuya ráfaga sigue
+ * abierta al cortar el lote pasa al lote siguiente: raw_count queda completo al
+ * insertar y una reimportación no lo vuelve a sumar. (Una marcación desordenada que cae
+ * en la ráfaga de una canónica ya escrita se descarta sin sumarse.)
+ */
+public class AttendanceFileImporter {
+    private static final Logger logger = Logger.getLogger(AttendanceFileImporter.class.getName());
+    private static final int RECORD_SIZE = 40;                   // Registro binario, igual que en la descarga por red
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;  // Región mapeada a la vez
+    private static final int BINARY_CHUNK = 1638 * RECORD_SIZE;  // ~64 KB por copia
+    private static final int DEFAULT_BATCH_SIZE = 20000;
+    private static final int SNIFF_BYTES = 256;
+
+    public enum Format { TEXT, BINARY }
+
+    /**
+     * Resultado de una importación
+     */
+    public static class Result {
+        public String format;
+        public long bytes = 0;
+        public long lines = 0;          // Registros leídos (líneas no vacías o registros de 40 bytes)
+        public long parsed = 0;
+        public long invalid = 0;
+        public long collapsed = 0;      // Marcaciones de ráfaga sumadas a raw_count
+        public long inserted = 0;
+        public long duplicates = 0;     // Ya estaban en attendances
+        public int batches = 0;
+        public long elapsedMillis = 0;
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("format", format);
+            map.put("bytes", bytes);
+            map.put("lines", lines);
+            map.put("parsed", parsed);
+            map.put("invalid", invalid);
+            map.put("collapsed", collapsed);
+            map.put("inserted", inserted);
+            map.put("duplicates", duplicates);
+            map.put("batches", batches);
+            map.put("elapsedMillis", elapsedMillis);
+            return map;
+        }
+    }
+
+    /**
+     * Destino de los lotes (la BD; reemplazable en pruebas)
+     */
+    interface BatchSink {
+        PunchBatchWriter.Result write(List<PunchBatchWriter.Punch> punches) throws SQLException;
+    }
+
+    private final PunchEnricher enricher;
+    private final int debounceSeconds;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public AttendanceFileImporter(PunchEnricher enricher, int debounceSeconds) {
+        this.enricher = enricher;
+        this.debounceSeconds = debounceSeconds;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Importa el archivo como marcaciones del reloj clockId, con una sola conexión
+     * (con la que también se recargan los datos de referencia del enriquecimiento)
+     */
+    public Result importFile(Path file, int clockId) throws IOException, SQLException {
+        PunchBatchWriter writer = new PunchBatchWriter();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            enricher.load(conn);
+            return importFile(file, clockId, punches -> writer.writeAttendances(conn, punches));
+        }
+    }
+
+    Result importFile(Path file, int clockId, BatchSink sink) throws IOException, SQLException {
+        long started = System.currentTimeMillis();
+        Result result = new Result();
+        Session session = new Session(clockId, sink, result);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            result.bytes = size;
+            Format format = detectFormat(channel);
+            result.format = format.name();
+            // Las ventanas binarias empiezan siempre en un límite de registro
+            long window = format == Format.BINARY ? WINDOW_BYTES - WINDOW_BYTES % RECORD_SIZE : WINDOW_BYTES;
+
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(window, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int consumed = format == Format.TEXT ? parseText(region, last, session) : parseBinary(region, session);
+                if (consumed == 0) {
+                    // Registro binario incompleto al final, o una "línea" más larga que la ventana
+                    logger.warning(String.format("%s: %d bytes sin procesar al final", file.getFileName(), size - position));
+                    result.invalid++;
+                    break;
+                }
+                position += consumed;
+            }
+            session.flush(true);
+        }
+        result.elapsedMillis = System.currentTimeMillis() - started;
+        logger.info(String.format("Importación de %s (reloj %d, %s): %d registros, %d nuevos, %d duplicados, %d colapsados, %d inválidos en %d ms",
+            file.getFileName(), clockId, result.format, result.lines, result.inserted, result.duplicates,
+            result.collapsed, result.invalid, result.elapsedMillis));
+        return result;
+    }
+
+    /**
+     * Texto si los primeros bytes son ASCII imprimible, tabuladores o saltos de línea
+     */
+    static Format detectFormat(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(SNIFF_BYTES, channel.size()));
+        channel.read(head, 0);
+        for (int i = 0; i < head.position(); i++) {
+            byte b = head.get(i);
+            if ((b < 0x20 || b > 0x7E) && b != '\t' && b != '\r' && b != '\n') {
+                return Format.BINARY;
+            }
+        }
+        return Format.TEXT;
+    }
+
+    /**
+     * Procesa las líneas completas de la región
+     *
+     * @return bytes consumidos (hasta el último salto de línea, o todo si es la última región)
+     */
+    private int parseText(ByteBuffer region, boolean last, Session session) throws SQLException {
+        int limit = region.limit();
+        int lineStart = 0;
+        for (int i = 0; i < limit; i++) {
+            if (region.get(i) == '\n') {
+                parseLine(region, lineStart, i, session);
+                lineStart = i + 1;
+            }
+        }
+        if (last && lineStart < limit) {
+            parseLine(region, lineStart, limit, session);
+            lineStart = limit;
+        }
+        return lineStart;
+    }
+
+    /**
+     * Línea "userId\tYYYY-MM-DD HH:MM:SS\t..." (el userId puede venir con espacios delante)
+     */
+    private void parseLine(ByteBuffer line, int start, int end, Session session) throws SQLException {
+        if (end > start && line.get(end - 1) == '\r') {
+            end--;
+        }
+        int i = skipBlanks(line, start, end);
+        if (i == end) {
+            return;
+        }
+        session.result.lines++;
+
+        int userId = 0;
+        int digits = 0;
+        while (i < end && isDigit(line.get(i))) {
+            if (++digits > 9) {
+                session.result.invalid++;
+                return;
+            }
+            userId = userId * 10 + (line.get(i) - '0');
+            i++;
+        }
+        if (digits == 0 || userId == 0 || i == end || !isBlank(line.get(i))) {
+            session.result.invalid++; // Cabecera, id no numérico o línea truncada
+            return;
+        }
+        i = skipBlanks(line, i, end);
+        if (end - i < 19 || line.get(i + 4) != '-' || line.get(i + 7) != '-'
+                || (line.get(i + 10) != ' ' && line.get(i + 10) != 'T')
+                || line.get(i + 13) != ':' || line.get(i + 16) != ':') {
+            session.result.invalid++;
+            return;
+        }
+        int year = number(line, i, 4);
+        int month = number(line, i + 5, 2);
+        int day = number(line, i + 8, 2);
+        int hour = number(line, i + 11, 2);
+        int minute = number(line, i + 14, 2);
+        int second = number(line, i + 17, 2);
+        if ((year | month | day | hour | minute | second) < 0) {
+            session.result.invalid++;
+            return;
+        }
+        LocalDateTime timestamp;
+        try {
+            timestamp = LocalDateTime.of(year, month, day, hour, minute, second);
+        } catch (DateTimeException e) {
+            session.result.invalid++;
+            return;
+        }
+        session.accept(userId, timestamp);
+    }
+
+    /**
+     * Decodifica los registros de 40 bytes de la región copiándolos por bloques a un
+     * lote columnar reutilizable
+     *
+     * @return bytes consumidos (múltiplo de 40)
+     */
+    private int parseBinary(ByteBuffer region, Session session) throws SQLException {
+        int usable = region.limit() - region.limit() % RECORD_SIZE;
+        for (int offset = 0; offset < usable; offset += BINARY_CHUNK) {
+            int length = Math.min(BINARY_CHUNK, usable - offset);
+            region.get(offset, session.chunk, 0, length);
+            session.batch.clear();
+            session.batch.decodeRange(session.chunk, 0, length);
+            int records = length / RECORD_SIZE;
+            session.result.lines += records;
+            session.result.invalid += records - session.batch.size();
+            for (int i = 0; i < session.batch.size(); i++) {
+                session.accept(session.batch.userId(i), session.batch.timestamp(i));
+            }
+        }
+        return usable;
+    }
+
+    private static int skipBlanks(ByteBuffer buffer, int i, int end) {
+        while (i < end && isBlank(buffer.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Entero de width dígitos en la posición, o -1 si alguno no es dígito
+     */
+    private static int number(ByteBuffer buffer, int offset, int width) {
+        int value = 0;
+        for (int i = offset; i < offset + width; i++) {
+            byte b = buffer.get(i);
+            if (!isDigit(b)) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Estado de una importación: lote en armado y ráfagas
+     */
+    private final class Session {
+        final int clockId;
+        final BatchSink sink;
+        final Result result;
+        final PunchDebouncer debouncer = new PunchDebouncer(debounceSeconds);
+        final byte[] chunk = new byte[BINARY_CHUNK];
+        final AttendanceBatch batch = new AttendanceBatch(BINARY_CHUNK / RECORD_SIZE);
+        List<PunchBatchWriter.Punch> pending = new ArrayList<>();
+        long maxEpoch = Long.MIN_VALUE;
+
+        Session(int clockId, BatchSink sink, Result result) {
+            this.clockId = clockId;
+            this.sink = sink;
+            this.result = result;
+        }
+
+        void accept(int userId, LocalDateTime timestamp) throws SQLException {
+            result.parsed++;
+            // Mismo dni que la ingesta por etapas; el nombre lo pone el enriquecimiento
+            PunchBatchWriter.Punch punch = new PunchBatchWriter.Punch(IngestPipeline.toDni(userId), null, timestamp, clockId);
+            // Sin nextBatch(): las ráfagas abiertas no se escriben, así toda fusión es en memoria
+            if (debouncer.offer(punch) != PunchDebouncer.Outcome.KEEP) {
+                result.collapsed++;
+                return;
+            }
+            // En el orden del archivo, como el clasificador de sync_checker.py
+            if (enricher != null) {
+                enricher.enrich(punch);
+            }
+            pending.add(punch);
+            maxEpoch = Math.max(maxEpoch, timestamp.toEpochSecond(ZoneOffset.UTC));
+            if (pending.size() >= batchSize) {
+                flush(false);
+            }
+        }
+
+        /**
+         * Escribe lo pendiente; salvo al final, retiene las canónicas de ráfagas abiertas
+         */
+        void flush(boolean all) throws SQLException {
+            List<PunchBatchWriter.Punch> ready = pending;
+            if (!all) {
+                ready = new ArrayList<>(pending.size());
+                List<PunchBatchWriter.Punch> open = new ArrayList<>();
+                for (PunchBatchWriter.Punch punch : pending) {
+                    (debouncer.isOpen(punch, maxEpoch) ? open : ready).add(punch);
+                }
+                pending = open;
+            } else {
+                pending = new ArrayList<>();
+            }
+            if (ready.isEmpty()) {
+                return;
+            }
+            PunchBatchWriter.Result written = sink.write(ready);
+            result.inserted += written.inserted;
+            result.duplicates += written.duplicates;
+            result.batches++;
+        }
+    }
+
+    /**
+     * Importa desde la línea de comandos (usa DB_URL/DB_USER/DB_PASSWORD).
+     *
+     * Uso: AttendanceFileImporter archivo idReloj [archivo idReloj ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length % 2 != 0) {
+            System.err.println("Uso: AttendanceFileImporter archivo idReloj [archivo idReloj ...]");
+            System.exit(2);
+        }
+        BiometricSyncService service = new BiometricSyncService();
+        AttendanceFileImporter importer = new AttendanceFileImporter(service.getPunchEnricher(), service.getDebounceSeconds());
+        for (int i = 0; i < args.length; i += 2) {
+            Result result = importer.importFile(Paths.get(args[i]), Integer.parseInt(args[i + 1]));
+            System.out.println(args[i] + ": " + result.toMap());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recálculo incremental de dailyattendances a partir de attendance_dirty_cells.
+ *
+ * Los triggers de attendances, permissions, lactation_schedules, jobassignments y
+ * calendardays anotan cada (jobassignment_id, fecha) afectado; la clave primaria junta
+ * las anotaciones repetidas. Cada intervalo este trabajador toma las celdas anotadas hace
+ * al menos settleSeconds (así una ráfaga de marcaciones se recalcula una sola vez), las
+ * borra con FOR UPDATE SKIP LOCKED y las recalcula en la misma transacción: si el cálculo
+ * falla, el rollback las deja anotadas para el próximo intento. Las celdas anotadas por el
+ * borrado físico de un permiso o una lactancia hacen releer antes en {@link PermissionIndex}
+ * a los empleados de esos cargos: el borrado no deja updated_at que el índice pueda ver. Varios nodos pueden
+ * correrlo a la vez sin tomar la misma celda. La corrida completa por rango queda para
+ * reparaciones.
+ */
+public class AttendanceRecomputeWorker {
+    private static final Logger logger = Logger.getLogger(AttendanceRecomputeWorker.class.getName());
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** Nombre del atributo de ServletContext donde se publica la instancia compartida */
+    public static final String CONTEXT_ATTRIBUTE = "attendanceRecomputeWorker";
+
+    static final String CLAIM_SQL =
+        "DELETE FROM attendance_dirty_cells c USING (" +
+        "SELECT jobassignment_id, fecha FROM attendance_dirty_cells " +
+        "WHERE marked_at <= CURRENT_TIMESTAMP - make_interval(secs => ?) " +
+        "ORDER BY fecha, jobassignment_id LIMIT ? FOR UPDATE SKIP LOCKED) k " +
+        "WHERE c.jobassignment_id = k.jobassignment_id AND c.fecha = k.fecha " +
+        "RETURNING c.jobassignment_id, c.fecha, c.reload_permissions";
+
+    private final DailyAttendanceEngine engine;
+    private long intervalMillis = 5000;
+    private int settleSeconds = 2;         // Antigüedad mínima de la anotación
+    private int batchSize = 2000;          // Celdas por transacción
+
+    private ScheduledExecutorService executor;
+    private volatile boolean running = false;
+    private final WorkerStatus status = new WorkerStatus();
+
+    /**
+     * Estado y métricas del trabajador
+     */
+    public static class WorkerStatus {
+        public boolean running;
+        public long intervalMillis;
+        public String lastRunAt;
+        public long lastDurationMillis;
+        public long runs;
+        public long failedRuns;
+        public long cellsClaimed;
+        public long rowsWritten;
+        public long rowErrors;
+        public String lastError;
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("running", running);
+            map.put("intervalMillis", intervalMillis);
+            map.put("lastRunAt", lastRunAt);
+            map.put("lastDurationMillis", lastDurationMillis);
+            map.put("runs", runs);
+            map.put("failedRuns", failedRuns);
+            map.put("cellsClaimed", cellsClaimed);
+            map.put("rowsWritten", rowsWritten);
+            map.put("rowErrors", rowErrors);
+            map.put("lastError", lastError);
+            return map;
+        }
+    }
+
+    public AttendanceRecomputeWorker(DailyAttendanceEngine engine) {
+        this.engine = engine;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = Math.max(500, intervalMillis);
+    }
+
+    public void setSettleSeconds(int settleSeconds) {
+        this.settleSeconds = Math.max(0, settleSeconds);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "attendance-recompute");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runCycle, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Recálculo incremental de asistencia iniciado (cada " + intervalMillis + " ms)");
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        logger.info("Recálculo incremental de asistencia detenido");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Copia del estado actual
+     */
+    public Map<String, Object> getStatus() {
+        synchronized (status) {
+            status.running = running;
+            status.intervalMillis = intervalMillis;
+            return status.toMap();
+        }
+    }
+
+    private void runCycle() {
+        long started = System.currentTimeMillis();
+        try {
+            drain();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error en el recálculo incremental: " + e.getMessage(), e);
+            synchronized (status) {
+                status.failedRuns++;
+                status.lastError = e.getMessage();
+            }
+        } finally {
+            synchronized (status) {
+                status.runs++;
+                status.lastRunAt = LocalDateTime.now().format(DATE_TIME_FORMATTER);
+                status.lastDurationMillis = System.currentTimeMillis() - started;
+            }
+        }
+    }
+
+    /**
+     * Recalcula lotes de celdas hasta que no quede ninguna lista
+     *
+     * @return celdas tomadas
+     */
+    public int drain() throws SQLException {
+        int total = 0;
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            int claimed;
+            do {
+                claimed = recomputeBatch(conn);
+                total += claimed;
+            } while (claimed == batchSize && running);
+        }
+        return total;
+    }
+
+    private int recomputeBatch(Connection conn) throws SQLException {
+        List<DailyAttendanceEngine.Cell> cells = new ArrayList<>();
+        Set<Integer> reloadAssignments = new HashSet<>();
+        try {
+            try (PreparedStatement stmt = conn.prepareStatement(CLAIM_SQL)) {
+                stmt.setInt(1, settleSeconds);
+                stmt.setInt(2, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        cells.add(new DailyAttendanceEngine.Cell(rs.getInt("jobassignment_id"),
+                            rs.getDate("fecha").toLocalDate()));
+                        if (rs.getBoolean("reload_permissions")) {
+                            reloadAssignments.add(rs.getInt("jobassignment_id"));
+                        }
+                    }
+                }
+            }
+            if (cells.isEmpty()) {
+                conn.commit();
+                return 0;
+            }
+            PermissionIndex index = engine.getPermissionIndex();
+            if (index != null && !reloadAssignments.isEmpty()) {
+                index.reloadUsersOfAssignments(conn, reloadAssignments);
+            }
+            DailyAttendanceEngine.RunResult result = engine.recompute(conn, cells, line -> logger.fine(line));
+            conn.commit(); // Sin filas que escribir el borrado de las celdas todavía está pendiente
+            synchronized (status) {
+                status.cellsClaimed += cells.size();
+                status.rowsWritten += result.processed;
+                status.rowErrors += result.errors;
+            }
+            logger.fine(String.format("Recálculo incremental: %d celdas, %d filas escritas, %d con error",
+                cells.size(), result.processed, result.errors));
+            return cells.size();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback(); // Las celdas quedan anotadas
+            throw e;
+        }
+    }
+}
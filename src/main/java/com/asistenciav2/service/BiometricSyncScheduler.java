@@ -0,0 +1,268 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sincronización periódica de los relojes dentro de la aplicación (reemplaza a
+ * sync_checker.py lanzado como subproceso).
+ *
+ * Como el script, guarda las marcas clasificadas en attendances, de donde sale
+ * dailyattendances: solo arranca con el motor de ingesta por etapas
+ * ({@link BiometricSyncService#setUsePipeline}); los otros escriben solo punch_events.
+ *
+ * El intervalo se adapta a los horarios: cerca del inicio o fin de algún turno
+ * (workschedules.horaini/horafin) se sincroniza seguido, el resto del día con
+ * menos frecuencia. Los horarios se releen cada hora. El estado y las métricas
+ * se consultan con {@link #getStatus()}.
+ */
+public class BiometricSyncScheduler {
+    private static final Logger logger = Logger.getLogger(BiometricSyncScheduler.class.getName());
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final long SCHEDULE_REFRESH_MILLIS = 3600000;
+
+    /** Nombre del atributo de ServletContext donde se publica la instancia compartida */
+    public static final String CONTEXT_ATTRIBUTE = "biometricSyncScheduler";
+
+    private final BiometricSyncService syncService;
+    private long fastIntervalMillis = 60000;       // Alrededor de entradas y salidas
+    private long slowIntervalMillis = 900000;      // Resto del día
+    private int windowMinutes = 30;                // Ventana antes y después de cada hora de turno
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> nextRun;
+    private volatile boolean running = false;
+    private volatile List<LocalTime> shiftBoundaries = Collections.emptyList();
+    private long boundariesLoadedAt = 0;
+    private final SchedulerStatus status = new SchedulerStatus();
+
+    /**
+     * Estado y métricas del planificador
+     */
+    public static class SchedulerStatus {
+        public boolean running;
+        public String mode;                  // RAPIDO cerca de un turno, LENTO el resto
+        public long currentIntervalMillis;
+        public String lastRunAt;
+        public String nextRunAt;
+        public long lastDurationMillis;
+        public long runs;
+        public long failedRuns;
+        public long totalNewRecords;
+        public long totalDuplicates;
+        public long totalErrors;
+        public List<String> shiftBoundaries = new ArrayList<>();
+        public Map<String, Object> lastResult;
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("running", running);
+            map.put("mode", mode);
+            map.put("currentIntervalMillis", currentIntervalMillis);
+            map.put("lastRunAt", lastRunAt);
+            map.put("nextRunAt", nextRunAt);
+            map.put("lastDurationMillis", lastDurationMillis);
+            map.put("runs", runs);
+            map.put("failedRuns", failedRuns);
+            map.put("totalNewRecords", totalNewRecords);
+            map.put("totalDuplicates", totalDuplicates);
+            map.put("totalErrors", totalErrors);
+            map.put("shiftBoundaries", shiftBoundaries);
+            map.put("lastResult", lastResult);
+            return map;
+        }
+    }
+
+    public BiometricSyncScheduler(BiometricSyncService syncService) {
+        this.syncService = syncService;
+    }
+
+    public void setFastIntervalMillis(long fastIntervalMillis) {
+        this.fastIntervalMillis = fastIntervalMillis;
+    }
+
+    public void setSlowIntervalMillis(long slowIntervalMillis) {
+        this.slowIntervalMillis = slowIntervalMillis;
+    }
+
+    public void setWindowMinutes(int windowMinutes) {
+        this.windowMinutes = windowMinutes;
+    }
+
+    /**
+     * Arranca el planificador
+     *
+     * @return false si no se puede iniciar porque el motor del servicio no escribe en attendances
+     */
+    public synchronized boolean start() {
+        if (running) {
+            return true;
+        }
+        if (!syncService.isUsePipeline()) {
+            logger.severe("Planificador de sincronización no iniciado: su motor no escribe en attendances "
+                + "(configure biometricSyncEngine=pipeline)");
+            return false;
+        }
+        running = true;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "biometric-sync-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Planificador de sincronización iniciado");
+        schedule(0);
+        return true;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (nextRun != null) {
+            nextRun.cancel(false);
+            nextRun = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        synchronized (status) {
+            status.running = false;
+            status.nextRunAt = null;
+        }
+        logger.info("Planificador de sincronización detenido");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Ejecuta una sincronización ahora, sin esperar al próximo turno del planificador
+     */
+    public synchronized void runNow() {
+        if (!running) {
+            return;
+        }
+        if (nextRun != null) {
+            nextRun.cancel(false);
+        }
+        schedule(0);
+    }
+
+    /**
+     * Copia del estado actual
+     */
+    public Map<String, Object> getStatus() {
+        synchronized (status) {
+            status.running = running;
+            return status.toMap();
+        }
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (!running || executor == null) {
+            return;
+        }
+        nextRun = executor.schedule(this::runCycle, delayMillis, TimeUnit.MILLISECONDS);
+        synchronized (status) {
+            status.nextRunAt = LocalDateTime.now().plusNanos(delayMillis * 1000000).format(DATE_TIME_FORMATTER);
+        }
+    }
+
+    private void runCycle() {
+        long started = System.currentTimeMillis();
+        try {
+            refreshShiftBoundaries();
+            Map<String, Object> result = syncService.syncAllDevices();
+            synchronized (status) {
+                status.runs++;
+                status.lastResult = result;
+                status.totalNewRecords += toLong(result.get("newRecords"));
+                status.totalDuplicates += toLong(result.get("duplicates"));
+                status.totalErrors += toLong(result.get("errors"));
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error en ciclo de sincronización programada: " + e.getMessage(), e);
+            synchronized (status) {
+                status.runs++;
+                status.failedRuns++;
+            }
+        } finally {
+            long interval = nextInterval(LocalTime.now());
+            synchronized (status) {
+                status.lastRunAt = LocalDateTime.now().format(DATE_TIME_FORMATTER);
+                status.lastDurationMillis = System.currentTimeMillis() - started;
+                status.currentIntervalMillis = interval;
+                status.mode = interval == fastIntervalMillis ? "RAPIDO" : "LENTO";
+            }
+            schedule(interval);
+        }
+    }
+
+    /**
+     * Intervalo hasta la próxima sincronización: corto dentro de la ventana de algún
+     * turno; si no, largo pero sin pasar del comienzo de la próxima ventana
+     */
+    long nextInterval(LocalTime now) {
+        List<LocalTime> boundaries = shiftBoundaries;
+        if (boundaries.isEmpty()) {
+            return slowIntervalMillis;
+        }
+        int nowMinute = now.toSecondOfDay() / 60;
+        long untilNextWindow = Long.MAX_VALUE;
+        for (LocalTime boundary : boundaries) {
+            int boundaryMinute = boundary.toSecondOfDay() / 60;
+            int distance = Math.abs(nowMinute - boundaryMinute);
+            distance = Math.min(distance, 1440 - distance); // Turnos que cruzan medianoche
+            if (distance <= windowMinutes) {
+                return fastIntervalMillis;
+            }
+            int windowStart = Math.floorMod(boundaryMinute - windowMinutes - nowMinute, 1440);
+            untilNextWindow = Math.min(untilNextWindow, windowStart * 60000L);
+        }
+        return Math.max(fastIntervalMillis, Math.min(slowIntervalMillis, untilNextWindow));
+    }
+
+    private void refreshShiftBoundaries() {
+        long now = System.currentTimeMillis();
+        if (now - boundariesLoadedAt < SCHEDULE_REFRESH_MILLIS && !shiftBoundaries.isEmpty()) {
+            return;
+        }
+        TreeSet<LocalTime> boundaries = new TreeSet<>();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            String sql = "SELECT DISTINCT horaini, horafin FROM workschedules WHERE estado = 1";
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                boundaries.add(rs.getTime("horaini").toLocalTime());
+                boundaries.add(rs.getTime("horafin").toLocalTime());
+            }
+            shiftBoundaries = new ArrayList<>(boundaries);
+            boundariesLoadedAt = now;
+            synchronized (status) {
+                status.shiftBoundaries = new ArrayList<>();
+                for (LocalTime boundary : boundaries) {
+                    status.shiftBoundaries.add(boundary.toString());
+                }
+            }
+            logger.info("Horarios de turnos cargados para el planificador: " + boundaries);
+        } catch (SQLException e) {
+            // Se conservan los horarios anteriores; sin horarios se usa el intervalo lento
+            logger.log(Level.WARNING, "No se pudieron cargar los horarios de turnos: " + e.getMessage(), e);
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -2,14 +2,17 @@ package com.asistenciav2.service;
 
 import com.asistenciav2.util.DatabaseConnection;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.asistenciav2.biometric.ZKTecoNioClient;
 import com.asistenciav2.biometric.ZKTecoProtocol;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -22,12 +25,55 @@ public class BiometricSyncService {
     // Campos de configuración
     private String deviceIp = "172.16.250.3"; // IP por defecto del reloj1
     private int devicePort = 4370;
+    private boolean useNioEngine = false; // true = todos los relojes desde un solo hilo NIO
+    private boolean usePipeline = false;  // true = ingesta por etapas hacia attendances (IngestPipeline)
+    private List<BiometricDevice> configuredDevices = null; // null = relojes por defecto
+    private final PunchBatchWriter batchWriter = new PunchBatchWriter();
+    private long deviceDeadlineMillis = 120000; // Tiempo límite por reloj en syncAllDevices
+    // Diario local de marcaciones (PUNCH_JOURNAL_MODE = off | fallback | always)
+    private static final String JOURNAL_MODE = getEnvOrDefault("PUNCH_JOURNAL_MODE", "off").toLowerCase();
+    private static final String JOURNAL_DIR = getEnvOrDefault("PUNCH_JOURNAL_DIR",
+        Paths.get(System.getProperty("user.home"), "asistenciaV2r", "punch-journal").toString());
+    private static final Set<PunchJournal.Target> unavailableJournals = EnumSet.noneOf(PunchJournal.Target.class);
+    // Ventana para colapsar ráfagas de marcaciones por (dni, reloj); 0 = desactivado
+    private static final int DEBOUNCE_SECONDS = parseIntOrDefault(getEnvOrDefault("PUNCH_DEBOUNCE_SECONDS", "30"), 30);
+    private static final PunchDebouncer liveDebouncer = new PunchDebouncer(DEBOUNCE_SECONDS);
+    
+    // Compartido por todas las instancias: la salud de un reloj no depende de quién lo sincroniza
+    private static final DeviceHealthRegistry healthRegistry = new DeviceHealthRegistry();
+    private static IngestPipeline pipeline;
+    // Id del reloj → usuario, compartido y actualizado de forma incremental
+    private static final UserDirectory userDirectory = new UserDirectory();
+    // Usuario, tipo de marcaje y mensaje como sync_checker.py; uno solo para que el estado
+    // del día de cada empleado sea el mismo en la ingesta, en vivo y en las importaciones
+    private static final PunchEnricher punchEnricher = new PunchEnricher(userDirectory);
+    private static final long ENRICHER_MAX_AGE_MILLIS = 300000;
 
+    private static String getEnvOrDefault(String key, String defaultValue) {
+        String value = System.getenv(key);
+        return (value != null && !value.isEmpty()) ? value : defaultValue;
+    }
+    
+    private static int parseIntOrDefault(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
     public static class SyncStats {
         public int totalRecords = 0;
         public int newRecords = 0;
         public int duplicates = 0;
         public int errors = 0;
+        public boolean unchanged = false;      // el contador del reloj no cambió: no se descargó nada
+        public boolean timedOut = false;       // se canceló al vencer el tiempo límite del dispositivo
+        public boolean breakerOpen = false;    // se omitió sin conectar: el reloj está marcado como caído
+        public int spooled = 0;                // guardadas en el diario local, pendientes de pasar a la BD
+        public long elapsedMillis = 0;
+        public int skippedRecords = 0;         // registros ya conocidos que no se pidieron al reloj
+        public int collapsed = 0;              // marcaciones repetidas en ráfaga sumadas a raw_count
         public Map<String, Object> lastRecord = null;
         
         public Map<String, Object> toMap() {
@@ -36,17 +82,38 @@ public class BiometricSyncService {
             map.put("newRecords", newRecords);
             map.put("duplicates", duplicates);
             map.put("errors", errors);
+            map.put("unchanged", unchanged);
+            map.put("skippedRecords", skippedRecords);
+            map.put("timedOut", timedOut);
+            map.put("breakerOpen", breakerOpen);
+            map.put("spooled", spooled);
+            map.put("collapsed", collapsed);
+            map.put("elapsedMillis", elapsedMillis);
             map.put("lastRecord", lastRecord);
             return map;
         }
     }
     
+    /** Destinos de la ingesta: cada uno lleva su propio cursor por reloj */
+    static final String SINK_PUNCH_EVENTS = "punch_events";
+    static final String SINK_ATTENDANCES = "attendances";
+    
+    /**
+     * Cursor persistido por reloj y destino: cantidad de registros en el dispositivo y
+     * fecha del último registro en la última sincronización completa
+     */
+    public static class SyncCursor {
+        public int recordCount;
+        public LocalDateTime lastTimestamp;
+    }
+    
     public static class BiometricDevice {
         public Integer id;  // Cambiado de String a Integer
         public String ip;
         public int port;
         public int timeout;
         public int password;
+        public long deadlineMillis = 0; // Tiempo límite total de la sincronización (0 = el del servicio)
         
         public BiometricDevice(Integer id, String ip, int port, int timeout, int password) {
             this.id = id;
@@ -61,97 +128,96 @@ public class BiometricSyncService {
         SyncStats stats = new SyncStats();
         ZKTecoProtocol protocol = null;
         
+        // Reloj marcado como caído: omitir sin gastar los reintentos de conexión
+        if (!healthRegistry.allowRequest(device.id, device.ip)) {
+            logger.info("Dispositivo " + device.id + " omitido: breaker abierto");
+            stats.breakerOpen = true;
+            stats.errors++;
+            return stats;
+        }
+        
         try {
             logger.info("Conectando a dispositivo " + device.id + " (" + device.ip + ")");
             
             // Crear instancia del protocolo ZKTeco con contraseña
             protocol = new ZKTecoProtocol(device.ip, device.port, device.password);
             
-            // Conectar al dispositivo con logging detallado
+            // Conectar al dispositivo con logging detallado; un intento de prueba no reintenta
             logger.info("Intentando conexión ZKTeco a " + device.ip + ":" + device.port);
-            if (!protocol.connect()) {
+            long connectStart = System.currentTimeMillis();
+            boolean connected = healthRegistry.isProbing(device.id) ? protocol.connect(1) : protocol.connect();
+            if (!connected) {
                 logger.severe("FALLO: No se pudo conectar al dispositivo " + device.id);
                 logger.severe("Verifique: 1) Protocolo ZKTeco, 2) Password requerido, 3) Versión firmware");
+                healthRegistry.recordFailure(device.id, "No se pudo conectar");
                 stats.errors++;
                 return stats;
             }
+            healthRegistry.recordSuccess(device.id, System.currentTimeMillis() - connectStart);
             
             logger.info("✅ Conexión ZKTeco exitosa, obteniendo registros...");
-            // Obtener último timestamp sincronizado
-            LocalDateTime lastSync = getLastSyncTimestamp(device.id);
-            logger.info("Último registro sincronizado: " + lastSync);
             
-            // Obtener registros de asistencia del dispositivo
-            List<ZKTecoProtocol.AttendanceRecord> zkRecords = protocol.getAttendanceRecords();
-            logger.info("Se obtuvieron " + zkRecords.size() + " registros del dispositivo " + device.id);
-            
-            // Convertir registros ZKTeco al formato esperado por el sistema
-            List<Map<String, Object>> attendanceRecords = new ArrayList<>();
-            for (ZKTecoProtocol.AttendanceRecord zkRecord : zkRecords) {
-                Map<String, Object> record = new HashMap<>();
-                
-                // Mapear correctamente los datos del ZKTeco
-                String dni = String.valueOf(zkRecord.getUserId()); // ID del usuario como DNI
-                String nombre = "Usuario_" + zkRecord.getUserId(); // Nombre basado en ID
-                LocalDateTime fechaHora = zkRecord.getTimestamp(); // Timestamp completo
-                
-                record.put("dni", dni);
-                record.put("nombre", nombre);
-                record.put("fechahora", fechaHora);
-                
-                // Logging para verificar datos
-                logger.info("Registro ZKTeco: DNI=" + dni + ", Nombre=" + nombre + ", FechaHora=" + fechaHora + ", InOut=" + zkRecord.getInOutMode());
-                
-                attendanceRecords.add(record);
+            // Comparar el contador del reloj con el cursor: si no cambió no hay nada que descargar
+            ZKTecoProtocol.DeviceSizes sizes = protocol.readSizes();
+            SyncCursor cursor = getSyncCursor(device.id, SINK_PUNCH_EVENTS);
+            long skipRecords = 0;
+            if (sizes != null && cursor != null) {
+                if (sizes.records == cursor.recordCount) {
+                    logger.info("Dispositivo " + device.id + " sin registros nuevos (" + sizes.records + "), se omite la descarga");
+                    stats.unchanged = true;
+                    return stats;
+                }
+                if (sizes.records > cursor.recordCount) {
+                    skipRecords = cursor.recordCount;
+                } else {
+                    logger.warning("El contador del dispositivo " + device.id + " bajó de " + cursor.recordCount
+                        + " a " + sizes.records + " (log borrado), se descarga completo");
+                }
             }
-            stats.totalRecords = attendanceRecords.size();
             
-            LocalDateTime now = LocalDateTime.now();
+            // Obtener último timestamp sincronizado
+            LocalDateTime lastSync = incrementalLowerBound(device.id, cursor);
+            logger.info("Último registro sincronizado: " + lastSync);
             
-            for (Map<String, Object> record : attendanceRecords) {
-                try {
-                    String dni = (String) record.get("dni");
-                    String nombre = (String) record.get("nombre");
-                    LocalDateTime fechaHora = (LocalDateTime) record.get("fechahora");
-                    
-                    // Filtrar registros más recientes que el último sincronizado
-                    if (lastSync != null && !fechaHora.isAfter(lastSync)) {
-                        stats.duplicates++;
-                        continue;
-                    }
-                    
-                    // Verificar si el registro ya existe
-                    if (recordExists(dni, fechaHora, device.id)) {
+            // Descargar por bloques (solo la cola si el firmware lo permite) y retener solo los
+            // registros posteriores al último sincronizado, así la memoria no crece con el log
+            List<ZKTecoProtocol.AttendanceRecord> zkRecords = new ArrayList<>();
+            long[] maxEpoch = {Long.MIN_VALUE};
+            java.time.ZoneOffset[] zone = {null};
+            long downloaded = protocol.streamAttendanceBatches(skipRecords, batch -> {
+                zone[0] = batch.getZoneOffset();
+                long lastSyncEpoch = lastSync != null ? lastSync.toEpochSecond(batch.getZoneOffset()) : Long.MIN_VALUE;
+                for (int i = 0; i < batch.size(); i++) {
+                    maxEpoch[0] = Math.max(maxEpoch[0], batch.epochSecond(i));
+                    if (batch.epochSecond(i) <= lastSyncEpoch) {
                         stats.duplicates++;
-                        continue;
-                    }
-                    
-                    // Insertar nuevo registro
-                    if (insertAttendance(dni, nombre, fechaHora, device.id, now)) {
-                        stats.newRecords++;
-                        
-                        // Actualizar último registro
-                        Map<String, Object> lastRecord = new HashMap<>();
-                        lastRecord.put("dni", dni);
-                        lastRecord.put("nombre", nombre);
-                        lastRecord.put("fechahora", fechaHora.format(DATE_TIME_FORMATTER));
-                        lastRecord.put("fecha", fechaHora.format(DATE_FORMATTER));
-                        lastRecord.put("hora", fechaHora.format(TIME_FORMATTER));
-                        stats.lastRecord = lastRecord;
-                        
-                        logger.info("Nuevo registro: DNI " + dni + " - " + nombre + " - " + fechaHora.format(DATE_TIME_FORMATTER));
                     } else {
-                        stats.errors++;
+                        zkRecords.add(batch.toRecord(i));
                     }
-                    
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, "Error procesando registro: " + e.getMessage(), e);
-                    stats.errors++;
+                }
+            });
+            logger.info("Se obtuvieron " + downloaded + " registros del dispositivo " + device.id
+                + " (" + zkRecords.size() + " posteriores al último sincronizado)");
+            stats.totalRecords += stats.duplicates;
+            stats.skippedRecords = (int) skipRecords;
+            
+            storeRecords(device, zkRecords, lastSync, stats);
+            
+            // Avanzar el cursor solo si todo quedó guardado; si no, la próxima vez se reintenta
+            if (stats.errors == 0) {
+                LocalDateTime lastTimestamp = maxEpoch[0] != Long.MIN_VALUE
+                    ? LocalDateTime.ofEpochSecond(maxEpoch[0], 0, zone[0])
+                    : (cursor != null ? cursor.lastTimestamp : null);
+                if (sizes != null) {
+                    saveSyncCursor(device.id, SINK_PUNCH_EVENTS, sizes.records, lastTimestamp);
+                } else {
+                    saveSyncTimestamp(device.id, SINK_PUNCH_EVENTS, lastTimestamp); // Firmware sin contador
                 }
             }
             
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error en sincronización: " + e.getMessage(), e);
+            healthRegistry.recordFailure(device.id, e.getMessage());
             stats.errors++;
         } finally {
             // Cerrar la conexión con el dispositivo
@@ -167,6 +233,296 @@ public class BiometricSyncService {
         return stats;
     }
     
+    /**
+     * Guarda en BD los registros ya descargados de un dispositivo, en un solo lote
+     * transaccional (ver {@link PunchBatchWriter})
+     */
+    private void storeRecords(BiometricDevice device, List<ZKTecoProtocol.AttendanceRecord> zkRecords,
+                              LocalDateTime lastSync, SyncStats stats) {
+        try {
+            // Solo relee los usuarios modificados desde la última vez
+            userDirectory.refreshQuietly();
+            
+            // Convertir registros ZKTeco al formato esperado por el sistema
+            List<PunchBatchWriter.Punch> punches = new ArrayList<>(zkRecords.size());
+            for (ZKTecoProtocol.AttendanceRecord zkRecord : zkRecords) {
+                // Mapear correctamente los datos del ZKTeco
+                String dni = String.valueOf(zkRecord.getUserId()); // ID del usuario como DNI (clave de punch_events)
+                UserDirectory.Entry user = userDirectory.lookup(zkRecord.getUserId());
+                String nombre = user != null ? user.nombre : "Usuario_" + zkRecord.getUserId();
+                LocalDateTime fechaHora = zkRecord.getTimestamp(); // Timestamp completo
+                
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Registro ZKTeco: DNI=" + dni + ", Nombre=" + nombre + ", FechaHora=" + fechaHora + ", InOut=" + zkRecord.getInOutMode());
+                }
+                
+                // Filtrar registros más recientes que el último sincronizado
+                if (lastSync != null && !fechaHora.isAfter(lastSync)) {
+                    stats.duplicates++;
+                    continue;
+                }
+                punches.add(new PunchBatchWriter.Punch(dni, nombre, fechaHora, device.id));
+            }
+            stats.totalRecords += zkRecords.size();
+            
+            // Ráfagas (varios intentos del mismo dedo en segundos) → una marcación con raw_count
+            int beforeCollapse = punches.size();
+            punches = PunchDebouncer.collapse(punches, DEBOUNCE_SECONDS);
+            stats.collapsed += beforeCollapse - punches.size();
+            
+            PunchBatchWriter.Result result = writePunches(punches, stats);
+            if (result == null) {
+                return; // Quedaron en el diario; el drenado cuenta nuevas y duplicadas
+            }
+            stats.newRecords += result.inserted;
+            stats.duplicates += result.duplicates;
+            
+            if (result.lastInserted != null) {
+                // Actualizar último registro
+                LocalDateTime fechaHora = result.lastInserted.fechahora;
+                Map<String, Object> lastRecord = new HashMap<>();
+                lastRecord.put("dni", result.lastInserted.dni);
+                lastRecord.put("nombre", result.lastInserted.nombre);
+                lastRecord.put("fechahora", fechaHora.format(DATE_TIME_FORMATTER));
+                lastRecord.put("fecha", fechaHora.format(DATE_FORMATTER));
+                lastRecord.put("hora", fechaHora.format(TIME_FORMATTER));
+                stats.lastRecord = lastRecord;
+            }
+            logger.info("Dispositivo " + device.id + ": " + result.inserted + " registros nuevos, "
+                + result.duplicates + " duplicados");
+            
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error en sincronización: " + e.getMessage(), e);
+            stats.errors++;
+        }
+    }
+    
+    /**
+     * Escribe el lote según PUNCH_JOURNAL_MODE: directo a la BD (off), al diario si la
+     * BD falla (fallback) o siempre al diario para no depender de la latencia de la BD (always)
+     *
+     * @return resultado de la BD, o null si el lote quedó en el diario
+     */
+    private PunchBatchWriter.Result writePunches(List<PunchBatchWriter.Punch> punches, SyncStats stats)
+            throws SQLException, IOException {
+        PunchBatchWriter.Result result = writeJournaled(punches, PunchJournal.Target.PUNCH_EVENTS);
+        if (result == null) {
+            stats.spooled += punches.size();
+        }
+        return result;
+    }
+    
+    /**
+     * Igual que writePunches para marcaciones ya enriquecidas, que van a attendances
+     *
+     * @return resultado de la BD, o null si el lote quedó en el diario
+     */
+    PunchBatchWriter.Result writeAttendancePunches(List<PunchBatchWriter.Punch> punches)
+            throws SQLException, IOException {
+        return writeJournaled(punches, PunchJournal.Target.ATTENDANCES);
+    }
+    
+    private PunchBatchWriter.Result writeJournaled(List<PunchBatchWriter.Punch> punches, PunchJournal.Target target)
+            throws SQLException, IOException {
+        PunchJournal journal = sharedJournal(target);
+        if (journal != null && "always".equals(JOURNAL_MODE)) {
+            journal.append(punches);
+            return null;
+        }
+        try {
+            return target == PunchJournal.Target.ATTENDANCES
+                ? batchWriter.writeAttendances(punches)
+                : batchWriter.write(punches);
+        } catch (SQLException e) {
+            if (journal == null) {
+                throw e;
+            }
+            logger.log(Level.WARNING, "BD no disponible, " + punches.size() + " marcaciones guardadas en el diario: " + e.getMessage());
+            journal.append(punches);
+            return null;
+        }
+    }
+    
+    /**
+     * Lleva raw_count de attendances al total de la ráfaga después de guardar su canónica.
+     * Con el diario activo, las que no encuentran la canónica (sigue en el diario) o no
+     * llegan a la BD quedan retenidas y se aplican cuando el drenado la escribe.
+     */
+    void addAttendanceRawCounts(Map<PunchBatchWriter.Punch, Integer> rawCountByCanonical) throws SQLException {
+        if (rawCountByCanonical.isEmpty()) {
+            return;
+        }
+        PunchJournal journal = sharedJournal(PunchJournal.Target.ATTENDANCES);
+        Map<PunchBatchWriter.Punch, Integer> unmatched;
+        try {
+            unmatched = batchWriter.addAttendanceRawCounts(rawCountByCanonical);
+        } catch (SQLException e) {
+            if (journal == null) {
+                throw e;
+            }
+            journal.holdRawCounts(rawCountByCanonical);
+            return;
+        }
+        if (journal != null && !unmatched.isEmpty()) {
+            journal.holdRawCounts(unmatched);
+        }
+    }
+    
+    /**
+     * Diario compartido de la tabla indicada (el de attendances en el subdirectorio
+     * "attendances"), o null si PUNCH_JOURNAL_MODE=off o no se pudo abrir
+     */
+    private static synchronized PunchJournal sharedJournal(PunchJournal.Target target) {
+        if ("off".equals(JOURNAL_MODE) || unavailableJournals.contains(target)) {
+            return null;
+        }
+        java.nio.file.Path directory = target == PunchJournal.Target.ATTENDANCES
+            ? Paths.get(JOURNAL_DIR, "attendances")
+            : Paths.get(JOURNAL_DIR);
+        try {
+            return PunchJournal.open(directory, target);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "No se pudo abrir el diario de marcaciones en " + directory + ": " + e.getMessage(), e);
+            unavailableJournals.add(target);
+            return null;
+        }
+    }
+    
+    /**
+     * Ventana de colapso de ráfagas en segundos (PUNCH_DEBOUNCE_SECONDS; 0 = desactivado)
+     */
+    public int getDebounceSeconds() {
+        return DEBOUNCE_SECONDS;
+    }
+    
+    /**
+     * Estado de los diarios de marcaciones, o null si no están activos
+     */
+    public Map<String, Object> getJournalStatus() {
+        PunchJournal punchEvents = sharedJournal(PunchJournal.Target.PUNCH_EVENTS);
+        PunchJournal attendances = sharedJournal(PunchJournal.Target.ATTENDANCES);
+        if (punchEvents == null && attendances == null) {
+            return null;
+        }
+        Map<String, Object> status = new HashMap<>();
+        status.put("mode", JOURNAL_MODE);
+        status.put("punchEvents", punchEvents != null ? punchEvents.getStatus() : null);
+        status.put("attendances", attendances != null ? attendances.getStatus() : null);
+        return status;
+    }
+    
+    /**
+     * Guarda en attendances una marcación recibida en tiempo real, clasificada como en
+     * insert_attendance de sync_checker.py --live
+     *
+     * @return la marcación guardada (con usuario y tipo de marcaje), o null si ya existía,
+     *         se colapsó en una ráfaga o no se pudo guardar
+     */
+    public PunchBatchWriter.Punch storeLivePunch(BiometricDevice device, ZKTecoProtocol.AttendanceRecord record) {
+        PunchBatchWriter.Punch punch = new PunchBatchWriter.Punch(IngestPipeline.toDni(record.getUserId()), null,
+            record.getTimestamp(), device.id);
+        try {
+            PunchBatchWriter.Punch canonical = null;
+            int rawCount = 0;
+            synchronized (liveDebouncer) {
+                liveDebouncer.nextBatch(); // Cada marcación en vivo es su propio lote
+                if (liveDebouncer.offer(punch) != PunchDebouncer.Outcome.KEEP) {
+                    canonical = liveDebouncer.lastCanonical();
+                    rawCount = liveDebouncer.lastRawCount();
+                }
+            }
+            if (canonical != null) {
+                // Repetición de una marcación recién guardada: solo se cuenta
+                addAttendanceRawCounts(Collections.singletonMap(canonical, rawCount));
+                return null;
+            }
+            enrich(punch);
+            PunchBatchWriter.Result result = writeAttendancePunches(Collections.singletonList(punch));
+            return result == null || result.inserted > 0 ? punch : null; // null: quedó en el diario
+        } catch (SQLException | IOException e) {
+            logger.log(Level.SEVERE, "Error insertando registro: " + e.getMessage(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Completa la marcación con {@link PunchEnricher}, recargando sus datos de referencia
+     * si tienen más de ENRICHER_MAX_AGE_MILLIS. Sin datos se guarda igual, sin usuario ni tipo.
+     */
+    void enrich(PunchBatchWriter.Punch punch) {
+        try {
+            punchEnricher.loadIfStale(ENRICHER_MAX_AGE_MILLIS);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "No se pudieron cargar los datos de referencia para la ingesta: " + e.getMessage(), e);
+        }
+        punchEnricher.enrich(punch);
+    }
+    
+    /**
+     * Sincroniza varios dispositivos a la vez con el cliente NIO (un solo hilo de red)
+     * y luego guarda los registros de cada uno. Devuelve las estadísticas en el mismo orden.
+     */
+    private List<SyncStats> syncDevicesWithNioEngine(List<BiometricDevice> devices) {
+        List<ZKTecoNioClient.DeviceRequest> requests = new ArrayList<>();
+        List<BiometricDevice> allowed = new ArrayList<>();
+        for (BiometricDevice device : devices) {
+            if (healthRegistry.allowRequest(device.id, device.ip)) {
+                allowed.add(device);
+                requests.add(new ZKTecoNioClient.DeviceRequest(device.id, device.ip, device.port, device.password, 0));
+            }
+        }
+        
+        List<ZKTecoNioClient.DeviceResult> results = new ZKTecoNioClient().fetchAll(requests);
+        
+        List<SyncStats> allStats = new ArrayList<>();
+        int next = 0;
+        for (BiometricDevice device : devices) {
+            SyncStats stats = new SyncStats();
+            if (next >= allowed.size() || allowed.get(next) != device) {
+                logger.info("Dispositivo " + device.id + " omitido: breaker abierto");
+                stats.breakerOpen = true;
+                stats.errors++;
+                allStats.add(stats);
+                continue;
+            }
+            ZKTecoNioClient.DeviceResult result = results.get(next++);
+            
+            if (!result.success) {
+                logger.severe("FALLO: dispositivo " + device.id + " (" + device.ip + "): " + result.error);
+                healthRegistry.recordFailure(device.id, result.error);
+                stats.errors++;
+            } else {
+                healthRegistry.recordSuccess(device.id, -1);
+                logger.info("Se obtuvieron " + result.records.size() + " registros del dispositivo " + device.id
+                    + " en " + result.elapsedMillis + " ms");
+                storeRecords(device, result.records, incrementalLowerBound(device.id, getSyncCursor(device.id, SINK_PUNCH_EVENTS)), stats);
+                if (stats.errors == 0) {
+                    LocalDateTime lastTimestamp = null;
+                    for (ZKTecoProtocol.AttendanceRecord record : result.records) {
+                        if (lastTimestamp == null || record.getTimestamp().isAfter(lastTimestamp)) {
+                            lastTimestamp = record.getTimestamp();
+                        }
+                    }
+                    saveSyncTimestamp(device.id, SINK_PUNCH_EVENTS, lastTimestamp);
+                }
+            }
+            allStats.add(stats);
+        }
+        return allStats;
+    }
+    
+    /**
+     * Límite inferior del filtro incremental: la marca más nueva vista en el reloj según
+     * el cursor (incluye las ráfagas colapsadas, que no se guardan); sin cursor, la última
+     * guardada en punch_events
+     */
+    LocalDateTime incrementalLowerBound(Integer clockId, SyncCursor cursor) {
+        if (cursor != null && cursor.lastTimestamp != null) {
+            return cursor.lastTimestamp;
+        }
+        return getLastSyncTimestamp(clockId);
+    }
+    
     private LocalDateTime getLastSyncTimestamp(Integer clockId) {
         try (Connection conn = DatabaseConnection.getConnection()) {
             String sql = "SELECT MAX(fechahora) FROM punch_events WHERE clock_id = ?";
@@ -190,47 +546,101 @@ public class BiometricSyncService {
         }
     }
     
-    private boolean recordExists(String dni, LocalDateTime fechaHora, Integer clockId) {
+    /**
+     * Última marca guardada en attendances para el reloj, en hora de Lima
+     */
+    LocalDateTime getLastAttendanceTimestamp(Integer clockId) {
         try (Connection conn = DatabaseConnection.getConnection()) {
-            String sql = "SELECT 1 FROM punch_events WHERE dni = ? AND fechahora = ? AND clock_id = ?";
+            String sql = "SELECT MAX(fechahora) AT TIME ZONE 'America/Lima' FROM attendances WHERE reloj = ?";
             PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, dni);
-            stmt.setTimestamp(2, Timestamp.valueOf(fechaHora));
-            stmt.setInt(3, clockId);
-            
+            stmt.setString(1, "reloj" + clockId);
             ResultSet rs = stmt.executeQuery();
-            return rs.next();
+            
+            if (rs.next()) {
+                Timestamp timestamp = rs.getTimestamp(1);
+                if (timestamp != null) {
+                    return timestamp.toLocalDateTime();
+                }
+            }
+            return LocalDateTime.now().minusHours(24);
+            
         } catch (SQLException e) {
-            logger.log(Level.SEVERE, "Error verificando existencia de registro: " + e.getMessage(), e);
-            return true;
+            logger.log(Level.SEVERE, "Error obteniendo último timestamp: " + e.getMessage(), e);
+            return LocalDateTime.now().minusHours(24);
         }
     }
     
-    private boolean insertAttendance(String dni, String nombre, LocalDateTime fechaHora, Integer clockId, LocalDateTime now) {
+    /**
+     * Cursor del reloj para un destino (SINK_PUNCH_EVENTS o SINK_ATTENDANCES): cada motor
+     * avanza solo el suyo, así uno no hace que el otro vea "sin registros nuevos"
+     */
+    SyncCursor getSyncCursor(Integer clockId, String sink) {
         try (Connection conn = DatabaseConnection.getConnection()) {
-            String sql = "INSERT INTO punch_events (dni, nombre, fechahora, fecha, hora, clock_id, estado) VALUES (?, ?, ?, ?, ?, ?, ?)";
+            String sql = "SELECT record_count, last_timestamp FROM biometric_sync_cursors WHERE clock_id = ? AND sink = ?";
             PreparedStatement stmt = conn.prepareStatement(sql);
+            stmt.setInt(1, clockId);
+            stmt.setString(2, sink);
+            ResultSet rs = stmt.executeQuery();
             
-            stmt.setString(1, dni);                                    // DNI del usuario
-            stmt.setString(2, nombre);                                  // Nombre del usuario
-            stmt.setTimestamp(3, Timestamp.valueOf(fechaHora));         // fechahora completa
-            stmt.setDate(4, java.sql.Date.valueOf(fechaHora.toLocalDate())); // solo fecha
-            stmt.setTime(5, Time.valueOf(fechaHora.toLocalTime()));     // solo hora
-            stmt.setInt(6, clockId);                                   // ID del reloj como INTEGER
-            stmt.setInt(7, 1);                                         // estado como INTEGER (1 = ACTIVO)
-            
-            logger.info("Insertando: DNI=" + dni + ", Nombre=" + nombre + ", FechaHora=" + fechaHora + ", ClockId=" + clockId);
-            
-            return stmt.executeUpdate() > 0;
+            if (rs.next()) {
+                SyncCursor cursor = new SyncCursor();
+                cursor.recordCount = rs.getInt("record_count");
+                Timestamp timestamp = rs.getTimestamp("last_timestamp");
+                cursor.lastTimestamp = timestamp != null ? timestamp.toLocalDateTime() : null;
+                return cursor;
+            }
+            return null;
             
         } catch (SQLException e) {
-            logger.log(Level.SEVERE, "Error insertando registro: " + e.getMessage(), e);
-            return false;
+            // Sin cursor se descarga completo, como antes
+            logger.log(Level.WARNING, "Error obteniendo cursor de sincronización: " + e.getMessage(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Avanza solo la marca más nueva vista en el reloj (motores o firmware sin contador de
+     * registros); nunca retrocede
+     */
+    void saveSyncTimestamp(Integer clockId, String sink, LocalDateTime lastTimestamp) {
+        if (lastTimestamp == null) {
+            return;
+        }
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            String sql = "INSERT INTO biometric_sync_cursors (clock_id, sink, last_timestamp) VALUES (?, ?, ?) " +
+                        "ON CONFLICT (clock_id, sink) DO UPDATE SET " +
+                        "last_timestamp = GREATEST(biometric_sync_cursors.last_timestamp, EXCLUDED.last_timestamp)";
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            stmt.setInt(1, clockId);
+            stmt.setString(2, sink);
+            stmt.setTimestamp(3, Timestamp.valueOf(lastTimestamp));
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Error guardando cursor de sincronización: " + e.getMessage(), e);
+        }
+    }
+    
+    void saveSyncCursor(Integer clockId, String sink, int recordCount, LocalDateTime lastTimestamp) {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            String sql = "INSERT INTO biometric_sync_cursors (clock_id, sink, record_count, last_timestamp) VALUES (?, ?, ?, ?) " +
+                        "ON CONFLICT (clock_id, sink) DO UPDATE SET record_count = EXCLUDED.record_count, " +
+                        "last_timestamp = COALESCE(EXCLUDED.last_timestamp, biometric_sync_cursors.last_timestamp)";
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            stmt.setInt(1, clockId);
+            stmt.setString(2, sink);
+            stmt.setInt(3, recordCount);
+            stmt.setTimestamp(4, lastTimestamp != null ? Timestamp.valueOf(lastTimestamp) : null);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Error guardando cursor de sincronización: " + e.getMessage(), e);
         }
     }
     
    
     public List<BiometricDevice> getConfiguredDevices() {
+        if (configuredDevices != null) {
+            return new ArrayList<>(configuredDevices);
+        }
         List<BiometricDevice> devices = new ArrayList<>();
         
         // Configuración actualizada con las IPs correctas y IDs 1 y 2
@@ -240,6 +650,13 @@ public class BiometricSyncService {
         return devices;
     }
     
+    /**
+     * Reemplaza la lista de relojes (p. ej. relojes simulados en pruebas de carga); null restaura la lista por defecto
+     */
+    public void setConfiguredDevices(List<BiometricDevice> devices) {
+        this.configuredDevices = devices != null ? new ArrayList<>(devices) : null;
+    }
+    
     /**
      * Configura la IP del dispositivo
      */
@@ -254,6 +671,80 @@ public class BiometricSyncService {
         this.devicePort = devicePort;
     }
     
+    /**
+     * Selecciona el motor de syncAllDevices: cliente NIO multiplexado (true)
+     * o un hilo virtual por reloj (false, por defecto)
+     */
+    public void setUseNioEngine(boolean useNioEngine) {
+        this.useNioEngine = useNioEngine;
+    }
+    
+    /**
+     * Usa la ingesta por etapas (descarga, decodificación, enriquecimiento y persistencia
+     * en attendances) en syncAllDevices; tiene prioridad sobre el motor NIO
+     */
+    public void setUsePipeline(boolean usePipeline) {
+        this.usePipeline = usePipeline;
+    }
+    
+    /**
+     * true si syncAllDevices escribe en attendances (lo que lee el procesamiento diario);
+     * los otros motores escriben solo punch_events
+     */
+    public boolean isUsePipeline() {
+        return usePipeline;
+    }
+    
+    /**
+     * Una sola instancia compartida: así sus métricas reflejan la última corrida,
+     * la haya lanzado el servlet o el planificador
+     */
+    private IngestPipeline pipeline() {
+        synchronized (BiometricSyncService.class) {
+            if (pipeline == null) {
+                pipeline = new IngestPipeline(this);
+            }
+            return pipeline;
+        }
+    }
+    
+    /**
+     * Métricas por etapa de la ingesta (null si nunca se usó)
+     */
+    public Map<String, Object> getPipelineStatus() {
+        synchronized (BiometricSyncService.class) {
+            return pipeline != null ? pipeline.getStatus() : null;
+        }
+    }
+    
+    /**
+     * Enriquecedor compartido por la ingesta, las marcaciones en vivo y las importaciones
+     */
+    public PunchEnricher getPunchEnricher() {
+        return punchEnricher;
+    }
+    
+    /**
+     * Índice id del reloj → usuario usado por la ingesta
+     */
+    public UserDirectory getUserDirectory() {
+        return userDirectory;
+    }
+    
+    /**
+     * Salud y estado del circuit breaker de cada reloj
+     */
+    public DeviceHealthRegistry getHealthRegistry() {
+        return healthRegistry;
+    }
+    
+    /**
+     * Tiempo límite por reloj en syncAllDevices; al vencer se cancela su sincronización
+     */
+    public void setDeviceDeadlineMillis(long deviceDeadlineMillis) {
+        this.deviceDeadlineMillis = deviceDeadlineMillis;
+    }
+    
     /**
      * Prueba la conexión con el dispositivo
      */
@@ -325,9 +816,28 @@ public class BiometricSyncService {
         
         List<Map<String, Object>> deviceResults = new ArrayList<>();
         
-        for (BiometricDevice device : devices) {
-            logger.info("Iniciando sincronización de " + device.id);
-            SyncStats stats = syncBiometricData(device);
+        List<SyncStats> allStats;
+        if (usePipeline) {
+            logger.info("Iniciando ingesta por etapas de " + devices.size() + " dispositivos");
+            allStats = pipeline().run(devices, deviceDeadlineMillis);
+        } else if (useNioEngine) {
+            logger.info("Iniciando sincronización NIO de " + devices.size() + " dispositivos");
+            allStats = syncDevicesWithNioEngine(devices);
+        } else {
+            logger.info("Iniciando sincronización concurrente de " + devices.size() + " dispositivos");
+            allStats = syncDevicesConcurrently(devices);
+        }
+        
+        int timedOut = 0;
+        for (SyncStats stats : allStats) {
+            if (stats.timedOut) {
+                timedOut++;
+            }
+        }
+        
+        for (int i = 0; i < devices.size(); i++) {
+            BiometricDevice device = devices.get(i);
+            SyncStats stats = allStats.get(i);
             
             Map<String, Object> deviceResult = new HashMap<>();
             deviceResult.put("deviceId", device.id);
@@ -346,8 +856,98 @@ public class BiometricSyncService {
         globalStats.put("duplicates", totalDuplicates);
         globalStats.put("errors", totalErrors);
         globalStats.put("deviceResults", deviceResults);
+        globalStats.put("timedOutDevices", timedOut);
+        globalStats.put("partial", timedOut > 0);
         globalStats.put("timestamp", LocalDateTime.now().format(DATE_TIME_FORMATTER));
         
         return globalStats;
     }
+    
+    /**
+     * Sincroniza cada reloj en su propio hilo virtual, así un reloj caído no retrasa
+     * a los demás. Cada uno tiene su tiempo límite; al vencer se interrumpe (lo que
+     * cierra su socket) y se reporta como timedOut con lo ya recibido de los demás.
+     * Devuelve las estadísticas en el mismo orden que devices.
+     */
+    private List<SyncStats> syncDevicesConcurrently(List<BiometricDevice> devices) {
+        SyncStats[] results = new SyncStats[devices.size()];
+        long[] deadlines = new long[devices.size()];
+        Map<Future<SyncStats>, Integer> pending = new HashMap<>();
+        long startedAt = System.currentTimeMillis();
+        
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        CompletionService<SyncStats> completion = new ExecutorCompletionService<>(executor);
+        try {
+            for (int i = 0; i < devices.size(); i++) {
+                BiometricDevice device = devices.get(i);
+                long deadline = device.deadlineMillis > 0 ? device.deadlineMillis : deviceDeadlineMillis;
+                deadlines[i] = startedAt + deadline;
+                pending.put(completion.submit(() -> syncBiometricData(device)), i);
+            }
+            
+            while (!pending.isEmpty()) {
+                long nextDeadline = Long.MAX_VALUE;
+                for (int i : pending.values()) {
+                    nextDeadline = Math.min(nextDeadline, deadlines[i]);
+                }
+                
+                Future<SyncStats> done = completion.poll(Math.max(0, nextDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    Integer i = pending.remove(done);
+                    if (i == null) {
+                        continue; // Ya se había cancelado por tiempo
+                    }
+                    results[i] = resultOf(done);
+                    results[i].elapsedMillis = System.currentTimeMillis() - startedAt;
+                    logger.info("Dispositivo " + devices.get(i).id + " terminado en " + results[i].elapsedMillis
+                        + " ms (" + results[i].newRecords + " nuevos, " + results[i].errors + " errores)");
+                    continue;
+                }
+                
+                // Cancelar los que vencieron
+                long now = System.currentTimeMillis();
+                Iterator<Map.Entry<Future<SyncStats>, Integer>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Future<SyncStats>, Integer> entry = it.next();
+                    int i = entry.getValue();
+                    if (deadlines[i] <= now) {
+                        entry.getKey().cancel(true);
+                        it.remove();
+                        SyncStats stats = new SyncStats();
+                        stats.errors = 1;
+                        stats.timedOut = true;
+                        stats.elapsedMillis = now - startedAt;
+                        results[i] = stats;
+                        logger.warning("Dispositivo " + devices.get(i).id + " (" + devices.get(i).ip
+                            + ") cancelado por tiempo límite tras " + stats.elapsedMillis + " ms");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Map.Entry<Future<SyncStats>, Integer> entry : pending.entrySet()) {
+                entry.getKey().cancel(true);
+                SyncStats stats = new SyncStats();
+                stats.errors = 1;
+                stats.timedOut = true;
+                results[entry.getValue()] = stats;
+            }
+        } finally {
+            // No esperar a los cancelados: sus hilos virtuales terminan solos al cerrarse el socket
+            executor.shutdownNow();
+        }
+        
+        return new ArrayList<>(Arrays.asList(results));
+    }
+    
+    private SyncStats resultOf(Future<SyncStats> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error en sincronización: " + e.getMessage(), e);
+            SyncStats stats = new SyncStats();
+            stats.errors = 1;
+            return stats;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,1298 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cálculo de dailyattendances en la JVM, port de calcular_asistencia y del driver de
+ * procesarAsistencia.py. Es opcional (processEngine=java); el script sigue siendo el motor
+ * por defecto hasta que haya una comprobación de paridad en el repositorio.
+ *
+ * El script hacía, por cada fecha y empleado, consultas separadas de calendario,
+ * marcaciones y permisos y un upsert por fila. Aquí un rango completo se carga con
+ * cinco consultas (calendario, asignaciones, marcaciones, permisos y lactancia), se
+ * calcula en memoria con las mismas reglas de calcular_asistencia y se escribe con
+ * upserts en lote, confirmando por fecha como el script. Con {@link #setParallelism} mayor
+ * que 1 los empleados se reparten en particiones de un ForkJoinPool, cada una con su
+ * conexión.
+ *
+ * {@link #compute} reproduce también los detalles de Python que cambian el resultado:
+ * los minutos con timedelta.seconds (módulo un día), horaslab con round() de float,
+ * str(time) en horaint y los permisos sin abreviatura guardados como NULL.
+ *
+ * Se aparta del script a propósito en cómo falla: cada fila reintentada va en su propio
+ * savepoint, así una fila rechazada (o un horario con tolerancia NULL, que en el script
+ * corta la comparación) falla sola. El script hacía rollback de la conexión y perdía las
+ * filas anteriores de la misma fecha.
+ */
+public class DailyAttendanceEngine {
+    private static final Logger logger = Logger.getLogger(DailyAttendanceEngine.class.getName());
+    private static final int BATCH_SIZE = 1000;
+    private static final int PARTITIONS_PER_THREAD = 4;   // Hojas por hilo: reparte mejor los empleados con más cargos
+    private static final Comparator<Permission> PERMISSION_ORDER =
+        Comparator.comparingInt((Permission p) -> p.typeId).thenComparingInt(p -> p.id);
+
+    private int parallelism = 1;
+    private PermissionIndex permissionIndex;
+    private Progress progress;
+
+    static final class Assignment {
+        int userId;
+        String dni;
+        String nombre;
+        int jobassignmentId;
+        LocalDate fechaini;
+        LocalDate fechafin;     // null = vigente
+        LocalTime horaini;
+        LocalTime horafin;
+        Integer tolerancia;     // null en la BD: el script falla al comparar
+
+        boolean covers(LocalDate fecha) {
+            return !fechaini.isAfter(fecha) && (fechafin == null || !fechafin.isBefore(fecha));
+        }
+
+        /**
+         * El permiso debe empezar dentro del cargo y, si el cargo termina, terminar antes
+         */
+        boolean contains(LocalDate desde, LocalDate hasta) {
+            return !desde.isBefore(fechaini) && (fechafin == null || !hasta.isAfter(fechafin));
+        }
+    }
+
+    static final class Mark {
+        LocalTime hora;
+        String tipoMarcaje;
+    }
+
+    static final class Permission {
+        int id;
+        int userId;
+        String abrevia;
+        LocalDate fechaini;
+        LocalDate fechafin;
+        Integer jobassignmentId;
+        int typeId;
+        String codigo;
+        boolean permiteDobleCargo;
+
+        boolean covers(LocalDate fecha) {
+            return !fechaini.isAfter(fecha) && !fechafin.isBefore(fecha);
+        }
+    }
+
+    static final class Lactation {
+        int scheduleId;
+        int permissionId;
+        int userId;
+        Integer jobassignmentId;  // Del permiso
+        LocalDate fechaini;     // Del permiso
+        LocalDate fechafin;
+        LocalDate desde;        // De la programación
+        LocalDate hasta;
+        String modo;
+        Integer minutos;
+
+        boolean covers(LocalDate fecha) {
+            return !fechaini.isAfter(fecha) && !fechafin.isBefore(fecha)
+                && !desde.isAfter(fecha) && !hasta.isBefore(fecha);
+        }
+    }
+
+    static final class CalendarDay {
+        Integer estado;
+        String descripcion;
+    }
+
+    /**
+     * Fila calculada de dailyattendances (los campos de calcular_asistencia)
+     */
+    public static class DayResult {
+        public LocalTime horaini;
+        public LocalTime horafin;
+        public int nummarca;
+        public String horaint;
+        public int mintarde;
+        public int retarde;
+        public BigDecimal horaslab = BigDecimal.ZERO;
+        public int minlab;
+        public int horasExtras;
+        public String obs = "";
+        public String fin = "";         // Columna final
+        public Integer minutosLactancia;
+        public String modoLactancia;
+        public int flaglab;
+    }
+
+    /**
+     * Avance de una corrida y pedido de cancelación (p. ej. desde la cola processing_jobs)
+     */
+    public interface Progress {
+        /**
+         * done de total unidades: fechas en modo secuencial, particiones en paralelo
+         */
+        void update(int done, int total);
+
+        /**
+         * Se consulta entre unidades; lo ya confirmado queda escrito
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Resultado de una corrida
+     */
+    public static class RunResult {
+        public int days;
+        public int daysWithoutCalendar;
+        public int processed;
+        public int errors;
+        public int inserted;        // Filas nuevas en dailyattendances
+        public int changed;         // Filas existentes con otro resultado (reescritas)
+        public int unchanged;       // Filas con la misma huella (no se escriben)
+        public long durationMillis;
+        public boolean cancelled;
+        public String failure;      // Error que cortó la corrida (run lo informa en el log)
+
+        void add(RunResult other) {
+            processed += other.processed;
+            errors += other.errors;
+            inserted += other.inserted;
+            changed += other.changed;
+            unchanged += other.unchanged;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("days", days);
+            map.put("daysWithoutCalendar", daysWithoutCalendar);
+            map.put("processed", processed);
+            map.put("errors", errors);
+            map.put("inserted", inserted);
+            map.put("changed", changed);
+            map.put("unchanged", unchanged);
+            map.put("durationMillis", durationMillis);
+            map.put("cancelled", cancelled);
+            map.put("failure", failure);
+            return map;
+        }
+    }
+
+    /**
+     * Datos de referencia de un rango, cargados de una vez
+     */
+    static final class RangeData {
+        final Map<LocalDate, CalendarDay> calendar = new HashMap<>();
+        final List<Assignment> assignments = new ArrayList<>();
+        final Map<Integer, Map<LocalDate, List<Mark>>> marks = new HashMap<>();
+        final Map<Integer, List<Permission>> permissions = new HashMap<>();
+        final Map<Integer, List<Lactation>> lactations = new HashMap<>();
+        PermissionIndex index;      // Si no es null, permisos y lactancia salen del índice
+    }
+
+    /**
+     * Fila calculada lista para escribir
+     */
+    static final class Row {
+        final Assignment assignment;
+        final LocalDate fecha;
+        final DayResult result;
+        final long fingerprint;
+        boolean inserted;       // No había fila guardada para (cargo, fecha)
+
+        Row(Assignment assignment, LocalDate fecha, DayResult result) {
+            this.assignment = assignment;
+            this.fecha = fecha;
+            this.result = result;
+            this.fingerprint = fingerprint(result);
+        }
+    }
+
+    public PermissionIndex getPermissionIndex() {
+        return permissionIndex;
+    }
+
+    /**
+     * Con índice, los permisos y la lactancia se consultan en memoria (se refresca al cargar
+     * cada rango) en lugar de leerse con el rango; null = consultas por rango
+     */
+    public void setPermissionIndex(PermissionIndex permissionIndex) {
+        this.permissionIndex = permissionIndex;
+    }
+
+    /**
+     * Avance y cancelación de las próximas corridas; null = sin seguimiento
+     */
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Hilos para procesar por particiones de empleados; 1 = secuencial por fecha, con el
+     * mismo log que el script
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Procesa el rango completo (ambos extremos incluidos), opcionalmente un solo DNI
+     */
+    public RunResult process(LocalDate fechaInicio, LocalDate fechaFin, String dni, Consumer<String> log) throws SQLException {
+        long started = System.currentTimeMillis();
+        RunResult result = new RunResult();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            RangeData data = load(conn, fechaInicio, fechaFin, dni);
+            if (parallelism > 1) {
+                conn.commit();
+                processParallel(data, fechaInicio, fechaFin, result, log);
+            } else {
+                int total = (int) (fechaFin.toEpochDay() - fechaInicio.toEpochDay() + 1);
+                for (LocalDate fecha = fechaInicio; !fecha.isAfter(fechaFin); fecha = fecha.plusDays(1)) {
+                    checkCancelled();
+                    result.days++;
+                    CalendarDay day = data.calendar.get(fecha);
+                    if (day == null) {
+                        log.accept("⚠️  No hay calendario programado para " + fecha);
+                        result.daysWithoutCalendar++;
+                    } else {
+                        processDate(conn, data, fecha, day, result, log);
+                    }
+                    reportProgress(result.days, total);
+                }
+            }
+        }
+        result.durationMillis = System.currentTimeMillis() - started;
+        return result;
+    }
+
+    private void checkCancelled() {
+        if (progress != null && progress.isCancelled()) {
+            throw new CancellationException("Proceso cancelado");
+        }
+    }
+
+    private void reportProgress(int done, int total) {
+        if (progress != null) {
+            progress.update(done, total);
+        }
+    }
+
+    private void processDate(Connection conn, RangeData data, LocalDate fecha, CalendarDay day,
+                             RunResult result, Consumer<String> log) throws SQLException {
+        log.accept("");
+        log.accept("📅 Procesando fecha: " + fecha + " (" + pyStr(day.descripcion) + ")");
+        log.accept("   Estado del día: " + pyStr(day.estado) + " (0=feriado, 1=laborable, 2=recuperable)");
+        List<Assignment> active = new ArrayList<>();
+        for (Assignment assignment : data.assignments) {
+            if (assignment.covers(fecha)) {
+                active.add(assignment);
+            }
+        }
+        if (active.isEmpty()) {
+            log.accept("   No hay usuarios activos para procesar");
+            return;
+        }
+        log.accept("   Usuarios a procesar: " + active.size());
+
+        List<Row> rows = new ArrayList<>(active.size());
+        for (Assignment assignment : active) {
+            Row row = computeRow(data, assignment, fecha, day, log);
+            if (row != null) {
+                rows.add(row);
+            } else {
+                result.errors++;
+            }
+        }
+        int written = write(conn, rows, log, true, result);
+        result.processed += written;
+        result.errors += rows.size() - written;
+    }
+
+    /**
+     * Calcula la fila; si las reglas fallan (como el script con datos incompletos) la
+     * informa y devuelve null
+     */
+    private Row computeRow(RangeData data, Assignment assignment, LocalDate fecha, CalendarDay day, Consumer<String> log) {
+        try {
+            DayResult row = compute(assignment,
+                data.marks.getOrDefault(assignment.userId, Collections.emptyMap()).getOrDefault(fecha, Collections.emptyList()),
+                generalPermissions(data, assignment, fecha), lactation(data, assignment, fecha),
+                day.estado != null ? day.estado : Integer.MIN_VALUE);
+            return new Row(assignment, fecha, row);
+        } catch (RuntimeException e) {
+            log.accept("   ✗ Error procesando " + assignment.dni + " (" + fecha + "): " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Modo paralelo: los empleados se reparten en rangos contiguos (por DNI) que un
+     * ForkJoinPool divide hasta el tamaño de hoja; cada hoja recorre todas las fechas de
+     * sus empleados y escribe con su propia conexión en lotes. Los datos del rango ya
+     * están en memoria y solo se leen, así las particiones no comparten nada mutable.
+     */
+    private void processParallel(RangeData data, LocalDate fechaInicio, LocalDate fechaFin,
+                                 RunResult result, Consumer<String> log) throws SQLException {
+        for (LocalDate fecha = fechaInicio; !fecha.isAfter(fechaFin); fecha = fecha.plusDays(1)) {
+            result.days++;
+            if (!data.calendar.containsKey(fecha)) {
+                log.accept("⚠️  No hay calendario programado para " + fecha);
+                result.daysWithoutCalendar++;
+            }
+        }
+        List<List<Assignment>> employees = groupByUser(data.assignments);
+        if (employees.isEmpty()) {
+            log.accept("   No hay usuarios activos para procesar");
+            return;
+        }
+        int leafSize = Math.max(1, employees.size() / (parallelism * PARTITIONS_PER_THREAD));
+        log.accept(String.format("   Procesando %d empleados en paralelo (%d hilos, hasta %d empleados por partición)",
+            employees.size(), parallelism, leafSize));
+        int leaves = countLeaves(employees.size(), leafSize);
+        AtomicInteger leavesDone = new AtomicInteger();
+        reportProgress(0, leaves);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            result.add(pool.invoke(new PartitionTask(data, employees, 0, employees.size(), leafSize,
+                fechaInicio, fechaFin, log, () -> reportProgress(leavesDone.incrementAndGet(), leaves))));
+        } catch (PartitionException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Hojas que genera PartitionTask sobre n empleados (misma división)
+     */
+    private static int countLeaves(int n, int leafSize) {
+        if (n <= leafSize) {
+            return 1;
+        }
+        int mid = n >>> 1;
+        return countLeaves(mid, leafSize) + countLeaves(n - mid, leafSize);
+    }
+
+    /**
+     * Asignaciones agrupadas por empleado, en el orden de carga (DNI)
+     */
+    static List<List<Assignment>> groupByUser(List<Assignment> assignments) {
+        List<List<Assignment>> groups = new ArrayList<>();
+        Map<Integer, List<Assignment>> byUser = new HashMap<>();
+        for (Assignment assignment : assignments) {
+            List<Assignment> group = byUser.get(assignment.userId);
+            if (group == null) {
+                group = new ArrayList<>(1);
+                byUser.put(assignment.userId, group);
+                groups.add(group);
+            }
+            group.add(assignment);
+        }
+        return groups;
+    }
+
+    /**
+     * Error de base de datos dentro de una partición (se relanza como SQLException)
+     */
+    private static final class PartitionException extends RuntimeException {
+        PartitionException(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    /**
+     * Rango [from, to) de empleados; devuelve sus totales
+     */
+    private final class PartitionTask extends RecursiveTask<RunResult> {
+        private final RangeData data;
+        private final List<List<Assignment>> employees;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final LocalDate fechaInicio;
+        private final LocalDate fechaFin;
+        private final Consumer<String> log;
+        private final Runnable leafDone;
+
+        PartitionTask(RangeData data, List<List<Assignment>> employees, int from, int to, int leafSize,
+                      LocalDate fechaInicio, LocalDate fechaFin, Consumer<String> log, Runnable leafDone) {
+            this.data = data;
+            this.employees = employees;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.fechaInicio = fechaInicio;
+            this.fechaFin = fechaFin;
+            this.log = log;
+            this.leafDone = leafDone;
+        }
+
+        @Override
+        protected RunResult compute() {
+            if (to - from > leafSize) {
+                int mid = (from + to) >>> 1;
+                PartitionTask left = new PartitionTask(data, employees, from, mid, leafSize, fechaInicio, fechaFin, log, leafDone);
+                PartitionTask right = new PartitionTask(data, employees, mid, to, leafSize, fechaInicio, fechaFin, log, leafDone);
+                left.fork();
+                RunResult totals = right.compute();
+                totals.add(left.join());
+                return totals;
+            }
+            try {
+                RunResult totals = processPartition();
+                leafDone.run();
+                return totals;
+            } catch (SQLException e) {
+                throw new PartitionException(e);
+            }
+        }
+
+        private RunResult processPartition() throws SQLException {
+            RunResult totals = new RunResult();
+            List<Row> rows = new ArrayList<>(BATCH_SIZE);
+            try (Connection conn = DatabaseConnection.getConnection()) {
+                conn.setAutoCommit(false);
+                for (LocalDate fecha = fechaInicio; !fecha.isAfter(fechaFin); fecha = fecha.plusDays(1)) {
+                    checkCancelled();
+                    CalendarDay day = data.calendar.get(fecha);
+                    if (day == null) {
+                        continue;
+                    }
+                    for (int i = from; i < to; i++) {
+                        for (Assignment assignment : employees.get(i)) {
+                            if (!assignment.covers(fecha)) {
+                                continue;
+                            }
+                            Row row = computeRow(data, assignment, fecha, day, log);
+                            if (row == null) {
+                                totals.errors++;
+                                continue;
+                            }
+                            rows.add(row);
+                            if (rows.size() == BATCH_SIZE) {
+                                int ok = write(conn, rows, log, false, totals);
+                                totals.processed += ok;
+                                totals.errors += rows.size() - ok;
+                                rows.clear();
+                            }
+                        }
+                    }
+                }
+                int ok = write(conn, rows, log, false, totals);
+                totals.processed += ok;
+                totals.errors += rows.size() - ok;
+            }
+            List<Assignment> first = employees.get(from);
+            List<Assignment> last = employees.get(to - 1);
+            log.accept(String.format("   ✓ Empleados %s a %s: %d registros, %d sin cambios%s", first.get(0).dni,
+                last.get(0).dni, totals.processed, totals.unchanged,
+                totals.errors > 0 ? " (" + totals.errors + " con error)" : ""));
+            return totals;
+        }
+    }
+
+    /**
+     * Celda de dailyattendances (cargo y fecha) que hay que volver a calcular
+     */
+    static final class Cell {
+        final int jobassignmentId;
+        final LocalDate fecha;
+
+        Cell(int jobassignmentId, LocalDate fecha) {
+            this.jobassignmentId = jobassignmentId;
+            this.fecha = fecha;
+        }
+    }
+
+    /**
+     * Recalcula solo las celdas indicadas sobre la conexión del llamador: carga el tramo
+     * de fechas que cubren, limitado a esos cargos, y escribe con {@link #write} (que
+     * confirma). Se omiten las celdas sin calendario o cuyo cargo ya no está activo o no
+     * cubre la fecha, igual que en una corrida completa.
+     */
+    RunResult recompute(Connection conn, List<Cell> cells, Consumer<String> log) throws SQLException {
+        long started = System.currentTimeMillis();
+        RunResult result = new RunResult();
+        if (cells.isEmpty()) {
+            return result;
+        }
+        LocalDate desde = cells.get(0).fecha;
+        LocalDate hasta = desde;
+        Set<Integer> ids = new HashSet<>();
+        for (Cell cell : cells) {
+            desde = cell.fecha.isBefore(desde) ? cell.fecha : desde;
+            hasta = cell.fecha.isAfter(hasta) ? cell.fecha : hasta;
+            ids.add(cell.jobassignmentId);
+        }
+        RangeData data = load(conn, desde, hasta, null, ids.toArray(new Integer[0]));
+        Map<Integer, Assignment> byId = new HashMap<>();
+        for (Assignment assignment : data.assignments) {
+            byId.put(assignment.jobassignmentId, assignment);
+        }
+        List<Row> rows = new ArrayList<>(cells.size());
+        for (Cell cell : cells) {
+            result.days++;
+            CalendarDay day = data.calendar.get(cell.fecha);
+            Assignment assignment = byId.get(cell.jobassignmentId);
+            if (day == null) {
+                result.daysWithoutCalendar++;
+                continue;
+            }
+            if (assignment == null || !assignment.covers(cell.fecha)) {
+                continue;
+            }
+            Row row = computeRow(data, assignment, cell.fecha, day, log);
+            if (row != null) {
+                rows.add(row);
+            } else {
+                result.errors++;
+            }
+        }
+        int written = write(conn, rows, log, false, result);
+        result.processed = written;
+        result.errors += rows.size() - written;
+        result.durationMillis = System.currentTimeMillis() - started;
+        return result;
+    }
+
+    /**
+     * Escribe solo lo que cambió y confirma: lee las huellas guardadas de las filas
+     * ({@link #fingerprint}), omite las iguales y hace upsert en lotes de las nuevas y las
+     * modificadas. Si el lote falla se reintenta fila por fila para aislar la mala. Los
+     * totales de nuevas, modificadas y sin cambios se suman en diff. Con detail se informa
+     * cada fila como el script.
+     *
+     * @return filas correctas (escritas o sin cambios)
+     */
+    int write(Connection conn, List<Row> rows, Consumer<String> log, boolean detail, RunResult diff) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        Map<Long, Long> stored = storedFingerprints(conn, rows);
+        List<Row> pending = new ArrayList<>(rows.size());
+        List<Row> same = new ArrayList<>();
+        for (Row row : rows) {
+            Long key = cellKey(row.assignment.jobassignmentId, row.fecha);
+            Long old = stored.get(key);
+            row.inserted = !stored.containsKey(key);
+            if (old != null && old == row.fingerprint) {
+                same.add(row);
+            } else {
+                pending.add(row);
+            }
+        }
+        diff.unchanged += same.size();
+        Savepoint savepoint = conn.setSavepoint(); // Lo anterior de la transacción (celdas tomadas) no se pierde
+        try (PreparedStatement stmt = conn.prepareStatement(UPSERT_SQL)) {
+            for (int i = 0; i < pending.size(); i++) {
+                Row row = pending.get(i);
+                bind(stmt, row);
+                stmt.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            if (!pending.isEmpty()) {
+                stmt.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback(savepoint);
+            logger.log(Level.WARNING, "Lote de dailyattendances rechazado, reintentando por fila", e);
+            if (detail) {
+                for (Row row : same) {
+                    log.accept(summary(row.assignment, row.result));
+                }
+            }
+            return same.size() + writeOneByOne(conn, pending, log, detail, diff);
+        }
+        for (Row row : pending) {
+            if (row.inserted) {
+                diff.inserted++;
+            } else {
+                diff.changed++;
+            }
+        }
+        if (detail) {
+            for (Row row : rows) {
+                log.accept(summary(row.assignment, row.result));
+            }
+        }
+        return rows.size();
+    }
+
+    private int writeOneByOne(Connection conn, List<Row> rows, Consumer<String> log, boolean detail, RunResult diff) throws SQLException {
+        int written = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(UPSERT_SQL)) {
+            for (Row row : rows) {
+                Savepoint savepoint = conn.setSavepoint();
+                try {
+                    bind(stmt, row);
+                    stmt.executeUpdate();
+                    conn.releaseSavepoint(savepoint);
+                    written++;
+                    if (row.inserted) {
+                        diff.inserted++;
+                    } else {
+                        diff.changed++;
+                    }
+                    if (detail) {
+                        log.accept(summary(row.assignment, row.result));
+                    }
+                } catch (SQLException e) {
+                    conn.rollback(savepoint);
+                    log.accept("   ✗ Error procesando " + row.assignment.dni + " (" + row.fecha + "): " + e.getMessage());
+                }
+            }
+        }
+        conn.commit();
+        return written;
+    }
+
+    /**
+     * Huellas guardadas de las celdas de rows, por {@link #cellKey}; una fila sin huella
+     * (escrita por el script o editada a mano) figura con null
+     */
+    private static Map<Long, Long> storedFingerprints(Connection conn, List<Row> rows) throws SQLException {
+        Integer[] ids = new Integer[rows.size()];
+        Date[] fechas = new Date[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            ids[i] = rows.get(i).assignment.jobassignmentId;
+            fechas[i] = Date.valueOf(rows.get(i).fecha);
+        }
+        Map<Long, Long> stored = new HashMap<>(rows.size() * 2);
+        try (PreparedStatement stmt = conn.prepareStatement(FINGERPRINT_SQL)) {
+            stmt.setArray(1, conn.createArrayOf("integer", ids));
+            stmt.setArray(2, conn.createArrayOf("date", fechas));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long fingerprint = rs.getLong("fingerprint");
+                    stored.put(cellKey(rs.getInt("jobassignment_id"), rs.getDate("fecha").toLocalDate()),
+                        rs.wasNull() ? null : fingerprint);
+                }
+            }
+        }
+        return stored;
+    }
+
+    static long cellKey(int jobassignmentId, LocalDate fecha) {
+        return ((long) jobassignmentId << 32) | (fecha.toEpochDay() & 0xFFFFFFFFL);
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Huella de 64 bits (FNV-1a) de todo lo que el upsert escribe de la fila; se guarda en
+     * dailyattendances.fingerprint y decide si hay que reescribir
+     */
+    static long fingerprint(DayResult row) {
+        long h = FNV_OFFSET;
+        h = mix(h, row.horaini != null ? row.horaini.toNanoOfDay() : -1);
+        h = mix(h, row.horafin != null ? row.horafin.toNanoOfDay() : -1);
+        h = mix(h, row.nummarca);
+        h = mix(h, row.obs);
+        h = mix(h, row.mintarde);
+        h = mix(h, row.retarde);
+        h = mix(h, row.minutosLactancia != null ? row.minutosLactancia : Long.MIN_VALUE);
+        h = mix(h, row.modoLactancia);
+        h = mix(h, row.fin);
+        h = mix(h, row.horaint);
+        h = mix(h, row.flaglab);
+        h = mix(h, row.horaslab.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValue());
+        h = mix(h, row.minlab);
+        h = mix(h, row.horasExtras);
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        for (int i = 0; i < 8; i++) {
+            h = (h ^ (value & 0xFF)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return h;
+    }
+
+    private static long mix(long h, String value) {
+        if (value == null) {
+            return mix(h, -1L); // Distinto de la cadena vacía
+        }
+        h = mix(h, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            h = (h ^ (c & 0xFF)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    static final String FINGERPRINT_SQL =
+        "SELECT d.jobassignment_id, d.fecha, d.fingerprint FROM dailyattendances d " +
+        "INNER JOIN unnest(?, ?) AS k(jobassignment_id, fecha) " +
+        "ON d.jobassignment_id = k.jobassignment_id AND d.fecha = k.fecha";
+
+    static final String UPSERT_SQL =
+        "INSERT INTO dailyattendances (" +
+        "jobassignment_id, fecha, anio, mes, " +
+        "horaini, horafin, nummarca, obs, mintarde, retarde, " +
+        "minutos_lactancia, modo_lactancia, final, horaint, " +
+        "flaglab, horaslab, minlab, horas_extras, fingerprint, estado, created_at" +
+        ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CAST(? AS lactancia_mode), ?, ?, ?, ?, ?, ?, ?, 1, CURRENT_TIMESTAMP) " +
+        "ON CONFLICT (jobassignment_id, fecha) DO UPDATE SET " +
+        "horaini = EXCLUDED.horaini, horafin = EXCLUDED.horafin, nummarca = EXCLUDED.nummarca, " +
+        "obs = EXCLUDED.obs, mintarde = EXCLUDED.mintarde, retarde = EXCLUDED.retarde, " +
+        "minutos_lactancia = EXCLUDED.minutos_lactancia, modo_lactancia = EXCLUDED.modo_lactancia, " +
+        "final = EXCLUDED.final, horaint = EXCLUDED.horaint, flaglab = EXCLUDED.flaglab, " +
+        "horaslab = EXCLUDED.horaslab, minlab = EXCLUDED.minlab, horas_extras = EXCLUDED.horas_extras, " +
+        "fingerprint = EXCLUDED.fingerprint, updated_at = CURRENT_TIMESTAMP " +
+        "WHERE dailyattendances.fingerprint IS DISTINCT FROM EXCLUDED.fingerprint"; // Otro escritor ya dejó lo mismo
+
+    static void bind(PreparedStatement stmt, Row cell) throws SQLException {
+        LocalDate fecha = cell.fecha;
+        DayResult row = cell.result;
+        stmt.setInt(1, cell.assignment.jobassignmentId);
+        stmt.setDate(2, Date.valueOf(fecha));
+        stmt.setInt(3, fecha.getYear());
+        stmt.setInt(4, fecha.getMonthValue());
+        stmt.setObject(5, row.horaini, Types.TIME);
+        stmt.setObject(6, row.horafin, Types.TIME);
+        stmt.setInt(7, row.nummarca);
+        stmt.setString(8, row.obs);
+        stmt.setInt(9, row.mintarde);
+        stmt.setInt(10, row.retarde);
+        stmt.setObject(11, row.minutosLactancia, Types.INTEGER);
+        stmt.setString(12, row.modoLactancia);
+        stmt.setString(13, row.fin);
+        stmt.setString(14, row.horaint);
+        stmt.setInt(15, row.flaglab);
+        stmt.setBigDecimal(16, row.horaslab);
+        stmt.setInt(17, row.minlab);
+        stmt.setBigDecimal(18, BigDecimal.valueOf(row.horasExtras));
+        stmt.setLong(19, cell.fingerprint);
+    }
+
+    /**
+     * Línea de resumen con el formato del script
+     */
+    static String summary(Assignment assignment, DayResult row) {
+        StringBuilder info = new StringBuilder().append(row.nummarca).append(" marcas");
+        if (row.horaini != null) {
+            info.append(" | In: ").append(pyTime(row.horaini));
+        }
+        if (row.horafin != null) {
+            info.append(" | Sal: ").append(pyTime(row.horafin));
+        }
+        if (row.obs != null && !row.obs.isEmpty()) {
+            info.append(" | ").append(row.obs);
+        }
+        return "   ✓ " + assignment.dni + " - " + pyStr(assignment.nombre) + ": " + info;
+    }
+
+    /**
+     * Permisos generales vigentes para el cargo en la fecha, ordenados por tipo
+     * (obtener_permisos_activos sin la lactancia)
+     */
+    static List<Permission> generalPermissions(RangeData data, Assignment assignment, LocalDate fecha) {
+        List<Permission> all;
+        if (data.index != null) {
+            all = data.index.permitsCovering(assignment.userId, fecha);
+            if (all.size() > 1) {
+                all.sort(PERMISSION_ORDER);
+            }
+        } else {
+            all = data.permissions.get(assignment.userId);
+            if (all == null) {
+                return Collections.emptyList();
+            }
+        }
+        List<Permission> result = new ArrayList<>(2);
+        for (Permission permission : all) { // Ordenados por tipo e id
+            if (data.index != null && "LACTANCIA".equals(permission.codigo)) {
+                continue; // El índice tiene todos los tipos; la consulta por rango ya los excluye
+            }
+            if (!permission.covers(fecha) || !assignment.contains(permission.fechaini, permission.fechafin)) {
+                continue;
+            }
+            // LSG solo aplica al cargo asociado; los demás permisos a todos los cargos
+            if ("LSG".equals(permission.codigo)
+                    && (permission.jobassignmentId == null || permission.jobassignmentId != assignment.jobassignmentId)) {
+                continue;
+            }
+            result.add(permission);
+        }
+        return result;
+    }
+
+    static Lactation lactation(RangeData data, Assignment assignment, LocalDate fecha) {
+        List<Lactation> all = data.index != null ? data.index.lactationsCovering(assignment.userId, fecha)
+            : data.lactations.get(assignment.userId); // Por id de programación
+        if (all != null) {
+            for (Lactation lactation : all) {
+                if (lactation.covers(fecha) && assignment.contains(lactation.fechaini, lactation.fechafin)) {
+                    return lactation;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reglas de calcular_asistencia: vacaciones, LSG, otros permisos, falta, tardanza
+     * con tolerancia, salida, horas extra y obs/final (A, F, FI, FS o minutos)
+     */
+    static DayResult compute(Assignment horario, List<Mark> marcaciones, List<Permission> permisos,
+                             Lactation lactancia, int estadoCalendario) {
+        DayResult r = new DayResult();
+        r.nummarca = marcaciones.size();
+        r.horaint = joinHoras(marcaciones);
+        r.minutosLactancia = lactancia != null ? lactancia.minutos : Integer.valueOf(0);
+        r.modoLactancia = lactancia != null ? lactancia.modo : null;
+        r.flaglab = estadoCalendario == 1 ? 1 : 0;
+
+        // Regla 1: vacaciones, en cualquier estado del día
+        for (Permission permiso : permisos) {
+            if ("VACACIONES".equals(permiso.codigo)) {
+                r.obs = "V";
+                r.fin = "V";
+                return r;
+            }
+        }
+        // Regla 4: LSG, solo días laborables
+        for (Permission permiso : permisos) {
+            if ("LSG".equals(permiso.codigo)) {
+                if (estadoCalendario == 1) {
+                    r.obs = permiso.abrevia;
+                    r.fin = permiso.abrevia;
+                    return r;
+                }
+                break;
+            }
+        }
+        // Regla 3: otros permisos, el primero por tipo, solo días laborables
+        if (estadoCalendario == 1) {
+            for (Permission permiso : permisos) {
+                if (!"VACACIONES".equals(permiso.codigo) && !"LSG".equals(permiso.codigo) && !"LACTANCIA".equals(permiso.codigo)) {
+                    r.obs = permiso.abrevia;
+                    r.fin = permiso.abrevia;
+                    return r;
+                }
+            }
+        }
+
+        if (marcaciones.isEmpty()) {
+            if (estadoCalendario == 1) {
+                r.obs = "F";
+                r.fin = "F";
+            }
+            return r;
+        }
+
+        // Regla 2: la lactancia solo corre el horario esperado
+        LocalTime horainiEsperada = horario.horaini;
+        LocalTime horafinEsperada = horario.horafin;
+        int minutosLactancia = lactancia != null && lactancia.minutos != null ? lactancia.minutos : 0;
+        if (lactancia != null && "INICIO".equals(lactancia.modo) && minutosLactancia > 0) {
+            horainiEsperada = horainiEsperada.plusMinutes(minutosLactancia);
+        } else if (lactancia != null && "FIN".equals(lactancia.modo) && minutosLactancia > 0) {
+            horafinEsperada = horafinEsperada.minusMinutes(minutosLactancia);
+        }
+
+        LocalTime ingresoMarca = null;
+        LocalTime salidaMarca = null;
+        for (Mark mark : marcaciones) {
+            if ("INGRESO".equals(mark.tipoMarcaje) && (ingresoMarca == null || mark.hora.isBefore(ingresoMarca))) {
+                ingresoMarca = mark.hora;
+            } else if ("SALIDA".equals(mark.tipoMarcaje) && (salidaMarca == null || mark.hora.isAfter(salidaMarca))) {
+                salidaMarca = mark.hora;
+            }
+        }
+        LocalTime primeraMarca = marcaciones.get(0).hora;
+
+        if (estadoCalendario != 1) {
+            return r; // No laborable: solo se cuentan las marcaciones
+        }
+
+        if (ingresoMarca != null) {
+            r.horaini = ingresoMarca;
+            if (ingresoMarca.isAfter(horainiEsperada)) {
+                int minutosTarde = timedeltaSeconds(horainiEsperada, ingresoMarca) / 60;
+                if (horario.tolerancia == null) {
+                    throw new IllegalStateException("'<' not supported between instances of 'int' and 'NoneType'");
+                }
+                if (minutosTarde < horario.tolerancia) {
+                    r.mintarde = minutosTarde;
+                } else {
+                    r.retarde = minutosTarde;
+                }
+            }
+        } else {
+            // total_seconds() // 60: división entera hacia abajo, puede ser negativa
+            long micros = Duration.between(horainiEsperada, primeraMarca).toNanos() / 1000;
+            long minutosTarde = Math.floorDiv(micros, 60_000_000L);
+            if (minutosTarde > 0) {
+                r.retarde = (int) minutosTarde;
+            }
+        }
+
+        if (salidaMarca != null && !salidaMarca.isBefore(horafinEsperada)) {
+            r.horafin = salidaMarca;
+            int minutosExtras = timedeltaSeconds(horafinEsperada, salidaMarca) / 60;
+            if (minutosExtras > 0 && r.horaini != null) {
+                r.horasExtras = minutosExtras;
+            }
+        }
+
+        if (ingresoMarca != null && salidaMarca != null) {
+            r.minlab = timedeltaSeconds(ingresoMarca, salidaMarca) / 60;
+            r.horaslab = new BigDecimal((double) r.minlab / 60).setScale(2, RoundingMode.HALF_EVEN);
+        }
+
+        boolean tieneIngreso = r.horaini != null;
+        boolean tieneSalida = r.horafin != null;
+        if (tieneIngreso && tieneSalida && r.mintarde == 0 && r.retarde == 0) {
+            r.obs = "A";
+        } else if (!tieneIngreso && !tieneSalida) {
+            r.obs = "F";
+        } else if (!tieneIngreso) {
+            r.obs = r.mintarde > 0 ? String.valueOf(r.mintarde) : "FI";
+            if (!tieneSalida) {
+                r.obs += " - FS";
+            }
+        } else if (!tieneSalida) {
+            if (r.mintarde > 0 || r.retarde > 0) {
+                r.obs = (r.mintarde > 0 ? r.mintarde : r.retarde) + " - FS";
+            } else {
+                r.obs = "FS";
+            }
+        } else if (r.mintarde > 0 || r.retarde > 0) {
+            r.obs = String.valueOf(r.mintarde > 0 ? r.mintarde : r.retarde);
+        }
+        r.fin = r.obs;
+        return r;
+    }
+
+    /**
+     * (datetime.combine(hoy, hasta) - datetime.combine(hoy, desde)).seconds: segundos
+     * enteros de la diferencia normalizada a [0, 1 día)
+     */
+    static int timedeltaSeconds(LocalTime desde, LocalTime hasta) {
+        long micros = Duration.between(desde, hasta).toNanos() / 1000;
+        return (int) Math.floorMod(Math.floorDiv(micros, 1_000_000L), 86400L);
+    }
+
+    /**
+     * str(datetime.time): HH:MM:SS y, solo si hay microsegundos, .ffffff
+     */
+    static String pyTime(LocalTime time) {
+        String text = String.format("%02d:%02d:%02d", time.getHour(), time.getMinute(), time.getSecond());
+        int micros = time.getNano() / 1000;
+        return micros != 0 ? text + String.format(".%06d", micros) : text;
+    }
+
+    private static String pyStr(Object value) {
+        return value != null ? value.toString() : "None";
+    }
+
+    private static String joinHoras(List<Mark> marcaciones) {
+        StringBuilder sb = new StringBuilder();
+        for (Mark mark : marcaciones) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(pyTime(mark.hora));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Carga el rango con consultas por conjunto
+     */
+    RangeData load(Connection conn, LocalDate desde, LocalDate hasta, String dni) throws SQLException {
+        return load(conn, desde, hasta, dni, null);
+    }
+
+    /**
+     * Carga el rango; con jobassignmentIds solo esos cargos y las marcaciones y permisos
+     * de sus empleados (recálculo por celdas)
+     */
+    RangeData load(Connection conn, LocalDate desde, LocalDate hasta, String dni, Integer[] jobassignmentIds) throws SQLException {
+        RangeData data = new RangeData();
+        boolean byDni = dni != null && !dni.trim().isEmpty();
+        boolean byCargo = !byDni && jobassignmentIds != null;
+        String users = byDni ? "SELECT id FROM users WHERE dni = ?"
+            : byCargo ? "SELECT user_id FROM jobassignments WHERE id = ANY(?)" : null;
+        String userFilter = users != null ? " AND p.user_id IN (" + users + ")" : "";
+
+        String sql = "SELECT fecha, estado, descripcion FROM calendardays WHERE fecha BETWEEN ? AND ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(desde));
+            stmt.setDate(2, Date.valueOf(hasta));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    CalendarDay day = new CalendarDay();
+                    int estado = rs.getInt("estado");
+                    day.estado = rs.wasNull() ? null : estado;
+                    day.descripcion = rs.getString("descripcion");
+                    data.calendar.put(rs.getDate("fecha").toLocalDate(), day);
+                }
+            }
+        }
+
+        sql = "SELECT u.id AS user_id, u.dni, u.nombre, ja.id AS jobassignment_id, ja.fechaini, ja.fechafin, " +
+              "ws.horaini, ws.horafin, ws.tolerancia_min " +
+              "FROM users u " +
+              "INNER JOIN jobassignments ja ON ja.user_id = u.id " +
+              "INNER JOIN workschedules ws ON ws.id = ja.workschedule_id " +
+              "WHERE ja.estado = 1 AND ja.fechaini <= ? AND (ja.fechafin IS NULL OR ja.fechafin >= ?)" +
+              (byDni ? " AND u.dni = ?" : byCargo ? " AND ja.id = ANY(?)" : "") +
+              " ORDER BY u.dni, ja.id";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(hasta));
+            stmt.setDate(2, Date.valueOf(desde));
+            bindFilter(conn, stmt, 3, byDni ? dni.trim() : null, jobassignmentIds);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Assignment assignment = new Assignment();
+                    assignment.userId = rs.getInt("user_id");
+                    assignment.dni = rs.getString("dni");
+                    assignment.nombre = rs.getString("nombre");
+                    assignment.jobassignmentId = rs.getInt("jobassignment_id");
+                    assignment.fechaini = rs.getDate("fechaini").toLocalDate();
+                    Date fechafin = rs.getDate("fechafin");
+                    assignment.fechafin = fechafin != null ? fechafin.toLocalDate() : null;
+                    assignment.horaini = rs.getObject("horaini", LocalTime.class);
+                    assignment.horafin = rs.getObject("horafin", LocalTime.class);
+                    int tolerancia = rs.getInt("tolerancia_min");
+                    assignment.tolerancia = rs.wasNull() ? null : tolerancia;
+                    data.assignments.add(assignment);
+                }
+            }
+        }
+
+        sql = "SELECT a.user_id, a.fecha, a.hora, a.tipo_marcaje FROM attendances a " +
+              "WHERE a.fecha BETWEEN ? AND ? AND a.estado = 1 " +
+              "AND a.user_id IN (SELECT user_id FROM jobassignments WHERE estado = 1)" +
+              (users != null ? " AND a.user_id IN (" + users + ")" : "") +
+              " ORDER BY a.user_id, a.fecha, a.hora";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(10000);
+            stmt.setDate(1, Date.valueOf(desde));
+            stmt.setDate(2, Date.valueOf(hasta));
+            bindFilter(conn, stmt, 3, byDni ? dni.trim() : null, jobassignmentIds);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Mark mark = new Mark();
+                    mark.hora = rs.getObject("hora", LocalTime.class);
+                    mark.tipoMarcaje = rs.getString("tipo_marcaje");
+                    data.marks.computeIfAbsent(rs.getInt("user_id"), k -> new HashMap<>())
+                        .computeIfAbsent(rs.getDate("fecha").toLocalDate(), k -> new ArrayList<>()).add(mark);
+                }
+            }
+        }
+
+        if (permissionIndex != null) {
+            permissionIndex.refresh(conn);
+            data.index = permissionIndex;
+        } else {
+            loadPermissions(conn, data, desde, hasta, userFilter, byDni ? dni.trim() : null, jobassignmentIds);
+        }
+        logger.info(String.format("Procesamiento %s a %s: %d días de calendario, %d asignaciones, %d usuarios con marcaciones",
+            desde, hasta, data.calendar.size(), data.assignments.size(), data.marks.size()));
+        return data;
+    }
+
+    /**
+     * Permisos generales y programaciones de lactancia del rango (sin índice)
+     */
+    private static void loadPermissions(Connection conn, RangeData data, LocalDate desde, LocalDate hasta, String userFilter,
+                                        String dni, Integer[] jobassignmentIds) throws SQLException {
+        String sql = "SELECT p.id, p.user_id, p.abrevia, p.fechaini, p.fechafin, p.jobassignment_id, pt.id AS permissiontype_id, pt.codigo " +
+              "FROM permissions p " +
+              "INNER JOIN permissiontypes pt ON pt.id = p.permissiontype_id " +
+              "WHERE p.estado = 1 AND pt.codigo != 'LACTANCIA' AND p.fechaini <= ? AND p.fechafin >= ?" + userFilter +
+              " ORDER BY p.user_id, pt.id, p.id";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(hasta));
+            stmt.setDate(2, Date.valueOf(desde));
+            bindFilter(conn, stmt, 3, dni, jobassignmentIds);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Permission permission = new Permission();
+                    permission.id = rs.getInt("id");
+                    permission.abrevia = rs.getString("abrevia");
+                    permission.fechaini = rs.getDate("fechaini").toLocalDate();
+                    permission.fechafin = rs.getDate("fechafin").toLocalDate();
+                    int jobassignmentId = rs.getInt("jobassignment_id");
+                    permission.jobassignmentId = rs.wasNull() ? null : jobassignmentId;
+                    permission.typeId = rs.getInt("permissiontype_id");
+                    permission.codigo = rs.getString("codigo");
+                    data.permissions.computeIfAbsent(rs.getInt("user_id"), k -> new ArrayList<>()).add(permission);
+                }
+            }
+        }
+
+        sql = "SELECT p.user_id, p.fechaini, p.fechafin, ls.id AS schedule_id, ls.fecha_desde, ls.fecha_hasta, ls.modo, ls.minutos_diarios " +
+              "FROM permissions p " +
+              "INNER JOIN permissiontypes pt ON pt.id = p.permissiontype_id " +
+              "INNER JOIN lactation_schedules ls ON ls.permission_id = p.id " +
+              "WHERE p.estado = 1 AND pt.codigo = 'LACTANCIA' AND ls.estado = 1 " +
+              "AND p.fechaini <= ? AND p.fechafin >= ? AND ls.fecha_desde <= ? AND ls.fecha_hasta >= ?" + userFilter +
+              " ORDER BY p.user_id, ls.id";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(hasta));
+            stmt.setDate(2, Date.valueOf(desde));
+            stmt.setDate(3, Date.valueOf(hasta));
+            stmt.setDate(4, Date.valueOf(desde));
+            bindFilter(conn, stmt, 5, dni, jobassignmentIds);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Lactation lactation = new Lactation();
+                    lactation.scheduleId = rs.getInt("schedule_id");
+                    lactation.fechaini = rs.getDate("fechaini").toLocalDate();
+                    lactation.fechafin = rs.getDate("fechafin").toLocalDate();
+                    lactation.desde = rs.getDate("fecha_desde").toLocalDate();
+                    lactation.hasta = rs.getDate("fecha_hasta").toLocalDate();
+                    lactation.modo = rs.getString("modo");
+                    int minutos = rs.getInt("minutos_diarios");
+                    lactation.minutos = rs.wasNull() ? null : minutos;
+                    data.lactations.computeIfAbsent(rs.getInt("user_id"), k -> new ArrayList<>()).add(lactation);
+                }
+            }
+        }
+        for (List<Permission> list : data.permissions.values()) {
+            list.sort(PERMISSION_ORDER);
+        }
+    }
+
+    private static void bindFilter(Connection conn, PreparedStatement stmt, int index, String dni,
+                                   Integer[] jobassignmentIds) throws SQLException {
+        if (dni != null) {
+            stmt.setString(index, dni);
+        } else if (jobassignmentIds != null) {
+            stmt.setArray(index, conn.createArrayOf("integer", jobassignmentIds));
+        }
+    }
+
+    /**
+     * Uso: DailyAttendanceEngine [--fecha-inicio AAAA-MM-DD] [--fecha-fin AAAA-MM-DD] [--dni DNI] [--hilos N]
+     */
+    public static void main(String[] args) throws Exception {
+        String inicio = null;
+        String fin = null;
+        String dni = null;
+        DailyAttendanceEngine engine = new DailyAttendanceEngine();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--fecha-inicio".equals(args[i])) {
+                inicio = args[i + 1];
+            } else if ("--fecha-fin".equals(args[i])) {
+                fin = args[i + 1];
+            } else if ("--dni".equals(args[i])) {
+                dni = args[i + 1];
+            } else if ("--hilos".equals(args[i])) {
+                engine.setParallelism(Integer.parseInt(args[i + 1]));
+            }
+        }
+        engine.run(inicio, fin, dni, System.out::println);
+    }
+
+    /**
+     * Corrida completa con los mensajes de encabezado y cierre del script; los errores
+     * se informan en el log en lugar de propagarse
+     */
+    public RunResult run(String fechaInicio, String fechaFin, String dni, Consumer<String> log) {
+        String separator = "=".repeat(60);
+        LocalDate[] range;
+        if ((fechaInicio == null || fechaInicio.trim().isEmpty()) && (fechaFin == null || fechaFin.trim().isEmpty())) {
+            log.accept("📌 Sin parámetros: procesando fecha de ayer");
+        }
+        try {
+            range = resolveRange(fechaInicio, fechaFin);
+        } catch (java.time.format.DateTimeParseException e) {
+            log.accept("❌ Fecha inválida: " + e.getParsedString());
+            RunResult result = new RunResult();
+            result.failure = "Fecha inválida: " + e.getParsedString();
+            return result;
+        }
+        log.accept("");
+        log.accept(separator);
+        log.accept("  PROCESAMIENTO DE ASISTENCIA");
+        log.accept(separator);
+        log.accept("Período: " + range[0] + " al " + range[1]);
+        if (dni != null && !dni.trim().isEmpty()) {
+            log.accept("DNI: " + dni.trim());
+        }
+        log.accept(separator);
+        try {
+            RunResult result = process(range[0], range[1], dni, log);
+            log.accept("");
+            log.accept(separator);
+            log.accept("✅ Proceso completado");
+            log.accept("   Total registros procesados: " + result.processed);
+            log.accept(String.format("   Nuevos: %d | Modificados: %d | Sin cambios: %d",
+                result.inserted, result.changed, result.unchanged));
+            log.accept(separator);
+            log.accept("");
+            return result;
+        } catch (CancellationException e) {
+            log.accept("");
+            log.accept("⛔ Proceso cancelado; las fechas ya confirmadas quedan escritas");
+            RunResult result = new RunResult();
+            result.cancelled = true;
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Error en el procesamiento de asistencia", e);
+            log.accept("");
+            log.accept("❌ Error durante el procesamiento: " + e.getMessage());
+            RunResult result = new RunResult();
+            result.errors = 1;
+            result.failure = e.getMessage() != null ? e.getMessage() : e.toString();
+            return result;
+        }
+    }
+
+    /**
+     * Rango como en el script: sin fechas, ayer; sin fin, el mismo día de inicio
+     */
+    public static LocalDate[] resolveRange(String fechaInicio, String fechaFin) {
+        boolean hasInicio = fechaInicio != null && !fechaInicio.trim().isEmpty();
+        boolean hasFin = fechaFin != null && !fechaFin.trim().isEmpty();
+        LocalDate ayer = LocalDate.now().minusDays(1);
+        if (!hasInicio && !hasFin) {
+            return new LocalDate[] { ayer, ayer };
+        }
+        LocalDate inicio = hasInicio ? LocalDate.parse(fechaInicio.trim()) : ayer;
+        LocalDate fin = hasFin ? LocalDate.parse(fechaFin.trim()) : inicio;
+        return new LocalDate[] { inicio, fin };
+    }
+}
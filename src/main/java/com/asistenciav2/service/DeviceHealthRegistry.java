@@ -0,0 +1,211 @@
+package com.asistenciav2.service;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Salud y circuit breaker por reloj biométrico.
+ *
+ * Lleva fallas consecutivas, último éxito, último error y un histograma móvil de
+ * latencias de conexión. Tras varias fallas seguidas el breaker se abre y el reloj
+ * se omite sin intentar conectar; al vencer la espera pasa a medio abierto y se
+ * permite un solo intento de prueba. Cada apertura duplica la espera hasta un máximo.
+ */
+public class DeviceHealthRegistry {
+    private static final Logger logger = Logger.getLogger(DeviceHealthRegistry.class.getName());
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Límites superiores (ms) de los buckets del histograma; el último es "más de"
+    private static final long[] LATENCY_BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    private static final int LATENCY_WINDOW = 64; // Últimas conexiones consideradas
+
+    public enum BreakerState { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long baseOpenMillis;
+    private final long maxOpenMillis;
+    private final Map<Integer, DeviceHealth> devices = new ConcurrentHashMap<>();
+
+    public DeviceHealthRegistry() {
+        this(3, 30000, 600000);
+    }
+
+    public DeviceHealthRegistry(int failureThreshold, long baseOpenMillis, long maxOpenMillis) {
+        this.failureThreshold = failureThreshold;
+        this.baseOpenMillis = baseOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+    }
+
+    /**
+     * Estado de un reloj; se sincroniza sobre la propia instancia
+     */
+    private static final class DeviceHealth {
+        final Integer deviceId;
+        String ip;
+        BreakerState state = BreakerState.CLOSED;
+        int consecutiveFailures = 0;
+        int openings = 0;            // Aperturas seguidas sin éxito intermedio (para la espera exponencial)
+        long openUntil = 0;
+        boolean probeInFlight = false;
+        long totalSuccesses = 0;
+        long totalFailures = 0;
+        long skipped = 0;
+        LocalDateTime lastSuccess;
+        LocalDateTime lastFailure;
+        String lastError;
+        final long[] latencies = new long[LATENCY_WINDOW];
+        int latencyCount = 0;
+        int latencyNext = 0;
+
+        DeviceHealth(Integer deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    private DeviceHealth health(Integer deviceId, String ip) {
+        DeviceHealth health = devices.computeIfAbsent(deviceId, DeviceHealth::new);
+        if (ip != null) {
+            health.ip = ip;
+        }
+        return health;
+    }
+
+    /**
+     * Indica si se debe intentar sincronizar el reloj ahora. Con el breaker abierto
+     * devuelve false hasta que vence la espera; luego deja pasar un único intento de prueba.
+     */
+    public boolean allowRequest(Integer deviceId, String ip) {
+        DeviceHealth health = health(deviceId, ip);
+        synchronized (health) {
+            if (health.state == BreakerState.CLOSED) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (health.state == BreakerState.OPEN && now >= health.openUntil) {
+                health.state = BreakerState.HALF_OPEN;
+                health.probeInFlight = false;
+                logger.info("Dispositivo " + deviceId + ": breaker medio abierto, se permite un intento de prueba");
+            }
+            if (health.state == BreakerState.HALF_OPEN && !health.probeInFlight) {
+                health.probeInFlight = true;
+                return true;
+            }
+            health.skipped++;
+            return false;
+        }
+    }
+
+    /**
+     * true si el próximo intento es de prueba (medio abierto): conviene un solo intento de conexión
+     */
+    public boolean isProbing(Integer deviceId) {
+        DeviceHealth health = devices.get(deviceId);
+        if (health == null) {
+            return false;
+        }
+        synchronized (health) {
+            return health.state == BreakerState.HALF_OPEN;
+        }
+    }
+
+    public void recordSuccess(Integer deviceId, long connectMillis) {
+        DeviceHealth health = health(deviceId, null);
+        synchronized (health) {
+            if (health.state != BreakerState.CLOSED) {
+                logger.info("Dispositivo " + deviceId + ": breaker cerrado tras conexión exitosa");
+            }
+            health.state = BreakerState.CLOSED;
+            health.consecutiveFailures = 0;
+            health.openings = 0;
+            health.probeInFlight = false;
+            health.totalSuccesses++;
+            health.lastSuccess = LocalDateTime.now();
+            if (connectMillis >= 0) {
+                health.latencies[health.latencyNext] = connectMillis;
+                health.latencyNext = (health.latencyNext + 1) % LATENCY_WINDOW;
+                health.latencyCount = Math.min(health.latencyCount + 1, LATENCY_WINDOW);
+            }
+        }
+    }
+
+    public void recordFailure(Integer deviceId, String error) {
+        DeviceHealth health = health(deviceId, null);
+        synchronized (health) {
+            health.consecutiveFailures++;
+            health.totalFailures++;
+            health.lastFailure = LocalDateTime.now();
+            health.lastError = error;
+            health.probeInFlight = false;
+
+            if (health.state == BreakerState.HALF_OPEN || health.consecutiveFailures >= failureThreshold) {
+                health.openings++;
+                long wait = Math.min(maxOpenMillis, baseOpenMillis << Math.min(health.openings - 1, 20));
+                health.state = BreakerState.OPEN;
+                health.openUntil = System.currentTimeMillis() + wait;
+                logger.warning("Dispositivo " + deviceId + ": breaker abierto por " + (wait / 1000) + " s tras "
+                    + health.consecutiveFailures + " fallas seguidas (" + error + ")");
+            }
+        }
+    }
+
+    /**
+     * Estado de todos los relojes para mostrar en ?action=status
+     */
+    public List<Map<String, Object>> snapshot() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (DeviceHealth health : devices.values()) {
+            result.add(snapshot(health));
+        }
+        result.sort((a, b) -> ((Integer) a.get("deviceId")).compareTo((Integer) b.get("deviceId")));
+        return result;
+    }
+
+    private Map<String, Object> snapshot(DeviceHealth health) {
+        synchronized (health) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("deviceId", health.deviceId);
+            map.put("ip", health.ip);
+            map.put("breaker", health.state.name());
+            map.put("consecutiveFailures", health.consecutiveFailures);
+            map.put("totalSuccesses", health.totalSuccesses);
+            map.put("totalFailures", health.totalFailures);
+            map.put("skipped", health.skipped);
+            map.put("lastSuccess", health.lastSuccess != null ? health.lastSuccess.format(DATE_TIME_FORMATTER) : null);
+            map.put("lastFailure", health.lastFailure != null ? health.lastFailure.format(DATE_TIME_FORMATTER) : null);
+            map.put("lastError", health.lastError);
+            if (health.state == BreakerState.OPEN) {
+                map.put("retryInSeconds", Math.max(0, (health.openUntil - System.currentTimeMillis()) / 1000));
+            }
+
+            Map<String, Integer> histogram = new LinkedHashMap<>();
+            long[] counts = new long[LATENCY_BUCKETS.length + 1];
+            long sum = 0;
+            long max = 0;
+            for (int i = 0; i < health.latencyCount; i++) {
+                long latency = health.latencies[i];
+                sum += latency;
+                max = Math.max(max, latency);
+                int bucket = 0;
+                while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+                    bucket++;
+                }
+                counts[bucket]++;
+            }
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                histogram.put("<=" + LATENCY_BUCKETS[i] + "ms", (int) counts[i]);
+            }
+            histogram.put(">" + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms", (int) counts[LATENCY_BUCKETS.length]);
+            map.put("connectLatencyHistogram", histogram);
+            map.put("connectLatencyAvgMs", health.latencyCount > 0 ? sum / health.latencyCount : null);
+            map.put("connectLatencyMaxMs", health.latencyCount > 0 ? max : null);
+            return map;
+        }
+    }
+}
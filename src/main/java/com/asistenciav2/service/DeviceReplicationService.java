@@ -0,0 +1,413 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.biometric.ZKTecoProtocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replica usuarios y huellas entre relojes: toma el delta (de un reloj origen o de la
+ * BD) y lo escribe en N relojes a la vez, un hilo virtual por reloj.
+ *
+ * En cada reloj todo ocurre en una sola ventana con el dispositivo deshabilitado:
+ * lectura de su tabla de usuarios (para reutilizar el uid de cada DNI y conocer el
+ * tamaño de registro), escritura encadenada (USER_WRQ o SAVE_USERTEMPS) y REFRESHDATA.
+ * El avance de cada reloj se publica en {@link #getStatus()} mientras corre.
+ */
+public class DeviceReplicationService {
+    private static final Logger logger = Logger.getLogger(DeviceReplicationService.class.getName());
+    private static final long DEFAULT_DEADLINE_MILLIS = 10 * 60 * 1000L;
+
+    private final DeviceHealthRegistry healthRegistry;
+    private final Map<Integer, DeviceProgress> progress = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile String operation;
+    private volatile long startedAt = 0;
+    private volatile long finishedAt = 0;
+    private long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+
+    /**
+     * Usuarios y huellas a replicar; las huellas se agrupan por userId (DNI) porque el
+     * uid cambia de un reloj a otro
+     */
+    public static class Delta {
+        public final List<ZKTecoProtocol.DeviceUser> users = new ArrayList<>();
+        public final Map<String, List<ZKTecoProtocol.FingerTemplate>> templatesByUserId = new HashMap<>();
+        public int userPacketSize = 0; // Tamaño de registro del origen (0 = desconocido)
+
+        public int templateCount() {
+            int count = 0;
+            for (List<ZKTecoProtocol.FingerTemplate> templates : templatesByUserId.values()) {
+                count += templates.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Avance de un reloj
+     */
+    public static class DeviceProgress {
+        public final int deviceId;
+        public final String ip;
+        public volatile String phase = "pendiente";
+        public volatile int usersTotal;
+        public volatile int usersWritten;
+        public volatile int templatesTotal;
+        public volatile int templatesWritten;
+        public volatile int commandsAcked;   // Comandos/bloques confirmados de la transferencia en curso
+        public volatile int commandsTotal;
+        public volatile String error;
+        public volatile long elapsedMillis;
+        volatile boolean finished = false;
+
+        DeviceProgress(int deviceId, String ip) {
+            this.deviceId = deviceId;
+            this.ip = ip;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("deviceId", deviceId);
+            map.put("ip", ip);
+            map.put("phase", phase);
+            map.put("usersTotal", usersTotal);
+            map.put("usersWritten", usersWritten);
+            map.put("templatesTotal", templatesTotal);
+            map.put("templatesWritten", templatesWritten);
+            map.put("commandsAcked", commandsAcked);
+            map.put("commandsTotal", commandsTotal);
+            map.put("error", error);
+            map.put("elapsedMillis", elapsedMillis);
+            return map;
+        }
+    }
+
+    @FunctionalInterface
+    private interface DeviceWork {
+        void run(ZKTecoProtocol protocol, DeviceProgress progress) throws IOException;
+    }
+
+    public DeviceReplicationService(DeviceHealthRegistry healthRegistry) {
+        this.healthRegistry = healthRegistry;
+    }
+
+    /**
+     * Lee del reloj origen los usuarios indicados (null = todos) y, si se pide, sus huellas
+     */
+    public Delta readDelta(BiometricSyncService.BiometricDevice source, Collection<String> userIds,
+                           boolean withTemplates) throws IOException {
+        Set<String> wanted = userIds != null ? normalizeAll(userIds) : null;
+        ZKTecoProtocol protocol = new ZKTecoProtocol(source.ip, source.port, source.password);
+        try {
+            if (!protocol.connect()) {
+                throw new IOException("No se pudo conectar al reloj origen " + source.id);
+            }
+            return protocol.whileDisabled(() -> {
+                Delta delta = new Delta();
+                Map<Integer, String> userIdByUid = new HashMap<>();
+                List<ZKTecoProtocol.DeviceUser> sourceUsers = protocol.readUsers();
+                for (ZKTecoProtocol.DeviceUser user : sourceUsers) {
+                    if (wanted == null || wanted.contains(normalize(user.userId))) {
+                        delta.users.add(user);
+                        userIdByUid.put(user.uid, user.userId);
+                    }
+                }
+                delta.userPacketSize = sourceUsers.isEmpty() ? 0 : protocol.getUserPacketSize();
+                if (withTemplates && !delta.users.isEmpty()) {
+                    for (ZKTecoProtocol.FingerTemplate template : protocol.readTemplates()) {
+                        String userId = userIdByUid.get(template.uid);
+                        if (userId != null) {
+                            delta.templatesByUserId.computeIfAbsent(userId, k -> new ArrayList<>()).add(template);
+                        }
+                    }
+                }
+                logger.info(String.format("Delta del reloj %d: %d usuarios, %d huellas",
+                    source.id, delta.users.size(), delta.templateCount()));
+                return delta;
+            });
+        } finally {
+            protocol.disconnect();
+        }
+    }
+
+    /**
+     * Arma el delta desde la BD (usuarios activos del directorio, sin huellas), para
+     * dar de alta en los relojes a un empleado nuevo
+     */
+    public static Delta deltaFromDirectory(UserDirectory directory, Collection<String> dnis) {
+        Delta delta = new Delta();
+        for (String dni : dnis) {
+            UserDirectory.Entry entry = directory.lookup(dni.trim());
+            if (entry == null) {
+                logger.warning("DNI " + dni + " no está en el directorio de usuarios activos");
+                continue;
+            }
+            ZKTecoProtocol.DeviceUser user = new ZKTecoProtocol.DeviceUser();
+            user.userId = normalize(entry.dni);
+            user.name = entry.nombre;
+            delta.users.add(user);
+        }
+        return delta;
+    }
+
+    /**
+     * Escribe el delta en todos los relojes destino en paralelo
+     *
+     * @return estado final (igual que {@link #getStatus()})
+     */
+    public Map<String, Object> replicate(Delta delta, List<BiometricSyncService.BiometricDevice> targets) {
+        return runOnDevices("replicar", targets, (protocol, p) -> {
+            p.phase = "leyendo";
+            Map<String, Integer> uidByUserId = new HashMap<>();
+            int nextUid = 1;
+            List<ZKTecoProtocol.DeviceUser> existingUsers = protocol.readUsers();
+            for (ZKTecoProtocol.DeviceUser existing : existingUsers) {
+                uidByUserId.put(normalize(existing.userId), existing.uid);
+                nextUid = Math.max(nextUid, existing.uid + 1);
+            }
+            // Con la tabla vacía no se sabe el tamaño de registro: se prueba el del origen
+            boolean sizeKnown = !existingUsers.isEmpty();
+            if (!sizeKnown && delta.userPacketSize > 0) {
+                protocol.setUserPacketSize(delta.userPacketSize);
+            }
+
+            // El uid es propio de cada reloj: se conserva el del DNI si ya existe
+            List<ZKTecoProtocol.DeviceUser> users = new ArrayList<>(delta.users.size());
+            List<ZKTecoProtocol.FingerTemplate> templates = new ArrayList<>();
+            for (ZKTecoProtocol.DeviceUser source : delta.users) {
+                ZKTecoProtocol.DeviceUser user = source.copy();
+                Integer uid = uidByUserId.get(normalize(user.userId));
+                user.uid = uid != null ? uid : nextUid++;
+                users.add(user);
+                for (ZKTecoProtocol.FingerTemplate template : delta.templatesByUserId.getOrDefault(source.userId, List.of())) {
+                    ZKTecoProtocol.FingerTemplate copy = template.copy();
+                    copy.uid = user.uid;
+                    templates.add(copy);
+                }
+            }
+            p.usersTotal = users.size();
+            p.templatesTotal = templates.size();
+
+            try {
+                write(protocol, users, templates, p);
+            } catch (IOException e) {
+                if (sizeKnown || users.isEmpty()) {
+                    throw e;
+                }
+                // Reloj vacío que rechazó el formato: se reintenta una vez con el otro tamaño
+                protocol.setUserPacketSize(protocol.getUserPacketSize() == 72 ? 28 : 72);
+                logger.info("Reloj " + p.deviceId + " rechazó el registro de usuario, se reintenta con "
+                    + protocol.getUserPacketSize() + " bytes: " + e.getMessage());
+                write(protocol, users, templates, p);
+            }
+            p.phase = "aplicando";
+            if (!protocol.refreshData()) {
+                logger.warning("El reloj " + p.deviceId + " no confirmó REFRESHDATA");
+            }
+        });
+    }
+
+    /**
+     * Escribe usuarios (USER_WRQ encadenados) o usuarios con huellas (SAVE_USERTEMPS)
+     */
+    private static void write(ZKTecoProtocol protocol, List<ZKTecoProtocol.DeviceUser> users,
+                              List<ZKTecoProtocol.FingerTemplate> templates, DeviceProgress p) throws IOException {
+        ZKTecoProtocol.TransferProgress onAck = (done, total) -> {
+            p.commandsAcked = done;
+            p.commandsTotal = total;
+        };
+        if (templates.isEmpty()) {
+            p.phase = "escribiendo usuarios";
+            p.usersWritten = protocol.writeUsers(users, onAck);
+            if (p.usersWritten == 0 && !users.isEmpty()) {
+                throw new IOException("El reloj rechazó todos los usuarios");
+            }
+        } else {
+            p.phase = "escribiendo usuarios y huellas";
+            protocol.saveUserTemplates(users, templates, onAck);
+            p.usersWritten = users.size();
+            p.templatesWritten = templates.size();
+        }
+    }
+
+    /**
+     * Borra los usuarios (por DNI) de todos los relojes destino en paralelo
+     */
+    public Map<String, Object> remove(Collection<String> userIds, List<BiometricSyncService.BiometricDevice> targets) {
+        Set<String> wanted = normalizeAll(userIds);
+        return runOnDevices("borrar", targets, (protocol, p) -> {
+            p.phase = "leyendo";
+            List<Integer> uids = new ArrayList<>();
+            for (ZKTecoProtocol.DeviceUser existing : protocol.readUsers()) {
+                if (wanted.contains(normalize(existing.userId))) {
+                    uids.add(existing.uid);
+                }
+            }
+            p.usersTotal = uids.size();
+            p.phase = "borrando";
+            p.usersWritten = protocol.deleteUsers(uids, (done, total) -> {
+                p.commandsAcked = done;
+                p.commandsTotal = total;
+            });
+            p.phase = "aplicando";
+            protocol.refreshData();
+        });
+    }
+
+    /**
+     * Estado de la última operación y avance por reloj
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("running", running.get());
+        status.put("operation", operation);
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        List<DeviceProgress> devices = new ArrayList<>(progress.values());
+        devices.sort(Comparator.comparingInt(d -> d.deviceId));
+        List<Map<String, Object>> list = new ArrayList<>();
+        int done = 0;
+        int failed = 0;
+        for (DeviceProgress device : devices) {
+            list.add(device.toMap());
+            if ("listo".equals(device.phase)) {
+                done++;
+            } else if (device.finished) {
+                failed++;
+            }
+        }
+        status.put("devices", list);
+        status.put("devicesDone", done);
+        status.put("devicesFailed", failed);
+        return status;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Tiempo límite de toda la operación; los relojes que no terminaron se interrumpen
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Ejecuta el trabajo en cada reloj en su hilo virtual y espera a todos (hasta el tiempo límite)
+     */
+    private Map<String, Object> runOnDevices(String name, List<BiometricSyncService.BiometricDevice> targets, DeviceWork work) {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Ya hay una replicación de usuarios en curso");
+        }
+        operation = name;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        progress.clear();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (BiometricSyncService.BiometricDevice device : targets) {
+            DeviceProgress p = new DeviceProgress(device.id, device.ip);
+            progress.put(device.id, p);
+            tasks.add(() -> {
+                runOnDevice(device, p, work);
+                return null;
+            });
+        }
+        logger.info("Operación '" + name + "' de usuarios en " + targets.size() + " relojes");
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            executor.invokeAll(tasks, deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            long now = System.currentTimeMillis();
+            for (DeviceProgress p : progress.values()) {
+                if (!p.finished) {
+                    p.phase = "error";
+                    p.error = "Tiempo límite vencido";
+                    p.elapsedMillis = now - startedAt;
+                    p.finished = true;
+                }
+            }
+            finishedAt = now;
+            running.set(false);
+        }
+        Map<String, Object> status = getStatus();
+        logger.info(String.format("Operación '%s' terminada en %d ms: %s relojes listos, %s con error",
+            name, finishedAt - startedAt, status.get("devicesDone"), status.get("devicesFailed")));
+        return status;
+    }
+
+    private void runOnDevice(BiometricSyncService.BiometricDevice device, DeviceProgress p, DeviceWork work) {
+        long started = System.currentTimeMillis();
+        if (!healthRegistry.allowRequest(device.id, device.ip)) {
+            p.phase = "omitido";
+            p.error = "Breaker abierto";
+            p.finished = true;
+            return;
+        }
+        ZKTecoProtocol protocol = new ZKTecoProtocol(device.ip, device.port, device.password);
+        try {
+            p.phase = "conectando";
+            if (!protocol.connect()) {
+                healthRegistry.recordFailure(device.id, "No se pudo conectar");
+                p.phase = "error";
+                p.error = "No se pudo conectar";
+                return;
+            }
+            healthRegistry.recordSuccess(device.id, System.currentTimeMillis() - started);
+            protocol.whileDisabled(() -> {
+                work.run(protocol, p);
+                return null;
+            });
+            p.phase = "listo";
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Reloj " + device.id + " (" + device.ip + "): " + e.getMessage(), e);
+            healthRegistry.recordFailure(device.id, e.getMessage());
+            p.phase = "error";
+            p.error = e.getMessage();
+        } finally {
+            protocol.disconnect();
+            p.elapsedMillis = System.currentTimeMillis() - started;
+            p.finished = true;
+        }
+    }
+
+    /**
+     * Forma común del userId: el reloj guarda el DNI sin ceros a la izquierda
+     */
+    static String normalize(String userId) {
+        if (userId == null) {
+            return "";
+        }
+        String trimmed = userId.trim();
+        int numeric = UserDirectory.parseDeviceUserId(trimmed);
+        return numeric >= 0 ? String.valueOf(numeric) : trimmed;
+    }
+
+    private static Set<String> normalizeAll(Collection<String> userIds) {
+        Set<String> normalized = new HashSet<>();
+        for (String userId : userIds) {
+            normalized.add(normalize(userId));
+        }
+        return normalized;
+    }
+}
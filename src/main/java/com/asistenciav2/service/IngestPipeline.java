@@ -0,0 +1,632 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.biometric.AttendanceBatch;
+import com.asistenciav2.biometric.ZKTecoProtocol;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ingesta de marcaciones por etapas: descarga → decodificación → enriquecimiento → persistencia.
+ *
+ * Cada reloj se descarga en su propio hilo virtual; las demás etapas tienen un hilo cada
+ * una y se comunican por colas acotadas. Si una etapa se atrasa (por ejemplo la BD), su
+ * cola se llena, la anterior se bloquea al encolar y al final deja de leerse el socket:
+ * la memoria queda acotada sin importar el tamaño de los logs. Cada etapa publica
+ * profundidad de cola, elementos procesados, marcaciones por segundo y tiempo bloqueado.
+ *
+ * Las marcaciones se enriquecen como en sync_checker.py ({@link PunchEnricher}) y se
+ * guardan en attendances por lotes ({@link PunchBatchWriter#writeAttendances}), pasando
+ * por el diario local según PUNCH_JOURNAL_MODE ({@link PunchJournal}).
+ */
+public class IngestPipeline {
+    private static final Logger logger = Logger.getLogger(IngestPipeline.class.getName());
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm");
+    private static final long END_OFFER_TIMEOUT_MILLIS = 5000;
+    private static final long STAGE_JOIN_MILLIS = 30000;
+
+    private final BiometricSyncService service;
+    private final PunchEnricher enricher;
+    private final PunchDebouncer debouncer;    // Solo lo usa decode; conserva las ráfagas entre corridas
+    private BatchSink sink;
+    private int queueCapacity = 64;           // Lotes por cola
+    private int persistBatchSize = 5000;      // Marcaciones por transacción
+    private long persistFlushMillis = 200;    // Espera máxima antes de escribir un lote incompleto
+
+    private final List<StageMetrics> stages = new ArrayList<>();
+    private final StageMetrics fetchMetrics = new StageMetrics("fetch");
+    private final StageMetrics decodeMetrics = new StageMetrics("decode");
+    private final StageMetrics enrichMetrics = new StageMetrics("enrich");
+    private final StageMetrics persistMetrics = new StageMetrics("persist");
+    private volatile boolean running = false;
+    private volatile long runStartedAt = 0;
+    private volatile long runFinishedAt = 0;
+    private long runs = 0;
+
+    /**
+     * Destino de los lotes enriquecidos
+     */
+    interface BatchSink {
+        /** @return resultado de la BD, o null si el lote quedó en el diario */
+        PunchBatchWriter.Result write(List<PunchBatchWriter.Punch> punches) throws SQLException, IOException;
+
+        /** Lleva raw_count de canónicas ya guardadas al total de su ráfaga (idempotente) */
+        default void addRawCounts(Map<PunchBatchWriter.Punch, Integer> rawCountByCanonical) throws SQLException {
+        }
+    }
+
+    /**
+     * Métricas de una etapa; la cola es la de entrada de la etapa (fetch no tiene)
+     */
+    public static class StageMetrics {
+        public final String name;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong blockedNanos = new AtomicLong(); // Esperando lugar en la cola siguiente
+        volatile BlockingQueue<?> input;
+
+        StageMetrics(String name) {
+            this.name = name;
+        }
+
+        void reset(BlockingQueue<?> input) {
+            items.set(0);
+            batches.set(0);
+            busyNanos.set(0);
+            blockedNanos.set(0);
+            this.input = input;
+        }
+
+        Map<String, Object> toMap(long elapsedMillis) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("stage", name);
+            map.put("items", items.get());
+            map.put("batches", batches.get());
+            BlockingQueue<?> queue = input;
+            if (queue != null) {
+                map.put("queueDepth", queue.size());
+                map.put("queueCapacity", queue.size() + queue.remainingCapacity());
+            }
+            map.put("itemsPerSecond", elapsedMillis > 0 ? items.get() * 1000 / elapsedMillis : 0);
+            map.put("busyMillis", busyNanos.get() / 1000000);
+            map.put("blockedMillis", blockedNanos.get() / 1000000);
+            return map;
+        }
+    }
+
+    /**
+     * Estado de un reloj durante la corrida. Lo escribe cada etapa antes de pasar su
+     * marca de fin a la siguiente, así persist lo ve completo al cerrar el reloj.
+     */
+    private static final class DeviceRun {
+        final BiometricSyncService.BiometricDevice device;
+        final BiometricSyncService.SyncStats stats = new BiometricSyncService.SyncStats();
+        ZKTecoProtocol.DeviceSizes sizes;
+        BiometricSyncService.SyncCursor cursor;
+        long lastSyncEpoch = Long.MIN_VALUE;
+        long maxEpoch = Long.MIN_VALUE;
+        ZoneOffset zone;
+        int filtered = 0;             // Anteriores al último sincronizado (decode)
+        int collapsed = 0;            // Colapsadas en una ráfaga (decode)
+        boolean fetchFailed = false;  // Se suma a errors al cerrar el reloj (persist)
+        volatile boolean timedOut = false;
+        final long startedAt = System.currentTimeMillis();
+        Thread fetcher;
+
+        DeviceRun(BiometricSyncService.BiometricDevice device) {
+            this.device = device;
+        }
+    }
+
+    /**
+     * Elemento de las colas: un lote crudo (fetch → decode), un lote de marcaciones
+     * (decode → enrich → persist) o la marca de fin de un reloj
+     */
+    private static final class Envelope {
+        final DeviceRun run;
+        final AttendanceBatch raw;
+        final List<PunchBatchWriter.Punch> punches;
+        final boolean last;
+        Map<PunchBatchWriter.Punch, Integer> extraRawCounts; // raw_count total de canónicas ya enviadas
+
+        Envelope(DeviceRun run, AttendanceBatch raw, List<PunchBatchWriter.Punch> punches, boolean last) {
+            this.run = run;
+            this.raw = raw;
+            this.punches = punches;
+            this.last = last;
+        }
+    }
+
+    private static final Envelope POISON = new Envelope(null, null, null, true);
+
+    public IngestPipeline(BiometricSyncService service) {
+        this(service, service.getPunchEnricher());
+    }
+
+    IngestPipeline(BiometricSyncService service, PunchEnricher enricher) {
+        this.service = service;
+        this.enricher = enricher;
+        this.sink = new BatchSink() {
+            @Override
+            public PunchBatchWriter.Result write(List<PunchBatchWriter.Punch> punches) throws SQLException, IOException {
+                return service.writeAttendancePunches(punches);
+            }
+
+            @Override
+            public void addRawCounts(Map<PunchBatchWriter.Punch, Integer> rawCountByCanonical) throws SQLException {
+                service.addAttendanceRawCounts(rawCountByCanonical);
+            }
+        };
+        this.debouncer = new PunchDebouncer(service.getDebounceSeconds());
+        stages.add(fetchMetrics);
+        stages.add(decodeMetrics);
+        stages.add(enrichMetrics);
+        stages.add(persistMetrics);
+    }
+
+    void setSink(BatchSink sink) {
+        this.sink = sink;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    public void setPersistBatchSize(int persistBatchSize) {
+        this.persistBatchSize = Math.max(1, persistBatchSize);
+    }
+
+    public void setPersistFlushMillis(long persistFlushMillis) {
+        this.persistFlushMillis = persistFlushMillis;
+    }
+
+    /**
+     * Sincroniza los relojes a través de las cuatro etapas. Devuelve las estadísticas
+     * en el mismo orden que devices. Una sola corrida a la vez por instancia.
+     */
+    public synchronized List<BiometricSyncService.SyncStats> run(List<BiometricSyncService.BiometricDevice> devices,
+                                                                 long defaultDeadlineMillis) {
+        BlockingQueue<Envelope> decodeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Envelope> enrichQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Envelope> persistQueue = new ArrayBlockingQueue<>(queueCapacity);
+        fetchMetrics.reset(null);
+        decodeMetrics.reset(decodeQueue);
+        enrichMetrics.reset(enrichQueue);
+        persistMetrics.reset(persistQueue);
+        runStartedAt = System.currentTimeMillis();
+        runFinishedAt = 0;
+        running = true;
+        runs++;
+
+        try {
+            enricher.load();
+        } catch (SQLException e) {
+            // Sin datos de referencia las marcaciones se guardan igual, sin usuario ni tipo
+            logger.log(Level.WARNING, "No se pudieron cargar los datos de referencia para la ingesta: " + e.getMessage(), e);
+        }
+
+        Map<Integer, DeviceRun> runsByClock = new HashMap<>();
+        List<DeviceRun> deviceRuns = new ArrayList<>();
+        for (BiometricSyncService.BiometricDevice device : devices) {
+            DeviceRun run = new DeviceRun(device);
+            deviceRuns.add(run);
+            runsByClock.put(device.id, run);
+        }
+
+        Thread decoder = startStage("ingest-decode", () -> decodeStage(decodeQueue, enrichQueue));
+        Thread enricherThread = startStage("ingest-enrich", () -> enrichStage(enrichQueue, persistQueue));
+        Thread persister = startStage("ingest-persist", () -> persistStage(persistQueue, runsByClock));
+
+        for (DeviceRun run : deviceRuns) {
+            run.fetcher = Thread.ofVirtual().name("ingest-fetch-" + run.device.id)
+                .start(() -> fetchStage(run, decodeQueue));
+        }
+
+        try {
+            for (DeviceRun run : deviceRuns) {
+                long deadline = run.startedAt + (run.device.deadlineMillis > 0 ? run.device.deadlineMillis : defaultDeadlineMillis);
+                long wait = deadline - System.currentTimeMillis();
+                if (wait > 0) {
+                    run.fetcher.join(wait);
+                }
+                if (run.fetcher.isAlive()) {
+                    // Interrumpir cierra el socket; el hilo manda igual su marca de fin
+                    run.timedOut = true;
+                    run.fetcher.interrupt();
+                    logger.warning("Dispositivo " + run.device.id + " (" + run.device.ip
+                        + ") cancelado por tiempo límite tras " + (System.currentTimeMillis() - run.startedAt) + " ms");
+                }
+            }
+            for (DeviceRun run : deviceRuns) {
+                run.fetcher.join(END_OFFER_TIMEOUT_MILLIS);
+            }
+            decodeQueue.put(POISON);
+            decoder.join(STAGE_JOIN_MILLIS);
+            enricherThread.join(STAGE_JOIN_MILLIS);
+            persister.join(STAGE_JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (DeviceRun run : deviceRuns) {
+                run.timedOut = true;
+                run.fetcher.interrupt();
+            }
+            decoder.interrupt();
+            enricherThread.interrupt();
+            persister.interrupt();
+        } finally {
+            running = false;
+            runFinishedAt = System.currentTimeMillis();
+        }
+
+        List<BiometricSyncService.SyncStats> result = new ArrayList<>();
+        for (DeviceRun run : deviceRuns) {
+            if (run.timedOut) {
+                run.stats.timedOut = true;
+                run.stats.errors = Math.max(run.stats.errors, 1);
+            }
+            result.add(run.stats);
+        }
+        logger.info(String.format("Ingesta por etapas: %d relojes, %d descargadas, %d guardadas en %d ms",
+            devices.size(), fetchMetrics.items.get(), persistMetrics.items.get(), runFinishedAt - runStartedAt));
+        return result;
+    }
+
+    /**
+     * Métricas por etapa de la corrida actual o de la última
+     */
+    public Map<String, Object> getStatus() {
+        long end = running ? System.currentTimeMillis() : runFinishedAt;
+        long elapsed = runStartedAt > 0 ? Math.max(0, end - runStartedAt) : 0;
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running);
+        status.put("runs", runs);
+        status.put("elapsedMillis", elapsed);
+        List<Map<String, Object>> stageList = new ArrayList<>();
+        for (StageMetrics stage : stages) {
+            stageList.add(stage.toMap(elapsed));
+        }
+        status.put("stages", stageList);
+        return status;
+    }
+
+    // ----------------------------------------------------------------- etapas
+
+    private void fetchStage(DeviceRun run, BlockingQueue<Envelope> out) {
+        BiometricSyncService.BiometricDevice device = run.device;
+        DeviceHealthRegistry health = service.getHealthRegistry();
+        ZKTecoProtocol protocol = null;
+        try {
+            if (!health.allowRequest(device.id, device.ip)) {
+                logger.info("Dispositivo " + device.id + " omitido: breaker abierto");
+                run.stats.breakerOpen = true;
+                run.fetchFailed = true;
+                return;
+            }
+
+            protocol = new ZKTecoProtocol(device.ip, device.port, device.password);
+            long connectStart = System.currentTimeMillis();
+            boolean connected = health.isProbing(device.id) ? protocol.connect(1) : protocol.connect();
+            if (!connected) {
+                health.recordFailure(device.id, "No se pudo conectar");
+                run.fetchFailed = true;
+                return;
+            }
+            health.recordSuccess(device.id, System.currentTimeMillis() - connectStart);
+
+            run.sizes = protocol.readSizes();
+            run.cursor = service.getSyncCursor(device.id, BiometricSyncService.SINK_ATTENDANCES);
+            long skipRecords = 0;
+            if (run.sizes != null && run.cursor != null) {
+                if (run.sizes.records == run.cursor.recordCount) {
+                    run.stats.unchanged = true;
+                    return;
+                }
+                if (run.sizes.records > run.cursor.recordCount) {
+                    skipRecords = run.cursor.recordCount;
+                }
+            }
+            run.stats.skippedRecords = (int) skipRecords;
+
+            // La marca más nueva vista según el cursor incluye las ráfagas colapsadas, que
+            // no se guardan; sin cursor, la última guardada en attendances
+            LocalDateTime lastSync = run.cursor != null && run.cursor.lastTimestamp != null
+                ? run.cursor.lastTimestamp
+                : service.getLastAttendanceTimestamp(device.id);
+            run.zone = java.time.ZoneId.systemDefault().getRules().getOffset(java.time.Instant.now());
+            run.lastSyncEpoch = lastSync != null ? lastSync.toEpochSecond(run.zone) : Long.MIN_VALUE;
+
+            protocol.streamAttendanceBatches(skipRecords, batch -> {
+                if (batch.size() == 0) {
+                    return;
+                }
+                // El lote se reutiliza al volver: se encola una copia
+                try {
+                    put(out, new Envelope(run, batch.copy(), null, false), fetchMetrics);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new java.io.UncheckedIOException(new java.io.InterruptedIOException("Descarga cancelada"));
+                }
+                fetchMetrics.items.addAndGet(batch.size());
+                fetchMetrics.batches.incrementAndGet();
+            });
+
+        } catch (Exception e) {
+            if (!run.timedOut) {
+                logger.log(Level.SEVERE, "Error descargando dispositivo " + device.id + ": " + e.getMessage(), e);
+                health.recordFailure(device.id, e.getMessage());
+            }
+            run.fetchFailed = true;
+        } finally {
+            if (protocol != null) {
+                try {
+                    protocol.disconnect();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error cerrando conexión: " + e.getMessage(), e);
+                }
+            }
+            Thread.interrupted(); // La marca de fin se envía aunque se haya cancelado
+            try {
+                if (!out.offer(new Envelope(run, null, null, true), END_OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    logger.warning("No se pudo cerrar la ingesta del dispositivo " + device.id + ": cola llena");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void decodeStage(BlockingQueue<Envelope> in, BlockingQueue<Envelope> out) {
+        try {
+            while (true) {
+                Envelope envelope = in.take();
+                if (envelope == POISON || envelope.last) {
+                    put(out, envelope, decodeMetrics);
+                    if (envelope == POISON) {
+                        return;
+                    }
+                    continue;
+                }
+                long started = System.nanoTime();
+                DeviceRun run = envelope.run;
+                AttendanceBatch batch = envelope.raw;
+                ZoneOffset zone = batch.getZoneOffset();
+                List<PunchBatchWriter.Punch> punches = new ArrayList<>(batch.size());
+                Map<PunchBatchWriter.Punch, Integer> extraRawCounts = null;
+                for (int i = 0; i < batch.size(); i++) {
+                    long epoch = batch.epochSecond(i);
+                    if (epoch > run.maxEpoch) {
+                        run.maxEpoch = epoch;
+                        run.zone = zone;
+                    }
+                    if (epoch <= run.lastSyncEpoch) {
+                        run.filtered++;
+                        continue;
+                    }
+                    PunchBatchWriter.Punch punch = new PunchBatchWriter.Punch(toDni(batch.userId(i)), null,
+                        LocalDateTime.ofEpochSecond(epoch, 0, zone), run.device.id);
+                    PunchDebouncer.Outcome outcome = debouncer.offer(punch);
+                    if (outcome == PunchDebouncer.Outcome.KEEP) {
+                        punches.add(punch);
+                        continue;
+                    }
+                    run.collapsed++;
+                    if (outcome == PunchDebouncer.Outcome.MERGED_SENT) {
+                        if (extraRawCounts == null) {
+                            extraRawCounts = new HashMap<>();
+                        }
+                        extraRawCounts.merge(debouncer.lastCanonical(), debouncer.lastRawCount(), Math::max);
+                    }
+                }
+                run.stats.totalRecords += batch.size();
+                decodeMetrics.items.addAndGet(batch.size());
+                decodeMetrics.batches.incrementAndGet();
+                decodeMetrics.busyNanos.addAndGet(System.nanoTime() - started);
+                if (!punches.isEmpty() || extraRawCounts != null) {
+                    Envelope decoded = new Envelope(run, null, punches, false);
+                    decoded.extraRawCounts = extraRawCounts;
+                    put(out, decoded, decodeMetrics);
+                    debouncer.nextBatch();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enrichStage(BlockingQueue<Envelope> in, BlockingQueue<Envelope> out) {
+        try {
+            while (true) {
+                Envelope envelope = in.take();
+                if (envelope.punches != null) {
+                    long started = System.nanoTime();
+                    for (PunchBatchWriter.Punch punch : envelope.punches) {
+                        enricher.enrich(punch);
+                    }
+                    enrichMetrics.items.addAndGet(envelope.punches.size());
+                    enrichMetrics.batches.incrementAndGet();
+                    enrichMetrics.busyNanos.addAndGet(System.nanoTime() - started);
+                }
+                put(out, envelope, enrichMetrics);
+                if (envelope == POISON) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void persistStage(BlockingQueue<Envelope> in, Map<Integer, DeviceRun> runsByClock) {
+        List<PunchBatchWriter.Punch> pending = new ArrayList<>(persistBatchSize);
+        Map<PunchBatchWriter.Punch, Integer> pendingExtras = new HashMap<>();
+        try {
+            while (true) {
+                Envelope envelope = in.poll(persistFlushMillis, TimeUnit.MILLISECONDS);
+                if (envelope == null) {
+                    flush(pending, pendingExtras, runsByClock);
+                    continue;
+                }
+                if (envelope.punches != null) {
+                    pending.addAll(envelope.punches);
+                    if (envelope.extraRawCounts != null) {
+                        envelope.extraRawCounts.forEach((punch, total) -> pendingExtras.merge(punch, total, Math::max));
+                    }
+                    if (pending.size() >= persistBatchSize) {
+                        flush(pending, pendingExtras, runsByClock);
+                    }
+                    continue;
+                }
+                // Fin de un reloj (o de la corrida): escribir lo pendiente antes de cerrarlo
+                flush(pending, pendingExtras, runsByClock);
+                if (envelope == POISON) {
+                    return;
+                }
+                finish(envelope.run);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(List<PunchBatchWriter.Punch> pending, Map<PunchBatchWriter.Punch, Integer> pendingExtras,
+                       Map<Integer, DeviceRun> runsByClock) {
+        boolean written = write(pending, runsByClock);
+        // Solo tras confirmar el lote (la canónica puede estar en él); si falló, la próxima
+        // corrida vuelve a descargar estos relojes y el debouncer rehace los totales
+        if (written && !pendingExtras.isEmpty()) {
+            try {
+                sink.addRawCounts(pendingExtras);
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "No se pudo actualizar raw_count de " + pendingExtras.size()
+                    + " marcaciones: " + e.getMessage(), e);
+            }
+        }
+        pendingExtras.clear();
+    }
+
+    /**
+     * @return false si el lote no se pudo guardar ni dejar en el diario
+     */
+    private boolean write(List<PunchBatchWriter.Punch> pending, Map<Integer, DeviceRun> runsByClock) {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        long started = System.nanoTime();
+        Map<Integer, Integer> stagedByClock = new HashMap<>();
+        for (PunchBatchWriter.Punch punch : pending) {
+            stagedByClock.merge(punch.clockId, 1, Integer::sum);
+        }
+        try {
+            PunchBatchWriter.Result result = sink.write(pending);
+            for (Map.Entry<Integer, Integer> entry : stagedByClock.entrySet()) {
+                DeviceRun run = runsByClock.get(entry.getKey());
+                if (run == null) {
+                    continue;
+                }
+                if (result == null) {
+                    run.stats.spooled += entry.getValue(); // En el diario: el drenado las pasa a attendances
+                    continue;
+                }
+                int inserted = result.insertedByClock.getOrDefault(entry.getKey(), 0);
+                run.stats.newRecords += inserted;
+                run.stats.duplicates += entry.getValue() - inserted;
+                if (result.lastInserted != null && result.lastInserted.clockId == entry.getKey()) {
+                    run.stats.lastRecord = toLastRecord(result.lastInserted);
+                }
+            }
+            persistMetrics.items.addAndGet(pending.size());
+            persistMetrics.batches.incrementAndGet();
+            return true;
+        } catch (SQLException | IOException e) {
+            // El cursor de estos relojes no avanza: la próxima corrida los vuelve a pedir
+            logger.log(Level.SEVERE, "Error guardando lote de " + pending.size() + " marcaciones: " + e.getMessage(), e);
+            for (Integer clockId : stagedByClock.keySet()) {
+                DeviceRun run = runsByClock.get(clockId);
+                if (run != null) {
+                    run.stats.errors++;
+                }
+            }
+            return false;
+        } finally {
+            persistMetrics.busyNanos.addAndGet(System.nanoTime() - started);
+            pending.clear();
+        }
+    }
+
+    private void finish(DeviceRun run) {
+        run.stats.duplicates += run.filtered;
+        run.stats.collapsed += run.collapsed;
+        if (run.fetchFailed) {
+            run.stats.errors++;
+        }
+        run.stats.elapsedMillis = System.currentTimeMillis() - run.startedAt;
+        // Avanzar el cursor solo si todo quedó guardado; si no, la próxima vez se reintenta
+        if (!run.fetchFailed && !run.timedOut && !run.stats.unchanged && run.stats.errors == 0) {
+            LocalDateTime lastTimestamp = run.maxEpoch != Long.MIN_VALUE
+                ? LocalDateTime.ofEpochSecond(run.maxEpoch, 0, run.zone)
+                : (run.cursor != null ? run.cursor.lastTimestamp : null);
+            if (run.sizes != null) {
+                service.saveSyncCursor(run.device.id, BiometricSyncService.SINK_ATTENDANCES, run.sizes.records, lastTimestamp);
+            } else {
+                service.saveSyncTimestamp(run.device.id, BiometricSyncService.SINK_ATTENDANCES, lastTimestamp);
+            }
+        }
+        logger.info("Dispositivo " + run.device.id + " terminado en " + run.stats.elapsedMillis + " ms ("
+            + run.stats.newRecords + " nuevos, " + run.stats.duplicates + " duplicados, " + run.stats.errors + " errores)");
+    }
+
+    // -------------------------------------------------------------- utilidades
+
+    /**
+     * Encola midiendo el tiempo que la etapa pasa bloqueada por la contrapresión
+     */
+    private static void put(BlockingQueue<Envelope> queue, Envelope envelope, StageMetrics metrics) throws InterruptedException {
+        if (queue.offer(envelope)) {
+            return;
+        }
+        long started = System.nanoTime();
+        queue.put(envelope);
+        metrics.blockedNanos.addAndGet(System.nanoTime() - started);
+    }
+
+    private static Thread startStage(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * DNI de 8 dígitos con ceros a la izquierda, como str(user_id).zfill(8) en sync_checker.py
+     */
+    static String toDni(int userId) {
+        String digits = Integer.toString(userId);
+        if (digits.length() >= 8) {
+            return digits;
+        }
+        return "00000000".substring(digits.length()) + digits;
+    }
+
+    private static Map<String, Object> toLastRecord(PunchBatchWriter.Punch punch) {
+        Map<String, Object> lastRecord = new HashMap<>();
+        lastRecord.put("dni", punch.dni);
+        lastRecord.put("nombre", punch.nombre);
+        lastRecord.put("fechahora", punch.fechahora.format(DATE_TIME_FORMATTER));
+        lastRecord.put("fecha", punch.fechahora.format(DATE_FORMATTER));
+        lastRecord.put("hora", punch.fechahora.format(TIME_FORMATTER));
+        return lastRecord;
+    }
+}
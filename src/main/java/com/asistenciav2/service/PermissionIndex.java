@@ -0,0 +1,414 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+import com.asistenciav2.util.IntervalTree;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Índice en memoria de los permisos aprobados y de las programaciones de lactancia
+ * vigentes, por users.id y por jobassignment_id, con un {@link IntervalTree} de fechas por
+ * clave: "qué permisos cubren la fecha d" y "hay algo que se solape con [a, b]" no van a
+ * la base de datos.
+ *
+ * La primera {@link #refresh()} carga todo; las siguientes releen solo los permisos cuyo
+ * updated_at (o el de sus programaciones) cambió, así se ven también las ediciones hechas
+ * desde otro nodo o con SQL. Los servlets de permisos y lactancia llaman a
+ * {@link #reloadPermission} después de escribir para que el cambio se vea enseguida. Los
+ * borrados físicos no dejan updated_at: el trabajador de recálculo relee a los empleados
+ * afectados con {@link #reloadUsersOfAssignments}. Cada FULL_RELOAD_MILLIS se vuelve a
+ * cargar todo (borrados hechos sin pasar por el recálculo, cambios de permissiontypes).
+ * Los árboles son inmutables: los lectores no toman candados.
+ */
+public class PermissionIndex {
+    private static final Logger logger = Logger.getLogger(PermissionIndex.class.getName());
+    private static final long REFRESH_OVERLAP_MILLIS = 5000;   // Cubre transacciones que confirmaron tarde
+    private static final long FULL_RELOAD_MILLIS = 3600000;
+    private static final PermissionIndex SHARED = new PermissionIndex();
+
+    private static final String PERMISSION_SQL =
+        "SELECT p.id, p.user_id, p.jobassignment_id, p.abrevia, p.fechaini, p.fechafin, " +
+        "pt.id AS permissiontype_id, pt.codigo, pt.permite_doble_cargo " +
+        "FROM permissions p " +
+        "INNER JOIN permissiontypes pt ON pt.id = p.permissiontype_id " +
+        "WHERE p.estado = 1 AND p.user_id IS NOT NULL";
+
+    private static final String LACTATION_SQL =
+        "SELECT ls.id AS schedule_id, ls.permission_id, p.user_id, p.jobassignment_id, p.fechaini, p.fechafin, " +
+        "ls.fecha_desde, ls.fecha_hasta, ls.modo, ls.minutos_diarios " +
+        "FROM lactation_schedules ls " +
+        "INNER JOIN permissions p ON p.id = ls.permission_id " +
+        "INNER JOIN permissiontypes pt ON pt.id = p.permissiontype_id " +
+        "WHERE ls.estado = 1 AND p.estado = 1 AND pt.codigo = 'LACTANCIA' AND p.user_id IS NOT NULL";
+
+    private final Map<Integer, IntervalTree<DailyAttendanceEngine.Permission>> permitsByUser = new ConcurrentHashMap<>();
+    private final Map<Integer, IntervalTree<DailyAttendanceEngine.Permission>> permitsByAssignment = new ConcurrentHashMap<>();
+    private final Map<Integer, IntervalTree<DailyAttendanceEngine.Lactation>> lactationsByUser = new ConcurrentHashMap<>();
+    private final Map<Integer, IntervalTree<DailyAttendanceEngine.Lactation>> lactationsByAssignment = new ConcurrentHashMap<>();
+    private final Map<Integer, DailyAttendanceEngine.Permission> permitsById = new HashMap<>();            // Solo con el candado
+    private final Map<Integer, List<DailyAttendanceEngine.Lactation>> lactationsByPermission = new HashMap<>();
+    private Timestamp watermark = null;     // Hora de la BD al comenzar la última lectura
+    private long loadedAt = 0;
+
+    /**
+     * Índice compartido por la aplicación (servlets, motor y trabajador de recálculo)
+     */
+    public static PermissionIndex shared() {
+        return SHARED;
+    }
+
+    public void refresh() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            refresh(conn);
+        }
+    }
+
+    /**
+     * Primera llamada (o pasado FULL_RELOAD_MILLIS): carga completa. Siguientes: solo los
+     * permisos modificados desde la lectura anterior.
+     */
+    public synchronized void refresh(Connection conn) throws SQLException {
+        Timestamp startedAt;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CURRENT_TIMESTAMP")) {
+            rs.next();
+            startedAt = rs.getTimestamp(1);
+        }
+        if (watermark == null || System.currentTimeMillis() - loadedAt >= FULL_RELOAD_MILLIS) {
+            loadAll(conn);
+            loadedAt = System.currentTimeMillis();
+        } else {
+            Timestamp since = new Timestamp(watermark.getTime() - REFRESH_OVERLAP_MILLIS);
+            List<Integer> changed = new ArrayList<>();
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT id FROM permissions WHERE updated_at > ? " +
+                    "UNION SELECT permission_id FROM lactation_schedules WHERE updated_at > ?")) {
+                stmt.setTimestamp(1, since);
+                stmt.setTimestamp(2, since);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        changed.add(rs.getInt(1));
+                    }
+                }
+            }
+            if (!changed.isEmpty()) {
+                reload(conn, changed);
+            }
+        }
+        watermark = startedAt;
+    }
+
+    /**
+     * Vuelve a leer un permiso y sus programaciones (después de crearlo, editarlo o darlo
+     * de baja). Antes de la primera carga no hace nada: esa carga ya lo incluirá. Un error
+     * no se propaga (la escritura ya se hizo): el próximo {@link #refresh} lo vuelve a leer
+     * por su updated_at.
+     */
+    public synchronized void reloadPermission(Connection conn, int permissionId) {
+        if (watermark == null) {
+            return;
+        }
+        try {
+            reload(conn, Collections.singletonList(permissionId));
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "No se pudo actualizar el permiso " + permissionId + " en el índice", e);
+        }
+    }
+
+    /**
+     * Vuelve a leer todos los permisos y programaciones de los empleados dueños de los
+     * cargos, incluidos los que ya no existen en la base. Antes de la primera carga no hace
+     * nada: esa carga ya lee todo.
+     */
+    public synchronized void reloadUsersOfAssignments(Connection conn, Collection<Integer> jobassignmentIds) throws SQLException {
+        if (watermark == null || jobassignmentIds.isEmpty()) {
+            return;
+        }
+        Set<Integer> userIds = new HashSet<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT DISTINCT user_id FROM jobassignments WHERE id = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf("integer", jobassignmentIds.toArray(new Integer[0])));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    userIds.add(rs.getInt(1));
+                }
+            }
+        }
+        if (userIds.isEmpty()) {
+            return;
+        }
+        Set<Integer> permissionIds = new HashSet<>();
+        for (DailyAttendanceEngine.Permission permit : permitsById.values()) {
+            if (userIds.contains(permit.userId)) {
+                permissionIds.add(permit.id);
+            }
+        }
+        for (Map.Entry<Integer, List<DailyAttendanceEngine.Lactation>> entry : lactationsByPermission.entrySet()) {
+            for (DailyAttendanceEngine.Lactation lactation : entry.getValue()) {
+                if (userIds.contains(lactation.userId)) {
+                    permissionIds.add(entry.getKey());
+                }
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM permissions WHERE user_id = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf("integer", userIds.toArray(new Integer[0])));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    permissionIds.add(rs.getInt(1));
+                }
+            }
+        }
+        if (!permissionIds.isEmpty()) {
+            reload(conn, permissionIds);
+        }
+    }
+
+    /**
+     * Permisos aprobados del empleado que cubren la fecha (de cualquier tipo, incluida la
+     * lactancia), por orden de fecha de inicio
+     */
+    public List<DailyAttendanceEngine.Permission> permitsCovering(int userId, LocalDate fecha) {
+        IntervalTree<DailyAttendanceEngine.Permission> tree = permitsByUser.get(userId);
+        return tree != null ? tree.covering((int) fecha.toEpochDay()) : Collections.emptyList();
+    }
+
+    /**
+     * Permisos asociados al cargo que cubren la fecha
+     */
+    public List<DailyAttendanceEngine.Permission> permitsForAssignmentCovering(int jobassignmentId, LocalDate fecha) {
+        IntervalTree<DailyAttendanceEngine.Permission> tree = permitsByAssignment.get(jobassignmentId);
+        return tree != null ? tree.covering((int) fecha.toEpochDay()) : Collections.emptyList();
+    }
+
+    /**
+     * true si el empleado tiene algún permiso aprobado que se solape con [desde, hasta]
+     * y cumpla match
+     */
+    public boolean hasPermitOverlapping(int userId, LocalDate desde, LocalDate hasta,
+                                        Predicate<DailyAttendanceEngine.Permission> match) {
+        IntervalTree<DailyAttendanceEngine.Permission> tree = permitsByUser.get(userId);
+        return tree != null && tree.overlaps((int) desde.toEpochDay(), (int) hasta.toEpochDay(), match);
+    }
+
+    /**
+     * LSG aprobado de un tipo que permite doble cargo, solapado con [desde, hasta]
+     */
+    public boolean hasDoubleRolePermit(int userId, LocalDate desde, LocalDate hasta) {
+        return hasPermitOverlapping(userId, desde, hasta, p -> "LSG".equals(p.codigo) && p.permiteDobleCargo);
+    }
+
+    /**
+     * Programaciones de lactancia del empleado vigentes en la fecha (dentro del permiso),
+     * por id de programación
+     */
+    public List<DailyAttendanceEngine.Lactation> lactationsCovering(int userId, LocalDate fecha) {
+        IntervalTree<DailyAttendanceEngine.Lactation> tree = lactationsByUser.get(userId);
+        if (tree == null) {
+            return Collections.emptyList();
+        }
+        List<DailyAttendanceEngine.Lactation> result = tree.covering((int) fecha.toEpochDay());
+        if (result.size() > 1) {
+            result.sort(Comparator.comparingInt(l -> l.scheduleId));
+        }
+        return result;
+    }
+
+    public boolean hasLactationOverlapping(int userId, LocalDate desde, LocalDate hasta) {
+        IntervalTree<DailyAttendanceEngine.Lactation> tree = lactationsByUser.get(userId);
+        return tree != null && tree.overlaps((int) desde.toEpochDay(), (int) hasta.toEpochDay());
+    }
+
+    public List<DailyAttendanceEngine.Lactation> lactationsForAssignmentCovering(int jobassignmentId, LocalDate fecha) {
+        IntervalTree<DailyAttendanceEngine.Lactation> tree = lactationsByAssignment.get(jobassignmentId);
+        return tree != null ? tree.covering((int) fecha.toEpochDay()) : Collections.emptyList();
+    }
+
+    public synchronized boolean isLoaded() {
+        return watermark != null;
+    }
+
+    public synchronized int size() {
+        return permitsById.size();
+    }
+
+    private void loadAll(Connection conn) throws SQLException {
+        List<DailyAttendanceEngine.Permission> permits = readPermits(conn, null);
+        List<DailyAttendanceEngine.Lactation> lactations = readLactations(conn, null);
+        permitsById.clear();
+        lactationsByPermission.clear();
+        Map<Integer, List<DailyAttendanceEngine.Permission>> byUser = new HashMap<>();
+        Map<Integer, List<DailyAttendanceEngine.Permission>> byAssignment = new HashMap<>();
+        for (DailyAttendanceEngine.Permission permit : permits) {
+            permitsById.put(permit.id, permit);
+            byUser.computeIfAbsent(permit.userId, k -> new ArrayList<>()).add(permit);
+            if (permit.jobassignmentId != null) {
+                byAssignment.computeIfAbsent(permit.jobassignmentId, k -> new ArrayList<>()).add(permit);
+            }
+        }
+        Map<Integer, List<DailyAttendanceEngine.Lactation>> lactationUser = new HashMap<>();
+        Map<Integer, List<DailyAttendanceEngine.Lactation>> lactationAssignment = new HashMap<>();
+        for (DailyAttendanceEngine.Lactation lactation : lactations) {
+            lactationsByPermission.computeIfAbsent(lactation.permissionId, k -> new ArrayList<>()).add(lactation);
+            lactationUser.computeIfAbsent(lactation.userId, k -> new ArrayList<>()).add(lactation);
+            if (lactation.jobassignmentId != null) {
+                lactationAssignment.computeIfAbsent(lactation.jobassignmentId, k -> new ArrayList<>()).add(lactation);
+            }
+        }
+        replaceAll(permitsByUser, byUser, PermissionIndex::permitStart, PermissionIndex::permitEnd);
+        replaceAll(permitsByAssignment, byAssignment, PermissionIndex::permitStart, PermissionIndex::permitEnd);
+        replaceAll(lactationsByUser, lactationUser, PermissionIndex::lactationStart, PermissionIndex::lactationEnd);
+        replaceAll(lactationsByAssignment, lactationAssignment, PermissionIndex::lactationStart, PermissionIndex::lactationEnd);
+        logger.info(String.format("Índice de permisos cargado: %d permisos, %d programaciones de lactancia",
+            permits.size(), lactations.size()));
+    }
+
+    private static <T> void replaceAll(Map<Integer, IntervalTree<T>> target, Map<Integer, List<T>> source,
+                                       ToIntFunction<T> start, ToIntFunction<T> end) {
+        target.keySet().retainAll(source.keySet());
+        for (Map.Entry<Integer, List<T>> entry : source.entrySet()) {
+            target.put(entry.getKey(), IntervalTree.of(entry.getValue(), start, end));
+        }
+    }
+
+    /**
+     * Quita las entradas de los permisos y vuelve a insertar lo que hoy está aprobado
+     */
+    private void reload(Connection conn, Collection<Integer> permissionIds) throws SQLException {
+        Set<Integer> ids = new HashSet<>(permissionIds);
+        for (Integer id : ids) {
+            DailyAttendanceEngine.Permission old = permitsById.remove(id);
+            if (old != null) {
+                remove(permitsByUser, old.userId, p -> p.id == old.id);
+                if (old.jobassignmentId != null) {
+                    remove(permitsByAssignment, old.jobassignmentId, p -> p.id == old.id);
+                }
+            }
+            List<DailyAttendanceEngine.Lactation> oldLactations = lactationsByPermission.remove(id);
+            if (oldLactations != null) {
+                for (DailyAttendanceEngine.Lactation lactation : oldLactations) {
+                    remove(lactationsByUser, lactation.userId, l -> l.permissionId == id);
+                    if (lactation.jobassignmentId != null) {
+                        remove(lactationsByAssignment, lactation.jobassignmentId, l -> l.permissionId == id);
+                    }
+                }
+            }
+        }
+        Integer[] idArray = ids.toArray(new Integer[0]);
+        for (DailyAttendanceEngine.Permission permit : readPermits(conn, idArray)) {
+            permitsById.put(permit.id, permit);
+            add(permitsByUser, permit.userId, permitStart(permit), permitEnd(permit), permit);
+            if (permit.jobassignmentId != null) {
+                add(permitsByAssignment, permit.jobassignmentId, permitStart(permit), permitEnd(permit), permit);
+            }
+        }
+        for (DailyAttendanceEngine.Lactation lactation : readLactations(conn, idArray)) {
+            lactationsByPermission.computeIfAbsent(lactation.permissionId, k -> new ArrayList<>()).add(lactation);
+            add(lactationsByUser, lactation.userId, lactationStart(lactation), lactationEnd(lactation), lactation);
+            if (lactation.jobassignmentId != null) {
+                add(lactationsByAssignment, lactation.jobassignmentId, lactationStart(lactation), lactationEnd(lactation), lactation);
+            }
+        }
+    }
+
+    private static <T> void add(Map<Integer, IntervalTree<T>> map, int key, int start, int end, T value) {
+        map.compute(key, (k, tree) -> (tree != null ? tree : IntervalTree.<T>empty()).with(start, end, value));
+    }
+
+    private static <T> void remove(Map<Integer, IntervalTree<T>> map, int key, Predicate<T> match) {
+        map.computeIfPresent(key, (k, tree) -> {
+            IntervalTree<T> updated = tree.without(match);
+            return updated.size() > 0 ? updated : null;
+        });
+    }
+
+    private static List<DailyAttendanceEngine.Permission> readPermits(Connection conn, Integer[] ids) throws SQLException {
+        List<DailyAttendanceEngine.Permission> permits = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(PERMISSION_SQL + (ids != null ? " AND p.id = ANY(?)" : "") +
+                                                            " ORDER BY p.id")) {
+            if (ids != null) {
+                stmt.setArray(1, conn.createArrayOf("integer", ids));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    DailyAttendanceEngine.Permission permission = new DailyAttendanceEngine.Permission();
+                    permission.id = rs.getInt("id");
+                    permission.userId = rs.getInt("user_id");
+                    permission.abrevia = rs.getString("abrevia");
+                    permission.fechaini = rs.getDate("fechaini").toLocalDate();
+                    permission.fechafin = rs.getDate("fechafin").toLocalDate();
+                    int jobassignmentId = rs.getInt("jobassignment_id");
+                    permission.jobassignmentId = rs.wasNull() ? null : jobassignmentId;
+                    permission.typeId = rs.getInt("permissiontype_id");
+                    permission.codigo = rs.getString("codigo");
+                    permission.permiteDobleCargo = rs.getBoolean("permite_doble_cargo");
+                    permits.add(permission);
+                }
+            }
+        }
+        return permits;
+    }
+
+    private static List<DailyAttendanceEngine.Lactation> readLactations(Connection conn, Integer[] ids) throws SQLException {
+        List<DailyAttendanceEngine.Lactation> lactations = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(LACTATION_SQL + (ids != null ? " AND p.id = ANY(?)" : "") +
+                                                            " ORDER BY ls.id")) {
+            if (ids != null) {
+                stmt.setArray(1, conn.createArrayOf("integer", ids));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    DailyAttendanceEngine.Lactation lactation = new DailyAttendanceEngine.Lactation();
+                    lactation.scheduleId = rs.getInt("schedule_id");
+                    lactation.permissionId = rs.getInt("permission_id");
+                    lactation.userId = rs.getInt("user_id");
+                    int jobassignmentId = rs.getInt("jobassignment_id");
+                    lactation.jobassignmentId = rs.wasNull() ? null : jobassignmentId;
+                    lactation.fechaini = rs.getDate("fechaini").toLocalDate();
+                    lactation.fechafin = rs.getDate("fechafin").toLocalDate();
+                    lactation.desde = rs.getDate("fecha_desde").toLocalDate();
+                    lactation.hasta = rs.getDate("fecha_hasta").toLocalDate();
+                    lactation.modo = rs.getString("modo");
+                    int minutos = rs.getInt("minutos_diarios");
+                    lactation.minutos = rs.wasNull() ? null : minutos;
+                    if (lactationStart(lactation) <= lactationEnd(lactation)) { // Si no, no cubre ningún día
+                        lactations.add(lactation);
+                    }
+                }
+            }
+        }
+        return lactations;
+    }
+
+    private static int permitStart(DailyAttendanceEngine.Permission permit) {
+        return (int) permit.fechaini.toEpochDay();
+    }
+
+    private static int permitEnd(DailyAttendanceEngine.Permission permit) {
+        return (int) permit.fechafin.toEpochDay();
+    }
+
+    /**
+     * La programación cubre solo la parte que cae dentro del permiso
+     */
+    private static int lactationStart(DailyAttendanceEngine.Lactation lactation) {
+        return (int) Math.max(lactation.fechaini.toEpochDay(), lactation.desde.toEpochDay());
+    }
+
+    private static int lactationEnd(DailyAttendanceEngine.Lactation lactation) {
+        return (int) Math.min(lactation.fechafin.toEpochDay(), lactation.hasta.toEpochDay());
+    }
+}
@@ -0,0 +1,468 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+
+import java.net.InetAddress;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cola de procesamiento de asistencia en la tabla processing_jobs.
+ *
+ * Cualquier nodo encola; los pedidos pendientes con el mismo DNI (o todos) cuyos rangos
+ * se solapan o se tocan se juntan en un solo trabajo, y uno de todos los empleados absorbe
+ * a los de un DNI que caen dentro de su rango. Para que dos nodos no encolen a la vez el
+ * mismo rango, encolar toma un advisory lock de transacción.
+ *
+ * Los nodos toman trabajos con FOR UPDATE SKIP LOCKED: la toma se confirma enseguida
+ * (estado EN_PROCESO, nodo y latido) y el cálculo corre fuera de la transacción. El nodo
+ * informa avance con cada latido y en la respuesta lee el pedido de cancelación; si deja
+ * de latir, {@link #recoverStale} devuelve el trabajo a la cola. Un error vuelve a
+ * encolarlo con espera creciente hasta max_intentos.
+ */
+public class ProcessingJobQueue {
+    public static final String PENDIENTE = "PENDIENTE";
+    public static final String EN_PROCESO = "EN_PROCESO";
+    public static final String COMPLETADO = "COMPLETADO";
+    public static final String ERROR = "ERROR";
+    public static final String CANCELADO = "CANCELADO";
+    public static final String FUSIONADO = "FUSIONADO";
+
+    private static final String COLUMNS =
+        "id, fecha_inicio, fecha_fin, dni, parallelism, estado, fusionado_en, intentos, max_intentos, " +
+        "cancelar, nodo, progreso_hecho, progreso_total, resultado, error, " +
+        "created_at, started_at, finished_at, heartbeat_at";
+
+    static final String CLAIM_SQL =
+        "UPDATE processing_jobs j SET estado = 'EN_PROCESO', nodo = ?, intentos = j.intentos + 1, " +
+        "heartbeat_at = CURRENT_TIMESTAMP, started_at = CURRENT_TIMESTAMP, progreso_hecho = 0, progreso_total = 0 " +
+        "FROM (SELECT id FROM processing_jobs WHERE estado = 'PENDIENTE' AND disponible_desde <= CURRENT_TIMESTAMP " +
+        "ORDER BY disponible_desde, id LIMIT 1 FOR UPDATE SKIP LOCKED) k " +
+        "WHERE j.id = k.id RETURNING j.*";
+
+    static final String RECOVER_SQL =
+        "UPDATE processing_jobs SET " +
+        "estado = CASE WHEN cancelar THEN 'CANCELADO' WHEN intentos >= max_intentos THEN 'ERROR' ELSE 'PENDIENTE' END, " +
+        "finished_at = CASE WHEN cancelar OR intentos >= max_intentos THEN CURRENT_TIMESTAMP END, " +
+        "error = 'El nodo ' || COALESCE(nodo, '?') || ' dejó de informar avance', heartbeat_at = NULL " +
+        "WHERE id IN (SELECT id FROM processing_jobs WHERE estado = 'EN_PROCESO' " +
+        "AND heartbeat_at < CURRENT_TIMESTAMP - make_interval(secs => ?) FOR UPDATE SKIP LOCKED)";
+
+    private final String nodeId;
+    private int retryDelaySeconds = 30;    // Espera del primer reintento; se duplica en cada uno
+
+    /**
+     * Trabajo de la cola
+     */
+    public static class Job {
+        public int id;
+        public LocalDate fechaInicio;
+        public LocalDate fechaFin;
+        public String dni;              // null = todos
+        public int parallelism;
+        public String estado;
+        public Integer fusionadoEn;
+        public int intentos;
+        public int maxIntentos;
+        public boolean cancelar;
+        public String nodo;
+        public int progresoHecho;
+        public int progresoTotal;
+        public String resultado;
+        public String error;
+        public String createdAt;
+        public String startedAt;
+        public String finishedAt;
+        public String heartbeatAt;
+
+        public boolean isActive() {
+            return PENDIENTE.equals(estado) || EN_PROCESO.equals(estado);
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("jobId", String.valueOf(id));
+            map.put("fechaInicio", fechaInicio != null ? fechaInicio.toString() : null);
+            map.put("fechaFin", fechaFin != null ? fechaFin.toString() : null);
+            map.put("dni", dni);
+            map.put("parallelism", parallelism);
+            map.put("estado", estado);
+            map.put("fusionadoEn", fusionadoEn != null ? String.valueOf(fusionadoEn) : null);
+            map.put("intentos", intentos);
+            map.put("maxIntentos", maxIntentos);
+            map.put("cancelar", cancelar);
+            map.put("nodo", nodo);
+            map.put("progresoHecho", progresoHecho);
+            map.put("progresoTotal", progresoTotal);
+            map.put("resultado", resultado);
+            map.put("error", error);
+            map.put("createdAt", createdAt);
+            map.put("startedAt", startedAt);
+            map.put("finishedAt", finishedAt);
+            map.put("heartbeatAt", heartbeatAt);
+            map.put("finished", !isActive());
+            return map;
+        }
+    }
+
+    /**
+     * Resultado de encolar: el trabajo que hará el pedido y si era uno ya pendiente
+     */
+    public static class Enqueued {
+        public final Job job;
+        public final boolean merged;
+
+        Enqueued(Job job, boolean merged) {
+            this.job = job;
+            this.merged = merged;
+        }
+    }
+
+    public ProcessingJobQueue() {
+        this(defaultNodeId());
+    }
+
+    public ProcessingJobQueue(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Nombre del host y pid: distingue a dos Tomcat en la misma máquina
+     */
+    static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setRetryDelaySeconds(int retryDelaySeconds) {
+        this.retryDelaySeconds = Math.max(0, retryDelaySeconds);
+    }
+
+    /**
+     * Encola el rango [fechaInicio, fechaFin] de un DNI (null = todos), juntándolo con los
+     * pendientes que se solapan o son contiguos
+     */
+    public Enqueued enqueue(LocalDate fechaInicio, LocalDate fechaFin, String dni, int parallelism,
+                            Integer usercrea) throws SQLException {
+        if (fechaFin.isBefore(fechaInicio)) {
+            throw new IllegalArgumentException("La fecha de fin es anterior a la de inicio");
+        }
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Enqueued enqueued = enqueue(conn, fechaInicio, fechaFin, dni, parallelism, usercrea);
+                conn.commit();
+                return enqueued;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private Enqueued enqueue(Connection conn, LocalDate fechaInicio, LocalDate fechaFin, String dni,
+                             int parallelism, Integer usercrea) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SELECT pg_advisory_xact_lock(hashtext('processing_jobs'))");
+        }
+        // Un pendiente de todos los empleados que ya cubre el rango hace el trabajo de este DNI
+        if (dni != null) {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT " + COLUMNS + " FROM processing_jobs WHERE estado = 'PENDIENTE' AND dni IS NULL " +
+                    "AND fecha_inicio <= ? AND fecha_fin >= ? ORDER BY id LIMIT 1 FOR UPDATE")) {
+                stmt.setDate(1, Date.valueOf(fechaInicio));
+                stmt.setDate(2, Date.valueOf(fechaFin));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return new Enqueued(readJob(rs), true);
+                    }
+                }
+            }
+        }
+
+        // Pendientes del mismo alcance que se solapan o tocan el rango
+        List<Job> overlapping = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT " + COLUMNS + " FROM processing_jobs WHERE estado = 'PENDIENTE' AND dni IS NOT DISTINCT FROM ? " +
+                "AND fecha_inicio <= ? AND fecha_fin >= ? ORDER BY id FOR UPDATE")) {
+            stmt.setString(1, dni);
+            stmt.setDate(2, Date.valueOf(fechaFin.plusDays(1)));
+            stmt.setDate(3, Date.valueOf(fechaInicio.minusDays(1)));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    overlapping.add(readJob(rs));
+                }
+            }
+        }
+
+        int targetId;
+        LocalDate desde = fechaInicio;
+        LocalDate hasta = fechaFin;
+        if (overlapping.isEmpty()) {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO processing_jobs (fecha_inicio, fecha_fin, dni, parallelism, usercrea) " +
+                    "VALUES (?, ?, ?, ?, ?) RETURNING id")) {
+                stmt.setDate(1, Date.valueOf(fechaInicio));
+                stmt.setDate(2, Date.valueOf(fechaFin));
+                stmt.setString(3, dni);
+                stmt.setInt(4, parallelism);
+                if (usercrea != null) {
+                    stmt.setInt(5, usercrea);
+                } else {
+                    stmt.setNull(5, Types.INTEGER);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    targetId = rs.getInt(1);
+                }
+            }
+        } else {
+            Job target = overlapping.get(0);
+            targetId = target.id;
+            int threads = parallelism;
+            for (Job job : overlapping) {
+                desde = job.fechaInicio.isBefore(desde) ? job.fechaInicio : desde;
+                hasta = job.fechaFin.isAfter(hasta) ? job.fechaFin : hasta;
+                threads = Math.max(threads, job.parallelism);
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "UPDATE processing_jobs SET fecha_inicio = ?, fecha_fin = ?, parallelism = ?, " +
+                    "disponible_desde = LEAST(disponible_desde, CURRENT_TIMESTAMP) WHERE id = ?")) {
+                stmt.setDate(1, Date.valueOf(desde));
+                stmt.setDate(2, Date.valueOf(hasta));
+                stmt.setInt(3, threads);
+                stmt.setInt(4, targetId);
+                stmt.executeUpdate();
+            }
+            if (overlapping.size() > 1) {
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE processing_jobs SET estado = 'FUSIONADO', fusionado_en = ?, finished_at = CURRENT_TIMESTAMP " +
+                        "WHERE id = ANY(?)")) {
+                    Integer[] ids = new Integer[overlapping.size() - 1];
+                    for (int i = 1; i < overlapping.size(); i++) {
+                        ids[i - 1] = overlapping.get(i).id;
+                    }
+                    stmt.setInt(1, targetId);
+                    stmt.setArray(2, conn.createArrayOf("integer", ids));
+                    stmt.executeUpdate();
+                }
+            }
+        }
+
+        // Uno de todos los empleados absorbe a los de un DNI que caen dentro de su rango
+        if (dni == null) {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "UPDATE processing_jobs SET estado = 'FUSIONADO', fusionado_en = ?, finished_at = CURRENT_TIMESTAMP " +
+                    "WHERE estado = 'PENDIENTE' AND dni IS NOT NULL AND fecha_inicio >= ? AND fecha_fin <= ?")) {
+                stmt.setInt(1, targetId);
+                stmt.setDate(2, Date.valueOf(desde));
+                stmt.setDate(3, Date.valueOf(hasta));
+                stmt.executeUpdate();
+            }
+        }
+        return new Enqueued(get(conn, targetId), !overlapping.isEmpty());
+    }
+
+    /**
+     * Toma el próximo trabajo disponible para este nodo (confirmado como EN_PROCESO), o null
+     */
+    public Job claim() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(CLAIM_SQL)) {
+            stmt.setString(1, nodeId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? readJob(rs) : null;
+            }
+        }
+    }
+
+    /**
+     * Devuelve a la cola (o cierra, si agotaron los intentos o se pidió cancelarlos) los
+     * trabajos en proceso cuyo nodo no late hace staleSeconds
+     *
+     * @return trabajos recuperados
+     */
+    public int recoverStale(int staleSeconds) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(RECOVER_SQL)) {
+            stmt.setInt(1, staleSeconds);
+            return stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Latido con el avance del trabajo que procesa este nodo
+     *
+     * @return si se pidió cancelarlo, o null si el trabajo ya no es de este nodo
+     */
+    public Boolean heartbeat(int id, int done, int total) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                 "UPDATE processing_jobs SET heartbeat_at = CURRENT_TIMESTAMP, progreso_hecho = ?, progreso_total = ? " +
+                 "WHERE id = ? AND nodo = ? AND estado = 'EN_PROCESO' RETURNING cancelar")) {
+            stmt.setInt(1, done);
+            stmt.setInt(2, total);
+            stmt.setInt(3, id);
+            stmt.setString(4, nodeId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getBoolean(1) : null;
+            }
+        }
+    }
+
+    public boolean complete(int id, int done, int total, String resultado) throws SQLException {
+        return finish(id, "estado = 'COMPLETADO', finished_at = CURRENT_TIMESTAMP, progreso_hecho = ?, " +
+            "progreso_total = ?, resultado = ?, error = NULL", done, total, resultado);
+    }
+
+    /**
+     * Error del intento: vuelve a la cola con espera retryDelaySeconds * 2^(intentos - 1),
+     * o queda en ERROR si agotó max_intentos
+     */
+    public boolean fail(int id, String error) throws SQLException {
+        return finish(id,
+            "estado = CASE WHEN cancelar THEN 'CANCELADO' WHEN intentos >= max_intentos THEN 'ERROR' ELSE 'PENDIENTE' END, " +
+            "finished_at = CASE WHEN cancelar OR intentos >= max_intentos THEN CURRENT_TIMESTAMP END, " +
+            "disponible_desde = CURRENT_TIMESTAMP + make_interval(secs => ? * power(2, GREATEST(intentos - 1, 0))), " +
+            "error = ?, heartbeat_at = NULL", retryDelaySeconds, error);
+    }
+
+    public boolean markCancelled(int id) throws SQLException {
+        return finish(id, "estado = 'CANCELADO', finished_at = CURRENT_TIMESTAMP");
+    }
+
+    /**
+     * Devuelve a la cola sin contar el intento (el nodo se detiene); si ya se pidió
+     * cancelarlo, queda cancelado
+     */
+    public boolean release(int id) throws SQLException {
+        return finish(id, "estado = CASE WHEN cancelar THEN 'CANCELADO' ELSE 'PENDIENTE' END, " +
+            "finished_at = CASE WHEN cancelar THEN CURRENT_TIMESTAMP END, " +
+            "intentos = GREATEST(intentos - 1, 0), heartbeat_at = NULL");
+    }
+
+    /**
+     * Cierra el trabajo de este nodo; false si ya no era suyo (otro nodo lo recuperó)
+     */
+    private boolean finish(int id, String set, Object... params) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                 "UPDATE processing_jobs SET " + set + " WHERE id = ? AND nodo = ? AND estado = 'EN_PROCESO'")) {
+            int index = 1;
+            for (Object param : params) {
+                stmt.setObject(index++, param);
+            }
+            stmt.setInt(index++, id);
+            stmt.setString(index, nodeId);
+            return stmt.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Cancela un trabajo: si está pendiente no se procesa; si está en proceso, el nodo que
+     * lo tiene lo corta en su próximo latido
+     *
+     * @return el trabajo, o null si no existe
+     */
+    public Job cancel(int id) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "UPDATE processing_jobs SET cancelar = TRUE, " +
+                    "estado = CASE WHEN estado = 'PENDIENTE' THEN 'CANCELADO' ELSE estado END, " +
+                    "finished_at = CASE WHEN estado = 'PENDIENTE' THEN CURRENT_TIMESTAMP ELSE finished_at END " +
+                    "WHERE id = ? AND estado IN ('PENDIENTE', 'EN_PROCESO')")) {
+                stmt.setInt(1, id);
+                stmt.executeUpdate();
+            }
+            return get(conn, id);
+        }
+    }
+
+    public Job get(int id) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            return get(conn, id);
+        }
+    }
+
+    private Job get(Connection conn, int id) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS + " FROM processing_jobs WHERE id = ?")) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? readJob(rs) : null;
+            }
+        }
+    }
+
+    /**
+     * Últimos trabajos, del más nuevo al más viejo
+     */
+    public List<Job> recent(int limit) throws SQLException {
+        List<Job> jobs = new ArrayList<>();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                 "SELECT " + COLUMNS + " FROM processing_jobs ORDER BY created_at DESC, id DESC LIMIT ?")) {
+            stmt.setInt(1, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    jobs.add(readJob(rs));
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * true si hay trabajos pendientes o en proceso en cualquier nodo
+     */
+    public boolean hasActive() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                 "SELECT EXISTS (SELECT 1 FROM processing_jobs WHERE estado IN ('PENDIENTE', 'EN_PROCESO'))");
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    private static Job readJob(ResultSet rs) throws SQLException {
+        Job job = new Job();
+        job.id = rs.getInt("id");
+        job.fechaInicio = rs.getDate("fecha_inicio").toLocalDate();
+        job.fechaFin = rs.getDate("fecha_fin").toLocalDate();
+        job.dni = rs.getString("dni");
+        job.parallelism = rs.getInt("parallelism");
+        job.estado = rs.getString("estado");
+        int fusionadoEn = rs.getInt("fusionado_en");
+        job.fusionadoEn = rs.wasNull() ? null : fusionadoEn;
+        job.intentos = rs.getInt("intentos");
+        job.maxIntentos = rs.getInt("max_intentos");
+        job.cancelar = rs.getBoolean("cancelar");
+        job.nodo = rs.getString("nodo");
+        job.progresoHecho = rs.getInt("progreso_hecho");
+        job.progresoTotal = rs.getInt("progreso_total");
+        job.resultado = rs.getString("resultado");
+        job.error = rs.getString("error");
+        job.createdAt = timestamp(rs, "created_at");
+        job.startedAt = timestamp(rs, "started_at");
+        job.finishedAt = timestamp(rs, "finished_at");
+        job.heartbeatAt = timestamp(rs, "heartbeat_at");
+        return job;
+    }
+
+    private static String timestamp(ResultSet rs, String column) throws SQLException {
+        Timestamp value = rs.getTimestamp(column);
+        return value != null ? value.toLocalDateTime().toString() : null;
+    }
+}
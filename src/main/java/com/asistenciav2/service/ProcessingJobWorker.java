@@ -0,0 +1,332 @@
+package com.asistenciav2.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Procesa los trabajos de processing_jobs en este nodo, uno a la vez.
+ *
+ * Cada intervalo, si no hay un trabajo corriendo, devuelve a la cola los de nodos caídos y
+ * toma el próximo ({@link ProcessingJobQueue#claim}); el cálculo corre en otro hilo y este
+ * solo late: guarda el avance que informa el motor y trae el pedido de cancelación, que el
+ * motor consulta entre fechas o particiones. Si el latido muestra que el trabajo ya no es
+ * de este nodo (otro lo recuperó por falta de latido), se corta sin tocar la fila. Al
+ * detenerse, el trabajo en curso se corta y vuelve a la cola sin contar el intento.
+ */
+public class ProcessingJobWorker {
+    private static final Logger logger = Logger.getLogger(ProcessingJobWorker.class.getName());
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** Nombre del atributo de ServletContext donde se publica la instancia */
+    public static final String CONTEXT_ATTRIBUTE = "processingJobWorker";
+
+    private final ProcessingJobQueue queue;
+    private final Runner runner;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private long pollMillis = 2000;
+    private long heartbeatMillis = 5000;
+    private int staleSeconds = 120;        // Sin latido por más tiempo, el trabajo vuelve a la cola
+
+    private volatile ScheduledExecutorService scheduler;
+    private volatile ExecutorService jobThread;
+    private volatile boolean running = false;
+    private volatile Execution current;
+    private final WorkerStatus status = new WorkerStatus();
+
+    /**
+     * Ejecuta un trabajo tomado: informa el avance y consulta la cancelación en progress
+     */
+    public interface Runner {
+        DailyAttendanceEngine.RunResult run(ProcessingJobQueue.Job job, DailyAttendanceEngine.Progress progress);
+    }
+
+    /**
+     * Trabajo en curso; el motor escribe el avance y lee la cancelación sin ir a la base
+     */
+    private static final class Execution implements DailyAttendanceEngine.Progress {
+        final ProcessingJobQueue.Job job;
+        volatile int done;
+        volatile int total;
+        volatile boolean cancelled;
+        volatile boolean lost;          // Otro nodo lo recuperó: no cerrar la fila
+        long lastBeat = System.currentTimeMillis();
+
+        Execution(ProcessingJobQueue.Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public void update(int done, int total) {
+            this.total = total;
+            this.done = done;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Estado y métricas del trabajador en este nodo
+     */
+    public static class WorkerStatus {
+        public boolean running;
+        public String nodeId;
+        public Integer currentJobId;
+        public long completed;
+        public long failed;
+        public long cancelled;
+        public long recovered;
+        public String lastJobAt;
+        public String lastError;
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("running", running);
+            map.put("nodeId", nodeId);
+            map.put("currentJobId", currentJobId != null ? String.valueOf(currentJobId) : null);
+            map.put("completed", completed);
+            map.put("failed", failed);
+            map.put("cancelled", cancelled);
+            map.put("recovered", recovered);
+            map.put("lastJobAt", lastJobAt);
+            map.put("lastError", lastError);
+            return map;
+        }
+    }
+
+    public ProcessingJobWorker(ProcessingJobQueue queue, Runner runner) {
+        this.queue = queue;
+        this.runner = runner;
+    }
+
+    public ProcessingJobQueue getQueue() {
+        return queue;
+    }
+
+    public void setPollMillis(long pollMillis) {
+        this.pollMillis = Math.max(200, pollMillis);
+    }
+
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = Math.max(500, heartbeatMillis);
+    }
+
+    public void setStaleSeconds(int staleSeconds) {
+        this.staleSeconds = Math.max(10, staleSeconds);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "processing-jobs-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        jobThread = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "processing-jobs-run");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::tick, 0, pollMillis, TimeUnit.MILLISECONDS);
+        logger.info("Cola de procesamiento iniciada en el nodo " + queue.getNodeId());
+    }
+
+    /**
+     * Corta el trabajo en curso (vuelve a la cola) y espera a que el motor lo suelte
+     */
+    public void stop() {
+        ExecutorService runningJobs;
+        synchronized (this) {
+            running = false;
+            Execution exec = current;
+            if (exec != null) {
+                exec.cancelled = true;
+            }
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            runningJobs = jobThread;
+            jobThread = null;
+        }
+        if (runningJobs != null) {
+            runningJobs.shutdown();
+            try {
+                if (!runningJobs.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warning("El trabajo en curso no terminó a tiempo; otro nodo lo retomará sin latido");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        logger.info("Cola de procesamiento detenida");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Revisa la cola enseguida (p. ej. después de encolar) en lugar de esperar el intervalo
+     */
+    public void poke() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor != null) {
+            try {
+                executor.execute(this::tick);
+            } catch (RejectedExecutionException e) {
+                // Detenido mientras tanto
+            }
+        }
+    }
+
+    /**
+     * true si este nodo está procesando el trabajo
+     */
+    public boolean isProcessing(int jobId) {
+        Execution exec = current;
+        return exec != null && exec.job.id == jobId;
+    }
+
+    /**
+     * Corta el trabajo en curso de este nodo sin esperar al próximo latido
+     */
+    public void cancelLocal(int jobId) {
+        Execution exec = current;
+        if (exec != null && exec.job.id == jobId) {
+            exec.cancelled = true;
+        }
+    }
+
+    /**
+     * Copia del estado actual
+     */
+    public Map<String, Object> getStatus() {
+        synchronized (status) {
+            status.running = running;
+            status.nodeId = queue.getNodeId();
+            Execution exec = current;
+            status.currentJobId = exec != null ? exec.job.id : null;
+            return status.toMap();
+        }
+    }
+
+    private void tick() {
+        try {
+            Execution exec = current;
+            if (exec != null) {
+                beat(exec);
+                return;
+            }
+            if (!running) {
+                return;
+            }
+            int recovered = queue.recoverStale(staleSeconds);
+            if (recovered > 0) {
+                logger.warning("Trabajos devueltos a la cola por falta de latido: " + recovered);
+                synchronized (status) {
+                    status.recovered += recovered;
+                }
+            }
+            ExecutorService executor = jobThread;
+            ProcessingJobQueue.Job job = executor != null ? queue.claim() : null;
+            if (job != null) {
+                Execution next = new Execution(job);
+                current = next;
+                try {
+                    executor.execute(() -> execute(next));
+                } catch (RejectedExecutionException e) {
+                    current = null;     // Detenido entre la toma y el envío
+                    queue.release(job.id);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error revisando la cola de procesamiento: " + e.getMessage(), e);
+            synchronized (status) {
+                status.lastError = e.getMessage();
+            }
+        }
+    }
+
+    private void beat(Execution exec) throws Exception {
+        long now = System.currentTimeMillis();
+        if (now - exec.lastBeat < heartbeatMillis) {
+            return;
+        }
+        exec.lastBeat = now;
+        Boolean cancel = queue.heartbeat(exec.job.id, exec.done, exec.total);
+        if (cancel == null) {
+            logger.warning("El trabajo " + exec.job.id + " ya no pertenece a este nodo; se corta");
+            exec.lost = true;
+            exec.cancelled = true;
+        } else if (cancel) {
+            exec.cancelled = true;
+        }
+    }
+
+    private void execute(Execution exec) {
+        ProcessingJobQueue.Job job = exec.job;
+        DailyAttendanceEngine.RunResult result;
+        try {
+            result = runner.run(job, exec);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Error procesando el trabajo " + job.id, e);
+            result = new DailyAttendanceEngine.RunResult();
+            result.failure = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        try {
+            if (exec.lost) {
+                return;
+            }
+            if (result.cancelled) {
+                if (running) {
+                    queue.markCancelled(job.id);
+                    record(s -> s.cancelled++, null);
+                } else {
+                    queue.release(job.id);
+                }
+            } else if (result.failure != null) {
+                queue.fail(job.id, result.failure);
+                record(s -> s.failed++, result.failure);
+            } else {
+                queue.complete(job.id, exec.done, exec.total, mapper.writeValueAsString(result.toMap()));
+                record(s -> s.completed++, null);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "No se pudo cerrar el trabajo " + job.id + ": " + e.getMessage(), e);
+            record(null, e.getMessage());
+        } finally {
+            current = null;
+            poke();
+        }
+    }
+
+    private void record(Consumer<WorkerStatus> update, String error) {
+        synchronized (status) {
+            if (update != null) {
+                update.accept(status);
+            }
+            status.lastJobAt = LocalDateTime.now().format(DATE_TIME_FORMATTER);
+            if (error != null) {
+                status.lastError = error;
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.asistenciav2.service;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Inserta lotes de marcaciones en punch_events en una sola transacción.
+ *
+ * Las marcaciones se cargan con COPY en una tabla temporal y luego se pasan a
+ * punch_events con INSERT ... ON CONFLICT DO NOTHING sobre la clave natural
+ * (dni, fechahora, clock_id). RETURNING da la cantidad exacta de nuevas; el resto
+ * son duplicadas. Si la conexión no es de PostgreSQL se usa JDBC batch para la carga.
+ */
+public class PunchBatchWriter {
+    private static final Logger logger = Logger.getLogger(PunchBatchWriter.class.getName());
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final java.time.ZoneId LIMA = java.time.ZoneId.of("America/Lima");
+    private static final String RELOJ_PREFIX = "reloj";
+
+    public static class Punch {
+        public String dni;
+        public String nombre;
+        public LocalDateTime fechahora;
+        public int clockId;
+        public int rawCount = 1;         // Marcaciones crudas colapsadas en esta (ver PunchDebouncer)
+        // Datos de enriquecimiento (solo para attendances)
+        public Integer userId;
+        public String tipoMarcaje;
+        public String mensaje;
+
+        public Punch(String dni, String nombre, LocalDateTime fechahora, int clockId) {
+            this.dni = dni;
+            this.nombre = nombre;
+            this.fechahora = fechahora;
+            this.clockId = clockId;
+        }
+    }
+
+    public static class Result {
+        public int staged = 0;
+        public int inserted = 0;
+        public int duplicates = 0;
+        public Punch lastInserted = null; // La más reciente de las insertadas
+        public Map<Integer, Integer> insertedByClock = new HashMap<>();
+    }
+
+    /**
+     * Escribe el lote con una conexión nueva
+     */
+    public Result write(List<Punch> punches) throws SQLException {
+        try (Connection conn = com.asistenciav2.util.DatabaseConnection.getConnection()) {
+            return write(conn, punches);
+        }
+    }
+
+    /**
+     * Escribe el lote en una transacción sobre la conexión dada
+     */
+    public Result write(Connection conn, List<Punch> punches) throws SQLException {
+        Result result = new Result();
+        if (punches.isEmpty()) {
+            return result;
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TEMP TABLE punch_events_staging (" +
+                            "dni VARCHAR(20), nombre VARCHAR(200), fechahora TIMESTAMP, clock_id INT, raw_count INT) ON COMMIT DROP");
+            }
+
+            result.staged = stage(conn, punches);
+
+            String sql = "INSERT INTO punch_events (dni, nombre, fechahora, fecha, hora, clock_id, raw_count, estado) " +
+                        "SELECT DISTINCT ON (dni, fechahora, clock_id) dni, nombre, fechahora, fechahora::date, fechahora::time, clock_id, raw_count, 1 " +
+                        "FROM punch_events_staging " +
+                        "ORDER BY dni, fechahora, clock_id " +
+                        "ON CONFLICT (dni, fechahora, clock_id) DO NOTHING " +
+                        "RETURNING dni, nombre, fechahora, clock_id";
+            try (PreparedStatement stmt = conn.prepareStatement(sql);
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    result.inserted++;
+                    LocalDateTime fechahora = rs.getTimestamp("fechahora").toLocalDateTime();
+                    if (result.lastInserted == null || fechahora.isAfter(result.lastInserted.fechahora)) {
+                        result.lastInserted = new Punch(rs.getString("dni"), rs.getString("nombre"), fechahora, rs.getInt("clock_id"));
+                    }
+                }
+            }
+
+            conn.commit();
+            result.duplicates = result.staged - result.inserted;
+            logger.info(String.format("Lote de marcaciones: %d recibidas, %d nuevas, %d duplicadas",
+                result.staged, result.inserted, result.duplicates));
+            return result;
+
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Inserta marcaciones ya enriquecidas en attendances (como sync_checker.py), en una
+     * transacción e idempotente por (dni, fechahora, reloj). fechahora se guarda en la
+     * zona de Lima; reloj es "reloj" + clockId.
+     */
+    public Result writeAttendances(List<Punch> punches) throws SQLException {
+        try (Connection conn = com.asistenciav2.util.DatabaseConnection.getConnection()) {
+            return writeAttendances(conn, punches);
+        }
+    }
+
+    public Result writeAttendances(Connection conn, List<Punch> punches) throws SQLException {
+        Result result = new Result();
+        if (punches.isEmpty()) {
+            return result;
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TEMP TABLE attendances_staging (" +
+                            "dni VARCHAR(20), nombre VARCHAR(200), fechahora TIMESTAMPTZ, reloj VARCHAR(20), " +
+                            "user_id INT, tipo_marcaje VARCHAR(20), mensaje TEXT, raw_count INT) ON COMMIT DROP");
+            }
+
+            String sql = "INSERT INTO attendances_staging (dni, nombre, fechahora, reloj, user_id, tipo_marcaje, mensaje, raw_count) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                int pending = 0;
+                for (Punch punch : punches) {
+                    stmt.setString(1, punch.dni);
+                    stmt.setString(2, punch.nombre);
+                    stmt.setObject(3, punch.fechahora.atZone(LIMA).toOffsetDateTime());
+                    stmt.setString(4, RELOJ_PREFIX + punch.clockId);
+                    if (punch.userId != null) {
+                        stmt.setInt(5, punch.userId);
+                    } else {
+                        stmt.setNull(5, Types.INTEGER);
+                    }
+                    stmt.setString(6, punch.tipoMarcaje);
+                    stmt.setString(7, punch.mensaje);
+                    stmt.setInt(8, punch.rawCount);
+                    stmt.addBatch();
+                    if (++pending == 1000) {
+                        stmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                }
+            }
+            result.staged = punches.size();
+
+            sql = "INSERT INTO attendances (dni, nombre, fechahora, fecha, hora, reloj, user_id, tipo_marcaje, mensaje, raw_count, procesado) " +
+                  "SELECT DISTINCT ON (dni, fechahora, reloj) dni, nombre, fechahora, " +
+                  "(fechahora AT TIME ZONE 'America/Lima')::date, (fechahora AT TIME ZONE 'America/Lima')::time, " +
+                  "reloj, user_id, tipo_marcaje::tipo_marcaje, mensaje, raw_count, TRUE " +
+                  "FROM attendances_staging " +
+                  "ORDER BY dni, fechahora, reloj " +
+                  "ON CONFLICT (dni, fechahora, reloj) DO NOTHING " +
+                  "RETURNING dni, nombre, fechahora, reloj";
+            try (PreparedStatement stmt = conn.prepareStatement(sql);
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    result.inserted++;
+                    int clockId = parseClockId(rs.getString("reloj"));
+                    result.insertedByClock.merge(clockId, 1, Integer::sum);
+                    LocalDateTime fechahora = rs.getObject("fechahora", java.time.OffsetDateTime.class)
+                        .atZoneSameInstant(LIMA).toLocalDateTime();
+                    if (result.lastInserted == null || fechahora.isAfter(result.lastInserted.fechahora)) {
+                        result.lastInserted = new Punch(rs.getString("dni"), rs.getString("nombre"), fechahora, clockId);
+                    }
+                }
+            }
+
+            conn.commit();
+            result.duplicates = result.staged - result.inserted;
+            return result;
+
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Lleva raw_count de canónicas ya guardadas en punch_events al total de su ráfaga,
+     * con una conexión nueva
+     */
+    public Map<Punch, Integer> addRawCounts(Map<Punch, Integer> rawCountByCanonical) throws SQLException {
+        try (Connection conn = com.asistenciav2.util.DatabaseConnection.getConnection()) {
+            return addRawCounts(conn, rawCountByCanonical);
+        }
+    }
+
+    /**
+     * Lleva raw_count de canónicas ya guardadas en punch_events al total de su ráfaga (la
+     * ráfaga siguió después de escribir el lote). Es un máximo, no una suma: aplicar dos
+     * veces el mismo total, por ejemplo al reintentar, no cambia nada.
+     *
+     * @return las que no encontraron su canónica (p. ej. todavía en el diario)
+     */
+    public Map<Punch, Integer> addRawCounts(Connection conn, Map<Punch, Integer> rawCountByCanonical) throws SQLException {
+        Map<Punch, Integer> unmatched = new HashMap<>();
+        if (rawCountByCanonical.isEmpty()) {
+            return unmatched;
+        }
+        List<Map.Entry<Punch, Integer>> entries = new ArrayList<>(rawCountByCanonical.entrySet());
+        String sql = "UPDATE punch_events SET raw_count = GREATEST(raw_count, ?) WHERE dni = ? AND fechahora = ? AND clock_id = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (Map.Entry<Punch, Integer> entry : entries) {
+                stmt.setInt(1, entry.getValue());
+                stmt.setString(2, entry.getKey().dni);
+                stmt.setTimestamp(3, Timestamp.valueOf(entry.getKey().fechahora));
+                stmt.setInt(4, entry.getKey().clockId);
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    unmatched.put(entries.get(i).getKey(), entries.get(i).getValue());
+                }
+            }
+        }
+        return unmatched;
+    }
+
+    /**
+     * Igual que {@link #addRawCounts(Map)} para attendances
+     */
+    public Map<Punch, Integer> addAttendanceRawCounts(Map<Punch, Integer> rawCountByCanonical) throws SQLException {
+        try (Connection conn = com.asistenciav2.util.DatabaseConnection.getConnection()) {
+            return addAttendanceRawCounts(conn, rawCountByCanonical);
+        }
+    }
+
+    /**
+     * Igual que {@link #addRawCounts(Connection, Map)} para attendances
+     */
+    public Map<Punch, Integer> addAttendanceRawCounts(Connection conn, Map<Punch, Integer> rawCountByCanonical) throws SQLException {
+        Map<Punch, Integer> unmatched = new HashMap<>();
+        if (rawCountByCanonical.isEmpty()) {
+            return unmatched;
+        }
+        List<Map.Entry<Punch, Integer>> entries = new ArrayList<>(rawCountByCanonical.entrySet());
+        String sql = "UPDATE attendances SET raw_count = GREATEST(raw_count, ?) WHERE dni = ? AND fechahora = ? AND reloj = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (Map.Entry<Punch, Integer> entry : entries) {
+                stmt.setInt(1, entry.getValue());
+                stmt.setString(2, entry.getKey().dni);
+                stmt.setObject(3, entry.getKey().fechahora.atZone(LIMA).toOffsetDateTime());
+                stmt.setString(4, RELOJ_PREFIX + entry.getKey().clockId);
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    unmatched.put(entries.get(i).getKey(), entries.get(i).getValue());
+                }
+            }
+        }
+        return unmatched;
+    }
+
+    private static int parseClockId(String reloj) {
+        try {
+            return Integer.parseInt(reloj.substring(RELOJ_PREFIX.length()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private int stage(Connection conn, List<Punch> punches) throws SQLException {
+        if (conn.isWrapperFor(PGConnection.class)) {
+            return copyIn(conn.unwrap(PGConnection.class), punches);
+        }
+
+        String sql = "INSERT INTO punch_events_staging (dni, nombre, fechahora, clock_id, raw_count) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (Punch punch : punches) {
+                stmt.setString(1, punch.dni);
+                stmt.setString(2, punch.nombre);
+                stmt.setTimestamp(3, Timestamp.valueOf(punch.fechahora));
+                stmt.setInt(4, punch.clockId);
+                stmt.setInt(5, punch.rawCount);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        return punches.size();
+    }
+
+    private int copyIn(PGConnection pg, List<Punch> punches) throws SQLException {
+        CopyIn copy = pg.getCopyAPI().copyIn(
+            "COPY punch_events_staging (dni, nombre, fechahora, clock_id, raw_count) FROM STDIN WITH (FORMAT csv)");
+        try {
+            StringBuilder rows = new StringBuilder(COPY_BUFFER_SIZE + 256);
+            for (Punch punch : punches) {
+                appendCsv(rows, punch.dni).append(',');
+                appendCsv(rows, punch.nombre).append(',');
+                rows.append(Timestamp.valueOf(punch.fechahora)).append(',');
+                rows.append(punch.clockId).append(',');
+                rows.append(punch.rawCount).append('\n');
+                if (rows.length() >= COPY_BUFFER_SIZE) {
+                    byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+                    copy.writeToCopy(bytes, 0, bytes.length);
+                    rows.setLength(0);
+                }
+            }
+            if (rows.length() > 0) {
+                byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+                copy.writeToCopy(bytes, 0, bytes.length);
+            }
+            return (int) copy.endCopy();
+        } finally {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+    }
+
+    private static StringBuilder appendCsv(StringBuilder out, String value) {
+        if (value == null) {
+            return out; // Campo vacío sin comillas = NULL en CSV
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        return out.append('"');
+    }
+}
@@ -0,0 +1,146 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.IntIntMap;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Arrays;
+
+/**
+ * Clasifica cada marcación (INGRESO / SALIDA / INTERMEDIO) al ingerirla, según el
+ * horario del empleado y sus marcaciones anteriores del mismo día.
+ *
+ * Las zonas son las de sync_checker.py: antes de horaini + tolerancia (+ lactancia al
+ * inicio) es zona de ingreso; desde horafin es zona de salida. Sobre eso:
+ * <ul>
+ *   <li>Solo la marcación más temprana del día en zona de ingreso queda como INGRESO;
+ *       las repetidas posteriores pasan a INTERMEDIO.</li>
+ *   <li>Con lactancia al final la zona de salida empieza minutos_diarios antes de horafin,
+ *       igual que la hora de salida esperada de procesarAsistencia.py.</li>
+ * </ul>
+ * El estado es un registro pequeño por empleado (día, primer ingreso, última salida,
+ * cantidad) en arreglos indexados por un {@link IntIntMap}; al cambiar de día se reinicia.
+ * Las marcaciones de días anteriores al del estado se clasifican solo por zona.
+ */
+public class PunchClassifier {
+    public static final String INGRESO = "INGRESO";
+    public static final String SALIDA = "SALIDA";
+    public static final String INTERMEDIO = "INTERMEDIO";
+    private static final int NONE = -1;
+
+    private final IntIntMap slotByUser = new IntIntMap(1024);
+    private int[] days = new int[1024];
+    private int[] firstIn = new int[1024];   // Segundo del día del primer INGRESO, o NONE
+    private int[] lastOut = new int[1024];   // Segundo del día de la última SALIDA, o NONE
+    private int[] counts = new int[1024];
+    private int slots = 0;
+
+    /**
+     * Datos del horario que usa la clasificación
+     */
+    public static class Schedule {
+        public LocalTime horaini;
+        public LocalTime horafin;
+        public int toleranciaMin;
+        public String modoLactancia;     // INICIO, FIN o null
+        public int minutosLactancia;
+    }
+
+    /**
+     * Clasifica y actualiza el estado del día del empleado
+     */
+    public synchronized String classify(int userId, LocalDate fecha, LocalTime hora, Schedule schedule) {
+        String zone = zoneOf(hora, schedule);
+        int day = (int) fecha.toEpochDay();
+        int slot = slotFor(userId, day);
+        if (day < days[slot]) {
+            return zone; // Marcación atrasada de otro día: sin estado
+        }
+
+        int second = hora.toSecondOfDay();
+        counts[slot]++;
+        if (INGRESO.equals(zone)) {
+            // La misma hora sigue siendo INGRESO: un lote que falló y se reintenta no pierde la etiqueta
+            if (firstIn[slot] != NONE && second > firstIn[slot]) {
+                return INTERMEDIO;
+            }
+            firstIn[slot] = second;
+        } else if (SALIDA.equals(zone)) {
+            lastOut[slot] = Math.max(lastOut[slot], second);
+        }
+        return zone;
+    }
+
+    /**
+     * Precarga el estado de un empleado (por ejemplo desde attendances al iniciar)
+     */
+    public synchronized void seed(int userId, LocalDate fecha, LocalTime primerIngreso, LocalTime ultimaSalida, int cantidad) {
+        int day = (int) fecha.toEpochDay();
+        int slot = slotFor(userId, day);
+        if (days[slot] != day) {
+            return;
+        }
+        if (primerIngreso != null) {
+            int second = primerIngreso.toSecondOfDay();
+            firstIn[slot] = firstIn[slot] == NONE ? second : Math.min(firstIn[slot], second);
+        }
+        if (ultimaSalida != null) {
+            lastOut[slot] = Math.max(lastOut[slot], ultimaSalida.toSecondOfDay());
+        }
+        counts[slot] = Math.max(counts[slot], cantidad);
+    }
+
+    public synchronized int size() {
+        return slotByUser.size();
+    }
+
+    /**
+     * Zona de la hora según el horario efectivo (con lactancia)
+     */
+    static String zoneOf(LocalTime hora, Schedule schedule) {
+        int tolerancia = schedule.toleranciaMin;
+        LocalTime salidaDesde = schedule.horafin;
+        if ("INICIO".equals(schedule.modoLactancia)) {
+            tolerancia += schedule.minutosLactancia;
+        } else if ("FIN".equals(schedule.modoLactancia) && schedule.minutosLactancia > 0) {
+            salidaDesde = salidaDesde.minusMinutes(schedule.minutosLactancia);
+        }
+        if (hora.isBefore(schedule.horaini.plusMinutes(tolerancia))) {
+            return INGRESO;
+        } else if (!hora.isBefore(salidaDesde)) {
+            return SALIDA;
+        }
+        return INTERMEDIO;
+    }
+
+    /**
+     * Casillero del empleado; si el día es posterior al guardado, lo reinicia
+     */
+    private int slotFor(int userId, int day) {
+        int slot = slotByUser.get(userId, NONE);
+        if (slot == NONE) {
+            slot = slots++;
+            ensureCapacity(slots);
+            slotByUser.put(userId, slot);
+            days[slot] = Integer.MIN_VALUE;
+        }
+        if (day > days[slot]) {
+            days[slot] = day;
+            firstIn[slot] = NONE;
+            lastOut[slot] = NONE;
+            counts[slot] = 0;
+        }
+        return slot;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= days.length) {
+            return;
+        }
+        int capacity = Math.max(required, days.length * 2);
+        days = Arrays.copyOf(days, capacity);
+        firstIn = Arrays.copyOf(firstIn, capacity);
+        lastOut = Arrays.copyOf(lastOut, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+    }
+}
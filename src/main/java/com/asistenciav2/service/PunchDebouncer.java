@@ -0,0 +1,168 @@
+package com.asistenciav2.service;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Colapsa las ráfagas de marcaciones (el empleado pone el dedo dos o tres veces en
+ * pocos segundos) en una sola marcación canónica por (dni, reloj).
+ *
+ * La canónica es la primera de la ráfaga; una marcación pertenece a la ráfaga si llega
+ * a lo sumo windowSeconds después de la anterior de la misma ráfaga. Las colapsadas no
+ * se guardan: solo suman a raw_count de la canónica, para auditoría.
+ *
+ * Uso con estado ({@link #offer}): la ráfaga puede cruzar lotes. Mientras la canónica
+ * está en el lote en armado se actualiza su rawCount; si el lote ya se envió, el
+ * llamador recibe la canónica y el total de la ráfaga para llevarlo a la BD después de
+ * guardarla. El total es absoluto y solo cuenta marcaciones posteriores a la última de
+ * la ráfaga, así que volver a ofrecer las mismas marcaciones (un lote que falló y se
+ * vuelve a descargar) no lo cambia.
+ */
+public class PunchDebouncer {
+    private final int windowSeconds;
+    private final Map<String, Burst> bursts = new HashMap<>();
+    private int generation = 0;
+    private PunchBatchWriter.Punch lastCanonical;
+    private int lastRawCount;
+
+    private static final class Burst {
+        PunchBatchWriter.Punch canonical;
+        long canonicalEpoch;
+        long lastEpoch;
+        int rawCount;   // Total de la ráfaga (la canónica enviada no se modifica)
+        int generation;
+    }
+
+    /**
+     * Resultado de {@link #offer}
+     */
+    public enum Outcome {
+        KEEP,            // Marcación nueva: se guarda
+        MERGED,          // Colapsada en una canónica del lote en armado (ya se sumó a rawCount)
+        MERGED_SENT      // Colapsada en una canónica ya enviada: falta llevar lastRawCount() a la BD
+    }
+
+    public PunchDebouncer(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    public boolean isEnabled() {
+        return windowSeconds > 0;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Marca el comienzo de un lote nuevo: las canónicas anteriores ya se enviaron
+     */
+    public void nextBatch() {
+        generation++;
+    }
+
+    /**
+     * Decide si la marcación se guarda o se colapsa. Con MERGED y MERGED_SENT la canónica
+     * y el total de su ráfaga quedan en {@link #lastCanonical()} y {@link #lastRawCount()}
+     * hasta la próxima llamada.
+     */
+    public Outcome offer(PunchBatchWriter.Punch punch) {
+        if (windowSeconds <= 0) {
+            return Outcome.KEEP;
+        }
+        long epoch = punch.fechahora.toEpochSecond(ZoneOffset.UTC);
+        String key = key(punch);
+        Burst burst = bursts.get(key);
+        if (burst != null && epoch == burst.canonicalEpoch) {
+            // La misma marcación otra vez (la descarta ON CONFLICT): no es ráfaga, lleva el total
+            punch.rawCount = Math.max(punch.rawCount, burst.rawCount);
+            return Outcome.KEEP;
+        }
+        if (burst != null && Math.abs(epoch - burst.lastEpoch) <= windowSeconds && epoch >= burst.canonicalEpoch) {
+            if (epoch > burst.lastEpoch) {
+                // Solo una marcación posterior es nueva; las demás ya se contaron (reintento)
+                burst.rawCount++;
+                burst.lastEpoch = epoch;
+            }
+            lastCanonical = burst.canonical;
+            lastRawCount = burst.rawCount;
+            if (burst.generation == generation) {
+                burst.canonical.rawCount = burst.rawCount;
+                return Outcome.MERGED;
+            }
+            return Outcome.MERGED_SENT;
+        }
+        if (burst != null && epoch < burst.canonicalEpoch) {
+            return Outcome.KEEP; // Llegó desordenada y antes de la ráfaga actual: no la toca
+        }
+        if (burst == null) {
+            burst = new Burst();
+            bursts.put(key, burst);
+        }
+        burst.canonical = punch;
+        burst.canonicalEpoch = epoch;
+        burst.lastEpoch = epoch;
+        burst.rawCount = punch.rawCount;
+        burst.generation = generation;
+        return Outcome.KEEP;
+    }
+
+    public PunchBatchWriter.Punch lastCanonical() {
+        return lastCanonical;
+    }
+
+    /**
+     * raw_count total de la ráfaga de {@link #lastCanonical()}
+     */
+    public int lastRawCount() {
+        return lastRawCount;
+    }
+
+    /**
+     * true si la marcación es la canónica de una ráfaga que todavía puede crecer: una
+     * marcación a la hora epochSecond (o anterior) aún caería dentro de la ventana
+     */
+    public boolean isOpen(PunchBatchWriter.Punch canonical, long epochSecond) {
+        Burst burst = bursts.get(key(canonical));
+        return burst != null && burst.canonical == canonical && epochSecond <= burst.lastEpoch + windowSeconds;
+    }
+
+    /**
+     * Colapsa las ráfagas dentro de una lista completa (sin estado entre llamadas).
+     * Devuelve las canónicas con rawCount actualizado, en el orden original.
+     */
+    public static List<PunchBatchWriter.Punch> collapse(List<PunchBatchWriter.Punch> punches, int windowSeconds) {
+        if (windowSeconds <= 0 || punches.size() < 2) {
+            return punches;
+        }
+        List<PunchBatchWriter.Punch> sorted = new ArrayList<>(punches);
+        sorted.sort(Comparator.comparing((PunchBatchWriter.Punch p) -> p.dni)
+            .thenComparingInt(p -> p.clockId)
+            .thenComparing(p -> p.fechahora));
+        PunchDebouncer debouncer = new PunchDebouncer(windowSeconds);
+        Set<PunchBatchWriter.Punch> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PunchBatchWriter.Punch punch : sorted) {
+            if (debouncer.offer(punch) == Outcome.KEEP) {
+                kept.add(punch);
+            }
+        }
+        List<PunchBatchWriter.Punch> result = new ArrayList<>(kept.size());
+        for (PunchBatchWriter.Punch punch : punches) {
+            if (kept.contains(punch)) {
+                result.add(punch);
+            }
+        }
+        return result;
+    }
+
+    private static String key(PunchBatchWriter.Punch punch) {
+        return punch.dni + "@" + punch.clockId;
+    }
+}
@@ -0,0 +1,261 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Completa las marcaciones descargadas con los datos que calculaba sync_checker.py
+ * por cada registro: usuario (users.id y nombre completo), tipo_marcaje y mensaje.
+ *
+ * En lugar de cuatro consultas por marcación, {@link #load()} actualiza el
+ * {@link UserDirectory} (solo los usuarios modificados) y lee una vez asignaciones
+ * vigentes con su horario, horarios de lactancia y el calendario;
+ * {@link #enrich(PunchBatchWriter.Punch)} trabaja solo en memoria. El tipo de marcaje lo
+ * decide {@link PunchClassifier}, que recuerda las marcaciones anteriores del día.
+ */
+public class PunchEnricher {
+    private static final Logger logger = Logger.getLogger(PunchEnricher.class.getName());
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final int DEFAULT_TOLERANCE = 15;
+    private static final int DEFAULT_LACTATION_MINUTES = 60;
+
+    static final class Assignment {
+        LocalDate fechaini;
+        LocalDate fechafin;   // null = vigente
+        String cargo;
+        LocalTime horaini;
+        LocalTime horafin;
+        int tolerancia;
+
+        boolean covers(LocalDate fecha) {
+            return !fechaini.isAfter(fecha) && (fechafin == null || !fechafin.isBefore(fecha));
+        }
+    }
+
+    static final class Lactation {
+        LocalDate desde;
+        LocalDate hasta;
+        String modo;
+        int minutos;
+
+        boolean covers(LocalDate fecha) {
+            return !desde.isAfter(fecha) && !hasta.isBefore(fecha);
+        }
+    }
+
+    static final class CalendarDay {
+        final int estado;
+        final String descripcion;
+
+        CalendarDay(int estado, String descripcion) {
+            this.estado = estado;
+            this.descripcion = descripcion;
+        }
+    }
+
+    private final UserDirectory directory;
+    private final PunchClassifier classifier = new PunchClassifier();
+    private volatile Map<Integer, List<Assignment>> assignmentsByUser = Collections.emptyMap();
+    private volatile Map<Integer, List<Lactation>> lactationsByUser = Collections.emptyMap();
+    private volatile Map<LocalDate, CalendarDay> calendar = Collections.emptyMap();
+    private volatile long loadedAt = 0;
+
+    public PunchEnricher(UserDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Carga los datos de referencia desde la base de datos
+     */
+    public void load() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            load(conn);
+        }
+    }
+
+    /**
+     * Carga los datos de referencia si nunca se cargaron o tienen más de maxAgeMillis
+     */
+    public synchronized void loadIfStale(long maxAgeMillis) throws SQLException {
+        if (System.currentTimeMillis() - loadedAt >= maxAgeMillis) {
+            load();
+        }
+    }
+
+    public synchronized void load(Connection conn) throws SQLException {
+        directory.refresh(conn);
+
+        Map<Integer, List<Assignment>> assignments = new HashMap<>();
+        String sql = "SELECT ja.user_id, ja.cargo, ja.fechaini, ja.fechafin, ws.horaini, ws.horafin, ws.tolerancia_min " +
+              "FROM jobassignments ja " +
+              "INNER JOIN workschedules ws ON ja.workschedule_id = ws.id " +
+              "WHERE ja.estado = 1 AND ws.estado = 1 " +
+              "ORDER BY ja.user_id, ja.fechaini DESC";
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                Assignment assignment = new Assignment();
+                assignment.cargo = rs.getString("cargo");
+                assignment.fechaini = rs.getDate("fechaini").toLocalDate();
+                Date fechafin = rs.getDate("fechafin");
+                assignment.fechafin = fechafin != null ? fechafin.toLocalDate() : null;
+                assignment.horaini = rs.getTime("horaini").toLocalTime();
+                assignment.horafin = rs.getTime("horafin").toLocalTime();
+                int tolerancia = rs.getInt("tolerancia_min");
+                assignment.tolerancia = rs.wasNull() || tolerancia == 0 ? DEFAULT_TOLERANCE : tolerancia;
+                assignments.computeIfAbsent(rs.getInt("user_id"), k -> new ArrayList<>()).add(assignment);
+            }
+        }
+
+        // Ventana efectiva = intersección del permiso de lactancia (tipo 2) y su horario
+        Map<Integer, List<Lactation>> lactations = new HashMap<>();
+        sql = "SELECT p.user_id, ls.modo, ls.minutos_diarios, " +
+              "GREATEST(p.fechaini, ls.fecha_desde) AS desde, LEAST(p.fechafin, ls.fecha_hasta) AS hasta " +
+              "FROM permissions p " +
+              "INNER JOIN permissiontypes pt ON p.permissiontype_id = pt.id " +
+              "INNER JOIN lactation_schedules ls ON p.id = ls.permission_id " +
+              "WHERE p.estado = 1 AND pt.id = 2 AND ls.estado = 1 " +
+              "ORDER BY p.user_id, ls.fecha_desde DESC";
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                Lactation lactation = new Lactation();
+                String modo = rs.getString("modo");
+                lactation.modo = modo != null ? modo : "INICIO";
+                int minutos = rs.getInt("minutos_diarios");
+                lactation.minutos = rs.wasNull() || minutos == 0 ? DEFAULT_LACTATION_MINUTES : minutos;
+                lactation.desde = rs.getDate("desde").toLocalDate();
+                lactation.hasta = rs.getDate("hasta").toLocalDate();
+                lactations.computeIfAbsent(rs.getInt("user_id"), k -> new ArrayList<>()).add(lactation);
+            }
+        }
+
+        Map<LocalDate, CalendarDay> days = new HashMap<>();
+        sql = "SELECT fecha, estado, descripcion FROM calendardays";
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                days.put(rs.getDate("fecha").toLocalDate(), new CalendarDay(rs.getInt("estado"), rs.getString("descripcion")));
+            }
+        }
+
+        assignmentsByUser = assignments;
+        lactationsByUser = lactations;
+        calendar = days;
+        loadedAt = System.currentTimeMillis();
+        seedClassifier(conn);
+        logger.info(String.format("Datos de referencia para la ingesta: %d usuarios, %d con asignación, %d con lactancia, %d días de calendario",
+            directory.size(), assignments.size(), lactations.size(), days.size()));
+    }
+
+    /**
+     * Aplica las mismas reglas que process_attendance de sync_checker.py
+     */
+    public void enrich(PunchBatchWriter.Punch punch) {
+        LocalDate fecha = punch.fechahora.toLocalDate();
+        CalendarDay day = calendar.get(fecha);
+        UserDirectory.Entry user = directory.lookup(punch.dni);
+
+        if (day == null || day.estado != 1) {
+            String descripcion = day == null ? "Fecha no encontrada en calendario"
+                : (day.descripcion != null ? day.descripcion : "Día no laborable");
+            punch.userId = user != null ? user.userId : null;
+            punch.nombre = user != null ? user.nombre : "";
+            punch.tipoMarcaje = null;
+            punch.mensaje = "Día no laborable - " + descripcion;
+            return;
+        }
+        if (user == null) {
+            punch.userId = null;
+            punch.nombre = "";
+            punch.tipoMarcaje = null;
+            punch.mensaje = "Usuario no encontrado en sistema";
+            return;
+        }
+
+        punch.userId = user.userId;
+        punch.nombre = user.nombre;
+        Assignment job = findAssignment(user.userId, fecha);
+        if (job == null) {
+            punch.tipoMarcaje = "INTERMEDIO";
+            punch.mensaje = "Sin job assignment activo";
+            return;
+        }
+        PunchClassifier.Schedule schedule = new PunchClassifier.Schedule();
+        schedule.horaini = job.horaini;
+        schedule.horafin = job.horafin;
+        schedule.toleranciaMin = job.tolerancia;
+        Lactation lactation = findLactation(user.userId, fecha);
+        if (lactation != null) {
+            schedule.modoLactancia = lactation.modo;
+            schedule.minutosLactancia = lactation.minutos;
+        }
+        punch.tipoMarcaje = classifier.classify(user.userId, fecha, punch.fechahora.toLocalTime(), schedule);
+        punch.mensaje = "Cargo: " + job.cargo + " | Horario: "
+            + job.horaini.format(TIME_FORMATTER) + "-" + job.horafin.format(TIME_FORMATTER);
+    }
+
+    /**
+     * Primer ingreso y última salida ya guardados hoy, para que un reinicio no vuelva a
+     * marcar como INGRESO una marcación posterior
+     */
+    private void seedClassifier(Connection conn) {
+        String sql = "SELECT user_id, fecha, " +
+                    "MIN(hora) FILTER (WHERE tipo_marcaje = 'INGRESO') AS first_in, " +
+                    "MAX(hora) FILTER (WHERE tipo_marcaje = 'SALIDA') AS last_out, " +
+                    "COUNT(*) AS nummarca " +
+                    "FROM attendances WHERE fecha = CURRENT_DATE AND user_id IS NOT NULL AND estado = 1 " +
+                    "GROUP BY user_id, fecha";
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                Time firstIn = rs.getTime("first_in");
+                Time lastOut = rs.getTime("last_out");
+                classifier.seed(rs.getInt("user_id"), rs.getDate("fecha").toLocalDate(),
+                    firstIn != null ? firstIn.toLocalTime() : null,
+                    lastOut != null ? lastOut.toLocalTime() : null, rs.getInt("nummarca"));
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "No se pudieron leer las marcaciones de hoy: " + e.getMessage(), e);
+        }
+    }
+
+    private Assignment findAssignment(int userId, LocalDate fecha) {
+        List<Assignment> list = assignmentsByUser.get(userId);
+        if (list != null) {
+            for (Assignment assignment : list) { // Ordenadas por fechaini DESC
+                if (assignment.covers(fecha)) {
+                    return assignment;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Lactation findLactation(int userId, LocalDate fecha) {
+        List<Lactation> list = lactationsByUser.get(userId);
+        if (list != null) {
+            for (Lactation lactation : list) {
+                if (lactation.covers(fecha)) {
+                    return lactation;
+                }
+            }
+        }
+        return null;
+    }
+
+    public int getUserCount() {
+        return directory.size();
+    }
+}
@@ -0,0 +1,571 @@
+package com.asistenciav2.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Diario de marcaciones en disco, de solo agregado y mapeado en memoria.
+ *
+ * Las marcaciones descargadas se escriben primero aquí y se confirman con fsync en
+ * grupo (el primer hilo que espera hace el force() por todos los que escribieron
+ * antes). Un hilo de fondo las pasa a la BD en lotes grandes con {@link PunchBatchWriter}:
+ * a punch_events o, con {@link Target#ATTENDANCES}, ya enriquecidas a attendances. Como
+ * ambas inserciones son idempotentes, reintentar un lote tras una caída no duplica
+ * nada. El avance se guarda en un archivo checkpoint y los segmentos ya drenados se borran.
+ *
+ * Formato de cada segmento: registros [longitud int][crc32 int][datos], terminados
+ * por longitud 0 (fin de datos) o -1 (continúa en el siguiente segmento).
+ */
+public class PunchJournal implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(PunchJournal.class.getName());
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int DRAIN_BATCH_SIZE = 5000;
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "punches-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final Map<Path, PunchJournal> OPEN_JOURNALS = new ConcurrentHashMap<>();
+
+    /**
+     * Tabla a la que se drena el diario
+     */
+    public enum Target { PUNCH_EVENTS, ATTENDANCES }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final PunchBatchWriter writer;
+    private final Target target;
+
+    // Escritura (protegida por this)
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private final List<MappedByteBuffer> unflushed = new ArrayList<>();
+
+    // Confirmación en grupo (protegida por flushLock)
+    private final Object flushLock = new Object();
+    private long durablePosition;
+    private boolean flushing = false;
+
+    // Drenado
+    private long checkpoint;
+    private long readSegment = -1;             // Segmento mapeado para lectura (solo el drenado)
+    private MappedByteBuffer readBuffer;
+    private final Object drainSignal = new Object();
+    private volatile boolean running = false;
+    private Thread drainer;
+    private volatile long drainedRecords = 0;
+    private volatile long drainFailures = 0;
+    private volatile String lastDrainError;
+
+    // Repeticiones en vivo cuya canónica todavía no salió del diario (protegido por heldRawCounts)
+    private static final long HELD_RAW_COUNT_MILLIS = 60000;
+    private final Map<String, HeldRawCount> heldRawCounts = new HashMap<>();
+    private volatile long droppedRawCounts = 0;
+
+    private static final class HeldRawCount {
+        final PunchBatchWriter.Punch canonical;
+        final long since = System.currentTimeMillis();
+        int rawCount;    // Total de la ráfaga (ver PunchDebouncer)
+
+        HeldRawCount(PunchBatchWriter.Punch canonical) {
+            this.canonical = canonical;
+        }
+    }
+
+    /**
+     * Abre (o reutiliza) el diario de punch_events de un directorio; el drenado empieza de inmediato
+     */
+    public static PunchJournal open(Path directory) throws IOException {
+        return open(directory, Target.PUNCH_EVENTS);
+    }
+
+    /**
+     * Abre (o reutiliza) el diario de un directorio que drena a la tabla indicada
+     */
+    public static PunchJournal open(Path directory, Target target) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (OPEN_JOURNALS) {
+            PunchJournal journal = OPEN_JOURNALS.get(key);
+            if (journal != null && journal.target != target) {
+                throw new IOException("El diario de " + key + " ya está abierto para " + journal.target);
+            }
+            if (journal == null) {
+                journal = new PunchJournal(key, DEFAULT_SEGMENT_SIZE, new PunchBatchWriter(), target);
+                journal.startDrainer();
+                OPEN_JOURNALS.put(key, journal);
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * Cierra todos los diarios abiertos (al detener la aplicación)
+     */
+    public static void closeAll() {
+        synchronized (OPEN_JOURNALS) {
+            for (PunchJournal journal : OPEN_JOURNALS.values()) {
+                journal.close();
+            }
+            OPEN_JOURNALS.clear();
+        }
+    }
+
+    PunchJournal(Path directory, int segmentSize, PunchBatchWriter writer) throws IOException {
+        this(directory, segmentSize, writer, Target.PUNCH_EVENTS);
+    }
+
+    PunchJournal(Path directory, int segmentSize, PunchBatchWriter writer, Target target) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.writer = writer;
+        this.target = target;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Agrega las marcaciones al diario y espera a que estén en disco
+     */
+    public void append(List<PunchBatchWriter.Punch> punches) throws IOException {
+        if (punches.isEmpty()) {
+            return;
+        }
+        long end;
+        synchronized (this) {
+            for (PunchBatchWriter.Punch punch : punches) {
+                writeRecord(encode(punch));
+            }
+            end = position(writeSegment, writeBuffer.position());
+        }
+        awaitDurable(end);
+        synchronized (drainSignal) {
+            drainSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Retiene el raw_count total de canónicas que todavía no están en la BD (siguen en el
+     * diario o la BD no responde); se aplica cuando el drenado las escribe
+     */
+    public void holdRawCounts(Map<PunchBatchWriter.Punch, Integer> rawCountByCanonical) {
+        synchronized (heldRawCounts) {
+            for (Map.Entry<PunchBatchWriter.Punch, Integer> entry : rawCountByCanonical.entrySet()) {
+                PunchBatchWriter.Punch canonical = entry.getKey();
+                String key = canonical.dni + "|" + canonical.fechahora + "|" + canonical.clockId;
+                HeldRawCount held = heldRawCounts.computeIfAbsent(key, k -> new HeldRawCount(canonical));
+                held.rawCount = Math.max(held.rawCount, entry.getValue());
+            }
+        }
+        synchronized (drainSignal) {
+            drainSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Estado del diario para monitoreo
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("directory", directory.toString());
+        status.put("target", target.name().toLowerCase());
+        status.put("pendingBytes", pendingBytes());
+        status.put("drainedRecords", drainedRecords);
+        status.put("drainFailures", drainFailures);
+        synchronized (heldRawCounts) {
+            status.put("heldRawCounts", heldRawCounts.size());
+        }
+        status.put("droppedRawCounts", droppedRawCounts);
+        status.put("lastDrainError", lastDrainError);
+        status.put("running", running);
+        return status;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        synchronized (drainSignal) {
+            drainSignal.notifyAll();
+        }
+        if (drainer != null) {
+            drainer.interrupt();
+            try {
+                drainer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (writeBuffer != null) {
+                writeBuffer.force();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- escritura
+
+    private void writeRecord(byte[] payload) throws IOException {
+        int needed = RECORD_HEADER + payload.length + 4; // + espacio para el marcador final
+        if (needed > segmentSize) {
+            throw new IOException("Marcación demasiado grande para el diario: " + payload.length + " bytes");
+        }
+        if (writeBuffer.remaining() < needed) {
+            // Marcar el salto y continuar en un segmento nuevo
+            writeBuffer.putInt(writeBuffer.position(), -1);
+            unflushed.add(writeBuffer);
+            writeSegment++;
+            writeBuffer = map(writeSegment, FileChannel.MapMode.READ_WRITE);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int start = writeBuffer.position();
+        writeBuffer.position(start + 4);
+        writeBuffer.putInt((int) crc.getValue());
+        writeBuffer.put(payload);
+        writeBuffer.putInt(start, payload.length); // La longitud al final: un registro a medias no es visible
+    }
+
+    private void awaitDurable(long end) throws IOException {
+        while (true) {
+            synchronized (flushLock) {
+                if (durablePosition >= end) {
+                    return;
+                }
+                if (flushing) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Espera de confirmación interrumpida", e);
+                    }
+                    continue;
+                }
+                flushing = true;
+            }
+
+            // Este hilo confirma todo lo escrito hasta ahora, incluido lo de otros hilos
+            long target;
+            List<MappedByteBuffer> toFlush;
+            MappedByteBuffer current;
+            synchronized (this) {
+                target = position(writeSegment, writeBuffer.position());
+                toFlush = new ArrayList<>(unflushed);
+                unflushed.clear();
+                current = writeBuffer;
+            }
+            try {
+                for (MappedByteBuffer buffer : toFlush) {
+                    buffer.force();
+                }
+                current.force();
+            } finally {
+                synchronized (flushLock) {
+                    flushing = false;
+                    durablePosition = Math.max(durablePosition, target);
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(PunchBatchWriter.Punch punch) {
+        byte[] dni = punch.dni.getBytes(StandardCharsets.UTF_8);
+        byte[] nombre = punch.nombre != null ? punch.nombre.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] tipoMarcaje = punch.tipoMarcaje != null ? punch.tipoMarcaje.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] mensaje = punch.mensaje != null ? punch.mensaje.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer buffer = ByteBuffer.allocate(2 + dni.length + 2 + nombre.length + 8 + 4 + 4
+            + 1 + 4 + 2 + tipoMarcaje.length + 2 + mensaje.length);
+        buffer.putShort((short) dni.length).put(dni);
+        buffer.putShort((short) (punch.nombre != null ? nombre.length : -1)).put(nombre);
+        buffer.putLong(punch.fechahora.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(punch.clockId);
+        buffer.putInt(punch.rawCount);
+        // Datos del enriquecimiento (solo los usa el diario de attendances)
+        buffer.put((byte) (punch.userId != null ? 1 : 0)).putInt(punch.userId != null ? punch.userId : 0);
+        buffer.putShort((short) (punch.tipoMarcaje != null ? tipoMarcaje.length : -1)).put(tipoMarcaje);
+        buffer.putShort((short) (punch.mensaje != null ? mensaje.length : -1)).put(mensaje);
+        return buffer.array();
+    }
+
+    private static PunchBatchWriter.Punch decode(ByteBuffer buffer, int length) {
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        ByteBuffer data = ByteBuffer.wrap(payload);
+        byte[] dni = new byte[data.getShort()];
+        data.get(dni);
+        String nombre = getString(data);
+        LocalDateTime fechahora = LocalDateTime.ofEpochSecond(data.getLong(), 0, ZoneOffset.UTC);
+        PunchBatchWriter.Punch punch = new PunchBatchWriter.Punch(new String(dni, StandardCharsets.UTF_8), nombre, fechahora, data.getInt());
+        if (data.remaining() >= 4) {
+            punch.rawCount = data.getInt(); // Los registros anteriores a raw_count no lo traen
+        }
+        if (data.hasRemaining()) {
+            boolean hasUser = data.get() == 1;
+            int userId = data.getInt();
+            punch.userId = hasUser ? userId : null;
+            punch.tipoMarcaje = getString(data);
+            punch.mensaje = getString(data);
+        }
+        return punch;
+    }
+
+    private static String getString(ByteBuffer data) {
+        short length = data.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---------------------------------------------------------------- drenado
+
+    private void startDrainer() {
+        running = true;
+        drainer = new Thread(this::drainLoop, "punch-journal-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private void drainLoop() {
+        long backoff = 1000;
+        while (running) {
+            try {
+                List<PunchBatchWriter.Punch> batch = new ArrayList<>();
+                long next = readBatch(checkpoint, batch);
+                if (batch.isEmpty()) {
+                    if (next != checkpoint) {
+                        advanceCheckpoint(next); // Solo saltos de segmento
+                        continue;
+                    }
+                    applyHeldRawCounts(true);
+                    synchronized (drainSignal) {
+                        drainSignal.wait(1000);
+                    }
+                    continue;
+                }
+
+                if (target == Target.ATTENDANCES) {
+                    writer.writeAttendances(batch);
+                } else {
+                    writer.write(batch);
+                }
+                drainedRecords += batch.size();
+                advanceCheckpoint(next);
+                applyHeldRawCounts(false);
+                backoff = 1000;
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (SQLException | IOException e) {
+                drainFailures++;
+                lastDrainError = e.getMessage();
+                logger.log(Level.WARNING, "No se pudo drenar el diario de marcaciones, se reintenta en "
+                    + (backoff / 1000) + " s: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff = Math.min(backoff * 2, 30000);
+            }
+        }
+    }
+
+    /**
+     * Aplica los raw_count retenidos cuya canónica ya está en la BD.
+     * Con el diario vacío, las que siguen sin canónica después de HELD_RAW_COUNT_MILLIS
+     * se descartan: la canónica no llegó por este diario.
+     */
+    private void applyHeldRawCounts(boolean drained) throws SQLException {
+        List<HeldRawCount> snapshot;
+        Map<PunchBatchWriter.Punch, Integer> applied = new HashMap<>();
+        synchronized (heldRawCounts) {
+            if (heldRawCounts.isEmpty()) {
+                return;
+            }
+            snapshot = new ArrayList<>(heldRawCounts.values());
+            for (HeldRawCount held : snapshot) {
+                applied.put(held.canonical, held.rawCount);
+            }
+        }
+
+        Map<PunchBatchWriter.Punch, Integer> unmatched = target == Target.ATTENDANCES
+            ? writer.addAttendanceRawCounts(applied)
+            : writer.addRawCounts(applied);
+
+        long limit = System.currentTimeMillis() - HELD_RAW_COUNT_MILLIS;
+        int dropped = 0;
+        synchronized (heldRawCounts) {
+            for (HeldRawCount held : snapshot) {
+                String key = held.canonical.dni + "|" + held.canonical.fechahora + "|" + held.canonical.clockId;
+                if (!unmatched.containsKey(held.canonical)) {
+                    if (held.rawCount <= applied.get(held.canonical)) { // Si creció mientras tanto, queda
+                        heldRawCounts.remove(key);
+                    }
+                } else if (drained && held.since < limit) {
+                    heldRawCounts.remove(key);
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            droppedRawCounts += dropped;
+            logger.warning("raw_count descartados sin canónica en " + target.name().toLowerCase() + ": " + dropped);
+        }
+    }
+
+    /**
+     * Lee hasta DRAIN_BATCH_SIZE registros confirmados desde la posición dada
+     *
+     * @return posición siguiente al último registro leído
+     */
+    private long readBatch(long from, List<PunchBatchWriter.Punch> out) throws IOException {
+        long durable;
+        synchronized (flushLock) {
+            durable = durablePosition;
+        }
+        long segment = segmentOf(from);
+        int offset = offsetOf(from);
+        if (from >= durable) {
+            return from;
+        }
+
+        if (segment != readSegment) {
+            // Un solo mapeo por segmento; el anterior queda para el GC
+            readBuffer = map(segment, FileChannel.MapMode.READ_ONLY);
+            readSegment = segment;
+        }
+        MappedByteBuffer buffer = readBuffer;
+        while (out.size() < DRAIN_BATCH_SIZE && position(segment, offset) < durable) {
+            int length = buffer.getInt(offset);
+            if (length == -1 || (length == 0 && segment < segmentOf(durable))) {
+                return position(segment + 1, 0);
+            }
+            if (length <= 0) {
+                break;
+            }
+            buffer.position(offset + RECORD_HEADER);
+            out.add(decode(buffer, length));
+            offset += RECORD_HEADER + length;
+        }
+        return position(segment, offset);
+    }
+
+    private void advanceCheckpoint(long next) throws IOException {
+        long previousSegment = segmentOf(checkpoint);
+        checkpoint = next;
+        Path tmp = directory.resolve("checkpoint.tmp");
+        Files.write(tmp, Long.toString(next).getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, directory.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Soltar el mapeo de lectura y borrar los segmentos ya drenados
+        if (readSegment >= 0 && readSegment < segmentOf(next)) {
+            readBuffer = null;
+            readSegment = -1;
+        }
+        for (long segment = previousSegment; segment < segmentOf(next); segment++) {
+            Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    private long pendingBytes() {
+        long durable;
+        synchronized (flushLock) {
+            durable = durablePosition;
+        }
+        long pending = 0;
+        for (long segment = segmentOf(checkpoint); segment <= segmentOf(durable); segment++) {
+            long start = segment == segmentOf(checkpoint) ? offsetOf(checkpoint) : 0;
+            long end = segment == segmentOf(durable) ? offsetOf(durable) : segmentSize;
+            pending += Math.max(0, end - start);
+        }
+        return pending;
+    }
+
+    // ---------------------------------------------------------------- recuperación
+
+    /**
+     * Carga el checkpoint y ubica el final válido del último segmento (verificando CRC)
+     */
+    private void recover() throws IOException {
+        Path checkpointFile = directory.resolve("checkpoint");
+        checkpoint = Files.exists(checkpointFile)
+            ? Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim())
+            : 0;
+
+        long lastSegment = segmentOf(checkpoint);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long segment = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                lastSegment = Math.max(lastSegment, segment);
+            }
+        }
+
+        writeSegment = lastSegment;
+        writeBuffer = map(writeSegment, FileChannel.MapMode.READ_WRITE);
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        while (offset + RECORD_HEADER <= segmentSize) {
+            int length = writeBuffer.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER + length + 4 > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            writeBuffer.get(offset + RECORD_HEADER, payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != writeBuffer.getInt(offset + 4)) {
+                logger.warning("Registro incompleto al final del diario en " + segmentPath(writeSegment) + ":" + offset);
+                break;
+            }
+            offset += RECORD_HEADER + length;
+        }
+        // Limpiar lo que quede de un registro a medias
+        writeBuffer.putInt(offset, 0);
+        writeBuffer.position(offset);
+        durablePosition = position(writeSegment, offset);
+
+        if (durablePosition > checkpoint) {
+            logger.info("Diario de marcaciones con " + pendingBytes() + " bytes pendientes de drenar");
+        }
+    }
+
+    private MappedByteBuffer map(long segment, FileChannel.MapMode mode) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(mode, 0, segmentSize);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static long position(long segment, int offset) {
+        return (segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+}
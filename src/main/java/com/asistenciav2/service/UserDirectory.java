@@ -0,0 +1,258 @@
+package com.asistenciav2.service;
+
+import com.asistenciav2.util.DatabaseConnection;
+import com.asistenciav2.util.IntIntMap;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Índice en memoria del id de usuario del reloj a los datos del usuario: users.id,
+ * dni, nombre para mostrar y asignaciones vigentes.
+ *
+ * El reloj guarda el DNI como número (sync_checker.py lo completa con zfill(8)), así que
+ * la clave es ese número. Los datos viven en arreglos paralelos indexados por un
+ * casillero; dos {@link IntIntMap} llevan id del reloj → casillero y users.id → casillero.
+ * La primera carga lee todo; después {@link #refresh()} solo relee los usuarios cuyo
+ * users.updated_at o jobassignments.updated_at cambió desde la carga anterior.
+ */
+public class UserDirectory {
+    private static final Logger logger = Logger.getLogger(UserDirectory.class.getName());
+    private static final int NOT_FOUND = -1;
+    private static final int[] NO_ASSIGNMENTS = new int[0];
+    private static final long REFRESH_OVERLAP_MILLIS = 5000; // Cubre transacciones que confirmaron tarde
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final IntIntMap slotByDeviceId = new IntIntMap(1024);
+    private final IntIntMap slotByUserId = new IntIntMap(1024);
+    private int[] userIds = new int[1024];
+    private String[] dnis = new String[1024];
+    private String[] names = new String[1024];
+    private int[][] assignmentIds = new int[1024][];
+    private int slots = 0;
+    private final List<Integer> freeSlots = new ArrayList<>();
+    private Timestamp watermark = null; // Hora de la BD al comenzar la última lectura
+
+    /**
+     * Datos de un usuario (copia, no se actualiza sola)
+     */
+    public static class Entry {
+        public int userId;
+        public String dni;
+        public String nombre;
+        public int[] jobAssignmentIds;   // Vigentes hoy, la más reciente primero (no modificar)
+    }
+
+    /**
+     * Primera llamada: carga completa. Siguientes: solo los usuarios modificados.
+     */
+    public void refresh() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            refresh(conn);
+        }
+    }
+
+    public void refresh(Connection conn) throws SQLException {
+        Timestamp startedAt;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CURRENT_TIMESTAMP")) {
+            rs.next();
+            startedAt = rs.getTimestamp(1);
+        }
+
+        Timestamp since = watermark != null ? new Timestamp(watermark.getTime() - REFRESH_OVERLAP_MILLIS) : null;
+        String userSql = "SELECT id, dni, nombre, apellidos, estado FROM users";
+        String jobSql = "SELECT id, user_id FROM jobassignments " +
+                        "WHERE estado = 1 AND (fechafin IS NULL OR fechafin >= CURRENT_DATE)";
+        if (since != null) {
+            String changed = "(SELECT id FROM users WHERE updated_at > ? " +
+                             "UNION SELECT user_id FROM jobassignments WHERE updated_at > ?)";
+            userSql += " WHERE id IN " + changed;
+            jobSql += " AND user_id IN " + changed;
+        }
+        jobSql += " ORDER BY user_id, fechaini DESC";
+
+        List<Object[]> users = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(userSql)) {
+            if (since != null) {
+                stmt.setTimestamp(1, since);
+                stmt.setTimestamp(2, since);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(new Object[] {rs.getInt("id"), rs.getString("dni"),
+                        rs.getString("nombre") + " " + rs.getString("apellidos"), rs.getInt("estado")});
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> jobs = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(jobSql)) {
+            if (since != null) {
+                stmt.setTimestamp(1, since);
+                stmt.setTimestamp(2, since);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    jobs.computeIfAbsent(rs.getInt("user_id"), k -> new ArrayList<>()).add(rs.getInt("id"));
+                }
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (since == null) {
+                clear();
+            }
+            for (Object[] user : users) {
+                int userId = (Integer) user[0];
+                List<Integer> userJobs = jobs.get(userId);
+                int[] ids = NO_ASSIGNMENTS;
+                if (userJobs != null) {
+                    ids = new int[userJobs.size()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = userJobs.get(i);
+                    }
+                }
+                apply(userId, (String) user[1], (String) user[2], (Integer) user[3] == 1, ids);
+            }
+            watermark = startedAt;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info(String.format("Directorio de usuarios %s: %d leídos, %d activos",
+            since == null ? "cargado" : "actualizado", users.size(), slotByDeviceId.size()));
+    }
+
+    /**
+     * Refresca sin propagar el error; se conserva lo que ya estaba cargado
+     */
+    public boolean refreshQuietly() {
+        try {
+            refresh();
+            return true;
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "No se pudo actualizar el directorio de usuarios: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Datos del usuario para el id del reloj, o null si no hay un usuario activo con ese DNI
+     */
+    public Entry lookup(int deviceUserId) {
+        lock.readLock().lock();
+        try {
+            int slot = slotByDeviceId.get(deviceUserId, NOT_FOUND);
+            if (slot == NOT_FOUND) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.userId = userIds[slot];
+            entry.dni = dnis[slot];
+            entry.nombre = names[slot];
+            entry.jobAssignmentIds = assignmentIds[slot]; // Se reemplaza, nunca se modifica
+            return entry;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Entry lookup(String dni) {
+        int deviceUserId = parseDeviceUserId(dni);
+        return deviceUserId < 0 ? null : lookup(deviceUserId);
+    }
+
+    public boolean isLoaded() {
+        return watermark != null;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotByDeviceId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * DNI numérico como lo guarda el reloj ("00012345" → 12345), o -1 si no es numérico
+     */
+    public static int parseDeviceUserId(String dni) {
+        if (dni == null || dni.isEmpty() || dni.length() > 9) {
+            return NOT_FOUND;
+        }
+        int value = 0;
+        for (int i = 0; i < dni.length(); i++) {
+            char c = dni.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_FOUND;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void apply(int userId, String dni, String name, boolean active, int[] jobs) {
+        int slot = slotByUserId.get(userId, NOT_FOUND);
+        if (slot != NOT_FOUND) {
+            // El DNI pudo cambiar: quitar la clave anterior
+            int oldKey = parseDeviceUserId(dnis[slot]);
+            if (oldKey >= 0 && slotByDeviceId.get(oldKey, NOT_FOUND) == slot) {
+                slotByDeviceId.remove(oldKey);
+            }
+        }
+
+        int deviceUserId = parseDeviceUserId(dni);
+        if (!active || deviceUserId < 0) {
+            if (slot != NOT_FOUND) {
+                slotByUserId.remove(userId);
+                dnis[slot] = null;
+                names[slot] = null;
+                assignmentIds[slot] = null;
+                freeSlots.add(slot);
+            }
+            return;
+        }
+
+        if (slot == NOT_FOUND) {
+            slot = freeSlots.isEmpty() ? slots++ : freeSlots.remove(freeSlots.size() - 1);
+            ensureCapacity(slot + 1);
+            slotByUserId.put(userId, slot);
+        }
+        userIds[slot] = userId;
+        dnis[slot] = dni;
+        names[slot] = name;
+        assignmentIds[slot] = jobs;
+        slotByDeviceId.put(deviceUserId, slot);
+    }
+
+    private void clear() {
+        slotByDeviceId.clear();
+        slotByUserId.clear();
+        Arrays.fill(dnis, 0, slots, null);
+        Arrays.fill(names, 0, slots, null);
+        Arrays.fill(assignmentIds, 0, slots, null);
+        freeSlots.clear();
+        slots = 0;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= userIds.length) {
+            return;
+        }
+        int capacity = Math.max(required, userIds.length * 2);
+        userIds = Arrays.copyOf(userIds, capacity);
+        dnis = Arrays.copyOf(dnis, capacity);
+        names = Arrays.copyOf(names, capacity);
+        assignmentIds = Arrays.copyOf(assignmentIds, capacity);
+    }
+}
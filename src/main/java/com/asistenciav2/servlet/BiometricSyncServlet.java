@@ -1,6 +1,14 @@
 package com.asistenciav2.servlet;
 
+import com.asistenciav2.biometric.ZKTecoLiveSession;
+import com.asistenciav2.biometric.ZKTecoProtocol;
+import com.asistenciav2.service.BiometricSyncScheduler;
+import com.asistenciav2.service.AttendanceFileImporter;
 import com.asistenciav2.service.BiometricSyncService;
+import com.asistenciav2.service.DeviceReplicationService;
+import com.asistenciav2.service.PunchBatchWriter;
+import com.asistenciav2.service.UserDirectory;
+import com.asistenciav2.util.EventRing;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
@@ -15,11 +23,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -30,12 +35,15 @@ import java.util.logging.Level;
 public class BiometricSyncServlet extends HttpServlet {
     private static final Logger logger = Logger.getLogger(BiometricSyncServlet.class.getName());
     private BiometricSyncService syncService;
+    private DeviceReplicationService replicationService;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService replicationExecutor = Executors.newSingleThreadExecutor();
     private volatile Process scriptProcess;
-    private final LinkedBlockingQueue<String> logQueue = new LinkedBlockingQueue<>(2000);
-    private final LinkedBlockingQueue<String> marksQueue = new LinkedBlockingQueue<>(500);
+    private static final int DEFAULT_LOG_BUFFER = 4096;
+    private static final long STREAM_GRACE_MILLIS = 60000; // Sin líneas y sin proceso: se cierra el stream
+    private volatile EventRing logRing = new EventRing(DEFAULT_LOG_BUFFER); // Cada cliente SSE lee con su propio cursor
+    private volatile long runStartSeq = 0;   // Secuencia previa a la primera línea de la ejecución actual
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private final Map<String, ArrayDeque<Map<String, String>>> recentMarks = new ConcurrentHashMap<>();
     private final Pattern markPattern = Pattern.compile("ID:\\s*(\\d+)\\s*\\|\\s*Fecha:\\s*([^|]+)\\s*\\|\\s*Reloj:\\s*([^(\\s]+)\\s*\\(([^)]+)\\)");
     private final Map<String, Integer> summaryProcessed = new ConcurrentHashMap<>();
     private final Pattern attemptPattern = Pattern.compile("Conectando a\\s+(\\w+)\\s*\\(([^)]+)\\)");
@@ -44,14 +52,18 @@ public class BiometricSyncServlet extends HttpServlet {
     private final Pattern obtainedCountPattern = Pattern.compile("(\\w+):\\s*(\\d+)\\s+marcaciones obtenidas");
     private final Pattern processedSummaryPattern = Pattern.compile("(\\w+):\\s*(\\d+)\\s+marcaciones nuevas procesadas");
     private final Map<String, Map<String, Object>> deviceStatus = new ConcurrentHashMap<>();
+    private final Map<Integer, ZKTecoLiveSession> liveSessions = new ConcurrentHashMap<>();
+    private boolean useJavaLiveEngine = false; // true = eventos en tiempo real en la JVM en lugar de sync_checker.py
     
     @Override
     public void init() throws ServletException {
         syncService = new BiometricSyncService();
+        replicationService = new DeviceReplicationService(syncService.getHealthRegistry());
         
         // Configurar desde parámetros de inicialización
         String deviceIp = getInitParameter("deviceIp");
         String devicePort = getInitParameter("devicePort");
+        String syncEngine = getInitParameter("syncEngine");
         
         if (deviceIp != null) {
             syncService.setDeviceIp(deviceIp);
@@ -64,6 +76,32 @@ public class BiometricSyncServlet extends HttpServlet {
                 logger.warning("Puerto de dispositivo inválido: " + devicePort);
             }
         }
+        
+        // syncEngine=nio: sincronizar todos los relojes desde un solo hilo;
+        // syncEngine=pipeline: ingesta por etapas con enriquecimiento hacia attendances
+        syncService.setUseNioEngine("nio".equalsIgnoreCase(syncEngine));
+        syncService.setUsePipeline("pipeline".equalsIgnoreCase(syncEngine));
+        
+        // liveEngine=java: startScript abre sesiones en vivo con los relojes en lugar del subproceso
+        useJavaLiveEngine = "java".equalsIgnoreCase(getInitParameter("liveEngine"));
+        
+        // logBufferSize: líneas de log que se conservan para los clientes SSE atrasados o que reconectan
+        String logBufferSize = getInitParameter("logBufferSize");
+        if (logBufferSize != null) {
+            try {
+                logRing = new EventRing(Integer.parseInt(logBufferSize.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Tamaño de buffer de log inválido: " + logBufferSize);
+            }
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        stopLiveSessions();
+        executor.shutdownNow();
+        replicationExecutor.shutdownNow();
+        super.destroy();
     }
     
     @Override
@@ -88,6 +126,10 @@ public class BiometricSyncServlet extends HttpServlet {
             handleStream(request, response);
         } else if ("status".equals(action)) {
             handleStatus(request, response);
+        } else if ("replicationStatus".equals(action)) {
+            writeJson(response, replicationService.getStatus());
+        } else if ("startScheduler".equals(action) || "stopScheduler".equals(action) || "runScheduler".equals(action)) {
+            handleScheduler(action, response);
         } else {
             handleSync(request, response);
         }
@@ -101,6 +143,10 @@ public class BiometricSyncServlet extends HttpServlet {
         
         if ("updateConfig".equals(action)) {
             handleUpdateConfiguration(request, response);
+        } else if ("replicateUsers".equals(action) || "removeUsers".equals(action)) {
+            handleReplication(action, request, response);
+        } else if ("importAttlog".equals(action)) {
+            handleImportAttlog(request, response);
         } else {
             handleSync(request, response);
         }
@@ -277,6 +323,17 @@ public class BiometricSyncServlet extends HttpServlet {
             response.getWriter().write(mapper.writeValueAsString(result));
             return;
         }
+        if (useJavaLiveEngine) {
+            runStartSeq = logRing.head();
+            int started = startLiveSessions(request.getParameter("clock"));
+            ObjectMapper mapper = new ObjectMapper();
+            java.util.Map<String, Object> result = new java.util.HashMap<>();
+            result.put("success", started > 0);
+            result.put("message", started > 0 ? "Escucha en tiempo real iniciada (" + started + " relojes)" : "No hay relojes para escuchar");
+            result.put("running", started > 0);
+            response.getWriter().write(mapper.writeValueAsString(result));
+            return;
+        }
         java.util.List<String> cmd = new java.util.ArrayList<>();
         cmd.add("python3");
         cmd.add("sync_checker.py");
@@ -295,13 +352,14 @@ public class BiometricSyncServlet extends HttpServlet {
         pb.directory(new java.io.File(request.getServletContext().getRealPath("/")));
         pb.redirectErrorStream(true);
         try {
+            runStartSeq = logRing.head();
             scriptProcess = pb.start();
             running.set(true);
             executor.submit(() -> {
                 try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(scriptProcess.getInputStream()))) {
                     String line;
                     while (running.get() && (line = reader.readLine()) != null) {
-                        logQueue.offer(line);
+                        logRing.publish(line);
                         try {
                             Matcher m;
                             m = attemptPattern.matcher(line);
@@ -352,7 +410,7 @@ public class BiometricSyncServlet extends HttpServlet {
                 try {
                     int code = scriptProcess.waitFor();
                     running.set(false);
-                    logQueue.offer("Proceso finalizado. Código: " + code);
+                    logRing.publish("Proceso finalizado. Código: " + code);
                 } catch (InterruptedException e) {
                     running.set(false);
                 }
@@ -377,6 +435,9 @@ public class BiometricSyncServlet extends HttpServlet {
     private void handleStopScript(HttpServletRequest request, HttpServletResponse response) throws IOException {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
+        if (!liveSessions.isEmpty()) {
+            stopLiveSessions();
+        }
         if (scriptProcess != null && running.get()) {
             try {
                 scriptProcess.destroy();
@@ -390,34 +451,255 @@ public class BiometricSyncServlet extends HttpServlet {
         response.getWriter().write(mapper.writeValueAsString(result));
     }
 
+    /**
+     * Abre una sesión en vivo por reloj configurado (o solo el indicado en clock,
+     * p. ej. "1" o "reloj1"). Las marcaciones se guardan al llegar y se publican
+     * en logRing con el mismo formato que la salida de sync_checker.py.
+     *
+     * @return cantidad de sesiones iniciadas
+     */
+    private int startLiveSessions(String clock) {
+        String wanted = clock != null ? clock.trim().replaceFirst("^reloj", "") : "";
+        for (BiometricSyncService.BiometricDevice device : syncService.getConfiguredDevices()) {
+            if (!wanted.isEmpty() && !wanted.equals(String.valueOf(device.id))) {
+                continue;
+            }
+            String reloj = "reloj" + device.id;
+            ZKTecoLiveSession session = new ZKTecoLiveSession(device.id, device.ip, device.port, device.password,
+                new ZKTecoLiveSession.Listener() {
+                    @Override
+                    public void onPunch(Integer deviceId, ZKTecoProtocol.AttendanceRecord record) {
+                        PunchBatchWriter.Punch saved = syncService.storeLivePunch(device, record);
+                        Map<String, Object> st = deviceStatus.computeIfAbsent(reloj, k -> new ConcurrentHashMap<>());
+                        st.merge("obtainedCount", 1, (a, b) -> (Integer) a + (Integer) b);
+                        if (saved == null) {
+                            UserDirectory.Entry user = syncService.getUserDirectory().lookup(record.getUserId());
+                            logRing.publish(String.format("⚪ %-12s | DNI: %s | %s | %s | %s", "DUPLICADA",
+                                record.getUserId(), record.getTimestamp(), reloj,
+                                user != null ? user.nombre : "Usuario_" + record.getUserId()));
+                            return;
+                        }
+                        // Mismo formato que display_attendance_realtime de sync_checker.py
+                        String tipo = saved.tipoMarcaje != null ? saved.tipoMarcaje : "SIN_TIPO";
+                        String emoji = "INGRESO".equals(saved.tipoMarcaje) ? "🟢"
+                            : "INTERMEDIO".equals(saved.tipoMarcaje) ? "🟡"
+                            : "SALIDA".equals(saved.tipoMarcaje) ? "🔴" : "⚪";
+                        String nombre = saved.nombre != null && !saved.nombre.isEmpty()
+                            ? saved.nombre.substring(0, Math.min(30, saved.nombre.length())) : "Sin nombre";
+                        logRing.publish(String.format("%s %-12s | DNI: %s | %s | %s | %s",
+                            emoji, tipo, saved.dni, saved.fechahora, reloj, nombre));
+                    }
+                    
+                    @Override
+                    public void onStatus(Integer deviceId, String status, String message) {
+                        Map<String, Object> st = deviceStatus.computeIfAbsent(reloj, k -> new ConcurrentHashMap<>());
+                        st.put("id", reloj);
+                        st.put("ip", device.ip);
+                        st.put("status", status);
+                        if ("Conectado".equals(status)) {
+                            logRing.publish("Conectado exitosamente a " + reloj + " (" + device.ip + ")");
+                        } else {
+                            logRing.publish(reloj + ": " + status + " - " + message);
+                        }
+                    }
+                });
+            liveSessions.put(device.id, session);
+            session.start();
+        }
+        running.set(!liveSessions.isEmpty());
+        return liveSessions.size();
+    }
+    
+    private void stopLiveSessions() {
+        for (ZKTecoLiveSession session : liveSessions.values()) {
+            session.stop();
+        }
+        liveSessions.clear();
+        running.set(false);
+    }
+
+    /**
+     * Envía el log por SSE sin retener el hilo: cada cliente lleva su cursor y nadie le
+     * quita líneas a otro. Un cliente que reconecta con Last-Event-ID sigue desde ahí;
+     * uno nuevo empieza en la ejecución actual. Si se atrasó más que el buffer recibe un
+     * evento "gap".
+     */
     private void handleStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("text/event-stream");
-        response.setCharacterEncoding("UTF-8");
-        response.setHeader("Cache-Control", "no-cache");
-        java.io.PrintWriter writer = response.getWriter();
+        EventRing ring = logRing;
+        long cursor = SseBroadcaster.resumeCursor(request, ring, runStartSeq);
+        SseBroadcaster.forContext(getServletContext()).subscribe(request, response, ring, cursor, running::get, STREAM_GRACE_MILLIS);
+    }
+    /**
+     * Planificador compartido por la aplicación; se crea aquí si el listener no lo inició
+     */
+    private BiometricSyncScheduler getScheduler() {
+        jakarta.servlet.ServletContext context = getServletContext();
+        synchronized (context) {
+            Object existing = context.getAttribute(BiometricSyncScheduler.CONTEXT_ATTRIBUTE);
+            if (existing instanceof BiometricSyncScheduler) {
+                return (BiometricSyncScheduler) existing;
+            }
+            // Servicio propio con el motor por etapas, el único que guarda en attendances;
+            // el del servlet sigue el parámetro syncEngine
+            BiometricSyncService schedulerService = new BiometricSyncService();
+            schedulerService.setUsePipeline(true);
+            BiometricSyncScheduler scheduler = new BiometricSyncScheduler(schedulerService);
+            context.setAttribute(BiometricSyncScheduler.CONTEXT_ATTRIBUTE, scheduler);
+            return scheduler;
+        }
+    }
+    
+    /**
+     * Replica (o borra) usuarios en los relojes en segundo plano; el avance se consulta
+     * con action=replicationStatus.
+     * Parámetros: dni (lista separada por comas; vacío = todos los del origen), source (id
+     * del reloj origen; sin origen los usuarios salen de la BD y no llevan huellas),
+     * templates (true/false) y targets (ids; por defecto todos los relojes menos el origen).
+     */
+    private void handleReplication(String action, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        List<String> dnis = splitParameter(request.getParameter("dni"));
+        Integer sourceId = null;
+        List<Integer> targetIds = new ArrayList<>();
         try {
-            int idle = 0;
-            while (running.get() || !logQueue.isEmpty() || idle < 60) {
-                boolean sent = false;
-                String line = logQueue.poll(1, TimeUnit.SECONDS);
-                if (line != null) {
-                    writer.print("data: " + line + "\n\n");
-                    writer.flush();
-                    sent = true;
-                }
-                if (sent) {
-                    idle = 0;
+            String source = request.getParameter("source");
+            if (source != null && !source.trim().isEmpty()) {
+                sourceId = Integer.valueOf(source.trim());
+            }
+            for (String id : splitParameter(request.getParameter("targets"))) {
+                targetIds.add(Integer.valueOf(id));
+            }
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeJson(response, Map.of("success", false, "message", "Id de reloj inválido"));
+            return;
+        }
+        
+        BiometricSyncService.BiometricDevice sourceDevice = null;
+        List<BiometricSyncService.BiometricDevice> targets = new ArrayList<>();
+        for (BiometricSyncService.BiometricDevice device : syncService.getConfiguredDevices()) {
+            if (sourceId != null && sourceId.equals(device.id)) {
+                sourceDevice = device;
+            } else if (targetIds.isEmpty() || targetIds.contains(device.id)) {
+                targets.add(device);
+            }
+        }
+        String error = null;
+        if (sourceId != null && sourceDevice == null) {
+            error = "Reloj origen desconocido: " + sourceId;
+        } else if (targets.isEmpty()) {
+            error = "No hay relojes destino";
+        } else if (dnis.isEmpty() && (sourceDevice == null || "removeUsers".equals(action))) {
+            error = "Indique los DNI";
+        } else if (replicationService.isRunning()) {
+            error = "Ya hay una replicación de usuarios en curso";
+        }
+        if (error != null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeJson(response, Map.of("success", false, "message", error));
+            return;
+        }
+        
+        boolean withTemplates = !"false".equalsIgnoreCase(request.getParameter("templates"));
+        BiometricSyncService.BiometricDevice origin = sourceDevice;
+        replicationExecutor.submit(() -> {
+            try {
+                if ("removeUsers".equals(action)) {
+                    replicationService.remove(dnis, targets);
+                } else if (origin != null) {
+                    DeviceReplicationService.Delta delta = replicationService.readDelta(origin, dnis.isEmpty() ? null : dnis, withTemplates);
+                    replicationService.replicate(delta, targets);
                 } else {
-                    idle++;
+                    syncService.getUserDirectory().refreshQuietly();
+                    replicationService.replicate(
+                        DeviceReplicationService.deltaFromDirectory(syncService.getUserDirectory(), dnis), targets);
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Error replicando usuarios", e);
+            }
+        });
+        
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", true);
+        result.put("message", "Replicación iniciada en " + targets.size() + " relojes");
+        writeJson(response, result);
+    }
+    
+    /**
+     * Importa un attlog.dat descargado por USB. El archivo viaja como cuerpo de la
+     * petición (application/octet-stream) y clockId indica el reloj de origen.
+     */
+    private void handleImportAttlog(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int clockId;
+        try {
+            clockId = Integer.parseInt(request.getParameter("clockId").trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeJson(response, Map.of("success", false, "message", "clockId inválido"));
+            return;
+        }
+        
+        // Se copia a un temporal para mapearlo; la copia no pasa por el heap
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("attlog-" + clockId + "-", ".dat");
+        try {
+            java.nio.file.Files.copy(request.getInputStream(), file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            AttendanceFileImporter importer = new AttendanceFileImporter(syncService.getPunchEnricher(),
+                syncService.getDebounceSeconds());
+            Map<String, Object> result = importer.importFile(file, clockId).toMap();
+            result.put("success", true);
+            writeJson(response, result);
+        } catch (java.sql.SQLException e) {
+            logger.log(Level.SEVERE, "Error importando attlog del reloj " + clockId, e);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            writeJson(response, Map.of("success", false, "message", "Error de base de datos: " + e.getMessage()));
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+    
+    private static List<String> splitParameter(String value) {
+        List<String> values = new ArrayList<>();
+        if (value != null) {
+            for (String part : value.split(",")) {
+                if (!part.trim().isEmpty()) {
+                    values.add(part.trim());
                 }
             }
-            writer.print("data: {\"type\":\"end\"}\n\n");
-            writer.flush();
-        } catch (Exception e) {
-            logger.log(Level.FINE, "SSE cerrado", e);
         }
+        return values;
+    }
+    
+    private void writeJson(HttpServletResponse response, Map<String, Object> body) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(new ObjectMapper().writeValueAsString(body));
     }
+    
+    private void handleScheduler(String action, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        BiometricSyncScheduler scheduler = getScheduler();
+        String message;
+        boolean success = true;
+        if ("startScheduler".equals(action)) {
+            success = scheduler.start();
+            message = success
+                ? "Sincronización programada iniciada"
+                : "No se pudo iniciar la sincronización programada: su motor no escribe en attendances";
+        } else if ("stopScheduler".equals(action)) {
+            scheduler.stop();
+            message = "Sincronización programada detenida";
+        } else {
+            scheduler.runNow();
+            message = scheduler.isRunning() ? "Sincronización solicitada" : "El planificador no está en ejecución";
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", success);
+        result.put("message", message);
+        result.put("scheduler", scheduler.getStatus());
+        response.getWriter().write(new ObjectMapper().writeValueAsString(result));
+    }
+    
     private void handleStatus(HttpServletRequest request, HttpServletResponse response) throws IOException {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
@@ -432,6 +714,14 @@ public class BiometricSyncServlet extends HttpServlet {
         result.put("success", true);
         result.put("running", running.get());
         result.put("devices", devices);
+        // Salud de cada reloj (breaker, fallas, latencias) medida por BiometricSyncService
+        result.put("health", syncService.getHealthRegistry().snapshot());
+        result.put("journal", syncService.getJournalStatus());
+        result.put("pipeline", syncService.getPipelineStatus());
+        Object scheduler = getServletContext().getAttribute(BiometricSyncScheduler.CONTEXT_ATTRIBUTE);
+        if (scheduler instanceof BiometricSyncScheduler) {
+            result.put("scheduler", ((BiometricSyncScheduler) scheduler).getStatus());
+        }
         response.getWriter().write(mapper.writeValueAsString(result));
     }
 }
@@ -11,6 +11,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.asistenciav2.service.PermissionIndex;
 import com.asistenciav2.util.DatabaseConnection;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -267,26 +268,15 @@ public class JobAssignmentsServlet extends HttpServlet {
 
             // Solo verificar LSG si hay cargos activos que se solapen
             if (tieneCargosActivosSolapados) {
-                boolean tieneLSG = false;
-                // Verificar si tiene permiso LSG activo que cubra el periodo del solapamiento
+                // Verificar si tiene permiso LSG activo que se solape con el nuevo cargo
                 // El permiso LSG debe estar aprobado (estado=1) y permitir doble cargo
-                try (PreparedStatement ps = conn.prepareStatement(
-                        "SELECT 1 FROM permissions p " +
-                                "JOIN permissiontypes pt ON pt.id = p.permissiontype_id " +
-                                "WHERE pt.codigo = 'LSG' AND pt.permite_doble_cargo = TRUE " +
-                                "AND p.estado = 1 AND p.user_id = ? " +
-                                "AND p.fechaini <= ? AND p.fechafin >= ? LIMIT 1")) {
-                    ps.setInt(1, userId);
-                    ps.setDate(2, fechaFin); // El permiso debe iniciar antes de que termine el cargo
-                    ps.setDate(3, fechaInicio); // El permiso debe terminar después de que inicie el cargo
-                    // Nota: Esta validación verifica si hay ALGUN solapamiento con LSG.
-                    // Para ser más estrictos, deberíamos verificar si el LSG cubre TODO el periodo,
-                    // pero la regla de negocio usualmente es tener el permiso vigente.
-                    ResultSet rs = ps.executeQuery();
-                    if (rs.next()) {
-                        tieneLSG = true;
-                    }
-                }
+                // Nota: Esta validación verifica si hay ALGUN solapamiento con LSG.
+                // Para ser más estrictos, deberíamos verificar si el LSG cubre TODO el periodo,
+                // pero la regla de negocio usualmente es tener el permiso vigente.
+                PermissionIndex permissionIndex = PermissionIndex.shared();
+                permissionIndex.refresh(conn);
+                boolean tieneLSG = permissionIndex.hasDoubleRolePermit(userId,
+                        fechaInicio.toLocalDate(), fechaFin.toLocalDate());
 
                 if (!tieneLSG) {
                     throw new IllegalArgumentException(
@@ -1,5 +1,6 @@
 package com.asistenciav2.servlet;
 
+import com.asistenciav2.service.PermissionIndex;
 import com.asistenciav2.util.DatabaseConnection;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.annotation.WebServlet;
@@ -126,6 +127,7 @@ public class LactationSchedulesServlet extends HttpServlet {
                     psUpdate.setInt(5, scheduleId);
                     psUpdate.executeUpdate();
                 }
+                PermissionIndex.shared().reloadPermission(conn, permissionId);
                 resp.getWriter().write("{\"success\":true,\"message\":\"Programación de lactancia actualizada\"}");
             } else {
                 // Insert new schedule
@@ -143,6 +145,7 @@ public class LactationSchedulesServlet extends HttpServlet {
                     psInsert.setInt(6, adminUserId);
                     psInsert.executeUpdate();
                 }
+                PermissionIndex.shared().reloadPermission(conn, permissionId);
                 resp.getWriter().write("{\"success\":true,\"message\":\"Programación de lactancia creada\"}");
             }
         } catch (Exception e) {
@@ -261,6 +264,7 @@ public class LactationSchedulesServlet extends HttpServlet {
                     psInsert.executeUpdate();
                 }
             }
+            PermissionIndex.shared().reloadPermission(conn, permissionId);
 
             resp.getWriter().write("{\"success\":true,\"message\":\"Programación de lactancia actualizada\"}");
         } catch (Exception e) {
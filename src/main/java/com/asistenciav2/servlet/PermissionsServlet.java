@@ -16,6 +16,7 @@ import java.util.stream.Collectors;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 
+import com.asistenciav2.service.PermissionIndex;
 import com.asistenciav2.util.DatabaseConnection;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -232,6 +233,9 @@ public class PermissionsServlet extends HttpServlet {
                         newId = gk.getInt(1);
                 }
             }
+            if (newId != null) {
+                PermissionIndex.shared().reloadPermission(conn, newId);
+            }
             ObjectMapper mapper = new ObjectMapper();
             java.util.Map<String, Object> out = new java.util.LinkedHashMap<>();
             out.put("success", true);
@@ -432,6 +436,7 @@ public class PermissionsServlet extends HttpServlet {
                     return;
                 }
             }
+            PermissionIndex.shared().reloadPermission(conn, permId);
 
             ObjectMapper mapper = new ObjectMapper();
             Map<String, Object> out = new LinkedHashMap<>();
@@ -483,6 +488,7 @@ public class PermissionsServlet extends HttpServlet {
                     return;
                 }
             }
+            PermissionIndex.shared().reloadPermission(conn, permId);
 
             ObjectMapper mapper = new ObjectMapper();
             Map<String, Object> out = new LinkedHashMap<>();
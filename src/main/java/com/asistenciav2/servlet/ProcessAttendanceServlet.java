@@ -1,36 +1,102 @@
 package com.asistenciav2.servlet;
 
+import com.asistenciav2.service.AttendanceRecomputeWorker;
+import com.asistenciav2.service.DailyAttendanceEngine;
+import com.asistenciav2.service.PermissionIndex;
+import com.asistenciav2.service.ProcessingJobQueue;
+import com.asistenciav2.service.ProcessingJobWorker;
+import com.asistenciav2.util.JobLogStore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.concurrent.ExecutorService;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Procesamiento de asistencia a pedido.
+ *
+ * startScript encola el rango en processing_jobs (ProcessingJobQueue) y responde enseguida
+ * con el id del trabajo; si ya había uno pendiente que se solapa, el pedido se une a él.
+ * El ProcessingJobWorker de cada nodo toma los trabajos y los procesa de a uno, así varios
+ * administradores y varios Tomcat comparten la misma cola. La salida (action=stream) está
+ * en el nodo que procesa el trabajo; el estado y el avance (action=status, jobs) salen de
+ * la base y se ven desde cualquiera.
+ */
 @WebServlet("/api/process-attendance")
 public class ProcessAttendanceServlet extends HttpServlet {
     private static final Logger logger = Logger.getLogger(ProcessAttendanceServlet.class.getName());
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final int DEFAULT_LOG_LINES = 65536;
+    private static final int DEFAULT_RETENTION_MINUTES = 60;
+    private static final long REMOTE_CHECK_MILLIS = 5000;
     private volatile Process scriptProcess;
-    private final AtomicBoolean running = new AtomicBoolean(false);
+    private JobLogStore jobLogs;
+    private ProcessingJobQueue queue;
+    private ProcessingJobWorker worker;
+    private ScheduledExecutorService logWatcher;
+    private boolean usePythonScript = true;  // false = motor Java en lugar de procesarAsistencia.py como subproceso
+    private int parallelism = 1;             // Hilos del motor Java (1 = secuencial por fecha)
+
+    @Override
+    public void init() throws ServletException {
+        // processEngine=java: motor Java (sin el parámetro, el script); processParallelism: hilos del motor Java;
+        // logMaxLines / logRetentionMinutes: salida por trabajo; queue*: cola processing_jobs
+        usePythonScript = !"java".equalsIgnoreCase(getInitParameter("processEngine"));
+        parallelism = parseIntOrDefault(getInitParameter("processParallelism"), 1);
+        jobLogs = new JobLogStore(parseIntOrDefault(getInitParameter("logMaxLines"), DEFAULT_LOG_LINES),
+            parseIntOrDefault(getInitParameter("logRetentionMinutes"), DEFAULT_RETENTION_MINUTES) * 60000L);
+        queue = new ProcessingJobQueue();
+        queue.setRetryDelaySeconds(parseIntOrDefault(getInitParameter("queueRetryDelaySeconds"), 30));
+        worker = new ProcessingJobWorker(queue, this::runJob);
+        worker.setPollMillis(parseIntOrDefault(getInitParameter("queuePollMillis"), 2000));
+        worker.setStaleSeconds(parseIntOrDefault(getInitParameter("queueStaleSeconds"), 120));
+        getServletContext().setAttribute(ProcessingJobWorker.CONTEXT_ATTRIBUTE, worker);
+        worker.start();
+        logWatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "processing-jobs-logs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logWatcher.scheduleWithFixedDelay(this::closeRemoteLogs, REMOTE_CHECK_MILLIS, REMOTE_CHECK_MILLIS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        logWatcher.shutdownNow();
+        Process process = scriptProcess;
+        if (process != null) {
+            process.destroy();
+        }
+        worker.stop();
+        getServletContext().removeAttribute(ProcessingJobWorker.CONTEXT_ATTRIBUTE);
+        super.destroy();
+    }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         String action = request.getParameter("action");
         if ("status".equals(action)) {
-            handleStatus(response);
+            handleStatus(request, response);
         } else if ("stream".equals(action)) {
-            handleStream(response);
+            handleStream(request, response);
         } else if ("startScript".equals(action)) {
             handleStartScript(request, response);
+        } else if ("cancel".equals(action)) {
+            handleCancel(request, response);
+        } else if ("jobs".equals(action)) {
+            handleJobs(request, response);
         } else {
             response.setContentType("application/json");
             response.setCharacterEncoding("UTF-8");
@@ -38,12 +104,33 @@ public class ProcessAttendanceServlet extends HttpServlet {
         }
     }
 
-    private void handleStatus(HttpServletResponse response) throws IOException {
+    private void handleStatus(HttpServletRequest request, HttpServletResponse response) throws IOException {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
         ObjectMapper mapper = new ObjectMapper();
         java.util.Map<String, Object> result = new java.util.HashMap<>();
-        result.put("running", running.get());
+        try {
+            result.put("running", queue.hasActive());
+            ProcessingJobQueue.Job job = findQueuedJob(request);
+            if (job != null) {
+                java.util.Map<String, Object> jobMap = job.toMap();
+                JobLogStore.JobLog log = jobLogs.get(String.valueOf(job.id));
+                if (log != null) {
+                    jobMap.put("lines", log.head());
+                    jobMap.put("oldestOffset", log.oldest());
+                }
+                result.put("job", jobMap);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Error consultando processing_jobs", e);
+            result.put("running", worker.getStatus().get("currentJobId") != null);
+            result.put("message", "No se pudo consultar la cola: " + e.getMessage());
+        }
+        result.put("queue", worker.getStatus());
+        Object recompute = getServletContext().getAttribute(AttendanceRecomputeWorker.CONTEXT_ATTRIBUTE);
+        if (recompute instanceof AttendanceRecomputeWorker) {
+            result.put("recompute", ((AttendanceRecomputeWorker) recompute).getStatus());
+        }
         response.getWriter().write(mapper.writeValueAsString(result));
     }
 
@@ -52,96 +139,304 @@ public class ProcessAttendanceServlet extends HttpServlet {
         response.setCharacterEncoding("UTF-8");
         ObjectMapper mapper = new ObjectMapper();
         java.util.Map<String, Object> result = new java.util.HashMap<>();
-        if (running.get()) {
+
+        String dni = request.getParameter("dni");
+        dni = dni != null && !dni.trim().isEmpty() ? dni.trim() : null;
+        // parallelism en la petición: solo para este trabajo, hasta dos hilos por núcleo
+        int threads = Math.min(parseIntOrDefault(request.getParameter("parallelism"), parallelism),
+            Runtime.getRuntime().availableProcessors() * 2);
+        try {
+            LocalDate[] range = DailyAttendanceEngine.resolveRange(request.getParameter("fechaInicio"),
+                request.getParameter("fechaFin"));
+            ProcessingJobQueue.Enqueued enqueued = queue.enqueue(range[0], range[1], dni, Math.max(1, threads),
+                sessionUserId(request));
+            ProcessingJobQueue.Job job = enqueued.job;
+            JobLogStore.JobLog log = jobLogs.getOrCreate(String.valueOf(job.id));
+            log.append(String.format("%s Trabajo #%d en cola: %s al %s%s", enqueued.merged ? "➕" : "⏳", job.id,
+                job.fechaInicio, job.fechaFin, job.dni != null ? " (DNI " + job.dni + ")" : ""));
+            worker.poke();
             result.put("success", true);
-            result.put("message", "Ya hay un proceso en ejecución");
+            result.put("message", enqueued.merged
+                ? "El pedido se unió al trabajo pendiente #" + job.id
+                : "Proceso encolado");
             result.put("running", true);
+            result.put("merged", enqueued.merged);
+            result.put("jobId", String.valueOf(job.id));
+            result.put("job", job.toMap());
+        } catch (DateTimeParseException e) {
+            result.put("success", false);
+            result.put("message", "Fecha inválida: " + e.getParsedString());
+        } catch (IllegalArgumentException e) {
+            result.put("success", false);
+            result.put("message", e.getMessage());
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error encolando el procesamiento de asistencia", e);
+            result.put("success", false);
+            result.put("message", "No se pudo encolar el proceso");
+        }
+        response.getWriter().write(mapper.writeValueAsString(result));
+    }
+
+    /**
+     * Cancela un trabajo pendiente o en proceso (en el nodo que sea)
+     */
+    private void handleCancel(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        ObjectMapper mapper = new ObjectMapper();
+        java.util.Map<String, Object> result = new java.util.HashMap<>();
+        Integer jobId = parseJobId(request.getParameter("jobId"));
+        if (jobId == null) {
+            result.put("success", false);
+            result.put("message", "jobId requerido");
             response.getWriter().write(mapper.writeValueAsString(result));
             return;
         }
+        try {
+            ProcessingJobQueue.Job job = queue.cancel(jobId);
+            if (job == null) {
+                result.put("success", false);
+                result.put("message", "Trabajo no encontrado");
+            } else {
+                worker.cancelLocal(jobId);
+                boolean accepted = job.cancelar;
+                result.put("success", accepted);
+                result.put("message", !accepted ? "El trabajo ya terminó (" + job.estado + ")"
+                    : ProcessingJobQueue.CANCELADO.equals(job.estado) ? "Trabajo cancelado" : "Cancelación solicitada");
+                result.put("job", job.toMap());
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error cancelando el trabajo " + jobId, e);
+            result.put("success", false);
+            result.put("message", "No se pudo cancelar el trabajo");
+        }
+        response.getWriter().write(mapper.writeValueAsString(result));
+    }
+
+    /**
+     * Últimos trabajos de la cola (limit, por defecto 20)
+     */
+    private void handleJobs(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        ObjectMapper mapper = new ObjectMapper();
+        java.util.Map<String, Object> result = new java.util.HashMap<>();
+        int limit = Math.max(1, Math.min(parseIntOrDefault(request.getParameter("limit"), 20), 200));
+        try {
+            java.util.List<java.util.Map<String, Object>> jobs = new java.util.ArrayList<>();
+            for (ProcessingJobQueue.Job job : queue.recent(limit)) {
+                jobs.add(job.toMap());
+            }
+            result.put("success", true);
+            result.put("jobs", jobs);
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error listando processing_jobs", e);
+            result.put("success", false);
+            result.put("message", "No se pudo consultar la cola");
+        }
+        response.getWriter().write(mapper.writeValueAsString(result));
+    }
+
+    /**
+     * Ejecuta un trabajo tomado de la cola (hilo del ProcessingJobWorker)
+     */
+    private DailyAttendanceEngine.RunResult runJob(ProcessingJobQueue.Job job, DailyAttendanceEngine.Progress progress) {
+        JobLogStore.JobLog log = jobLogs.getOrCreate(String.valueOf(job.id));
+        log.append(String.format("▶ Trabajo #%d: intento %d de %d en el nodo %s", job.id, job.intentos,
+            job.maxIntentos, queue.getNodeId()));
+        DailyAttendanceEngine.RunResult result;
+        if (usePythonScript) {
+            result = runPythonScript(job, progress, log);
+        } else {
+            DailyAttendanceEngine engine = new DailyAttendanceEngine();
+            engine.setParallelism(job.parallelism);
+            engine.setPermissionIndex(PermissionIndex.shared());
+            engine.setProgress(progress);
+            result = engine.run(job.fechaInicio.toString(), job.fechaFin.toString(), job.dni, log::append);
+        }
+        if (result.failure != null && job.intentos < job.maxIntentos) {
+            log.append("🔁 El trabajo se reintentará");  // El registro sigue abierto para el próximo intento
+        } else if (result.cancelled && !worker.isRunning()) {
+            log.append("⏸ El nodo se detiene; el trabajo vuelve a la cola");
+            log.finish();
+        } else {
+            log.finish();
+        }
+        return result;
+    }
 
+    private DailyAttendanceEngine.RunResult runPythonScript(ProcessingJobQueue.Job job,
+                                                            DailyAttendanceEngine.Progress progress,
+                                                            JobLogStore.JobLog log) {
+        DailyAttendanceEngine.RunResult result = new DailyAttendanceEngine.RunResult();
         java.util.List<String> cmd = new java.util.ArrayList<>();
         cmd.add("python3");
         cmd.add("procesarAsistencia.py");
-        String fechaInicio = request.getParameter("fechaInicio");
-        String fechaFin = request.getParameter("fechaFin");
-        String dni = request.getParameter("dni");
-        if (fechaInicio != null && !fechaInicio.trim().isEmpty()) {
-            cmd.add("--fecha-inicio");
-            cmd.add(fechaInicio.trim());
-        }
-        if (fechaFin != null && !fechaFin.trim().isEmpty()) {
-            cmd.add("--fecha-fin");
-            cmd.add(fechaFin.trim());
-        }
-        if (dni != null && !dni.trim().isEmpty()) {
+        cmd.add("--fecha-inicio");
+        cmd.add(job.fechaInicio.toString());
+        cmd.add("--fecha-fin");
+        cmd.add(job.fechaFin.toString());
+        if (job.dni != null) {
             cmd.add("--dni");
-            cmd.add(dni.trim());
+            cmd.add(job.dni);
         }
+        // Avance: una unidad por cada fecha que el script empieza a procesar
+        int total = (int) (job.fechaFin.toEpochDay() - job.fechaInicio.toEpochDay() + 1);
+        int done = 0;
         ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.directory(new java.io.File(request.getServletContext().getRealPath("/")));
+        pb.directory(new java.io.File(getServletContext().getRealPath("/")));
         pb.redirectErrorStream(true);
         try {
-            scriptProcess = pb.start();
-            running.set(true);
-            executor.submit(() -> {
-                try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(scriptProcess.getInputStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        // Buffering happens in stream handler
-                        synchronized (this) {
-                            lastOutput.append(line).append('\n');
-                        }
+            Process process = pb.start();
+            scriptProcess = process;
+            try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    log.append(line);
+                    if (line.startsWith("📅 Procesando fecha")) {
+                        progress.update(++done, total);
+                    }
+                    if (progress.isCancelled()) {
+                        process.destroy();
+                        log.append("⛔ Proceso cancelado");
+                        result.cancelled = true;
+                        break;
                     }
-                    scriptProcess.waitFor();
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, "Error leyendo salida de procesarAsistencia.py", e);
-                } finally {
-                    running.set(false);
                 }
-            });
-            result.put("success", true);
-            result.put("message", "Proceso iniciado");
-            result.put("running", true);
-            response.getWriter().write(mapper.writeValueAsString(result));
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Error iniciando procesarAsistencia.py", e);
-            result.put("success", false);
-            result.put("message", "No se pudo iniciar el proceso");
-            response.getWriter().write(mapper.writeValueAsString(result));
+            }
+            int exit = process.waitFor();
+            if (!result.cancelled && exit != 0) {
+                result.failure = "procesarAsistencia.py terminó con código " + exit;
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error ejecutando procesarAsistencia.py", e);
+            log.append("No se pudo ejecutar el proceso: " + e.getMessage());
+            result.failure = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancelled = true;
+        } finally {
+            scriptProcess = null;
         }
+        return result;
     }
 
-    private final StringBuilder lastOutput = new StringBuilder();
-
-    private void handleStream(HttpServletResponse response) throws IOException {
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("text/event-stream");
-        response.setCharacterEncoding("UTF-8");
-        response.setHeader("Cache-Control", "no-cache");
-        PrintWriter out = response.getWriter();
-        out.flush();
-        int cursor = 0;
-        try {
-            while (running.get()) {
-                String chunk;
-                synchronized (this) {
-                    chunk = lastOutput.substring(cursor);
-                    cursor = lastOutput.length();
+    /**
+     * Cierra los registros de trabajos que terminaron sin pasar por este nodo (los procesó
+     * otro, se cancelaron pendientes o se unieron a otro trabajo), así sus streams terminan
+     */
+    private void closeRemoteLogs() {
+        for (JobLogStore.JobLog log : jobLogs.unfinished()) {
+            Integer jobId = parseJobId(log.getId());
+            if (jobId == null || worker.isProcessing(jobId)) {
+                continue;
+            }
+            try {
+                ProcessingJobQueue.Job job = queue.get(jobId);
+                if (job == null || job.isActive() || log.isFinished()) {
+                    continue;
                 }
-                if (!chunk.isEmpty()) {
-                    String[] lines = chunk.split("\n");
-                    for (String line : lines) {
-                        out.write("data: " + line + "\n\n");
-                    }
-                    out.flush();
+                if (ProcessingJobQueue.FUSIONADO.equals(job.estado)) {
+                    log.append("➕ El pedido se unió al trabajo #" + job.fusionadoEn);
+                } else {
+                    log.append(String.format("Trabajo #%d: %s%s", job.id, job.estado,
+                        job.nodo != null ? " (nodo " + job.nodo + ")" : ""));
                 }
-                Thread.sleep(300);
+                log.finish();
+            } catch (SQLException e) {
+                logger.log(Level.FINE, "No se pudo revisar el trabajo " + jobId, e);
             }
-            out.write("data: {\"type\":\"end\"}\n\n");
-            out.flush();
-        } catch (InterruptedException ie) {
-            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Salida del trabajo por SSE sin retener el hilo. jobId elige el trabajo (por defecto
+     * el último); Last-Event-ID o offset retoman desde la última línea recibida.
+     */
+    private void handleStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        JobLogStore.JobLog job = findJob(request);
+        if (job == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().write("{\"success\":false,\"message\":\"Trabajo no encontrado\"}");
+            return;
+        }
+        long offset = parseIntOrDefault(request.getParameter("offset"), 0);
+        long cursor = SseBroadcaster.resumeCursor(request, job, offset);
+        SseBroadcaster.forContext(getServletContext()).subscribe(request, response, job, cursor, () -> !job.isFinished(), 0);
+    }
+
+    /**
+     * Registro local del trabajo; si el trabajo existe en la cola pero no pasó por este nodo,
+     * se abre uno que se cierra cuando el trabajo termina
+     */
+    private JobLogStore.JobLog findJob(HttpServletRequest request) {
+        String jobId = request.getParameter("jobId");
+        if (jobId == null || jobId.trim().isEmpty()) {
+            return jobLogs.latest();
+        }
+        JobLogStore.JobLog log = jobLogs.get(jobId.trim());
+        Integer id = parseJobId(jobId);
+        if (log != null || id == null) {
+            return log;
+        }
+        try {
+            ProcessingJobQueue.Job job = queue.get(id);
+            if (job == null) {
+                return null;
+            }
+            log = jobLogs.getOrCreate(String.valueOf(job.id));
+            log.append(String.format("Trabajo #%d: %s%s", job.id, job.estado,
+                job.nodo != null ? " (nodo " + job.nodo + "; la salida está en ese nodo)" : ""));
+            if (!job.isActive()) {
+                log.finish();
+            }
+            return log;
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Error consultando el trabajo " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Trabajo de la cola elegido por jobId, o el más reciente
+     */
+    private ProcessingJobQueue.Job findQueuedJob(HttpServletRequest request) throws SQLException {
+        String jobId = request.getParameter("jobId");
+        if (jobId != null && !jobId.trim().isEmpty()) {
+            Integer id = parseJobId(jobId);
+            return id != null ? queue.get(id) : null;
+        }
+        java.util.List<ProcessingJobQueue.Job> recent = queue.recent(1);
+        return recent.isEmpty() ? null : recent.get(0);
+    }
+
+    private static Integer sessionUserId(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        Object userId = session != null ? session.getAttribute("userId") : null;
+        return userId instanceof Integer ? (Integer) userId : null;
+    }
+
+    private static Integer parseJobId(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int parseIntOrDefault(String value, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.asistenciav2.servlet;
+
+import com.asistenciav2.util.EventRing;
+import com.asistenciav2.util.SequencedLog;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Envío de Server-Sent Events sin ocupar un hilo de Tomcat por navegador abierto.
+ *
+ * El servlet pasa la petición a modo asíncrono ({@link #subscribe}) y vuelve; un único
+ * planificador revisa cada TICK_MILLIS todas las suscripciones y, solo para las que
+ * tienen algo que enviar (líneas nuevas, latido o fin), agenda la escritura en un hilo
+ * virtual. Un stream inactivo no cuesta ningún hilo, y un cliente con el socket lleno
+ * solo demora su propia escritura. Las suscripciones se quitan al terminar, al vencer el
+ * plazo del AsyncContext (el navegador reconecta con Last-Event-ID) o si el cliente cerró.
+ *
+ * Una instancia compartida por aplicación: {@link #forContext(ServletContext)}.
+ */
+public class SseBroadcaster {
+    private static final Logger logger = Logger.getLogger(SseBroadcaster.class.getName());
+    private static final long TICK_MILLIS = 200;
+    private static final long HEARTBEAT_MILLIS = 15000;
+    private static final long ASYNC_TIMEOUT_MILLIS = 30 * 60 * 1000L;
+    private static final int BATCH = 256;
+
+    /** Nombre del atributo de ServletContext donde se publica la instancia compartida */
+    public static final String CONTEXT_ATTRIBUTE = "sseBroadcaster";
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService writers = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Un navegador conectado leyendo un registro desde su propio cursor
+     */
+    private final class Subscription implements AsyncListener {
+        final AsyncContext context;
+        final SequencedLog ring;
+        final BooleanSupplier producing;
+        final long graceMillis;
+        final AtomicBoolean busy = new AtomicBoolean(false);
+        final List<EventRing.Event> events = new ArrayList<>(BATCH);
+        volatile boolean closed = false;
+        volatile long cursor;
+        volatile long lastDataAt;    // Última línea enviada (para el plazo de gracia)
+        volatile long lastWriteAt;   // Última escritura de cualquier tipo (para el latido)
+
+        Subscription(AsyncContext context, SequencedLog ring, long cursor, BooleanSupplier producing, long graceMillis) {
+            this.context = context;
+            this.ring = ring;
+            this.cursor = cursor;
+            this.producing = producing;
+            this.graceMillis = graceMillis;
+            this.lastDataAt = System.currentTimeMillis();
+            this.lastWriteAt = lastDataAt;
+        }
+
+        boolean hasWork(long now) {
+            return cursor < ring.head() || now - lastWriteAt >= HEARTBEAT_MILLIS || isFinished(now);
+        }
+
+        boolean isFinished(long now) {
+            return !producing.getAsBoolean() && cursor >= ring.head() && now - lastDataAt >= graceMillis;
+        }
+
+        /**
+         * Escribe lo pendiente; corre en un hilo virtual, nunca dos a la vez por suscripción
+         */
+        void flush() {
+            try {
+                if (closed) {
+                    return;
+                }
+                PrintWriter writer = context.getResponse().getWriter();
+                long now = System.currentTimeMillis();
+                boolean sent = false;
+                while (cursor < ring.head()) {
+                    events.clear();
+                    long next = ring.read(cursor, events, BATCH);
+                    long missed = next - cursor - events.size();
+                    if (missed > 0) {
+                        writer.print("event: gap\ndata: {\"type\":\"gap\",\"missed\":" + missed + "}\n\n");
+                    }
+                    for (EventRing.Event event : events) {
+                        writer.print("id: " + event.seq + "\ndata: " + event.data + "\n\n");
+                    }
+                    cursor = next;
+                    sent = true;
+                }
+                if (sent) {
+                    lastDataAt = now;
+                    lastWriteAt = now;
+                } else if (isFinished(now)) {
+                    writer.print("data: {\"type\":\"end\"}\n\n");
+                    writer.flush();
+                    close();
+                    return;
+                } else if (now - lastWriteAt >= HEARTBEAT_MILLIS) {
+                    writer.print(": ping\n\n"); // Comentario SSE: detecta clientes que ya cerraron
+                    lastWriteAt = now;
+                }
+                writer.flush();
+                if (writer.checkError()) {
+                    close();
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "SSE cerrado", e);
+                close();
+            } finally {
+                busy.set(false);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            subscriptions.remove(this);
+            try {
+                context.complete();
+            } catch (IllegalStateException ignored) {
+                // Ya completado por el contenedor (timeout o error)
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closed = true;
+            subscriptions.remove(this);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    public SseBroadcaster() {
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sse-broadcaster");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Instancia compartida por la aplicación; se crea la primera vez que se pide
+     */
+    public static SseBroadcaster forContext(ServletContext context) {
+        synchronized (context) {
+            Object existing = context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (existing instanceof SseBroadcaster) {
+                return (SseBroadcaster) existing;
+            }
+            SseBroadcaster broadcaster = new SseBroadcaster();
+            context.setAttribute(CONTEXT_ATTRIBUTE, broadcaster);
+            return broadcaster;
+        }
+    }
+
+    /**
+     * Pone la petición en modo asíncrono y la registra. El hilo del servlet vuelve enseguida.
+     *
+     * @param cursor      última secuencia que el cliente ya tiene
+     * @param producing   true mientras el origen puede publicar más líneas
+     * @param graceMillis tiempo sin líneas, con el origen detenido, antes de enviar el fin
+     */
+    public void subscribe(HttpServletRequest request, HttpServletResponse response, SequencedLog ring,
+                          long cursor, BooleanSupplier producing, long graceMillis) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(ASYNC_TIMEOUT_MILLIS);
+        Subscription subscription = new Subscription(context, ring, Math.min(cursor, ring.head()), producing, graceMillis);
+        context.addListener(subscription);
+        PrintWriter writer = response.getWriter();
+        writer.print("retry: 3000\n\n");
+        writer.flush();
+        subscriptions.add(subscription);
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Cierra todas las conexiones y detiene el planificador
+     */
+    public void stop() {
+        ticker.shutdownNow();
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+        }
+        writers.shutdownNow();
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Subscription subscription : subscriptions) {
+                if (!subscription.closed && subscription.hasWork(now) && subscription.busy.compareAndSet(false, true)) {
+                    writers.execute(subscription::flush);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error en el envío SSE", e); // El planificador no debe morir
+        }
+    }
+
+    /**
+     * Cursor inicial: Last-Event-ID (cabecera o parámetro lastEventId) o el valor por defecto.
+     * Un id mayor que la última secuencia viene de antes de un reinicio y se ignora.
+     */
+    public static long resumeCursor(HttpServletRequest request, SequencedLog ring, long defaultCursor) {
+        String lastId = request.getHeader("Last-Event-ID");
+        if (lastId == null || lastId.trim().isEmpty()) {
+            lastId = request.getParameter("lastEventId");
+        }
+        if (lastId != null && !lastId.trim().isEmpty()) {
+            try {
+                long cursor = Long.parseLong(lastId.trim());
+                if (cursor >= 0 && cursor <= ring.head()) {
+                    return cursor;
+                }
+            } catch (NumberFormatException e) {
+                logger.fine("Last-Event-ID inválido: " + lastId);
+            }
+        }
+        return defaultCursor;
+    }
+}
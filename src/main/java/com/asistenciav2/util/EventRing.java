@@ -0,0 +1,97 @@
+package com.asistenciav2.util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Anillo de eventos con número de secuencia para repartir un mismo registro entre
+ * varios lectores (por ejemplo, varios navegadores mirando el log por SSE).
+ *
+ * Un solo escritor a la vez ({@link #publish} está sincronizado) pone cada evento en
+ * el casillero seq % capacidad; los lectores no consumen nada: cada uno guarda su propio
+ * cursor (la última secuencia que vio) y lee sin tomar el candado del escritor. Si un
+ * lector se atrasa más que la capacidad, sus eventos ya fueron pisados: {@link #read}
+ * los saltea y el lector ve por su cursor cuántos perdió para mostrar un aviso de hueco;
+ * el escritor nunca espera.
+ * Las secuencias empiezan en 1; el cursor 0 significa "desde el principio".
+ */
+public class EventRing implements SequencedLog {
+    private final AtomicReferenceArray<Event> slots;
+    private final int mask;
+    private volatile long head = 0;          // Última secuencia publicada
+
+    /**
+     * Evento publicado (inmutable)
+     */
+    public static final class Event {
+        public final long seq;
+        public final String data;
+
+        public Event(long seq, String data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+
+    public EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Publica un evento
+     *
+     * @return secuencia asignada
+     */
+    public long publish(String data) {
+        long seq;
+        synchronized (this) {
+            seq = head + 1;
+            slots.set((int) (seq & mask), new Event(seq, data));
+            head = seq;
+        }
+        return seq;
+    }
+
+    /**
+     * Última secuencia publicada (0 si no hubo ninguna)
+     */
+    @Override
+    public long head() {
+        return head;
+    }
+
+    /**
+     * Primera secuencia que todavía se puede leer
+     */
+    public long oldest() {
+        return Math.max(1, head - slots.length() + 1);
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Copia en out hasta max eventos posteriores a cursor, en orden. Los que ya se
+     * pisaron se saltean: la diferencia entre el cursor nuevo y el anterior menos los
+     * copiados es la cantidad de eventos perdidos (hueco).
+     *
+     * @return cursor nuevo (última secuencia copiada o perdida)
+     */
+    @Override
+    public long read(long cursor, List<Event> out, int max) {
+        long last = head;
+        long seq = Math.max(cursor + 1, last - slots.length() + 1);
+        int copied = 0;
+        for (; seq <= last && copied < max; seq++) {
+            Event event = slots.get((int) (seq & mask));
+            if (event != null && event.seq == seq) {
+                out.add(event);
+                copied++;
+            } // Si no, el escritor ya pisó el casillero mientras leíamos: también es hueco
+        }
+        return Math.max(cursor, seq - 1);
+    }
+}
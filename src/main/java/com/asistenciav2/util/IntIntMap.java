@@ -0,0 +1,172 @@
+package com.asistenciav2.util;
+
+import java.util.Arrays;
+
+/**
+ * Mapa int → int de direccionamiento abierto (sondeo lineal) sin objetos por entrada.
+ *
+ * Claves y valores viven en dos arreglos primitivos; el borrado desplaza hacia atrás
+ * las entradas siguientes del mismo grupo en lugar de dejar lápidas, así las búsquedas
+ * no se degradan con el tiempo. No es thread-safe: el llamador sincroniza.
+ */
+public class IntIntMap {
+    private static final int FREE = Integer.MIN_VALUE; // Valor de clave reservado (no se admite como clave)
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    public IntIntMap() {
+        this(64);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Valor de la clave, o missingValue si no está
+     */
+    public int get(int key, int missingValue) {
+        checkKey(key);
+        int slot = hash(key) & mask;
+        while (true) {
+            int current = keys[slot];
+            if (current == FREE) {
+                return missingValue;
+            }
+            if (current == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        checkKey(key);
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Asocia el valor a la clave, reemplazando el anterior
+     */
+    public void put(int key, int value) {
+        checkKey(key);
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Quita la clave; devuelve true si estaba
+     */
+    public boolean remove(int key) {
+        checkKey(key);
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                shiftBack(slot);
+                size--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * Recorre las entradas; el visitante no debe modificar el mapa
+     */
+    public void forEach(EntryVisitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        void visit(int key, int value);
+    }
+
+    /**
+     * Rellena el hueco dejado en slot moviendo hacia atrás las entradas que lo necesitan
+     */
+    private void shiftBack(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = hash(keys[next]) & mask;
+            // La entrada puede ocupar el hueco si su posición ideal no está entre el hueco y ella
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = FREE;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void checkKey(int key) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Clave no admitida: " + key);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.asistenciav2.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Árbol de intervalos cerrados [inicio, fin] de enteros (p. ej. fechas como epochDay),
+ * inmutable.
+ *
+ * Los intervalos se guardan en arreglos ordenados por inicio; el árbol es implícito
+ * (la raíz de cada tramo es su elemento del medio) y cada nodo guarda el fin máximo de
+ * su subárbol, así "qué intervalos contienen d" y "hay algo que se solape con [a, b]"
+ * descartan subárboles enteros: O(log n) más los resultados. Los cambios ({@link #with},
+ * {@link #without}) devuelven un árbol nuevo; quien lo publica (por ejemplo en un
+ * ConcurrentHashMap) deja a los lectores sin candados.
+ */
+public final class IntervalTree<T> {
+    private static final IntervalTree<Object> EMPTY = new IntervalTree<>(new int[0], new int[0], new Object[0]);
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] maxEnds;    // Fin máximo del subárbol con raíz en cada posición
+    private final Object[] values;
+
+    private IntervalTree(int[] starts, int[] ends, Object[] values) {
+        this.starts = starts;
+        this.ends = ends;
+        this.values = values;
+        this.maxEnds = new int[starts.length];
+        if (starts.length > 0) {
+            buildMax(0, starts.length - 1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> IntervalTree<T> empty() {
+        return (IntervalTree<T>) EMPTY;
+    }
+
+    /**
+     * Árbol con todos los valores; a igual inicio se conserva el orden de la lista
+     */
+    public static <T> IntervalTree<T> of(List<T> items, ToIntFunction<? super T> start, ToIntFunction<? super T> end) {
+        if (items.isEmpty()) {
+            return empty();
+        }
+        List<T> sorted = new ArrayList<>(items);
+        sorted.sort(Comparator.comparingInt(start)); // Estable
+        int n = sorted.size();
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        Object[] values = new Object[n];
+        for (int i = 0; i < n; i++) {
+            T item = sorted.get(i);
+            starts[i] = start.applyAsInt(item);
+            ends[i] = end.applyAsInt(item);
+            values[i] = item;
+        }
+        return new IntervalTree<>(starts, ends, values);
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Árbol con un intervalo más (después de los que tienen el mismo inicio)
+     */
+    public IntervalTree<T> with(int start, int end, T value) {
+        int n = starts.length;
+        int pos = upperBound(start);
+        int[] newStarts = new int[n + 1];
+        int[] newEnds = new int[n + 1];
+        Object[] newValues = new Object[n + 1];
+        System.arraycopy(starts, 0, newStarts, 0, pos);
+        System.arraycopy(ends, 0, newEnds, 0, pos);
+        System.arraycopy(values, 0, newValues, 0, pos);
+        newStarts[pos] = start;
+        newEnds[pos] = end;
+        newValues[pos] = value;
+        System.arraycopy(starts, pos, newStarts, pos + 1, n - pos);
+        System.arraycopy(ends, pos, newEnds, pos + 1, n - pos);
+        System.arraycopy(values, pos, newValues, pos + 1, n - pos);
+        return new IntervalTree<>(newStarts, newEnds, newValues);
+    }
+
+    /**
+     * Árbol sin los valores que cumplen match (el mismo si no había ninguno)
+     */
+    @SuppressWarnings("unchecked")
+    public IntervalTree<T> without(Predicate<? super T> match) {
+        int n = starts.length;
+        int[] newStarts = new int[n];
+        int[] newEnds = new int[n];
+        Object[] newValues = new Object[n];
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (!match.test((T) values[i])) {
+                newStarts[kept] = starts[i];
+                newEnds[kept] = ends[i];
+                newValues[kept] = values[i];
+                kept++;
+            }
+        }
+        if (kept == n) {
+            return this;
+        }
+        if (kept == 0) {
+            return empty();
+        }
+        return new IntervalTree<>(Arrays.copyOf(newStarts, kept), Arrays.copyOf(newEnds, kept),
+            Arrays.copyOf(newValues, kept));
+    }
+
+    /**
+     * Valores cuyo intervalo contiene point, por orden de inicio
+     */
+    public List<T> covering(int point) {
+        return overlapping(point, point);
+    }
+
+    /**
+     * Valores cuyo intervalo se solapa con [from, to], por orden de inicio
+     */
+    public List<T> overlapping(int from, int to) {
+        if (starts.length == 0) {
+            return Collections.emptyList();
+        }
+        List<T> out = new ArrayList<>(2);
+        search(0, starts.length - 1, from, to, null, out);
+        return out;
+    }
+
+    public boolean overlaps(int from, int to) {
+        return overlaps(from, to, null);
+    }
+
+    /**
+     * true si algún valor que cumple match (null = cualquiera) se solapa con [from, to];
+     * se detiene en el primero
+     */
+    public boolean overlaps(int from, int to, Predicate<? super T> match) {
+        return starts.length > 0 && search(0, starts.length - 1, from, to, match, null);
+    }
+
+    /**
+     * Recorre el subárbol [lo, hi]. Con out junta todos; sin out devuelve al primer acierto.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean search(int lo, int hi, int from, int to, Predicate<? super T> match, List<T> out) {
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxEnds[mid] < from) {
+                return false; // Nada en este subárbol llega hasta from
+            }
+            if (lo < mid && search(lo, mid - 1, from, to, match, out)) {
+                return true;
+            }
+            if (starts[mid] > to) {
+                return false; // A la derecha todos empiezan después de to
+            }
+            if (ends[mid] >= from && (match == null || match.test((T) values[mid]))) {
+                if (out == null) {
+                    return true;
+                }
+                out.add((T) values[mid]);
+            }
+            lo = mid + 1;
+        }
+        return false;
+    }
+
+    private int buildMax(int lo, int hi) {
+        int mid = (lo + hi) >>> 1;
+        int max = ends[mid];
+        if (lo < mid) {
+            max = Math.max(max, buildMax(lo, mid - 1));
+        }
+        if (mid < hi) {
+            max = Math.max(max, buildMax(mid + 1, hi));
+        }
+        maxEnds[mid] = max;
+        return max;
+    }
+
+    /**
+     * Primera posición con inicio mayor que start
+     */
+    private int upperBound(int start) {
+        int lo = 0;
+        int hi = starts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,170 @@
+package com.asistenciav2.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Salida de trabajos largos (p. ej. el procesamiento de asistencia), un registro por id
+ * de trabajo (el de processing_jobs).
+ *
+ * Cada registro guarda las líneas en segmentos de SEGMENT_LINES; al superar maxSegments
+ * se descarta el segmento más viejo, así una corrida de varios meses no crece sin límite
+ * ni se vuelve a copiar. Las líneas se leen por desplazamiento (secuencia desde 1): un
+ * stream que se corta retoma desde la última que recibió. Los trabajos terminados se
+ * quitan después de retentionMillis ({@link #evictExpired()}, también al crear uno nuevo).
+ */
+public class JobLogStore {
+    public static final int SEGMENT_LINES = 1024;
+
+    private final int maxSegments;
+    private final long retentionMillis;
+    private final Map<String, JobLog> jobs = new ConcurrentHashMap<>();
+    private volatile JobLog latest;
+
+    /**
+     * Registro de un trabajo. Un escritor (el trabajo) y varios lectores (streams)
+     */
+    public static final class JobLog implements SequencedLog {
+        private final String id;
+        private final long createdAt = System.currentTimeMillis();
+        private final int maxSegments;
+        private final List<EventRing.Event[]> segments = new ArrayList<>();
+        private long firstSeq = 1;        // Secuencia de la primera línea del primer segmento
+        private int lastFill = 0;         // Líneas ocupadas en el último segmento
+        private volatile long head = 0;
+        private volatile long finishedAt = 0;
+
+        JobLog(String id, int maxSegments) {
+            this.id = id;
+            this.maxSegments = maxSegments;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public synchronized long append(String line) {
+            if (segments.isEmpty() || lastFill == SEGMENT_LINES) {
+                if (segments.size() == maxSegments) {
+                    segments.remove(0);
+                    firstSeq += SEGMENT_LINES;
+                }
+                segments.add(new EventRing.Event[SEGMENT_LINES]);
+                lastFill = 0;
+            }
+            long seq = head + 1;
+            segments.get(segments.size() - 1)[lastFill++] = new EventRing.Event(seq, line);
+            head = seq;
+            return seq;
+        }
+
+        @Override
+        public long head() {
+            return head;
+        }
+
+        /**
+         * Primera secuencia que todavía se conserva
+         */
+        public synchronized long oldest() {
+            return head == 0 ? 1 : firstSeq;
+        }
+
+        @Override
+        public synchronized long read(long cursor, List<EventRing.Event> out, int max) {
+            long seq = Math.max(cursor + 1, firstSeq);
+            int copied = 0;
+            for (; seq <= head && copied < max; seq++) {
+                long index = seq - firstSeq;
+                out.add(segments.get((int) (index / SEGMENT_LINES))[(int) (index % SEGMENT_LINES)]);
+                copied++;
+            }
+            return Math.max(cursor, seq - 1);
+        }
+
+        /**
+         * Marca el trabajo como terminado: desde ahí corre el plazo de retención
+         */
+        public void finish() {
+            finishedAt = System.currentTimeMillis();
+        }
+
+        public boolean isFinished() {
+            return finishedAt != 0;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("jobId", id);
+            map.put("lines", head);
+            map.put("oldestOffset", oldest());
+            map.put("finished", isFinished());
+            map.put("createdAt", createdAt);
+            return map;
+        }
+    }
+
+    public JobLogStore(int maxLinesPerJob, long retentionMillis) {
+        this.maxSegments = Math.max(1, (maxLinesPerJob + SEGMENT_LINES - 1) / SEGMENT_LINES);
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Registro con un id externo (p. ej. el de processing_jobs); si ya existe lo devuelve.
+     * Pasa a ser el último.
+     */
+    public JobLog getOrCreate(String id) {
+        evictExpired();
+        JobLog log = jobs.computeIfAbsent(id, key -> new JobLog(key, maxSegments));
+        latest = log;
+        return log;
+    }
+
+    /**
+     * Registro del trabajo, o null si no existe o ya se quitó
+     */
+    public JobLog get(String id) {
+        return id != null ? jobs.get(id) : null;
+    }
+
+    public JobLog latest() {
+        return latest;
+    }
+
+    /**
+     * Registros que todavía no terminaron
+     */
+    public List<JobLog> unfinished() {
+        List<JobLog> open = new ArrayList<>();
+        for (JobLog log : jobs.values()) {
+            if (log.finishedAt == 0) {
+                open.add(log);
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Quita los trabajos terminados hace más de retentionMillis (el último se conserva)
+     *
+     * @return cantidad quitada
+     */
+    public int evictExpired() {
+        long limit = System.currentTimeMillis() - retentionMillis;
+        int removed = 0;
+        for (JobLog log : jobs.values()) {
+            if (log.finishedAt != 0 && log.finishedAt < limit && log != latest) {
+                jobs.remove(log.id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+}
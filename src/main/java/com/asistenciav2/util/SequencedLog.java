@@ -0,0 +1,23 @@
+package com.asistenciav2.util;
+
+import java.util.List;
+
+/**
+ * Registro de líneas con número de secuencia que se lee por cursor, sin consumir.
+ * Lo implementan {@link EventRing} y los registros por trabajo de {@link JobLogStore};
+ * el envío SSE solo depende de esta interfaz.
+ */
+public interface SequencedLog {
+    /**
+     * Última secuencia escrita (0 si no hay ninguna)
+     */
+    long head();
+
+    /**
+     * Copia en out hasta max eventos posteriores a cursor, en orden. Los que ya no están
+     * se saltean: el cursor nuevo menos el anterior menos los copiados es el hueco.
+     *
+     * @return cursor nuevo (última secuencia copiada o perdida)
+     */
+    long read(long cursor, List<EventRing.Event> out, int max);
+}
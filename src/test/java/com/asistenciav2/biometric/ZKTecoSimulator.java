@@ -0,0 +1,660 @@
+package com.asistenciav2.biometric;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reloj ZKTeco simulado dentro del proceso, para pruebas de carga y regresión.
+ *
+ * Habla el mismo framing TCP que {@link ZKTecoProtocol} (cabecera de 16 bytes con
+ * checksum, sesión y número de respuesta) y atiende CONNECT, OPTIONS_WRQ,
+ * DISABLE/ENABLEDEVICE, GET_FREE_SIZES, ATTLOGDATA, lectura por buffer
+ * (PREPARE_BUFFER/READ_BUFFER/FREE_DATA), REG_EVENT y EXIT. El log es sintético y
+ * se genera al vuelo, así un reloj con un millón de marcaciones no ocupa memoria.
+ * Además guarda una tabla de usuarios y huellas en memoria (USER_WRQ, DELETE_USER,
+ * DELETE_USERTEMP, PREPARE_DATA/DATA + SAVE_USERTEMPS y su lectura por buffer).
+ * Se puede inyectar latencia, pérdida de paquetes y cuelgues. Vive en el árbol de
+ * pruebas: no se empaqueta en el WAR.
+ */
+public class ZKTecoSimulator implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ZKTecoSimulator.class.getName());
+
+    private static final int INLINE_LIMIT = 1024; // Logs pequeños se entregan directo en PREPARE_BUFFER
+
+    /**
+     * Configuración de un reloj simulado
+     */
+    public static class DeviceConfig {
+        public int port = 0;                 // 0 = puerto libre asignado por el sistema
+        public int records = 1000;           // Marcaciones iniciales en el log
+        public int userCount = 200;          // Usuarios distintos (userId 1..userCount)
+        public LocalDateTime firstPunch = LocalDateTime.now().minusDays(30);
+        public int secondsBetweenPunches = 60;
+        public int password = 0;             // 0 = sin contraseña
+        public boolean bufferedReads = true; // false = firmware antiguo, solo ATTLOGDATA en un paquete
+        public int dataPacketSize = 16384;   // Tamaño de cada CMD_DATA al responder READ_BUFFER
+        public long latencyMillis = 0;       // Espera antes de cada respuesta
+        public long jitterMillis = 0;        // Espera adicional aleatoria 0..jitter
+        public double dropRate = 0.0;        // Probabilidad de no responder un comando
+        public int stallAfterPackets = -1;   // Deja de responder tras N paquetes (-1 = nunca)
+        public int userRecordSize = 72;      // Registro de la tabla de usuarios: 72 o 28 (firmware antiguo)
+
+        public DeviceConfig copy() {
+            DeviceConfig c = new DeviceConfig();
+            c.port = port;
+            c.records = records;
+            c.userCount = userCount;
+            c.firstPunch = firstPunch;
+            c.secondsBetweenPunches = secondsBetweenPunches;
+            c.password = password;
+            c.bufferedReads = bufferedReads;
+            c.dataPacketSize = dataPacketSize;
+            c.latencyMillis = latencyMillis;
+            c.jitterMillis = jitterMillis;
+            c.dropRate = dropRate;
+            c.stallAfterPackets = stallAfterPackets;
+            c.userRecordSize = userRecordSize;
+            return c;
+        }
+    }
+
+    private final DeviceConfig config;
+    private final AtomicInteger recordCount;
+    private final long firstEpoch;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, byte[]> userTable = new ConcurrentSkipListMap<>();     // uid → registro
+    private final Map<Integer, byte[]> templateTable = new ConcurrentSkipListMap<>(); // uid * 16 + dedo → plantilla
+    private final AtomicInteger nextSessionId = new AtomicInteger(ThreadLocalRandom.current().nextInt(1, 30000));
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    public ZKTecoSimulator(DeviceConfig config) {
+        this.config = config;
+        this.recordCount = new AtomicInteger(config.records);
+        // El reloj guarda hora local; ZKTecoProtocol la decodifica con el offset del sistema
+        this.firstEpoch = config.firstPunch.toEpochSecond(ZoneId.systemDefault().getRules().getOffset(Instant.now()));
+    }
+
+    /**
+     * Inicia el servidor en 127.0.0.1
+     *
+     * @return puerto en escucha
+     */
+    public synchronized int start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.port), 200);
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "zk-sim-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Reloj simulado en puerto " + serverSocket.getLocalPort() + " con " + recordCount.get() + " marcaciones");
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Inicia varios relojes con la misma configuración; basePort 0 usa puertos libres
+     */
+    public static List<ZKTecoSimulator> startMany(int count, int basePort, DeviceConfig template) throws IOException {
+        List<ZKTecoSimulator> simulators = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                DeviceConfig config = template.copy();
+                config.port = basePort > 0 ? basePort + i : 0;
+                ZKTecoSimulator simulator = new ZKTecoSimulator(config);
+                simulator.start();
+                simulators.add(simulator);
+            }
+        } catch (IOException e) {
+            for (ZKTecoSimulator simulator : simulators) {
+                simulator.close();
+            }
+            throw e;
+        }
+        return simulators;
+    }
+
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    public int getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * Agrega o reemplaza un usuario en la tabla del reloj
+     */
+    public void putUser(ZKTecoProtocol.DeviceUser user) {
+        userTable.put(user.uid, ZKTecoProtocol.packUser(user, config.userRecordSize));
+    }
+
+    /**
+     * Agrega o reemplaza una huella en la tabla del reloj
+     */
+    public void putTemplate(ZKTecoProtocol.FingerTemplate template) {
+        templateTable.put(template.uid * 16 + template.fingerIndex, template.data.clone());
+    }
+
+    public List<ZKTecoProtocol.DeviceUser> getUsers() {
+        return ZKTecoProtocol.parseUsers(concat(userTable.values()), config.userRecordSize);
+    }
+
+    public List<ZKTecoProtocol.FingerTemplate> getTemplates() {
+        return ZKTecoProtocol.parseTemplates(templateBytes());
+    }
+
+    /**
+     * Tabla de huellas como la entrega el reloj: tamaño, uid, dedo, válida y plantilla
+     */
+    private byte[] templateBytes() {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        for (Map.Entry<Integer, byte[]> e : templateTable.entrySet()) {
+            byte[] data = e.getValue();
+            ByteBuffer header = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+            header.putShort((short) (data.length + 6)).putShort((short) (e.getKey() / 16))
+                .put((byte) (e.getKey() % 16)).put((byte) 1);
+            out.write(header.array(), 0, 6);
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(java.util.Collection<byte[]> parts) {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Aplica un paquete de SAVE_USERTEMPS: usuarios (0x02 + registro), índice de huellas
+     * (0x02, uid, 0x10 + dedo, inicio) y plantillas (tamaño de 2 bytes + datos)
+     */
+    private boolean saveUserTemplates(byte[] packet) {
+        if (packet.length < 12) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+        int usersLength = buffer.getInt(0);
+        int indexLength = buffer.getInt(4);
+        int fingersLength = buffer.getInt(8);
+        int recordSize = config.userRecordSize + 1;
+        if (12L + usersLength + indexLength + fingersLength != packet.length || usersLength % recordSize != 0) {
+            return false;
+        }
+        for (int offset = 12; offset < 12 + usersLength; offset += recordSize) {
+            byte[] record = java.util.Arrays.copyOfRange(packet, offset + 1, offset + recordSize);
+            if (config.userRecordSize == 72) {
+                record[39] = 0; // En el paquete ese relleno viaja en 1
+            }
+            userTable.put(ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF, record);
+        }
+        int fingersStart = 12 + usersLength + indexLength;
+        for (int offset = 12 + usersLength; offset + 8 <= fingersStart; offset += 8) {
+            int uid = buffer.getShort(offset + 1) & 0xFFFF;
+            int finger = (packet[offset + 3] & 0xFF) - 0x10;
+            int start = fingersStart + buffer.getInt(offset + 4);
+            int size = buffer.getShort(start) & 0xFFFF;
+            templateTable.put(uid * 16 + finger, java.util.Arrays.copyOfRange(packet, start + 2, start + 2 + size));
+        }
+        return true;
+    }
+
+    /**
+     * Agrega una marcación al log y la envía a las sesiones registradas con REG_EVENT
+     */
+    public void pushPunch(int userId, LocalDateTime timestamp) {
+        recordCount.incrementAndGet();
+        byte[] event = new byte[10];
+        event[0] = (byte) userId;
+        event[1] = (byte) (userId >> 8);
+        event[2] = 1; // huella
+        event[3] = 0;
+        event[4] = (byte) (timestamp.getYear() - 2000);
+        event[5] = (byte) timestamp.getMonthValue();
+        event[6] = (byte) timestamp.getDayOfMonth();
+        event[7] = (byte) timestamp.getHour();
+        event[8] = (byte) timestamp.getMinute();
+        event[9] = (byte) timestamp.getSecond();
+        for (Connection connection : connections) {
+            if (connection.eventsRegistered) {
+                connection.sendQuietly(ZKTecoProtocol.CMD_REG_EVENT, event, 0, event.length);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.fine("Error cerrando servidor simulado: " + e.getMessage());
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                Thread handler = new Thread(connection::serve, "zk-sim-conn-" + getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.WARNING, "Error aceptando conexión simulada", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Escribe el log sintético [start, start+length) en out. El flujo completo es
+     * 4 bytes de tamaño seguidos de registros de 40 bytes, igual que un reloj real.
+     */
+    private void writeLogBytes(byte[] out, int outOffset, long start, int length, int count) {
+        ByteBuffer buffer = ByteBuffer.wrap(out, outOffset, length).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] prefix = new byte[4];
+        ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN).putInt(count * ZKTecoProtocol.RECORD_SIZE);
+        byte[] record = new byte[ZKTecoProtocol.RECORD_SIZE];
+        ByteBuffer recordView = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            if (position < 4) {
+                buffer.put(prefix[(int) position]);
+                position++;
+                continue;
+            }
+            long index = (position - 4) / ZKTecoProtocol.RECORD_SIZE;
+            int within = (int) ((position - 4) % ZKTecoProtocol.RECORD_SIZE);
+            recordView.putShort(0, (short) (index % config.userCount + 1));
+            record[2] = 1;                                   // verifyType: huella
+            record[3] = (byte) (index % 2);                  // inOutMode alterno
+            recordView.putInt(4, (int) (firstEpoch + index * config.secondsBetweenPunches));
+            int take = (int) Math.min(ZKTecoProtocol.RECORD_SIZE - within, end - position);
+            buffer.put(record, within, take);
+            position += take;
+        }
+    }
+
+    /**
+     * Conversación con un cliente conectado
+     */
+    private final class Connection {
+        private final Socket socket;
+        private final int sessionId = nextSessionId.getAndIncrement() & 0xFFFF;
+        private volatile boolean eventsRegistered = false;
+        private int packetsReceived = 0;
+        private OutputStream out;
+        private int bufferedCount = -1; // Registros fijados por PREPARE_BUFFER
+        private byte[] bufferedTable;   // Tabla de usuarios/huellas fijada por PREPARE_BUFFER (con tamaño)
+        private java.io.ByteArrayOutputStream incoming; // Datos recibidos tras PREPARE_DATA
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void serve() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out = socket.getOutputStream();
+                byte[] header = new byte[ZKTecoProtocol.HEADER_SIZE];
+
+                while (running) {
+                    in.readFully(header);
+                    ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                    int command = h.getShort(0) & 0xFFFF;
+                    int length = h.getInt(8);
+                    int reserved = h.getInt(12);
+                    if (length < 0 || length > ZKTecoProtocol.MAX_DATA_LENGTH) {
+                        throw new IOException("Longitud inválida: " + length);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    packetsReceived++;
+
+                    if (command == ZKTecoProtocol.CMD_EXIT) {
+                        return;
+                    }
+                    // Las confirmaciones de eventos no llevan respuesta
+                    if (command == ZKTecoProtocol.CMD_ACK_OK) {
+                        continue;
+                    }
+                    if (config.stallAfterPackets >= 0 && packetsReceived > config.stallAfterPackets) {
+                        continue;
+                    }
+                    if (config.dropRate > 0 && ThreadLocalRandom.current().nextDouble() < config.dropRate) {
+                        continue;
+                    }
+                    delay();
+                    handle(command, reserved, data);
+                }
+            } catch (IOException e) {
+                logger.fine("Conexión simulada cerrada: " + e.getMessage());
+            } finally {
+                close();
+                connections.remove(this);
+            }
+        }
+
+        private void handle(int command, int reserved, byte[] data) throws IOException {
+            switch (command) {
+                case ZKTecoProtocol.CMD_CONNECT:
+                    if (config.password != 0 && reserved != config.password) {
+                        send(ZKTecoProtocol.CMD_ACK_UNAUTH, new byte[0]);
+                    } else {
+                        send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    }
+                    break;
+                case ZKTecoProtocol.CMD_GET_FREE_SIZES:
+                    send(ZKTecoProtocol.CMD_ACK_OK, sizes());
+                    break;
+                case ZKTecoProtocol.CMD_ATTLOGDATA: {
+                    // Firmware antiguo: todo en un paquete, limitado al máximo que acepta el cliente
+                    int count = Math.min(recordCount.get(), ZKTecoProtocol.MAX_DATA_LENGTH / ZKTecoProtocol.RECORD_SIZE);
+                    byte[] log = new byte[count * ZKTecoProtocol.RECORD_SIZE];
+                    writeLogBytes(log, 0, 4, log.length, count);
+                    send(ZKTecoProtocol.CMD_ACK_DATA, log);
+                    break;
+                }
+                case ZKTecoProtocol.CMD_PREPARE_BUFFER: {
+                    ByteBuffer params = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+                    int table = data.length >= 3 ? params.getShort(1) & 0xFFFF : ZKTecoProtocol.CMD_ATTLOGDATA;
+                    if (table == ZKTecoProtocol.CMD_USERTEMP_RRQ) {
+                        prepareTable(concat(userTable.values()));
+                    } else if (table == ZKTecoProtocol.CMD_DB_RRQ) {
+                        prepareTable(templateBytes());
+                    } else {
+                        prepareBuffer();
+                    }
+                    break;
+                }
+                case ZKTecoProtocol.CMD_READ_BUFFER: {
+                    ByteBuffer params = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+                    readBuffer(params.getInt(0), params.getInt(4));
+                    break;
+                }
+                case ZKTecoProtocol.CMD_FREE_DATA:
+                    bufferedCount = -1;
+                    bufferedTable = null;
+                    incoming = null;
+                    send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    break;
+                case ZKTecoProtocol.CMD_PREPARE_DATA:
+                    incoming = new java.io.ByteArrayOutputStream();
+                    send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    break;
+                case ZKTecoProtocol.CMD_DATA:
+                    if (incoming == null) {
+                        send(ZKTecoProtocol.CMD_ACK_ERROR, new byte[0]);
+                    } else {
+                        incoming.write(data, 0, data.length);
+                        send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    }
+                    break;
+                case ZKTecoProtocol.CMD_SAVE_USERTEMPS: {
+                    boolean saved = incoming != null && saveUserTemplates(incoming.toByteArray());
+                    incoming = null;
+                    send(saved ? ZKTecoProtocol.CMD_ACK_OK : ZKTecoProtocol.CMD_ACK_ERROR, new byte[0]);
+                    break;
+                }
+                case ZKTecoProtocol.CMD_USER_WRQ:
+                    if (data.length != config.userRecordSize) {
+                        send(ZKTecoProtocol.CMD_ACK_ERROR, new byte[0]);
+                    } else {
+                        userTable.put(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF, data);
+                        send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    }
+                    break;
+                case ZKTecoProtocol.CMD_DELETE_USER: {
+                    int uid = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF;
+                    userTable.remove(uid);
+                    templateTable.keySet().removeIf(key -> key / 16 == uid);
+                    send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    break;
+                }
+                case ZKTecoProtocol.CMD_DELETE_USERTEMP: {
+                    int uid = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF;
+                    boolean removed = templateTable.remove(uid * 16 + data[2]) != null;
+                    send(removed ? ZKTecoProtocol.CMD_ACK_OK : ZKTecoProtocol.CMD_ACK_ERROR, new byte[0]);
+                    break;
+                }
+                case ZKTecoProtocol.CMD_REG_EVENT:
+                    eventsRegistered = data.length >= 4
+                        && (ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(0) & ZKTecoProtocol.EF_ATTLOG) != 0;
+                    send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+                    break;
+                case ZKTecoProtocol.CMD_GET_TIME:
+                    send(ZKTecoProtocol.CMD_ACK_OK, new byte[4]);
+                    break;
+                default:
+                    // OPTIONS_WRQ, DISABLEDEVICE, ENABLEDEVICE y otros: confirmación simple
+                    send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+            }
+        }
+
+        private void prepareBuffer() throws IOException {
+            if (!config.bufferedReads) {
+                send(ZKTecoProtocol.CMD_ACK_ERROR, new byte[0]);
+                return;
+            }
+            bufferedTable = null;
+            bufferedCount = recordCount.get();
+            long total = 4L + (long) bufferedCount * ZKTecoProtocol.RECORD_SIZE;
+            if (total <= INLINE_LIMIT) {
+                byte[] log = new byte[(int) total];
+                writeLogBytes(log, 0, 0, log.length, bufferedCount);
+                send(ZKTecoProtocol.CMD_DATA, log);
+                return;
+            }
+            byte[] response = new byte[9];
+            ByteBuffer.wrap(response).order(ByteOrder.LITTLE_ENDIAN).putInt(1, (int) total);
+            send(ZKTecoProtocol.CMD_ACK_OK, response);
+        }
+
+        /**
+         * Fija una tabla para leerla por buffer: 4 bytes de tamaño y los datos
+         */
+        private void prepareTable(byte[] table) throws IOException {
+            bufferedCount = -1;
+            bufferedTable = new byte[4 + table.length];
+            ByteBuffer.wrap(bufferedTable).order(ByteOrder.LITTLE_ENDIAN).putInt(0, table.length);
+            System.arraycopy(table, 0, bufferedTable, 4, table.length);
+            if (bufferedTable.length <= INLINE_LIMIT) {
+                send(ZKTecoProtocol.CMD_DATA, bufferedTable);
+                return;
+            }
+            byte[] response = new byte[9];
+            ByteBuffer.wrap(response).order(ByteOrder.LITTLE_ENDIAN).putInt(1, bufferedTable.length);
+            send(ZKTecoProtocol.CMD_ACK_OK, response);
+        }
+
+        private void readBuffer(int start, int size) throws IOException {
+            long total = bufferedTable != null ? bufferedTable.length : 4L + (long) bufferedCount * ZKTecoProtocol.RECORD_SIZE;
+            if ((bufferedCount < 0 && bufferedTable == null) || start < 0 || size <= 0 || start + (long) size > total) {
+                send(ZKTecoProtocol.CMD_ACK_ERROR, new byte[0]);
+                return;
+            }
+            byte[] chunk = new byte[size];
+            if (bufferedTable != null) {
+                System.arraycopy(bufferedTable, start, chunk, 0, size);
+            } else {
+                writeLogBytes(chunk, 0, start, size, bufferedCount);
+            }
+            if (size <= config.dataPacketSize) {
+                send(ZKTecoProtocol.CMD_DATA, chunk);
+                return;
+            }
+            byte[] announce = new byte[4];
+            ByteBuffer.wrap(announce).order(ByteOrder.LITTLE_ENDIAN).putInt(0, size);
+            send(ZKTecoProtocol.CMD_PREPARE_DATA, announce);
+            for (int offset = 0; offset < size; offset += config.dataPacketSize) {
+                send(ZKTecoProtocol.CMD_DATA, chunk, offset, Math.min(config.dataPacketSize, size - offset));
+            }
+            send(ZKTecoProtocol.CMD_ACK_OK, new byte[0]);
+        }
+
+        private byte[] sizes() {
+            ByteBuffer fields = ByteBuffer.allocate(80).order(ByteOrder.LITTLE_ENDIAN);
+            // Sin tabla de usuarios cargada se informa la cantidad de usuarios del log sintético
+            fields.putInt(4 * 4, userTable.isEmpty() ? config.userCount : userTable.size());
+            fields.putInt(6 * 4, templateTable.size());
+            fields.putInt(8 * 4, recordCount.get());
+            fields.putInt(14 * 4, 3000);
+            fields.putInt(15 * 4, 3000);
+            fields.putInt(16 * 4, Math.max(100000, recordCount.get()));
+            return fields.array();
+        }
+
+        private void delay() {
+            long wait = config.latencyMillis;
+            if (config.jitterMillis > 0) {
+                wait += ThreadLocalRandom.current().nextLong(config.jitterMillis + 1);
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void send(int command, byte[] data) throws IOException {
+            send(command, data, 0, data.length);
+        }
+
+        private synchronized void send(int command, byte[] data, int offset, int length) throws IOException {
+            byte[] body = offset == 0 && length == data.length ? data : java.util.Arrays.copyOfRange(data, offset, offset + length);
+            out.write(ZKTecoProtocol.encodePacket(command, sessionId, 0, 0, body));
+            out.flush();
+        }
+
+        void sendQuietly(int command, byte[] data, int offset, int length) {
+            try {
+                if (out != null) {
+                    send(command, data, offset, length);
+                }
+            } catch (IOException e) {
+                logger.fine("No se pudo enviar evento simulado: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.fine("Error cerrando conexión simulada: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Banco de pruebas: levanta N relojes simulados y los descarga con el cliente NIO
+     * y con ZKTecoProtocol. Con --sync además ejecuta BiometricSyncService.syncAllDevices
+     * contra ellos; escribe en la BD, así que exige DB_URL explícito (con DB_USER/DB_PASSWORD)
+     * para no caer en la base por defecto de la aplicación.
+     *
+     * Uso: ZKTecoSimulator [relojes] [marcacionesPorReloj] [latenciaMs] [tasaPerdida] [--sync]
+     */
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int recordsPerDevice = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        DeviceConfig template = new DeviceConfig();
+        template.records = recordsPerDevice;
+        template.latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        template.dropRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+        boolean runSync = args.length > 4 && "--sync".equals(args[4]);
+        if (runSync && (System.getenv("DB_URL") == null || System.getenv("DB_URL").trim().isEmpty())) {
+            System.err.println("--sync escribe en la base de datos: indique la base de pruebas con DB_URL");
+            System.exit(2);
+        }
+
+        List<ZKTecoSimulator> simulators = startMany(devices, 0, template);
+        try {
+            List<ZKTecoNioClient.DeviceRequest> requests = new ArrayList<>();
+            for (int i = 0; i < simulators.size(); i++) {
+                requests.add(new ZKTecoNioClient.DeviceRequest(i + 1, "127.0.0.1", simulators.get(i).getPort(), 0, 0));
+            }
+
+            long started = System.currentTimeMillis();
+            long blockingTotal = 0;
+            for (ZKTecoSimulator simulator : simulators) {
+                ZKTecoProtocol protocol = new ZKTecoProtocol("127.0.0.1", simulator.getPort());
+                try {
+                    if (protocol.connect()) {
+                        blockingTotal += protocol.streamAttendanceBatches(batch -> { });
+                    }
+                } finally {
+                    protocol.disconnect();
+                }
+            }
+            System.out.printf("ZKTecoProtocol (secuencial, por bloques): %d marcaciones de %d relojes en %d ms%n",
+                blockingTotal, devices, System.currentTimeMillis() - started);
+
+            started = System.currentTimeMillis();
+            long nioTotal = 0;
+            int nioFailures = 0;
+            for (ZKTecoNioClient.DeviceResult result : new ZKTecoNioClient().fetchAll(requests)) {
+                if (result.success) {
+                    nioTotal += result.records.size();
+                } else {
+                    nioFailures++;
+                }
+            }
+            System.out.printf("ZKTecoNioClient (un hilo, por bloques): %d marcaciones, %d fallos en %d ms%n",
+                nioTotal, nioFailures, System.currentTimeMillis() - started);
+
+            if (runSync) {
+                com.asistenciav2.service.BiometricSyncService service = new com.asistenciav2.service.BiometricSyncService();
+                List<com.asistenciav2.service.BiometricSyncService.BiometricDevice> configured = new ArrayList<>();
+                for (int i = 0; i < simulators.size(); i++) {
+                    configured.add(new com.asistenciav2.service.BiometricSyncService.BiometricDevice(
+                        1000 + i, "127.0.0.1", simulators.get(i).getPort(), 5, 0));
+                }
+                service.setConfiguredDevices(configured);
+                started = System.currentTimeMillis();
+                java.util.Map<String, Object> stats = service.syncAllDevices();
+                System.out.printf("syncAllDevices: total=%s nuevos=%s duplicados=%s errores=%s en %d ms%n",
+                    stats.get("totalRecords"), stats.get("newRecords"), stats.get("duplicates"), stats.get("errors"),
+                    System.currentTimeMillis() - started);
+            }
+        } finally {
+            for (ZKTecoSimulator simulator : simulators) {
+                simulator.close();
+            }
+        }
+    }
+}